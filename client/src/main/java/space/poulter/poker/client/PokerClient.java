@@ -22,6 +22,7 @@ import java.net.InetAddress;
 import java.net.Socket;
 import java.net.UnknownHostException;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import javafx.application.Application;
@@ -36,6 +37,9 @@ import javafx.scene.control.Alert;
 import javafx.scene.control.Alert.AlertType;
 import javafx.scene.control.Button;
 import javafx.scene.control.ButtonType;
+import javafx.scene.control.CheckBox;
+import javafx.scene.control.ChoiceBox;
+import javafx.scene.control.Label;
 import javafx.scene.control.Menu;
 import javafx.scene.control.MenuBar;
 import javafx.scene.control.MenuItem;
@@ -46,13 +50,15 @@ import javafx.scene.control.TextInputDialog;
 import javafx.scene.control.TitledPane;
 import javafx.scene.control.cell.PropertyValueFactory;
 import javafx.scene.input.MouseEvent;
+import javafx.scene.layout.HBox;
 import javafx.scene.layout.VBox;
 import javafx.stage.Stage;
 import javafx.stage.WindowEvent;
 import javafx.util.Pair;
 import space.poulter.poker.ClientSocket;
+import space.poulter.poker.Command;
 import space.poulter.poker.CommandFormatException;
-import space.poulter.poker.PokerTableData;
+import space.poulter.poker.TableSummary;
 
 /**
  *
@@ -62,40 +68,125 @@ public class PokerClient extends Application {
     
     private Stage primaryView;
     
+    /* Whether to ask the server to compress large messages */
+    private static final boolean REQUEST_COMPRESSION = true;
+    
     private Map<Integer, PokerTableStage> windows;
     int tableCount;
     ClientSideSocket socket;
     Map<Integer, PokerTableDataClient> tablesData;
     
+    /* The current page of the lobby, and the filter it was requested with */
+    private ObservableList<PokerTableDataClient> pokerTables;
+    private int lobbyPage;
+    private int lobbyPages;
+    private String lobbyFilter;
+    private Label lobbyPageLabel;
+    private boolean lobbyShown;
+    
+    /* The token the server gave us when we last logged in, so we can connect
+     * to it again without logging in, and the server it is for.
+     */
+    private volatile String sessionToken;
+    private volatile String sessionServer;
+    
     public class ClientSideSocket extends ClientSocket {
 
         public ClientSideSocket(Socket s) throws IOException {
             super(s);
         }
         
+        /**
+         * @return The address and port of the server, to know which server a
+         * token is for.
+         */
+        private String getServer() {
+            return getSocket().getInetAddress().getHostAddress()+":"+getSocket().getPort();
+        }
+        
+        /**
+         * Asks the user for their username and password, and sends them.
+         */
+        private void showLogin() {
+            Platform.runLater(() -> {
+                LoginDialog login = new LoginDialog();
+                Optional<Pair<String, String>> result = login.showAndWait();
+                result.ifPresent(usernamePassword -> {
+                    //System.out.println("Username="+usernamePassword.getKey()+", Password="+usernamePassword.getValue());
+                    try {
+                        write("auth:user:"+usernamePassword.getKey()+":pass:"+usernamePassword.getValue());
+                    } catch(IOException ex) {
+                        System.err.println("Exception when sending username and password");
+                        System.err.println(ex);
+                    }
+                });
+            });
+        }
+        
         protected void startup() throws IOException {
             getReader().setDaemon(true);
             startReader();
             //write("Hello server");
+            if(REQUEST_COMPRESSION) 
+                write(COMPRESSION_REQUEST);
         }
         
         @Override
         public void processCommand(String str) {
             //System.out.println("got command "+ str);
             
+            /* The server has agreed to compress large messages, so we can too */
+            if(str.equals(COMPRESSION_REQUEST)) {
+                setCompressing(true);
+                return;
+            }
+            
             if(str.equals("auth:req")) {
+                /* Connecting to the same server again, so pick up where we 
+                 * left off rather than logging in again.
+                 */
+                String token = sessionToken;
+                if(token != null && getServer().equals(sessionServer)) {
+                    try {
+                        write("auth:resume:"+token);
+                        return;
+                    } catch(IOException ex) {
+                        System.err.println("Exception when resuming session");
+                        System.err.println(ex);
+                    }
+                }
+                showLogin();
+                return;
+            }
+            
+            /* A token to connect again with, which replaces any we had */
+            if(str.startsWith("auth:token:")) {
+                sessionToken = str.substring(11);
+                sessionServer = getServer();
+                return;
+            }
+            
+            /* The token was no good, so we have to log in after all */
+            if(str.equals("auth:fail:7")) {
+                sessionToken = null;
+                sessionServer = null;
+                showLogin();
+                return;
+            }
+            
+            /* The tables we are back at after resuming. The windows we had 
+             * open for them belong to the old connection, so open them again.
+             */
+            if(str.startsWith("auth:resumed")) {
+                Command command = new Command(str);
                 Platform.runLater(() -> {
-                    LoginDialog login = new LoginDialog();
-                    Optional<Pair<String, String>> result = login.showAndWait();
-                    result.ifPresent(usernamePassword -> {
-                        //System.out.println("Username="+usernamePassword.getKey()+", Password="+usernamePassword.getValue());
+                    for(int i = 2; i<command.size(); i++) {
                         try {
-                            socket.write("auth:user:"+usernamePassword.getKey()+":pass:"+usernamePassword.getValue());
-                        } catch(IOException ex) {
-                            System.err.println("Exception when sending username and password");
-                            System.err.println(ex);
+                            reopen(command.parseInt(i));
+                        } catch(NumberFormatException ex) {
+                            System.err.println("Invalid table ID in command "+str);
                         }
-                    });
+                    }
                 });
                 return;
             }
@@ -114,43 +205,97 @@ public class PokerClient extends Application {
             }
             
             if(str.startsWith("ID:")) {
-                Integer index = Integer.parseInt(str.substring(3, str.indexOf(':', 3)));
-                if(!windows.containsKey(index)) return;
-                PokerTableStage table = windows.get(index);
+                Command command = new Command(str);
+                PokerTableStage table;
+                try {
+                    table = windows.get(command.parseInt(1));
+                } catch(NumberFormatException ex) {
+                    System.err.println("Invalid table ID in command "+str);
+                    return;
+                }
+                if(table == null) return;
                 //System.out.println(str);
                 try {
-                    table.processCommand(str.substring(str.indexOf(':', 3)+1));
+                    table.processCommand(command, 2);
                 } catch(CommandFormatException ex) {
                     ex.printStackTrace();
                     //TODO do something better if we get a command format exception
                 }
                 return;
             }
-            if(str.equals("Table List:")) {
+            /* A page of the lobby, of the form "Table Page:$page:$pages", 
+             * followed by a list of the table summaries on the page.
+             */
+            if(str.startsWith("Table Page:")) {
                 try {
+                    String[] args = str.substring(11).split(":");
+                    int page = Integer.parseInt(args[0]);
+                    int pages = Integer.parseInt(args[1]);
                     Object o = read();
-                    if(!(o instanceof Integer)) throw new ClassNotFoundException();
-                    Integer noTables = (Integer)o;
-                    //System.out.println(noTables);
-                    for(int i = 0; i<noTables; i++) {
-                        o = read();
-                        if(!(o instanceof PokerTableData)) throw new ClassNotFoundException();
-                        PokerTableDataClient data = new PokerTableDataClient((PokerTableData)o);
-                        data.updateProperties();
-                        tablesData.put(data.getTableID(), data);
-                        //System.out.println(data.getTableID());
+                    if(!(o instanceof List)) throw new ClassNotFoundException();
+                    List<?> summaries = (List<?>)o;
+                    Map<Integer, PokerTableDataClient> pageData = new HashMap<>();
+                    for(Object summary : summaries) {
+                        if(!(summary instanceof TableSummary)) throw new ClassNotFoundException();
+                        PokerTableDataClient data = new PokerTableDataClient((TableSummary)summary);
+                        pageData.put(data.getTableID(), data);
                     }
-                } catch(IOException | ClassNotFoundException ex) {
+                    Platform.runLater(() -> {
+                        lobbyPage = page;
+                        lobbyPages = pages;
+                        tablesData.clear();
+                        tablesData.putAll(pageData);
+                        pokerTables.setAll(tablesData.values());
+                        lobbyPageLabel.setText("Page "+(page+1)+" of "+pages);
+                        if(!lobbyShown) {
+                            lobbyShown = true;
+                            ((VBox)primaryView.getScene().getRoot()).getChildren().add(formatTableList());
+                        }
+                    });
+                } catch(IOException | ClassNotFoundException | RuntimeException ex) {
                     System.err.println("Exception occured when receiving table list");
                     System.err.println(ex);
                 }
-                //System.out.println("Showing table list");
-                Platform.runLater(() -> {
-                    ((VBox)primaryView.getScene().getRoot()).getChildren().add(formatTableList());
-                });
                 return;
             }
             
+            /* The summary of a table has changed. We only need to show it if 
+             * the table is on the page we are looking at.
+             */
+            if(str.equals("Lobby:table")) {
+                try {
+                    Object o = read();
+                    if(!(o instanceof TableSummary)) throw new ClassNotFoundException();
+                    TableSummary summary = (TableSummary)o;
+                    Platform.runLater(() -> {
+                        if(tablesData.containsKey(summary.getTableID())) {
+                            tablesData.get(summary.getTableID()).setSeated(summary.getSeated());
+                            tablesData.get(summary.getTableID()).setAveragePot(summary.getAveragePot());
+                        }
+                    });
+                } catch(IOException | ClassNotFoundException ex) {
+                    System.err.println("Exception occured when receiving lobby update");
+                    System.err.println(ex);
+                }
+                return;
+            }
+            
+            /* A table has been closed, so take it off the page if it is there */
+            if(str.startsWith("Lobby:remove:")) {
+                try {
+                    int tableID = Integer.parseInt(str.substring(13));
+                    Platform.runLater(() -> {
+                        if(tablesData.remove(tableID) != null) {
+                            pokerTables.setAll(tablesData.values());
+                        }
+                    });
+                } catch(NumberFormatException ex) {
+                    System.err.println("Exception occured when receiving lobby update");
+                    System.err.println(ex);
+                }
+                return;
+            }
+
             if(str.equals("Exit")) {
                 synchronized(ClientSideSocket.this) {
                     ClientSideSocket.this.notify();
@@ -171,6 +316,12 @@ public class PokerClient extends Application {
         
         socket = null;
         tablesData = new HashMap<>();
+        pokerTables = FXCollections.observableArrayList();
+        lobbyPage = 0;
+        lobbyPages = 1;
+        lobbyFilter = "";
+        lobbyPageLabel = new Label();
+        lobbyShown = false;
         
         //System.out.println("Test");
         
@@ -263,7 +414,8 @@ public class PokerClient extends Application {
                                     socket.wait();
                                 }
                                 //System.out.println("Connection completed");
-                                socket.write("Get Tables");
+                                requestLobbyPage(0);
+                                socket.write("Lobby:subscribe");
                             } catch(IOException | InterruptedException | IllegalMonitorStateException ex) {
                                 System.err.println("Exception when waiting for connection to comeple");
                                 System.err.println(ex);
@@ -307,8 +459,34 @@ public class PokerClient extends Application {
         primaryStage.show();
     }
     
+    /**
+     * Opens a table again on the current connection, after resuming a 
+     * session. Must be run on the JavaFX thread.
+     * @param tableID The ID of the table.
+     */
+    private void reopen(int tableID) {
+        PokerTableStage old = windows.remove(tableID);
+        PokerTableDataClient dat;
+        if(old != null) {
+            dat = old.getData();
+            old.close();
+        } else {
+            dat = tablesData.get(tableID);
+        }
+        if(dat == null) {
+            System.err.println("Don't know table "+tableID+" to open it again");
+            return;
+        }
+        requestView(dat);
+    }
+    
     public void requestView(PokerTableDataClient dat) {
-        if(windows.containsKey(dat.getTableID())) return;
+        /* If we are already viewing the table, just bring it up to date */
+        if(windows.containsKey(dat.getTableID())) {
+            windows.get(dat.getTableID()).refresh();
+            windows.get(dat.getTableID()).requestFocus();
+            return;
+        }
         try {
             socket.write("View:"+dat.getTableID());
             
@@ -328,19 +506,37 @@ public class PokerClient extends Application {
         }
     }
     
+    /**
+     * Asks the server for a page of the lobby, using the current filter.
+     * @param page The index of the page to get.
+     */
+    public void requestLobbyPage(int page) {
+        try {
+            socket.write("Get Tables:page:"+page+lobbyFilter);
+        } catch(IOException e) {
+            System.err.println("Exception occured when requesting table list");
+            System.err.println(e);
+        }
+    }
+    
     public Accordion formatTableList() {
         TableView<PokerTableDataClient> table = new TableView<>();
-        ObservableList<PokerTableDataClient> pokerTables = FXCollections.observableArrayList(tablesData.values());
         
         table.setItems(pokerTables);
         
         TableColumn<PokerTableDataClient, Integer> tableIDCol = new TableColumn<>("Table ID");
         TableColumn<PokerTableDataClient, Integer> maxHandsCol = new TableColumn<>("Max hands");
+        TableColumn<PokerTableDataClient, Integer> seatedCol = new TableColumn<>("Seated");
+        TableColumn<PokerTableDataClient, Integer> averagePotCol = new TableColumn<>("Average pot");
+        TableColumn<PokerTableDataClient, String> stakesCol = new TableColumn<>("Stakes");
         TableColumn<PokerTableDataClient, PokerTableDataClient> buttonCol = new TableColumn<>("");
         
         
         tableIDCol.setCellValueFactory(new PropertyValueFactory("tableID"));
         maxHandsCol.setCellValueFactory(new PropertyValueFactory("maxHands"));
+        seatedCol.setCellValueFactory(new PropertyValueFactory("seated"));
+        averagePotCol.setCellValueFactory(new PropertyValueFactory("averagePot"));
+        stakesCol.setCellValueFactory(new PropertyValueFactory("stakes"));
         
         buttonCol.setCellValueFactory((TableColumn.CellDataFeatures<PokerTableDataClient, PokerTableDataClient> features) -> new ReadOnlyObjectWrapper(features.getValue()));
         
@@ -356,9 +552,36 @@ public class PokerClient extends Application {
             }
         });
   
-        table.getColumns().setAll(tableIDCol, maxHandsCol, buttonCol);
+        table.getColumns().setAll(tableIDCol, maxHandsCol, stakesCol, seatedCol, averagePotCol, buttonCol);
+        
+        /* The filters and the buttons to move between pages */
+        ChoiceBox<String> handsFilter = new ChoiceBox<>(
+                FXCollections.observableArrayList("Any", "6", "8"));
+        handsFilter.setValue("Any");
+        CheckBox freeFilter = new CheckBox("Free seats only");
+        Runnable applyFilter = () -> {
+            lobbyFilter = "";
+            if(!handsFilter.getValue().equals("Any"))
+                lobbyFilter += ":hands:"+handsFilter.getValue();
+            if(freeFilter.isSelected())
+                lobbyFilter += ":free:1";
+            requestLobbyPage(0);
+        };
+        handsFilter.setOnAction((e) -> applyFilter.run());
+        freeFilter.setOnAction((e) -> applyFilter.run());
+        
+        Button previous = new Button("Previous");
+        previous.setOnAction((e) -> {
+            if(lobbyPage > 0) requestLobbyPage(lobbyPage-1);
+        });
+        Button next = new Button("Next");
+        next.setOnAction((e) -> {
+            if(lobbyPage+1 < lobbyPages) requestLobbyPage(lobbyPage+1);
+        });
+        
+        HBox controls = new HBox(5, handsFilter, freeFilter, previous, lobbyPageLabel, next);
         
-        TitledPane t1 = new TitledPane("Tables", table);
+        TitledPane t1 = new TitledPane("Tables", new VBox(table, controls));
         Accordion accordion = new Accordion();
         
         accordion.getPanes().add(t1);
@@ -17,10 +17,14 @@
 
 package space.poulter.poker.client;
 
+import com.google.common.collect.HashBiMap;
 import java.io.Serializable;
 import javafx.beans.property.IntegerProperty;
 import javafx.beans.property.SimpleIntegerProperty;
+import javafx.beans.property.SimpleStringProperty;
+import javafx.beans.property.StringProperty;
 import space.poulter.poker.PokerTableData;
+import space.poulter.poker.TableSummary;
 
 /**
  *
@@ -31,13 +35,16 @@ public class PokerTableDataClient extends PokerTableData implements Serializable
     private IntegerProperty tableIDProp;
     private IntegerProperty maxHandsProp;
     private IntegerProperty potProp;
+    private IntegerProperty seatedProp;
+    private IntegerProperty averagePotProp;
+    private StringProperty stakesProp;
     
     public PokerTableDataClient() {
         super();
     }
     
     public PokerTableDataClient(PokerTableData dat) {
-        super.setPlayers(dat.getPlayerAndIndex());
+        super.setPlayers(HashBiMap.create(dat.getPlayerAndIndex()));
         super.setGameRunning(dat.isGameRunning());
         super.setStageOfPlay(dat.getStageOfPlay());
         super.setPlayersInHand(dat.getPlayersInHand());
@@ -49,9 +56,23 @@ public class PokerTableDataClient extends PokerTableData implements Serializable
         super.setBoardCards(dat.getBoard());
         super.setTableID(dat.getTableID());
         super.setMaxHands(dat.getMaxHands());
+        super.setConfig(dat.getConfig());
         updateProperties();
     }
     
+    /**
+     * Creates the data for a table which is only known from the lobby. The 
+     * rest of the data will be received when the table is viewed.
+     * @param summary The lobby summary of the table.
+     */
+    public PokerTableDataClient(TableSummary summary) {
+        super();
+        init(summary.getTableID(), summary.getMaxHands());
+        setSeated(summary.getSeated());
+        setAveragePot(summary.getAveragePot());
+        setStakes(summary.getStakes());
+    }
+    
     @Override
     public void init(int id, int hands) {
         super.init(id, hands);
@@ -94,9 +115,31 @@ public class PokerTableDataClient extends PokerTableData implements Serializable
         return potProp;
     }
     
+    public void setSeated(Integer value) { seatedProperty().set(value); }
+    public Integer getSeated() { return seatedProperty().get(); }
+    public IntegerProperty seatedProperty() {
+        if(seatedProp == null) seatedProp = new SimpleIntegerProperty(this, "seated");
+        return seatedProp;
+    }
+    
+    public void setAveragePot(Integer value) { averagePotProperty().set(value); }
+    public Integer getAveragePot() { return averagePotProperty().get(); }
+    public IntegerProperty averagePotProperty() {
+        if(averagePotProp == null) averagePotProp = new SimpleIntegerProperty(this, "averagePot");
+        return averagePotProp;
+    }
+    
+    public void setStakes(String value) { stakesProperty().set(value); }
+    public String getStakes() { return stakesProperty().get(); }
+    public StringProperty stakesProperty() {
+        if(stakesProp == null) stakesProp = new SimpleStringProperty(this, "stakes");
+        return stakesProp;
+    }
+    
     public void updateProperties() {
         setTableID(super.getTableID());
         setMaxHands(super.getMaxHands());
         setPot(super.getPot());
+        setStakes(super.getConfig().toString());
     }
 }
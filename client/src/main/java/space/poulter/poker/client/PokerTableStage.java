@@ -52,11 +52,13 @@ import javafx.stage.Stage;
 import javafx.util.Duration;
 import space.poulter.poker.Cards;
 import space.poulter.poker.Card;
+import space.poulter.poker.Command;
+import space.poulter.poker.CommandDispatcher;
 import space.poulter.poker.CommandFormatException;
 import space.poulter.poker.PlayerData;
 import space.poulter.poker.Poker.PokerAction;
 import space.poulter.poker.PokerTableData;
-import space.poulter.poker.Util;
+import space.poulter.poker.PokerTableDelta;
 import space.poulter.poker.client.PokerClient.ClientSideSocket;
 
 /**
@@ -80,7 +82,36 @@ public class PokerTableStage extends Stage {
     private ProgressBar timer;
     private Timeline timeline;
     
+    /* The commands which may be sent to a table, and those for the game */
+    private enum TableOp { UPDATE, DELTA, SEATTAKEN, SIT, SEATVACATED, GAME }
+    private enum GameOp { START, END, ROUNDDONE, WINNER, FLOP, TURN, RIVER, SEAT }
+    
+    private static final CommandDispatcher<TableOp> TABLE_COMMANDS = 
+            new CommandDispatcher<TableOp>()
+                .register("update", TableOp.UPDATE)
+                .register("delta", TableOp.DELTA)
+                .register("seattaken", TableOp.SEATTAKEN)
+                .register("sit", TableOp.SIT)
+                .register("seatvacated", TableOp.SEATVACATED)
+                .register("game", TableOp.GAME);
+    private static final CommandDispatcher<GameOp> GAME_COMMANDS = 
+            new CommandDispatcher<GameOp>()
+                .register("start", GameOp.START)
+                .register("end", GameOp.END)
+                .register("rounddone", GameOp.ROUNDDONE)
+                .register("winner", GameOp.WINNER)
+                .register("flop", GameOp.FLOP)
+                .register("turn", GameOp.TURN)
+                .register("river", GameOp.RIVER)
+                .register("seat", GameOp.SEAT);
+    
     private PokerTableDataClient data;
+    /* The last revision of the table data received from the server. Local
+     * changes to the data don't count towards this.
+     */
+    private long serverRevision;
+    /* Whether the whole table has been asked for, after a delta didn't fit */
+    private boolean resyncing;
     private final ClientSideSocket socket;
     
     /**
@@ -511,6 +542,8 @@ public class PokerTableStage extends Stage {
     public PokerTableStage(PokerTableDataClient dat, ClientSideSocket sock) {
         socket = sock;
         data = dat;
+        serverRevision = -1;
+        resyncing = false;
         playerSeat = null;
         init();  
     } 
@@ -841,6 +874,25 @@ public class PokerTableStage extends Stage {
         }
     }
     
+    /**
+     * Asks the server for any changes to the table since the revision of our
+     * current data. The server will reply with either a delta or, if it can't
+     * produce one, the full data.
+     */
+    protected void refresh() {
+        sendCommand("update:"+serverRevision);
+    }
+    
+    /**
+     * Asks the server for the whole of the table again, throwing away our
+     * revision, unless we are already waiting for it.
+     */
+    private void resync() {
+        if(resyncing) return;
+        resyncing = true;
+        sendCommand("update");
+    }
+    
     /**
      * Close the current table. Tells the server that the table is closing, and 
      * also, if the player is at the table, tells the server that the player
@@ -855,14 +907,18 @@ public class PokerTableStage extends Stage {
     
     /**
      * Process a command sent from the server. 
-     * @param com The command String received from the server. This is in general
-     * made up of multiple arguments separated by colons, which is split up using
-     * Util.expandCommand(). 
+     * @param command The command received from the server. This is in general
+     * made up of multiple arguments separated by colons.
+     * @param i The index of the first token meant for this table, i.e. after 
+     * the "ID:$id" prefix.
      */
-    protected void processCommand(String com) throws CommandFormatException {
+    protected void processCommand(Command command, int i) throws CommandFormatException {
+        
+        TableOp op = TABLE_COMMANDS.get(command, i);
+        if(op == null) return;
         
         /* If we receive update command, the server is sending updated TableData */
-        if(com.equals("update")) {
+        if(op == TableOp.UPDATE) {
             try {
                 /* Try to read the TableData, and if we do, perform the necessary
                  * UI updates with updateData(); 
@@ -870,34 +926,67 @@ public class PokerTableStage extends Stage {
                 Object o = socket.read();
                 if(!(o instanceof PokerTableData)) throw new ClassNotFoundException();
                 PokerTableDataClient newData = new PokerTableDataClient((PokerTableData)o);
+                long revision = ((PokerTableData)o).getRevision();
                 Platform.runLater(() -> {
+                    serverRevision = revision;
+                    resyncing = false;
                     updateData(newData);
                 });
             } catch(IOException | ClassNotFoundException e) {
-                throw new CommandFormatException(data.getTableID(), false, com);
+                throw new CommandFormatException(data.getTableID(), false, command.rest(i));
             }
             return;
         }
         
-        //<editor-fold defaultstate="collapsed" desc="All of the expandable commands">
-        /* All other valid commands have multiple arguments, which we expand out
-         * using Util.expandCommand 
+        /* If we receive a delta command, the server is sending only the parts
+         * of the TableData which have changed since our revision.
          */
-        if(com.contains(":")) {
-            List<String> commands = Util.expandCommand(com);
+        if(op == TableOp.DELTA) {
+            try {
+                Object o = socket.read();
+                if(!(o instanceof PokerTableDelta)) throw new ClassNotFoundException();
+                PokerTableDelta delta = (PokerTableDelta)o;
+                /* Apply the delta to a copy of our data, so that updateData()
+                 * can still see what has changed.
+                 */
+                Platform.runLater(() -> {
+                    /* A delta only holds the changes since the revision it was
+                     * made from, so if that isn't ours (one was missed, or they
+                     * arrived out of order) applying it would leave the table
+                     * wrong. Get the whole table instead.
+                     */
+                    if(resyncing) return;
+                    if(delta.getFromRevision() != serverRevision) {
+                        resync();
+                        return;
+                    }
+                    PokerTableDataClient newData = new PokerTableDataClient(data);
+                    delta.applyTo(newData);
+                    serverRevision = delta.getToRevision();
+                    updateData(newData);
+                });
+            } catch(IOException | ClassNotFoundException e) {
+                throw new CommandFormatException(data.getTableID(), false, command.rest(i));
+            }
+            return;
+        }
+        
+        //<editor-fold defaultstate="collapsed" desc="All of the expandable commands">
+        /* All other valid commands have multiple arguments */
+        if(command.size() > i+1) {
             
             //<editor-fold defaultstate="collapsed" desc="seattaken command">
             /* If a seat is taken, we also need to know which seat it is, which 
              * is in the second string
              */
-            if((commands.get(0).equals("seattaken") || commands.get(0).equals("sit")) 
-                    && commands.size()==2) {
+            if((op == TableOp.SEATTAKEN || op == TableOp.SIT) 
+                    && command.size()-i == 2) {
                 try {
                     
                     /* Get the seat number; if the command is NaN or too large 
                      * or negative, a NumberFormatException is thrown.
                      */
-                    Integer index = Integer.parseInt(commands.get(1));
+                    Integer index = command.parseInt(i+1);
                     if(index >= data.getMaxHands() || index < 0) 
                         throw new NumberFormatException();
             
@@ -918,7 +1007,7 @@ public class PokerTableStage extends Stage {
                         pd.resetHand();
                         data.setSeatOccupied(index, pd);
                         /* if "sit" was received, the local player sits ... */
-                        if(commands.get(0).equals("sit")) 
+                        if(op == TableOp.SIT) 
                             takeSeat(index);
                         /* otherwise it is a remote player */ 
                         else {
@@ -932,12 +1021,12 @@ public class PokerTableStage extends Stage {
                     System.err.println("Exception when getting new sitter");
                     System.err.println(e);
                     throw new CommandFormatException(data.getTableID(), false,
-                                                        String.join(":", commands));
+                                                        command.rest(i));
                 } catch(NumberFormatException e) {
                     System.err.println("The seat index was not right");
                     System.err.println(e);
                     throw new CommandFormatException(data.getTableID(), false,
-                                                        String.join(":", commands));
+                                                        command.rest(i));
                 }
                 return;
             }
@@ -947,7 +1036,7 @@ public class PokerTableStage extends Stage {
             /* If the primary command is "seatvacated", we must also be given 
              * the seat number 
              */
-            if(commands.get(0).equals("seatvacated") && commands.size()==2) {
+            if(op == TableOp.SEATVACATED && command.size()-i == 2) {
                 Platform.runLater(() -> {
                     try {
                         
@@ -955,7 +1044,7 @@ public class PokerTableStage extends Stage {
                          * the command list is not an integer, or if it is too 
                          * large an integer, a NumberFormatException is thrown
                          */
-                        Integer index = Integer.parseInt(commands.get(1));
+                        Integer index = command.parseInt(i+1);
                         if(index >= data.getMaxHands() || index < 0) 
                             throw new NumberFormatException();
                         
@@ -1005,12 +1094,12 @@ public class PokerTableStage extends Stage {
             //</editor-fold>
               
             /* Send any commands specific to the game to its own method */
-            if(commands.get(0).equals("game")) {
+            if(op == TableOp.GAME) {
                 Platform.runLater(() -> {
                     try {
-                        processGameCommand(commands);
+                        processGameCommand(command, i+1);
                     } catch(CommandFormatException ex) {
-                        System.err.println(String.join(":", commands));
+                        System.err.println(command.rest(i));
                         System.err.println("TODO properly deal with this exception");
                     }
                 });
@@ -1038,23 +1127,21 @@ public class PokerTableStage extends Stage {
      *  <li>"game:seat:$seatNo:...", used to pass information about a given 
      *        player, i.e. cards they have, betting action etc. </li>
      * </ul>
-     * @param commands The list of commands received from the server.
+     * @param command The command received from the server.
+     * @param i The index of the token after "game".
      */
-    protected void processGameCommand(List<String> commands) 
+    protected void processGameCommand(Command command, int i) 
                                 throws CommandFormatException {
-        /* If the list contains the game command, strip it. It never should though */
-        if(!commands.get(0).equals("game"))
-            throw new CommandFormatException(data.getTableID(), false,
-                                                    String.join(":", commands));
-        
-        commands.remove(0); 
+        GameOp op = GAME_COMMANDS.get(command, i);
+        if(op == null)
+            throw new CommandFormatException(data.getTableID(), true,
+                                                    command.rest(i));
         
         //<editor-fold defaultstate="collapsed" desc="start and end commands">
         /* If the game is starting or ending, clean everything up
         * TODO we shouldn't have to do it at both start and end
         */
-        if(commands.get(0).equals("start") ||
-                commands.get(0).equals("end")) {
+        if(op == GameOp.START || op == GameOp.END) {
             
             /* Clean up all of the seats */
             for(Map.Entry<Integer, TableSection> seat : seats.entrySet()) {
@@ -1079,7 +1166,7 @@ public class PokerTableStage extends Stage {
         }
         //</editor-fold>
         
-        if(commands.size()==1) return;
+        if(command.size()-i == 1) return;
         
         //<editor-fold defaultstate="collapsed" desc="all multi argument commands">
 
@@ -1087,20 +1174,20 @@ public class PokerTableStage extends Stage {
         /* Handle the rest of the game start command. The command should be of 
          * the form start:dealer:$dealer:small:$small:big:$big
          */
-        if(commands.get(0).equals("start")) {
+        if(op == GameOp.START) {
             
             /* Throw an exception if we don't get what we expect */
-            if(!commands.get(1).equals("dealer") || !commands.get(3).equals("small")
-                    || !commands.get(5).equals("big")) {
+            if(!command.is(i+1, "dealer") || !command.is(i+3, "small")
+                    || !command.is(i+5, "big")) {
                 throw new CommandFormatException(data.getTableID(), true, 
-                        String.join(":", commands));
+                        command.rest(i));
             }
             /* Get the dealer, small blind, and big blind positions */
             Integer dealer, small, big;
             try {
-                dealer = Integer.parseInt(commands.get(2));
-                small = Integer.parseInt(commands.get(4));
-                big = Integer.parseInt(commands.get(6));
+                dealer = command.parseInt(i+2);
+                small = command.parseInt(i+4);
+                big = command.parseInt(i+6);
                 /* If any of them are NaN, or an invalid position, throw and
                  * exception.
                  */
@@ -1111,7 +1198,7 @@ public class PokerTableStage extends Stage {
                 }
             } catch(NumberFormatException ex) {
                 throw new CommandFormatException(data.getTableID(), true,
-                        String.join(":", commands));
+                        command.rest(i));
             }
             
             /* Set the new positions in the data */
@@ -1131,12 +1218,12 @@ public class PokerTableStage extends Stage {
 
         //<editor-fold defaultstate="collapsed" desc="rounddone command">
         /* Finish up the current betting round */
-        if(commands.get(0).equals("rounddone")) {
+        if(op == GameOp.ROUNDDONE) {
             /* The only argument we receive should be the pot size at the end of 
              * the round 
              */
             try {
-                Integer newPot = Integer.parseInt(commands.get(1));
+                Integer newPot = command.parseInt(i+1);
                 if(newPot < 0) 
                     throw new NumberFormatException();
                 data.setPot(newPot);
@@ -1172,26 +1259,26 @@ public class PokerTableStage extends Stage {
          * TODO in general there could be multiple winners. this should just be
          * doable by sending multiple winner commands from the server
          */
-        if(commands.get(0).equals("winner")) {
+        if(op == GameOp.WINNER) {
             
             resetTimer();
             Integer winner, pot;
             String winningHand = null;
-            switch(commands.size()) {
+            switch(command.size()-i) {
                 /* If the winner came from showdown, we need to get the extra
                  * argument
                  */
-                case 4: winningHand = commands.get(3);
+                case 4: winningHand = command.get(i+3);
                 /* Get the first three arguments in both cases */
                 case 3: try {
-                            winner = Integer.parseInt(commands.get(1));
+                            winner = command.parseInt(i+1);
                         } catch(NumberFormatException ex) {
                             /* If we don't know the winner, throw an exception */
                             throw new CommandFormatException(data.getTableID(), 
-                                    true, String.join(":", commands));
+                                    true, command.rest(i));
                         }
                         try {
-                            pot = Integer.parseInt(commands.get(2));
+                            pot = command.parseInt(i+2);
                         } catch(NumberFormatException ex) {
                             /* If we don't know the pot, get it from our data 
                              * TODO though of course this will be wrong if there
@@ -1202,7 +1289,7 @@ public class PokerTableStage extends Stage {
                         break;
                 /* If we don't have the right number of arguments, throw an exception */
                 default: throw new CommandFormatException(data.getTableID(), true,
-                        String.join(":", commands));
+                        command.rest(i));
             }
             
             /* Display the winner, and update the chip counts */
@@ -1219,31 +1306,31 @@ public class PokerTableStage extends Stage {
         /* Handle cards for the board. These should be the round name, followed 
          * by either 3 or 1 card as a string  
          */
-        if(commands.get(0).equals("flop")) {
+        if(op == GameOp.FLOP) {
             /* If we don't have enough cards, throw an exception */
-            if(commands.size()<4)
+            if(command.size()-i < 4)
                 throw new CommandFormatException(data.getTableID(),
-                        true, String.join(":", commands));
-            data.setBoardCard(new Card(commands.get(1)), 0);
-            data.setBoardCard(new Card(commands.get(2)), 1);
-            data.setBoardCard(new Card(commands.get(3)), 2);
+                        true, command.rest(i));
+            data.setBoardCard(new Card(command.get(i+1)), 0);
+            data.setBoardCard(new Card(command.get(i+2)), 1);
+            data.setBoardCard(new Card(command.get(i+3)), 2);
             board.flop(data.getBoardCard(0), data.getBoardCard(1), data.getBoardCard(2));
             return;
         }
 
-        if(commands.get(0).equals("turn")) {
-            if(commands.size()<2)
+        if(op == GameOp.TURN) {
+            if(command.size()-i < 2)
                 throw new CommandFormatException(data.getTableID(),
-                        true, String.join(":", commands));
-            data.setBoardCard(new Card(commands.get(1)), 3);
+                        true, command.rest(i));
+            data.setBoardCard(new Card(command.get(i+1)), 3);
             board.turn(data.getBoardCard(3));
             return;
         }
-        if(commands.get(0).equals("river")) {
-            if(commands.size()<2)
+        if(op == GameOp.RIVER) {
+            if(command.size()-i < 2)
                 throw new CommandFormatException(data.getTableID(),
-                        true, String.join(":", commands));
-            data.setBoardCard(new Card(commands.get(1)), 4);
+                        true, command.rest(i));
+            data.setBoardCard(new Card(command.get(i+1)), 4);
             board.river(data.getBoardCard(4));
             return;
         }
@@ -1254,38 +1341,40 @@ public class PokerTableStage extends Stage {
          * 1a) seat:$seatNo:action:$action, giving the action the player performed,
          * 1b) seat:$seatNo:action:$action:$actionCost, if the player either 
          * called or raised, where $actionCost is the amount of that,
-         * 2) seat:$seatNo:toact:$callCost, giving the player to act, and their 
-         * cost to call, and
+         * 2) seat:$seatNo:toact:$callCost:$remaining:$minRaise:$maxRaise, giving 
+         * the player to act, their cost to call, the time in ms they have left
+         * to act, and how much they may raise by (the last three of which 
+         * older servers may not send), and
          * 3) seat:$seatNo:card:$cardIndex:$card, giving the card of the player (
          * which in most cases will be empty).
          */
-        if(commands.get(0).equals("seat")) {
+        if(op == GameOp.SEAT) {
             /* All of the seat commands must have at least 4 arguments */ 
-            if(commands.size() < 4) {
+            if(command.size()-i < 4) {
                 throw new CommandFormatException(data.getTableID(), true, 
-                                                    String.join(":",commands));
+                                                    command.rest(i));
             }
             
             /* Try to get the seat index */
             Integer seatIndex;
             try {
-                seatIndex = Integer.parseInt(commands.get(1));
+                seatIndex = command.parseInt(i+1);
                 if(seatIndex < 0 || seatIndex >= data.getMaxHands()) 
                     throw new NumberFormatException();
             } catch(NumberFormatException ex) {
                 /* If the index is NaN, or not a valid seat index, throw an exception */
                 throw new CommandFormatException(data.getTableID(), true, 
-                                                    String.join(":",commands));
+                                                    command.rest(i));
             }
                 
-            if(commands.get(2).equals("action")) {
+            if(command.is(i+2, "action")) {
                 /* If we received an action command, set this on the table, and
                  * on the player
                  */
-                messageText.setText("Player "+seatIndex+ " did "+commands.get(3));
+                messageText.setText("Player "+seatIndex+ " did "+command.get(i+3));
                 try {
                     data.playerOnSeat(seatIndex).setAction(
-                            PokerAction.valueOf(commands.get(3)));
+                            PokerAction.valueOf(command.get(i+3)));
                 } catch(IllegalArgumentException ex) {
                     /* If we can't set the action in the data, it isn't a problem */
                     System.err.println("Could not convert action string to "
@@ -1294,41 +1383,41 @@ public class PokerTableStage extends Stage {
                 }
                 
                 /* If the action was a call or a raise, place the bet */
-                if(commands.get(3).equals("RAISE") || 
-                        commands.get(3).equals("CALL")) {
+                if(command.is(i+3, "RAISE") || 
+                        command.is(i+3, "CALL")) {
                     /* If we haven't received the bet size, throw an exception */
-                    if(commands.size() < 5) 
+                    if(command.size()-i < 5) 
                         throw new CommandFormatException(data.getTableID(), true,
-                                                String.join(":", commands));
+                                                command.rest(i));
                     
                     /* Try to get the bet size */
                     Integer bet;
                     try {
-                        bet = Integer.parseInt(commands.get(4));
+                        bet = command.parseInt(i+4);
                     } catch(NumberFormatException ex) {
                         /* If the bet size is NaN, throw an exception */
                         throw new CommandFormatException(data.getTableID(), true,
-                                                String.join(":",commands));
+                                                command.rest(i));
                     }
                     /* Place the bet graphically and in the data */
                     placeBet(seatIndex, bet);
                 }
                 
-                if(commands.get(3).equals("FOLD")) {
+                if(command.is(i+3, "FOLD")) {
                     seats.get(seatIndex).resetCards();
                 }
                 /* Once the player has acted, we can stop their timer */
                 resetTimer();
             }
 
-            if(commands.get(2).equals("toact")) {
+            if(command.is(i+2, "toact")) {
                 /* Try to get the cost for the player to act */
                 Integer toCall;
                 try {
-                    toCall = Integer.parseInt(commands.get(3));
+                    toCall = command.parseInt(i+3);
                 } catch(NumberFormatException ex) {
                     throw new CommandFormatException(data.getTableID(), true,
-                                                    String.join(":",commands));
+                                                    command.rest(i));
                 }
 
                 /* If the player to act is the local player, make it possible for
@@ -1349,13 +1438,28 @@ public class PokerTableStage extends Stage {
 
                     }
 
-                    /* The raise and fold options are always available 
-                     * TODO the raise options shouldn't be available if we have
-                     * fewer chips than the price to call
+                    /* Fold is always available. Raising is available within 
+                     * the limits the server gives, if it gives any.
                      */
-                    actionButtons.getChildren().get(3).setDisable(false);
-                    ((Slider)((VBox)actionButtons.getChildren().get(3))
-                                            .getChildren().get(0)).setMin(200);
+                    Slider raiseSlider = (Slider)((VBox)actionButtons
+                                            .getChildren().get(3)).getChildren().get(0);
+                    int minRaise = 200;
+                    int maxRaise = 1000;
+                    if(command.size() > i+6) {
+                        try {
+                            minRaise = command.parseInt(i+5);
+                            maxRaise = command.parseInt(i+6);
+                        } catch(NumberFormatException ex) {
+                            throw new CommandFormatException(data.getTableID(), true,
+                                                    command.rest(i));
+                        }
+                    }
+                    actionButtons.getChildren().get(3).setDisable(maxRaise <= 0);
+                    if(maxRaise > 0) {
+                        raiseSlider.setMin(minRaise);
+                        raiseSlider.setMax(maxRaise);
+                        raiseSlider.setValue(minRaise);
+                    }
                     actionButtons.getChildren().get(0).setDisable(false);
 
                     /* Get the attention of the local player */
@@ -1370,37 +1474,48 @@ public class PokerTableStage extends Stage {
                     );
                 }
 
-                /* Start the timer running for the player to act */
-                runTimer(seatIndex);
+                /* Start the timer running for the player to act, from 
+                 * however long the server says they have left.
+                 */
+                long remaining = (TIMERLENGTH+1)*1000;
+                if(command.size() > i+4) {
+                    try {
+                        remaining = command.parseLong(i+4);
+                    } catch(NumberFormatException ex) {
+                        throw new CommandFormatException(data.getTableID(), true,
+                                                    command.rest(i));
+                    }
+                }
+                runTimer(seatIndex, remaining);
 
                 return;
             }
 
 
-            if(commands.get(2).equals("card")) {
+            if(command.is(i+2, "card")) {
                 
-                if(commands.size()<5) 
+                if(command.size()-i < 5) 
                     throw new CommandFormatException(data.getTableID(), true, 
-                                                String.join(":", commands) );
+                                                command.rest(i) );
 
                 /* Try to the get the index of the card */
                 Integer cardIndex;
                 try {
-                    cardIndex = Integer.parseInt(commands.get(3));
+                    cardIndex = command.parseInt(i+3);
                 } catch(NumberFormatException ex) {
                     throw new CommandFormatException(data.getTableID(), true, 
-                                                String.join(":", commands) );
+                                                command.rest(i) );
                 }
 
                 /* Set the card in the hand */
                 if(cardIndex == 0) {
                     data.playerOnSeat(seatIndex).setHand(
-                            new Card(commands.get(4)), 
+                            new Card(command.get(i+4)), 
                             data.playerOnSeat(seatIndex).getHand().getCard(1) );
                 } else if(cardIndex == 1) {
                     data.playerOnSeat(seatIndex).setHand(
                             data.playerOnSeat(seatIndex).getHand().getCard(0), 
-                            new Card(commands.get(4)) );
+                            new Card(command.get(i+4)) );
 
                     /* Show the cards in the the hands, either front up, if the
                      * players seat, or front down otherwise
@@ -1507,8 +1622,9 @@ public class PokerTableStage extends Stage {
      * correct player.
      * 
      * @param index The player for whom the countdown is for.
+     * @param remaining The time the player has left, in milliseconds.
      */
-    private void runTimer(Integer index) {
+    private void runTimer(Integer index, long remaining) {
         
         /* Make sure the timer starts from the beginning */
         resetTimer();
@@ -1540,9 +1656,13 @@ public class PokerTableStage extends Stage {
                     .subtract(seats.get(index).hr.widthProperty().divide(2))
                     .subtract(timer.heightProperty().divide(2)));
         
-        /* Start the timer */
+        /* Start the timer, skipping ahead if the player has already had 
+         * some of their time.
+         */
         timer.setVisible(true);
-        timeline.playFromStart();
+        Duration elapsed = Duration.seconds(TIMERLENGTH+1)
+                .subtract(Duration.millis(remaining));
+        timeline.playFrom(elapsed.greaterThan(Duration.ZERO) ? elapsed : Duration.ZERO);
     }
     //</editor-fold>
     
@@ -1558,6 +1678,13 @@ public class PokerTableStage extends Stage {
             return -1;
     }
     
+    /**
+     * @return The data the table was made with.
+     */
+    protected PokerTableDataClient getData() {
+        return data;
+    }
+    
     /**
      * 
      * @param o
@@ -0,0 +1,219 @@
+/*
+ * Copyright (C) 2018 Em Poulter <em@poulter.space>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package space.poulter.poker.server;
+
+import at.favre.lib.crypto.bcrypt.BCrypt;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.sql.SQLException;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import space.poulter.poker.ClientSocket;
+
+/**
+ * Checks the passwords of users logging in. Looking up the user and checking
+ * their password are both slow on purpose, so they are done by a few threads
+ * of their own, rather than by the reader of the connection, and the reply is
+ * sent from there when it is ready. There are only so many logins which can
+ * wait at once, and each address may only try so often, so a rush of logins
+ * is turned away rather than holding everything else up.
+ * <p>
+ * The replies are "auth:done" followed by "auth:token:$token" if the user is 
+ * let in, where the token can be used to connect again without the password 
+ * (see SessionStore), or "auth:fail:$reason",
+ * where the reason is
+ * 2) the user doesn't exist,
+ * 3) the account is not enabled,
+ * 4) the user is already connected,
+ * 5) the password is wrong,
+ * 6) there have been too many attempts, so they should try again later, or
+ * 8) the users couldn't be looked up, so they should try again later.
+ *
+ * @author Em Poulter <em@poulter.space>
+ */
+public class AuthService {
+
+    /* How many logins may be waiting to be checked at once */
+    static final int QUEUE_SIZE = 256;
+    /* Each address may try this many logins at once, and then one more
+     * every RATE_PERIOD milliseconds.
+     */
+    static final int BURST = 5;
+    static final long RATE_PERIOD = 2000;
+    /* When there are this many addresses, forget the ones which haven't
+     * tried for a while.
+     */
+    static final int MAX_ADDRESSES = 10000;
+
+    /**
+     * The logins allowed from one address, refilled over time.
+     */
+    static class TokenBucket {
+        private double tokens;
+        private long last;
+
+        TokenBucket(long now) {
+            tokens = BURST;
+            last = now;
+        }
+
+        private void refill(long now) {
+            tokens = Math.min(BURST, tokens + (double)(now - last) / RATE_PERIOD);
+            last = now;
+        }
+
+        synchronized boolean tryTake(long now) {
+            refill(now);
+            if(tokens < 1) return false;
+            tokens--;
+            return true;
+        }
+
+        synchronized boolean isFull(long now) {
+            refill(now);
+            return tokens >= BURST;
+        }
+    }
+
+    private final UserStore users;
+    private final ConnectionRegistry sockets;
+    private final SessionStore sessions;
+    private final ExecutorService executor;
+    private final Map<InetAddress, TokenBucket> buckets;
+
+    /**
+     * @param users The users to check against.
+     * @param sockets The connections, which users are added to once they are
+     * let in.
+     * @param sessions The sessions, which users are given a token from once
+     * they are let in.
+     * @param threads The number of threads to check logins with.
+     */
+    public AuthService(UserStore users, ConnectionRegistry sockets, SessionStore sessions, int threads) {
+        this.users = users;
+        this.sockets = sockets;
+        this.sessions = sessions;
+        AtomicInteger count = new AtomicInteger(0);
+        executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(QUEUE_SIZE), (r) -> {
+                    Thread t = new Thread(r, "Auth "+count.getAndIncrement());
+                    t.setDaemon(true);
+                    return t;
+                });
+        buckets = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Checks a login, and replies to the connection when it is done. Returns
+     * straight away.
+     * @param socket The connection logging in.
+     * @param username The name of the user.
+     * @param password The password they gave.
+     */
+    public void submit(ClientSocket socket, String username, String password) {
+        if(!allow(socket.getSocket().getInetAddress())) {
+            System.err.println("Authorisation failed: too many attempts");
+            reply(socket, "auth:fail:6");
+            return;
+        }
+        try {
+            executor.execute(() -> authenticate(socket, username, password));
+        } catch(RejectedExecutionException ex) {
+            System.err.println("Authorisation failed: too many logins waiting");
+            reply(socket, "auth:fail:6");
+        }
+    }
+
+    private boolean allow(InetAddress address) {
+        long now = System.currentTimeMillis();
+        if(buckets.size() > MAX_ADDRESSES) {
+            buckets.values().removeIf((bucket) -> bucket.isFull(now));
+        }
+        return buckets.computeIfAbsent(address, (a) -> new TokenBucket(now)).tryTake(now);
+    }
+
+    private void authenticate(ClientSocket socket, String username, String password) {
+        boolean done = false;
+        try {
+            UserStore.User user = users.find(username);
+            if(user == null) {
+                System.err.println("Authorisation failed: user doesn't exist");
+                reply(socket, "auth:fail:2");
+                return;
+            }
+            if(!user.isEnabled()) {
+                System.err.println("Authorisation failed: acoount not enabled");
+                reply(socket, "auth:fail:3");
+                return;
+            }
+            if(user.isConnected() || sockets.containsID(user.getID())) {
+                System.err.println("Authorisation failed: already connected");
+                reply(socket, "auth:fail:4");
+                return;
+            }
+
+            BCrypt.Result result = BCrypt.verifyer().verify(password.toCharArray(), user.getCrypt());
+
+            if(!result.verified) {
+                System.err.println("Authorisation failed: wrong password");
+                reply(socket, "auth:fail:5");
+                return;
+            }
+            /* Claim the user ID before saying we are done, in case they
+             * connected again in the mean time.
+             */
+            if(!sockets.register(user.getID(), socket)) {
+                System.err.println("Authorisation failed: already connected");
+                reply(socket, "auth:fail:4");
+                return;
+            }
+            System.out.println("user authorised");
+            reply(socket, "auth:done");
+            reply(socket, "auth:token:"+sessions.issue(user.getID()));
+            done = true;
+
+            if(!users.setConnected(user.getID(), true)) {
+                System.err.println("The update didn't work");
+            }
+        } catch(SQLException ex) {
+            System.err.println("Exception when authorising");
+            System.err.println(ex);
+            /* Don't leave them waiting for a reply which will never come */
+            if(!done) reply(socket, "auth:fail:8");
+        }
+    }
+
+    private static void reply(ClientSocket socket, String str) {
+        try {
+            socket.write(str);
+        } catch(IOException ex) {
+            System.err.println("Exception when replying to authorisation");
+            System.err.println(ex);
+        }
+    }
+
+    public void shutdown() {
+        executor.shutdown();
+    }
+}
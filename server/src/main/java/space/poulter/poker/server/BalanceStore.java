@@ -0,0 +1,294 @@
+/*
+ * Copyright (C) 2018 Em Poulter <em@poulter.space>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package space.poulter.poker.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import space.poulter.poker.server.ConnectionPool.PooledConnection;
+
+/**
+ * Keeps the chip balances of users in the database, without the tables ever
+ * waiting for it. At the end of each hand a table records how much each user
+ * won or lost, which just hands the change to the loop of the store. The loop
+ * writes the change to a journal on disk, and adds it to the changes waiting
+ * for the database, so a user who plays many hands between writes only has
+ * their balance updated once. Every so often all of the waiting changes are
+ * written to the database in a single batch.
+ * <p>
+ * Each change in the journal has a sequence number, and the last number
+ * written to the database is kept in the database, in the same transaction as
+ * the balances. After a crash, the changes in the journal after that number
+ * are the ones which never reached the database, so they are written again,
+ * and none are written twice. The journal is emptied after every write to the
+ * database.
+ * <p>
+ * The database needs a column user.chips, and a table
+ * balance_checkpoint(id int primary key, seq bigint).
+ *
+ * @author Em Poulter <em@poulter.space>
+ */
+public class BalanceStore {
+
+    /* How often the waiting changes are written to the database, in ms */
+    static final long FLUSH_PERIOD = 5000;
+
+    /* Each entry of the journal is the sequence number, the user ID and the
+     * change in their balance.
+     */
+    private static final int ENTRY_SIZE = Long.BYTES + Integer.BYTES + Long.BYTES;
+
+    private static final String UPDATE_BALANCE =
+            "update user set chips = chips + ? where pkid = ?";
+    private static final String SELECT_CHECKPOINT =
+            "select seq from balance_checkpoint where id = 1";
+    private static final String UPDATE_CHECKPOINT =
+            "update balance_checkpoint set seq = ? where id = 1";
+    private static final String INSERT_CHECKPOINT =
+            "insert into balance_checkpoint (id, seq) values (1, ?)";
+
+    private final ConnectionPool pool;
+    private final Path journalPath;
+    private final HashedWheelTimer timers;
+    private final EventLoop loop;
+
+    /* Only touched by the loop */
+    private FileChannel journal;
+    private final ByteBuffer buffer;
+    private final Map<Integer, Long> pending;
+    private long seq;
+    private boolean syncQueued;
+    private boolean closed;
+
+    /**
+     * @param pool The connections to the database.
+     * @param journalPath The file to keep the journal in.
+     * @param timers The timers to write to the database with.
+     */
+    public BalanceStore(ConnectionPool pool, Path journalPath, HashedWheelTimer timers) {
+        this.pool = pool;
+        this.journalPath = journalPath;
+        this.timers = timers;
+        loop = new EventLoop("Balances");
+        buffer = ByteBuffer.allocate(ENTRY_SIZE * 256);
+        pending = new HashMap<>();
+        seq = 0;
+        syncQueued = false;
+        closed = false;
+    }
+
+    /**
+     * Writes any changes left in the journal by the last run to the database,
+     * and starts writing new ones. Must be called before anything is recorded.
+     * @throws IOException If the journal couldn't be read.
+     * @throws SQLException If the database couldn't be read or written.
+     */
+    public void start() throws IOException, SQLException {
+        long checkpoint = readCheckpoint();
+        seq = checkpoint;
+        journal = FileChannel.open(journalPath, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+        /* Replay everything which didn't make it to the database. A torn
+         * entry at the end was never synced, so never counted.
+         */
+        ByteBuffer entry = ByteBuffer.allocate(ENTRY_SIZE);
+        int replayed = 0;
+        journal.position(0);
+        while(true) {
+            entry.clear();
+            while(entry.hasRemaining() && journal.read(entry) > 0) { }
+            if(entry.hasRemaining()) break;
+            entry.flip();
+            long entrySeq = entry.getLong();
+            int userID = entry.getInt();
+            long change = entry.getLong();
+            seq = Math.max(seq, entrySeq);
+            if(entrySeq <= checkpoint) continue;
+            pending.merge(userID, change, Long::sum);
+            replayed++;
+        }
+        if(replayed > 0) {
+            System.out.println("Replaying "+replayed+" balance changes from the journal");
+        }
+        /* Anything after the last whole entry is dropped */
+        journal.truncate(journal.position() - (journal.position() % ENTRY_SIZE));
+        journal.position(journal.size());
+
+        flush();
+        timers.newTimeout(() -> loop.execute(this::tick), FLUSH_PERIOD, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Records a change in the balance of a user. Returns straight away.
+     * @param userID The ID of the user.
+     * @param change How much their balance went up, or down if negative.
+     */
+    public void record(int userID, long change) {
+        if(change == 0) return;
+        loop.execute(() -> append(userID, change));
+    }
+
+    private void append(int userID, long change) {
+        if(closed) {
+            System.err.println("Balance change for user "+userID+" after closing was lost: "+change);
+            return;
+        }
+        if(buffer.remaining() < ENTRY_SIZE) writeBuffer();
+        buffer.putLong(++seq).putInt(userID).putLong(change);
+        pending.merge(userID, change, Long::sum);
+
+        /* Sync once for all of the changes which have arrived together. As
+         * the loop runs in order, this runs after all of them.
+         */
+        if(!syncQueued) {
+            syncQueued = true;
+            loop.execute(this::sync);
+        }
+    }
+
+    private void writeBuffer() {
+        buffer.flip();
+        try {
+            while(buffer.hasRemaining()) journal.write(buffer);
+        } catch(IOException e) {
+            System.err.println("Exception when writing the balance journal");
+            System.err.println(e);
+        }
+        buffer.clear();
+    }
+
+    private void sync() {
+        syncQueued = false;
+        /* Closing has already synced everything, and a sync queued just
+         * before it runs afterwards
+         */
+        if(closed) return;
+        writeBuffer();
+        try {
+            journal.force(false);
+        } catch(IOException e) {
+            System.err.println("Exception when syncing the balance journal");
+            System.err.println(e);
+        }
+    }
+
+    private void tick() {
+        if(closed) return;
+        flush();
+        timers.newTimeout(() -> loop.execute(this::tick), FLUSH_PERIOD, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Writes all of the waiting changes to the database, and empties the
+     * journal if that worked. If not, they are tried again next time.
+     */
+    private void flush() {
+        if(pending.isEmpty()) return;
+        sync();
+        try(PooledConnection conn = pool.borrow()) {
+            try {
+                conn.setAutoCommit(false);
+                PreparedStatement update = conn.prepare(UPDATE_BALANCE);
+                for(Map.Entry<Integer, Long> change : pending.entrySet()) {
+                    update.setLong(1, change.getValue());
+                    update.setInt(2, change.getKey());
+                    update.addBatch();
+                }
+                update.executeBatch();
+                writeCheckpoint(conn, seq);
+                conn.commit();
+                conn.setAutoCommit(true);
+            } catch(SQLException e) {
+                conn.markBroken();
+                throw e;
+            }
+        } catch(SQLException e) {
+            System.err.println("Exception when writing balances, they will be tried again");
+            System.err.println(e);
+            return;
+        }
+        pending.clear();
+        try {
+            journal.truncate(0);
+        } catch(IOException e) {
+            /* Not a problem, as the entries are all before the checkpoint */
+            System.err.println("Exception when emptying the balance journal");
+            System.err.println(e);
+        }
+    }
+
+    private long readCheckpoint() throws SQLException {
+        try(PooledConnection conn = pool.borrow()) {
+            try(ResultSet rs = conn.prepare(SELECT_CHECKPOINT).executeQuery()) {
+                return rs.next() ? rs.getLong("seq") : 0;
+            } catch(SQLException e) {
+                conn.markBroken();
+                throw e;
+            }
+        }
+    }
+
+    private static void writeCheckpoint(PooledConnection conn, long seq) throws SQLException {
+        PreparedStatement update = conn.prepare(UPDATE_CHECKPOINT);
+        update.setLong(1, seq);
+        if(update.executeUpdate() == 0) {
+            PreparedStatement insert = conn.prepare(INSERT_CHECKPOINT);
+            insert.setLong(1, seq);
+            insert.executeUpdate();
+        }
+    }
+
+    /**
+     * Writes everything waiting to the database, and stops. Waits for the
+     * write to finish.
+     */
+    public void close() {
+        CountDownLatch done = new CountDownLatch(1);
+        loop.execute(() -> {
+            flush();
+            closed = true;
+            if(journal == null) {
+                done.countDown();
+                return;
+            }
+            try {
+                journal.close();
+            } catch(IOException e) {
+                System.err.println("Exception when closing the balance journal");
+                System.err.println(e);
+            }
+            done.countDown();
+        });
+        try {
+            done.await();
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        loop.shutdown();
+    }
+}
@@ -0,0 +1,234 @@
+/*
+ * Copyright (C) 2018 Em Poulter <em@poulter.space>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package space.poulter.poker.server;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A fixed number of connections to the database, shared between all of the
+ * threads which need one. A thread borrows a connection, and gives it back
+ * when it is done, by closing it. If all of the connections are in use, the
+ * thread waits for one to be given back, so however many players log in at
+ * once, the database only ever sees a few connections.
+ * <p>
+ * Each connection keeps the statements prepared on it, so each statement is
+ * only prepared once per connection. A connection which has been idle for a
+ * while is checked before it is handed out, and one which failed while it was
+ * borrowed is thrown away rather than given back.
+ *
+ * @author Em Poulter <em@poulter.space>
+ */
+public class ConnectionPool implements AutoCloseable {
+
+    /* How long to wait for a connection before giving up, in milliseconds */
+    static final long BORROW_TIMEOUT = 5000;
+    /* How long a connection can be idle before it is checked, in ms, and how
+     * long the check may take, in seconds.
+     */
+    static final long VALIDATE_AFTER = 30000;
+    static final int VALIDATION_TIMEOUT = 2;
+
+    /**
+     * A connection borrowed from the pool. Closing it gives it back.
+     */
+    public class PooledConnection implements AutoCloseable {
+        private final Connection connection;
+        private final Map<String, PreparedStatement> statements;
+        private long lastUsed;
+        private boolean broken;
+        private boolean borrowed;
+
+        private PooledConnection(Connection connection) {
+            this.connection = connection;
+            statements = new HashMap<>();
+            lastUsed = System.currentTimeMillis();
+            broken = false;
+        }
+
+        /**
+         * Gets a statement prepared on this connection, preparing it if this
+         * is the first time it has been used. The parameters are left from
+         * the last time, so should all be set again.
+         * @param sql The SQL of the statement.
+         * @return The prepared statement, which must not be closed.
+         * @throws SQLException If the statement couldn't be prepared.
+         */
+        public PreparedStatement prepare(String sql) throws SQLException {
+            PreparedStatement statement = statements.get(sql);
+            if(statement == null) {
+                statement = connection.prepareStatement(sql);
+                statements.put(sql, statement);
+            }
+            return statement;
+        }
+
+        /**
+         * Turns transactions on or off. Connections are lent out with
+         * auto-commit on, so anyone turning it off must turn it back on.
+         */
+        public void setAutoCommit(boolean autoCommit) throws SQLException {
+            connection.setAutoCommit(autoCommit);
+        }
+        public void commit() throws SQLException {
+            connection.commit();
+        }
+
+        /**
+         * Marks the connection as no longer usable, so that it is thrown away
+         * rather than given back. This should be called if a statement on it
+         * fails.
+         */
+        public void markBroken() {
+            broken = true;
+        }
+
+        @Override
+        public void close() {
+            release(this);
+        }
+    }
+
+    private final String url;
+    private final String user;
+    private final String password;
+    private final BlockingQueue<PooledConnection> idle;
+    private final Semaphore permits;
+    private final long borrowTimeout;
+    private final long validateAfter;
+    private volatile boolean closed;
+
+    /**
+     * @param url The JDBC URL of the database.
+     * @param user The user to connect as.
+     * @param password The password of the user.
+     * @param size The most connections to have open at once.
+     */
+    public ConnectionPool(String url, String user, String password, int size) {
+        this(url, user, password, size, BORROW_TIMEOUT, VALIDATE_AFTER);
+    }
+
+    /**
+     * @param borrowTimeout How long to wait for a connection, in ms.
+     * @param validateAfter How long a connection can be idle before it is
+     * checked, in ms.
+     */
+    ConnectionPool(String url, String user, String password, int size,
+            long borrowTimeout, long validateAfter) {
+        this.url = url;
+        this.user = user;
+        this.password = password;
+        idle = new ArrayBlockingQueue<>(size);
+        permits = new Semaphore(size, true);
+        this.borrowTimeout = borrowTimeout;
+        this.validateAfter = validateAfter;
+        closed = false;
+    }
+
+    /**
+     * Borrows a connection, waiting for one to be given back if they are all
+     * in use.
+     * @return A working connection, which must be closed when finished with.
+     * @throws SQLException If no connection could be had.
+     */
+    public PooledConnection borrow() throws SQLException {
+        if(closed) throw new SQLException("The connection pool is closed");
+        try {
+            if(!permits.tryAcquire(borrowTimeout, TimeUnit.MILLISECONDS)) {
+                throw new SQLException("Timed out waiting for a database connection");
+            }
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted waiting for a database connection", e);
+        }
+
+        try {
+            PooledConnection pooled;
+            while((pooled = idle.poll()) != null) {
+                if(isHealthy(pooled)) {
+                    pooled.borrowed = true;
+                    return pooled;
+                }
+                discard(pooled);
+            }
+            pooled = new PooledConnection(DriverManager.getConnection(url, user, password));
+            pooled.borrowed = true;
+            return pooled;
+        } catch(SQLException | RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    private boolean isHealthy(PooledConnection pooled) {
+        if(System.currentTimeMillis() - pooled.lastUsed < validateAfter) return true;
+        try {
+            return pooled.connection.isValid(VALIDATION_TIMEOUT);
+        } catch(SQLException e) {
+            return false;
+        }
+    }
+
+    private void release(PooledConnection pooled) {
+        /* Giving a connection back twice mustn't let an extra one out */
+        if(!pooled.borrowed) return;
+        pooled.borrowed = false;
+        pooled.lastUsed = System.currentTimeMillis();
+        if(closed || pooled.broken || !idle.offer(pooled)) {
+            discard(pooled);
+        }
+        permits.release();
+    }
+
+    private void discard(PooledConnection pooled) {
+        try {
+            pooled.connection.close();
+        } catch(SQLException e) {
+            System.err.println("Exception when closing database connection");
+            System.err.println(e);
+        }
+    }
+
+    /**
+     * @return The number of connections which are open and not borrowed.
+     */
+    public int idleCount() {
+        return idle.size();
+    }
+
+    /**
+     * Closes all of the idle connections. Connections which are borrowed are
+     * closed when they are given back.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        PooledConnection pooled;
+        while((pooled = idle.poll()) != null) {
+            discard(pooled);
+        }
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2018 Em Poulter <em@poulter.space>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package space.poulter.poker.server;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import space.poulter.poker.ClientSocket;
+
+/**
+ * All of the connections to the server, each with an ID. Connections from
+ * registered users have the ID of the user from the database, and anyone else
+ * is given a guest ID, which is negative so that the two can never collide.
+ * <p>
+ * The registry may be used from the accept thread and from all of the reader
+ * threads at once. It is two concurrent maps, one each way, which are kept in
+ * step by always claiming the connection before the ID when adding, and
+ * releasing them in the opposite order when removing.
+ *
+ * @author Em Poulter <em@poulter.space>
+ */
+public class ConnectionRegistry {
+
+    private final Map<Integer, ClientSocket> byID;
+    private final Map<ClientSocket, Integer> byConnection;
+    private final AtomicInteger nextGuestID;
+
+    public ConnectionRegistry() {
+        byID = new ConcurrentHashMap<>();
+        byConnection = new ConcurrentHashMap<>();
+        /* -1 is kept for players who aren't known at all */
+        nextGuestID = new AtomicInteger(-2);
+    }
+
+    /**
+     * Adds a connection with a new guest ID. If the connection is already in
+     * the registry, it keeps the ID it has.
+     * @param connection The connection to add.
+     * @return The ID of the connection.
+     */
+    public int registerGuest(ClientSocket connection) {
+        Integer existing = byConnection.get(connection);
+        if(existing != null) return existing;
+
+        int id = nextGuestID.getAndDecrement();
+        existing = byConnection.putIfAbsent(connection, id);
+        if(existing != null) return existing;
+        byID.put(id, connection);
+        return id;
+    }
+
+    /**
+     * Adds a connection with a given ID.
+     * @param id The ID of the connection, i.e. the ID of the user.
+     * @param connection The connection to add.
+     * @return true if the connection was added, or false if the connection or
+     * the ID are already in use.
+     */
+    public boolean register(int id, ClientSocket connection) {
+        if(byConnection.putIfAbsent(connection, id) != null) return false;
+        if(byID.putIfAbsent(id, connection) != null) {
+            byConnection.remove(connection, id);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Removes a connection from the registry.
+     * @param connection The connection to remove.
+     * @return The ID the connection had, or null if it wasn't registered.
+     */
+    public Integer remove(ClientSocket connection) {
+        Integer id = byConnection.get(connection);
+        if(id == null) return null;
+        byID.remove(id, connection);
+        byConnection.remove(connection, id);
+        return id;
+    }
+
+    public boolean contains(ClientSocket connection) {
+        return byConnection.containsKey(connection);
+    }
+    public boolean containsID(int id) {
+        return byID.containsKey(id);
+    }
+
+    /**
+     * @param connection A connection.
+     * @return The ID of the connection, or null if it isn't registered.
+     */
+    public Integer getID(ClientSocket connection) {
+        return byConnection.get(connection);
+    }
+    /**
+     * @param id An ID.
+     * @return The connection with the ID, or null if there isn't one.
+     */
+    public ClientSocket get(int id) {
+        return byID.get(id);
+    }
+
+    /**
+     * @return The lowest guest ID given out so far.
+     */
+    public int lowestGuestID() {
+        return nextGuestID.get() + 1;
+    }
+
+    /**
+     * Makes sure no guest is given an ID used before a restart.
+     * @param lowest The lowest guest ID given out before.
+     */
+    public void reserveGuestIDs(int lowest) {
+        nextGuestID.accumulateAndGet(lowest - 1, Math::min);
+    }
+
+    public int size() {
+        return byConnection.size();
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2018 Em Poulter <em@poulter.space>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package space.poulter.poker.server;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Shares out table IDs between the nodes of a cluster. Each node is hashed
+ * onto a ring at many points, and an ID belongs to the node at the first point
+ * after the hash of the ID. Adding or removing a node only moves the IDs next
+ * to its own points, so the rest of the tables stay where they are.
+ * <p>
+ * Nodes are named by their address, "$host:$port". The gateway and all of the
+ * nodes build the ring from the same list, so they all agree on who owns what.
+ *
+ * @author Em Poulter <em@poulter.space>
+ */
+public class ConsistentHashRing {
+
+    /* The number of points on the ring for each node. More points share the
+     * IDs out more evenly.
+     */
+    static final int VIRTUAL_NODES = 160;
+
+    private static final HashFunction HASH = Hashing.murmur3_128();
+
+    private final TreeMap<Long, String> ring;
+    private final List<String> nodes;
+
+    public ConsistentHashRing() {
+        ring = new TreeMap<>();
+        nodes = new ArrayList<>();
+    }
+
+    /**
+     * Builds a ring from a list of nodes.
+     * @param list The nodes, separated by commas, e.g.
+     * "localhost:1112,localhost:1113".
+     * @return The ring.
+     * @throws IllegalArgumentException If a node isn't of the form
+     * "$host:$port".
+     */
+    public static ConsistentHashRing parse(String list) throws IllegalArgumentException {
+        ConsistentHashRing ring = new ConsistentHashRing();
+        for(String node : list.split(",")) {
+            node = node.trim();
+            if(node.isEmpty()) continue;
+            port(node);
+            ring.add(node);
+        }
+        if(ring.size() == 0) {
+            throw new IllegalArgumentException("There were no nodes in "+list);
+        }
+        return ring;
+    }
+
+    /**
+     * @param node A node, of the form "$host:$port".
+     * @return The host of the node.
+     */
+    public static String host(String node) {
+        return node.substring(0, node.lastIndexOf(':'));
+    }
+
+    /**
+     * @param node A node, of the form "$host:$port".
+     * @return The port of the node.
+     * @throws IllegalArgumentException If the node doesn't have a valid port.
+     */
+    public static int port(String node) throws IllegalArgumentException {
+        int i = node.lastIndexOf(':');
+        if(i <= 0) {
+            throw new IllegalArgumentException("The node '"+node+"' has no port");
+        }
+        try {
+            return Integer.parseInt(node.substring(i+1));
+        } catch(NumberFormatException e) {
+            throw new IllegalArgumentException("The node '"+node+"' has an invalid port");
+        }
+    }
+
+    public synchronized void add(String node) {
+        if(nodes.contains(node)) return;
+        nodes.add(node);
+        for(int i = 0; i<VIRTUAL_NODES; i++) {
+            ring.put(point(node, i), node);
+        }
+    }
+
+    public synchronized void remove(String node) {
+        if(!nodes.remove(node)) return;
+        for(int i = 0; i<VIRTUAL_NODES; i++) {
+            ring.remove(point(node, i), node);
+        }
+    }
+
+    /**
+     * @param id The ID of a table, or of anything else to be shared out.
+     * @return The node which owns the ID, or null if there are no nodes.
+     */
+    public synchronized String get(int id) {
+        if(ring.isEmpty()) return null;
+        Map.Entry<Long, String> owner = ring.ceilingEntry(HASH.hashInt(id).asLong());
+        if(owner == null) owner = ring.firstEntry();
+        return owner.getValue();
+    }
+
+    /**
+     * @return The nodes, in the order they were added.
+     */
+    public synchronized List<String> getNodes() {
+        return Collections.unmodifiableList(new ArrayList<>(nodes));
+    }
+
+    public synchronized int size() {
+        return nodes.size();
+    }
+
+    private static long point(String node, int i) {
+        return HASH.hashString(node+"#"+i, StandardCharsets.UTF_8).asLong();
+    }
+}
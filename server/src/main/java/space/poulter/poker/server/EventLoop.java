@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2018 Em Poulter <em@poulter.space>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package space.poulter.poker.server;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A single thread which runs the events of a group of tables. Every table is
+ * pinned to one loop for its whole life, so its state is only ever touched by
+ * that one thread, and doesn't need any locking.
+ * <p>
+ * Tasks come in through a lock free queue, so the reader threads handing over
+ * commands never wait for each other or for the loop. The loop only sleeps 
+ * when the queue is empty, and is woken by the next task to arrive.
+ * <p>
+ * Nothing run on a loop may wait for the network. Writing to a ClientSocket
+ * only queues the message, so tables can write to their players freely.
+ *
+ * @author Em Poulter <em@poulter.space>
+ */
+public class EventLoop implements Executor {
+
+    private final MpscQueue<Runnable> tasks;
+    private final Thread thread;
+    private volatile boolean running;
+    /* Set while the loop is (about to be) parked, so that it gets woken */
+    private volatile boolean sleeping;
+
+    public EventLoop(String name) {
+        tasks = new MpscQueue<>();
+        running = true;
+        sleeping = false;
+        thread = new Thread(this::run, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Adds a task to the end of the queue for this loop. Tasks are run one at
+     * a time, in the order they were added.
+     * @param task The task to run.
+     */
+    @Override
+    public void execute(Runnable task) {
+        tasks.offer(task);
+        if(sleeping) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    /**
+     * @return true if called from the thread of this loop.
+     */
+    public boolean inLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    /**
+     * Stops the loop, once it has finished the task it is running. Any tasks
+     * still in the queue are never run.
+     */
+    public void shutdown() {
+        running = false;
+        LockSupport.unpark(thread);
+    }
+
+    private void run() {
+        while(running) {
+            Runnable task = tasks.poll();
+            if(task == null) {
+                if(tasks.isEmpty()) {
+                    /* Check the queue again after saying we are asleep, in case
+                     * a task was added before the producer could see it.
+                     */
+                    sleeping = true;
+                    if(tasks.isEmpty() && running) {
+                        LockSupport.park(this);
+                    }
+                    sleeping = false;
+                } else {
+                    /* A task is halfway through being added */
+                    Thread.onSpinWait();
+                }
+                continue;
+            }
+            /* Every table on the loop stops if the loop does, so nothing one
+             * task throws is allowed to stop it.
+             */
+            try {
+                task.run();
+            } catch(Throwable e) {
+                System.err.println("Exception occured when handling a table event");
+                e.printStackTrace();
+            }
+        }
+    }
+}
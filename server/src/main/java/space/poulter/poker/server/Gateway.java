@@ -0,0 +1,623 @@
+/*
+ * Copyright (C) 2018 Em Poulter <em@poulter.space>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package space.poulter.poker.server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import space.poulter.poker.ClientSocket;
+import space.poulter.poker.Command;
+import space.poulter.poker.CommandDispatcher;
+import space.poulter.poker.TableSummary;
+
+/**
+ * The front of a cluster of servers. Clients connect to the gateway just as
+ * they would to a single server, and are let in by the gateway, either as 
+ * guests or by checking their password if there is a database. Every command 
+ * for a table is passed on to the node which owns the table, and everything 
+ * the node sends back is passed on to the client.
+ * <p>
+ * The gateway has one link to each node, which all of the clients share, 
+ * opened when a client first sends a command for a table on that node. The
+ * link proves itself to the node with the secret of the cluster, and then
+ * tells the node which user each client is, so the nodes keep balances and
+ * history as the right users (see PokerServer.ServerSideSocket.linkGateway).
+ * The lobby is kept at the gateway, from a subscription to the lobby of every
+ * node.
+ * <p>
+ * A cluster can be run on one machine, e.g.
+ * <pre>
+ * -p 1112 -cluster localhost:1112,localhost:1113 -node 0 -secret $secret
+ * -p 1113 -cluster localhost:1112,localhost:1113 -node 1 -secret $secret
+ * -gateway -p 1111 -cluster localhost:1112,localhost:1113 -secret $secret
+ * </pre>
+ *
+ * @author Em Poulter <em@poulter.space>
+ */
+public class Gateway extends Thread {
+
+    /* How long to wait to connect to a node, and how long to wait before
+     * trying to reach a node again after losing it, in milliseconds.
+     */
+    static final int CONNECT_TIMEOUT = 2000;
+    static final long RECONNECT_DELAY = 5000;
+
+    Integer port;
+    ConsistentHashRing cluster;
+    String secret;
+    LobbyIndex lobby;
+    ConnectionRegistry sockets;
+    ServerSocket serverSocket;
+    /* The database of users is only used if it is asked for */
+    boolean usingDB;
+    String dbURL;
+    Integer dbPoolSize;
+    UserStore users;
+    AuthService authService;
+    SessionStore sessions;
+    HashedWheelTimer timers;
+    /* The link to each node, once one has been opened, and when to try a
+     * node again after failing to reach it.
+     */
+    final Map<String, RelayLink> relays = new ConcurrentHashMap<>();
+    private final Map<String, Long> retryAt = new ConcurrentHashMap<>();
+    /* Each client is known to the nodes by a number of its own */
+    private final AtomicInteger nextClient = new AtomicInteger();
+
+    /**
+     * A connection from the gateway to a node. The gateway reads from it
+     * itself, rather than with a ThreadedReader, as everything the node sends
+     * has to be passed on, and not just the commands.
+     */
+    private static abstract class NodeLink extends ClientSocket {
+        final String node;
+
+        NodeLink(String node) throws IOException {
+            super(connect(node));
+            this.node = node;
+        }
+
+        private static Socket connect(String node) throws IOException {
+            Socket s = new Socket();
+            s.connect(new InetSocketAddress(ConsistentHashRing.host(node),
+                    ConsistentHashRing.port(node)), CONNECT_TIMEOUT);
+            return s;
+        }
+
+        /* Nothing comes through the ThreadedReader, as it is never started */
+        @Override
+        public void processCommand(String str) {
+        }
+
+        /**
+         * Reads from the node until it closes, or the link is finished with.
+         */
+        void readAll() throws IOException, ClassNotFoundException {
+            Object o;
+            while(!getSocket().isClosed() && (o = read()) != null) {
+                if(!handle(o)) return;
+            }
+        }
+
+        /**
+         * @param o An object sent by the node.
+         * @return false if the link is finished with.
+         */
+        abstract boolean handle(Object o) throws IOException, ClassNotFoundException;
+    }
+
+    /**
+     * The link to one node, shared by all of the clients using the node.
+     */
+    class RelayLink extends NodeLink {
+        /* The clients which have joined the node, by their number */
+        private final Map<Integer, GatewaySocket> clients;
+
+        RelayLink(String node) throws IOException {
+            super(node);
+            clients = new ConcurrentHashMap<>();
+            write("auth:gateway:"+secret);
+        }
+
+        /**
+         * Passes a command from a client on to the node, telling the node 
+         * who the client is first if this is its first command for the node.
+         * Only called from the reader of the client.
+         */
+        void send(GatewaySocket client, int userID, String command) throws IOException {
+            String from = "From:"+client.number+":"+command;
+            if(clients.putIfAbsent(client.number, client) == null) {
+                write("Join:"+client.number+":"+userID, from);
+            } else {
+                write(from);
+            }
+        }
+
+        /**
+         * Tells the node that a client has left, if it had joined.
+         */
+        void leave(GatewaySocket client) throws IOException {
+            if(clients.remove(client.number, client)) {
+                write("Leave:"+client.number);
+            }
+        }
+
+        /**
+         * Passes "To:$client:$n" and the n objects after it on to the client,
+         * all at once.
+         */
+        @Override
+        boolean handle(Object o) throws IOException, ClassNotFoundException {
+            if(!(o instanceof String)) return true;
+            Command command = new Command((String)o);
+            if(command.is(0, "auth")) {
+                /* The node only says anything here if it refused the link */
+                if(command.is(1, "fail")) {
+                    System.err.println("Node "+node+" refused the link, so check the secret");
+                    return false;
+                }
+                return true;
+            }
+            if(!command.is(0, "To")) return true;
+            
+            GatewaySocket client = clients.get(command.parseInt(1));
+            Object[] messages = new Object[command.parseInt(2)];
+            for(int i = 0; i<messages.length; i++) {
+                messages[i] = read();
+            }
+            /* It has already left */
+            if(client == null || (messages.length == 1 && "Exit".equals(messages[0]))) return true;
+            try {
+                client.write(messages);
+            } catch(IOException ex) {
+                System.err.println("Exception occured when passing on from node "+node);
+                System.err.println(ex);
+            }
+            return true;
+        }
+
+        /**
+         * Reads from the node until it goes away. The clients will join again
+         * over a new link the next time they use the node.
+         */
+        void run() {
+            try {
+                readAll();
+            } catch(IOException | ClassNotFoundException | NumberFormatException ex) {
+                System.err.println("Lost the link to node "+node);
+                System.err.println(ex);
+            }
+            relays.remove(node, this);
+            close();
+        }
+    }
+
+    /**
+     * The link which keeps the lobby of the gateway up to date with the
+     * tables of one node.
+     */
+    private class LobbyLink extends NodeLink {
+
+        LobbyLink(String node) throws IOException {
+            super(node);
+        }
+
+        @Override
+        boolean handle(Object o) throws IOException, ClassNotFoundException {
+            if(!(o instanceof String)) return true;
+            Command command = new Command((String)o);
+            if(command.is(0, "Table Page")) {
+                int page = command.parseInt(1);
+                int pages = command.parseInt(2);
+                Object list = read();
+                if(!(list instanceof List)) throw new ClassNotFoundException();
+                for(Object summary : (List<?>)list) {
+                    if(summary instanceof TableSummary) lobby.update((TableSummary)summary);
+                }
+                if(page+1 < pages) {
+                    write("Get Tables:page:"+(page+1)+":size:"+LobbyIndex.MAX_PAGE_SIZE);
+                }
+            } else if(command.is(0, "Lobby")) {
+                if(command.is(1, "table")) {
+                    Object summary = read();
+                    if(!(summary instanceof TableSummary)) throw new ClassNotFoundException();
+                    lobby.update((TableSummary)summary);
+                } else if(command.is(1, "remove")) {
+                    lobby.remove(command.parseInt(2));
+                }
+            }
+            return true;
+        }
+    }
+
+    public class GatewaySocket extends ClientSocket {
+
+        final int number;
+
+        public GatewaySocket(Socket s) throws IOException {
+            super(s);
+            number = nextClient.incrementAndGet();
+        }
+
+        @Override
+        public void processCommand(String str) {
+            Command command = new Command(str);
+            GatewayCommand handler = GATEWAY_COMMANDS.get(command, 0);
+            if(handler == null) {
+                System.err.println("Unrecognised command: "+str);
+                return;
+            }
+            try {
+                handler.run(this, command);
+            } catch(NumberFormatException ex) {
+                System.err.println("Invalid command: "+str);
+                System.err.println(ex);
+            }
+        }
+
+        /**
+         * Clients are let in at the gateway, and the nodes are told who they
+         * are, so the nodes don't see any of this. The replies are the same
+         * as those of a single server.
+         */
+        private void auth(Command command) {
+            if(command.is(1, "compress")) {
+                if(!command.is(2, "deflate")) return;
+                try {
+                    write(COMPRESSION_REQUEST);
+                    setCompressing(true);
+                } catch(IOException ex) {
+                    System.err.println("Could not acknowledge compression");
+                    System.err.println(ex);
+                }
+                return;
+            }
+            try {
+                if(sockets.contains(this)) {
+                    write("auth:fail:4");
+                    return;
+                }
+                /* Sessions are kept by the nodes, which the gateway can't 
+                 * move a client between, so the client has to log in again.
+                 */
+                if(command.is(1, "resume")) {
+                    write("auth:fail:7");
+                    return;
+                }
+                /* Guests are let in as soon as they connect */
+                if(!usingDB || !command.is(1, "user") || !command.is(3, "pass")) {
+                    write("auth:fail:1");
+                    return;
+                }
+            } catch(IOException ex) {
+                System.err.println("Exception when failing authorisation");
+                System.err.println(ex);
+                return;
+            }
+            /* auth:user:$name:pass:$pwd, where the password may contain colons */
+            authService.submit(this, command.get(2), command.rest(4));
+        }
+
+        private void getTables(Command command) {
+            if(!sockets.contains(this)) return;
+            lobby.sendPage(command, this);
+        }
+
+        private void lobby(Command command) {
+            if(!sockets.contains(this)) return;
+            if(command.is(1, "subscribe")) {
+                lobby.subscribe(this);
+            } else if(command.is(1, "unsubscribe")) {
+                lobby.unsubscribe(this);
+            }
+        }
+
+        /**
+         * Passes a command on to the node which owns a table or tournament.
+         * @param id The ID of the table or tournament.
+         * @param command The command, which is passed on as it is.
+         */
+        private void route(int id, Command command) {
+            Integer userID = sockets.getID(this);
+            if(userID == null) {
+                System.err.println("Command from a client which isn't logged in: "+command);
+                return;
+            }
+            String node = cluster.get(id);
+            RelayLink link = null;
+            try {
+                link = relay(node);
+                link.send(this, userID, command.toString());
+            } catch(IOException ex) {
+                System.err.println("Could not pass command on to node "+node);
+                System.err.println(ex);
+                if(link != null && relays.remove(node, link)) link.close();
+            }
+        }
+
+        private void exit(Command command) {
+            System.out.println("Socket closing");
+
+            Integer id = sockets.remove(this);
+            if(usingDB && id != null && id >= 0) {
+                try {
+                    users.setConnected(id, false);
+                } catch(SQLException ex) {
+                    System.err.println(ex);
+                }
+            }
+            for(RelayLink link : relays.values()) {
+                try {
+                    link.leave(this);
+                } catch(IOException ex) {
+                    System.err.println("Exception when telling node "+link.node+" the client left");
+                    System.err.println(ex);
+                }
+            }
+            try {
+                write("Exit");
+            } catch(IOException ex) {
+                System.err.println("Exception when telling client to exit");
+                System.err.println(ex);
+            }
+
+            lobby.unsubscribe(this);
+
+            close();
+        }
+    }
+
+    /**
+     * A handler for a command sent to the gateway by a client.
+     */
+    interface GatewayCommand {
+        void run(GatewaySocket socket, Command command) throws NumberFormatException;
+    }
+
+    private static final CommandDispatcher<GatewayCommand> GATEWAY_COMMANDS =
+            new CommandDispatcher<GatewayCommand>()
+                .register("auth", GatewaySocket::auth)
+                .register("Get Tables", GatewaySocket::getTables)
+                .register("Lobby", GatewaySocket::lobby)
+                .register("View", (socket, command) -> socket.route(command.parseInt(1), command))
+                .register("ID", (socket, command) -> socket.route(command.parseInt(1), command))
+                .register("Tournament", (socket, command) -> socket.route(command.parseInt(2), command))
+                .register("Exit", GatewaySocket::exit);
+
+    private static void sendHelp() {
+        System.out.println("help");
+
+        System.exit(-1);
+    }
+
+    /**
+     * @return The link to a node, which is opened if there isn't one.
+     * @throws IOException If the node can't be reached, or couldn't be the 
+     * last time it was tried, a moment ago.
+     */
+    private RelayLink relay(String node) throws IOException {
+        RelayLink link = relays.get(node);
+        if(link != null) return link;
+        /* Only open one link to a node, however many clients want it */
+        synchronized(relays) {
+            link = relays.get(node);
+            if(link != null) return link;
+            Long retry = retryAt.get(node);
+            if(retry != null && System.currentTimeMillis() < retry) {
+                throw new IOException("Node "+node+" couldn't be reached");
+            }
+            try {
+                link = new RelayLink(node);
+            } catch(IOException ex) {
+                retryAt.put(node, System.currentTimeMillis() + RECONNECT_DELAY);
+                throw ex;
+            }
+            retryAt.remove(node);
+            relays.put(node, link);
+            Thread reader = new Thread(link::run, "Link to "+node);
+            reader.setDaemon(true);
+            reader.start();
+            return link;
+        }
+    }
+
+    /**
+     * Keeps the lobby up to date with the tables of a node, for as long as
+     * the gateway runs. If the node goes away its tables are taken out of the
+     * lobby, and it is tried again after a while.
+     */
+    private void followLobby(String node) {
+        while(true) {
+            try(LobbyLink link = new LobbyLink(node)) {
+                link.write("Lobby:subscribe");
+                link.write("Get Tables:page:0:size:"+LobbyIndex.MAX_PAGE_SIZE);
+                link.readAll();
+            } catch(IOException | ClassNotFoundException | NumberFormatException ex) {
+                System.err.println("Lost the lobby of node "+node);
+                System.err.println(ex);
+            }
+            for(TableSummary summary : lobby.snapshot()) {
+                if(node.equals(cluster.get(summary.getTableID()))) {
+                    lobby.remove(summary.getTableID());
+                }
+            }
+            try {
+                Thread.sleep(RECONNECT_DELAY);
+            } catch(InterruptedException ex) {
+                return;
+            }
+        }
+    }
+
+    private void init() {
+
+        if(cluster == null) {
+            System.err.println("The gateway needs the nodes of the cluster");
+            sendHelp();
+        }
+        if(secret == null) {
+            System.err.println("The gateway needs the secret of the cluster");
+            sendHelp();
+        }
+        lobby = new LobbyIndex();
+        sockets = new ConnectionRegistry();
+        if(usingDB) {
+            if(dbURL == null) {
+                dbURL = PokerServer.DEFAULT_DB_URL;
+            }
+            if(dbPoolSize == -1) {
+                dbPoolSize = PokerServer.DEFAULT_DB_POOL_SIZE;
+            }
+            if(dbURL.startsWith("jdbc:mysql:")) {
+                try {
+                    Class.forName("com.mysql.cj.jdbc.Driver");
+                } catch(ClassNotFoundException ex) {
+                    System.err.println("Could not find jdbc connector");
+                    System.err.println(ex);
+                }
+            }
+            timers = new HashedWheelTimer(20, 1024);
+            sessions = new SessionStore(timers);
+            sessions.start();
+            users = new UserStore(new ConnectionPool(dbURL, 
+                    PokerServer.DB_USERNAME, PokerServer.DB_PASSWORD, dbPoolSize));
+            authService = new AuthService(users, sockets, sessions, Runtime.getRuntime().availableProcessors());
+        }
+        for(String node : cluster.getNodes()) {
+            Thread follower = new Thread(() -> followLobby(node), "Lobby of "+node);
+            follower.setDaemon(true);
+            follower.start();
+        }
+        if(port==-1) {
+            port = 1111;
+        }
+        try {
+            serverSocket = new ServerSocket(port);
+        } catch (IOException ex) {
+            System.err.println("Exception occured when creating server socket");
+            System.err.println(ex);
+            System.exit(-1);
+        }
+    }
+
+    public Gateway(String args[]) {
+
+        port = -1;
+        usingDB = false;
+        dbPoolSize = -1;
+
+        List<String> listArgs = Arrays.asList(args);
+        Iterator<String> it = listArgs.iterator();
+        while(it.hasNext()) {
+            String s = it.next();
+            if(!s.startsWith("-")) {
+                System.err.println("The command line option '"+s+"' was not recognised");
+                sendHelp();
+            }
+            switch(s) {
+
+                case "-gateway":
+                        break;
+
+                case "-c":
+                case "-cluster":
+                        String val = it.next();
+                        try {
+                            cluster = ConsistentHashRing.parse(val);
+                        } catch(IllegalArgumentException e) {
+                            System.err.println(e.getMessage());
+                            sendHelp();
+                            System.exit(-1);
+                        }
+                        break;
+
+                case "-secret":
+                        secret = it.next();
+                        break;
+
+                case "-db":
+                        usingDB = true;
+                        break;
+
+                case "-dburl":
+                        usingDB = true;
+                        dbURL = it.next();
+                        break;
+
+                case "-dbpool":
+                        val = it.next();
+                        try {
+                            dbPoolSize = Integer.parseInt(val);
+                            if(dbPoolSize < 1)
+                                throw new NumberFormatException();
+                        } catch(NumberFormatException e) {
+                            System.err.println("The database pool size '"+val+"' was not a valid amount.");
+                            sendHelp();
+                            System.exit(-1);
+                        }
+                        break;
+
+                case "-p":
+                case "-port":
+                        val = it.next();
+                        try {
+                            port = Integer.parseInt(val);
+                        } catch(NumberFormatException e) {
+                            System.err.println("The port "+val+" was not a valid port");
+                            sendHelp();
+                            System.exit(-1);
+                        }
+                        break;
+                case "-h":
+                case "-help":
+                        sendHelp();
+                        break;
+                default: System.err.println("The command line option '"+s+"' was not recognised");
+                         sendHelp();
+            }
+        }
+
+        init();
+    }
+
+    @Override
+    public void run() {
+        while(true) {
+            try {
+                GatewaySocket newSock = new GatewaySocket(serverSocket.accept());
+                /* Guests are in straight away, so register them before any
+                 * of their commands are read.
+                 */
+                if(!usingDB) sockets.registerGuest(newSock);
+                newSock.startReader();
+                newSock.write(usingDB ? "auth:req" : "auth:done");
+            } catch(IOException ex) {
+                System.err.println("Exception occured when trying to accept a new connection. Was the socket closed?");
+                System.err.println(ex);
+            }
+        }
+    }
+}
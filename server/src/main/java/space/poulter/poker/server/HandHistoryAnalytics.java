@@ -0,0 +1,489 @@
+/*
+ * Copyright (C) 2018 Em Poulter <em@poulter.space>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package space.poulter.poker.server;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.zip.CRC32;
+import space.poulter.poker.Poker.PokerAction;
+
+/**
+ * Works out statistics about the players and tables from the hand history.
+ * For each user:
+ * VPIP, the share of hands they put chips in before the flop when they
+ * didn't have to;
+ * PFR, the share of hands they raised before the flop;
+ * aggression, their raises divided by their calls; and
+ * how many chips they won or lost.
+ * For each table: how many hands it played an hour, and its average pot.
+ * <p>
+ * Each segment is scanned by a fork/join task of its own, straight from the
+ * mapped file, and without making any objects for the hands. The totals are
+ * kept in primitive arrays keyed by ID, and those of the segments are merged
+ * at the end.
+ * <p>
+ * Usage: HandHistoryAnalytics $dir [-threads $n] [-from $ms] [-to $ms]
+ * [-top $n]
+ *
+ * @author Em Poulter <em@poulter.space>
+ */
+public class HandHistoryAnalytics {
+
+    static final int DEFAULT_TOP = 20;
+    /* Seats are a byte in the records */
+    private static final int MAX_SEATS = 256;
+
+    /* The totals kept for each player */
+    static final int P_HANDS = 0;
+    static final int P_VPIP = 1;
+    static final int P_PFR = 2;
+    static final int P_RAISES = 3;
+    static final int P_CALLS = 4;
+    static final int P_WON = 5;
+    static final int P_NET = 6;
+    /* The totals kept for each table */
+    static final int T_HANDS = 0;
+    static final int T_POT = 1;
+    static final int T_FIRST = 2;
+    static final int T_LAST = 3;
+
+    /**
+     * How a total is made up from the values added to it.
+     */
+    enum Op { SUM, MIN, MAX }
+
+    /**
+     * Totals for each of a set of IDs, with a long for each of a few columns.
+     * The IDs are kept in an open addressing hash table, and the totals in a
+     * single array beside it, so adding to a total never makes an object.
+     */
+    static class Accumulator {
+        private static final int EMPTY = Integer.MIN_VALUE;
+
+        private final Op[] ops;
+        private int[] keys;
+        private long[] values;
+        private int size;
+
+        Accumulator(Op... ops) {
+            this.ops = ops;
+            keys = new int[64];
+            Arrays.fill(keys, EMPTY);
+            values = new long[keys.length * ops.length];
+            size = 0;
+        }
+
+        /**
+         * @param key An ID.
+         * @return Where the totals of the ID start, adding the ID if it isn't
+         * there. Only good until the next ID is added.
+         */
+        int slot(int key) {
+            int mask = keys.length - 1;
+            int i = mix(key) & mask;
+            while(keys[i] != EMPTY) {
+                if(keys[i] == key) return i * ops.length;
+                i = (i + 1) & mask;
+            }
+            if(size + 1 > keys.length / 2) {
+                grow();
+                return slot(key);
+            }
+            keys[i] = key;
+            size++;
+            int start = i * ops.length;
+            for(int col = 0; col<ops.length; col++) {
+                values[start + col] = ops[col] == Op.MIN ? Long.MAX_VALUE
+                        : ops[col] == Op.MAX ? Long.MIN_VALUE : 0;
+            }
+            return start;
+        }
+
+        void add(int slot, int col, long value) {
+            int i = slot + col;
+            switch(ops[col]) {
+                case SUM: values[i] += value; break;
+                case MIN: values[i] = Math.min(values[i], value); break;
+                case MAX: values[i] = Math.max(values[i], value); break;
+            }
+        }
+
+        /**
+         * Adds to a total which is a SUM, without looking at how it is made up.
+         */
+        void sum(int slot, int col, long value) {
+            values[slot + col] += value;
+        }
+
+        long get(int slot, int col) {
+            return values[slot + col];
+        }
+
+        /**
+         * Adds all of the totals of another accumulator to these.
+         */
+        void merge(Accumulator other) {
+            for(int i = 0; i<other.keys.length; i++) {
+                if(other.keys[i] == EMPTY) continue;
+                int slot = slot(other.keys[i]);
+                for(int col = 0; col<ops.length; col++) {
+                    add(slot, col, other.values[i * ops.length + col]);
+                }
+            }
+        }
+
+        /**
+         * @return The IDs, in no particular order.
+         */
+        int[] keys() {
+            int[] found = new int[size];
+            int n = 0;
+            for(int key : keys) {
+                if(key != EMPTY) found[n++] = key;
+            }
+            return found;
+        }
+
+        int size() {
+            return size;
+        }
+
+        private void grow() {
+            int[] oldKeys = keys;
+            long[] oldValues = values;
+            keys = new int[oldKeys.length * 2];
+            Arrays.fill(keys, EMPTY);
+            values = new long[keys.length * ops.length];
+            int mask = keys.length - 1;
+            for(int j = 0; j<oldKeys.length; j++) {
+                if(oldKeys[j] == EMPTY) continue;
+                int i = mix(oldKeys[j]) & mask;
+                while(keys[i] != EMPTY) i = (i + 1) & mask;
+                keys[i] = oldKeys[j];
+                System.arraycopy(oldValues, j * ops.length, values, i * ops.length, ops.length);
+            }
+        }
+
+        private static int mix(int key) {
+            int h = key * 0x9e3779b9;
+            return h ^ (h >>> 16);
+        }
+    }
+
+    /**
+     * The totals of some of the history.
+     */
+    static class Totals {
+        final Accumulator players = new Accumulator(Op.SUM, Op.SUM, Op.SUM, Op.SUM, Op.SUM, Op.SUM, Op.SUM);
+        final Accumulator tables = new Accumulator(Op.SUM, Op.SUM, Op.MIN, Op.MAX);
+        long hands;
+        long bytes;
+
+        Totals merge(Totals other) {
+            players.merge(other.players);
+            tables.merge(other.tables);
+            hands += other.hands;
+            bytes += other.bytes;
+            return this;
+        }
+    }
+
+    /**
+     * Scans a run of segments, splitting it in two until there is only one.
+     */
+    private class Scan extends RecursiveTask<Totals> {
+        private final List<Path> segments;
+
+        Scan(List<Path> segments) {
+            this.segments = segments;
+        }
+
+        @Override
+        protected Totals compute() {
+            if(segments.size() == 1) {
+                try {
+                    return scan(segments.get(0));
+                } catch(IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+            int mid = segments.size() / 2;
+            Scan right = new Scan(segments.subList(mid, segments.size()));
+            right.fork();
+            Totals left = new Scan(segments.subList(0, mid)).compute();
+            return left.merge(right.join());
+        }
+    }
+
+    private final String dir;
+    private int threads;
+    private long from;
+    private long to;
+    private int top;
+
+    private static void sendHelp() {
+        System.out.println("Usage: HandHistoryAnalytics $dir [-threads $n] [-from $ms] [-to $ms] [-top $n]");
+
+        System.exit(-1);
+    }
+
+    public HandHistoryAnalytics(String args[]) {
+        if(args.length < 1 || args[0].startsWith("-")) sendHelp();
+        dir = args[0];
+        threads = Runtime.getRuntime().availableProcessors();
+        from = Long.MIN_VALUE;
+        to = Long.MAX_VALUE;
+        top = DEFAULT_TOP;
+
+        Iterator<String> it = Arrays.asList(args).subList(1, args.length).iterator();
+        while(it.hasNext()) {
+            String s = it.next();
+            try {
+                switch(s) {
+                    case "-threads":
+                            threads = Integer.parseInt(it.next());
+                            if(threads < 1) throw new NumberFormatException();
+                            break;
+                    case "-from":
+                            from = Long.parseLong(it.next());
+                            break;
+                    case "-to":
+                            to = Long.parseLong(it.next());
+                            break;
+                    case "-top":
+                            top = Integer.parseInt(it.next());
+                            if(top < 1) throw new NumberFormatException();
+                            break;
+                    default: System.err.println("The command line option '"+s+"' was not recognised");
+                             sendHelp();
+                }
+            } catch(NumberFormatException e) {
+                System.err.println("The value given for '"+s+"' was not valid.");
+                sendHelp();
+            }
+        }
+    }
+
+    /**
+     * Scans the whole history.
+     * @return The totals.
+     * @throws IOException If the history couldn't be read.
+     */
+    public Totals run() throws IOException {
+        List<Path> segments = HandHistoryWriter.segments(Paths.get(dir));
+        if(segments.isEmpty()) return new Totals();
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            return pool.invoke(new Scan(segments));
+        } catch(UncheckedIOException e) {
+            throw e.getCause();
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Adds up the hands in a segment.
+     */
+    Totals scan(Path path) throws IOException {
+        ByteBuffer segment;
+        try(FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            segment = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        if(segment.limit() < HandHistoryWriter.HEADER_SIZE || segment.getInt(0) != HandHistoryWriter.MAGIC
+                || segment.getInt(Integer.BYTES) != HandHistoryWriter.VERSION) {
+            throw new IOException(path+" is not a hand history segment");
+        }
+        Totals totals = new Totals();
+        CRC32 crc = new CRC32();
+        ByteBuffer record = segment.duplicate();
+        /* What each seat did in the hand being read */
+        int[] users = new int[MAX_SEATS];
+        long[] put = new long[MAX_SEATS];
+        long[] won = new long[MAX_SEATS];
+        boolean[] vpip = new boolean[MAX_SEATS];
+        boolean[] pfr = new boolean[MAX_SEATS];
+        int[] raises = new int[MAX_SEATS];
+        int[] calls = new int[MAX_SEATS];
+        int[] seats = new int[MAX_SEATS];
+
+        int pos = HandHistoryWriter.HEADER_SIZE;
+        int limit = segment.limit();
+        while(pos + HandHistoryWriter.FRAME_SIZE <= limit) {
+            int length = segment.getInt(pos);
+            if(length <= 0 || length > limit - pos - HandHistoryWriter.FRAME_SIZE) break;
+            int start = pos + HandHistoryWriter.FRAME_SIZE;
+            int end = start + length;
+            record.limit(end).position(start);
+            crc.reset();
+            crc.update(record);
+            if((int)crc.getValue() != segment.getInt(pos + Integer.BYTES)) break;
+            pos = end;
+
+            long time = segment.getLong(start + HandRecord.TIME_OFFSET);
+            if(time < from || time > to) continue;
+            totals.hands++;
+            totals.bytes += HandHistoryWriter.FRAME_SIZE + length;
+
+            int count = 0;
+            boolean preflop = true;
+            long pot = 0;
+            int i = start + HandRecord.HEADER_SIZE;
+            while(i < end) {
+                byte tag = segment.get(i);
+                int seat = segment.get(i + HandRecord.SEAT_OFFSET) & 0xff;
+                switch(tag) {
+                    case HandRecord.SEAT:
+                        seats[count++] = seat;
+                        users[seat] = segment.getInt(i + HandRecord.USER_OFFSET);
+                        put[seat] = 0;
+                        won[seat] = 0;
+                        vpip[seat] = false;
+                        pfr[seat] = false;
+                        raises[seat] = 0;
+                        calls[seat] = 0;
+                        i += HandRecord.SEAT_SIZE;
+                        break;
+                    case HandRecord.HOLE:
+                        i += HandRecord.HOLE_SIZE;
+                        break;
+                    case HandRecord.POST:
+                        put[seat] += segment.getInt(i + HandRecord.POST_AMOUNT_OFFSET);
+                        i += HandRecord.POST_SIZE;
+                        break;
+                    case HandRecord.ACTION:
+                        int action = segment.get(i + HandRecord.KIND_OFFSET);
+                        put[seat] += segment.getInt(i + HandRecord.ACTION_AMOUNT_OFFSET);
+                        if(action == PokerAction.RAISE.ordinal()) {
+                            raises[seat]++;
+                            if(preflop) {
+                                vpip[seat] = true;
+                                pfr[seat] = true;
+                            }
+                        } else if(action == PokerAction.CALL.ordinal()) {
+                            calls[seat]++;
+                            if(preflop) vpip[seat] = true;
+                        }
+                        i += HandRecord.ACTION_SIZE;
+                        break;
+                    case HandRecord.BOARD:
+                        preflop = false;
+                        i += HandRecord.BOARD_SIZE + (segment.get(i + HandRecord.COUNT_OFFSET) & 0xff);
+                        break;
+                    case HandRecord.WIN:
+                        won[seat] += segment.getInt(i + HandRecord.WIN_AMOUNT_OFFSET);
+                        i += HandRecord.WIN_SIZE;
+                        break;
+                    case HandRecord.END:
+                        pot = segment.getInt(i + HandRecord.POT_OFFSET);
+                        i = end;
+                        break;
+                    default:
+                        /* Can't be read any further */
+                        i = end;
+                }
+            }
+
+            for(int n = 0; n<count; n++) {
+                int seat = seats[n];
+                if(users[seat] < 0) continue;
+                int slot = totals.players.slot(users[seat]);
+                totals.players.sum(slot, P_HANDS, 1);
+                totals.players.sum(slot, P_VPIP, vpip[seat] ? 1 : 0);
+                totals.players.sum(slot, P_PFR, pfr[seat] ? 1 : 0);
+                totals.players.sum(slot, P_RAISES, raises[seat]);
+                totals.players.sum(slot, P_CALLS, calls[seat]);
+                totals.players.sum(slot, P_WON, won[seat] > 0 ? 1 : 0);
+                totals.players.sum(slot, P_NET, won[seat] - put[seat]);
+            }
+            int slot = totals.tables.slot(segment.getInt(start + HandRecord.TABLE_OFFSET));
+            totals.tables.add(slot, T_HANDS, 1);
+            totals.tables.add(slot, T_POT, pot);
+            totals.tables.add(slot, T_FIRST, time);
+            totals.tables.add(slot, T_LAST, time);
+        }
+        return totals;
+    }
+
+    /**
+     * Prints the players and tables with the most hands.
+     */
+    void report(Totals totals, double seconds) {
+        System.out.printf("%d hands (%.1f MB) in %.2fs: %.0f hands/s, %.1f MB/s%n", totals.hands,
+                totals.bytes / 1e6, seconds, totals.hands / seconds, totals.bytes / 1e6 / seconds);
+
+        Accumulator players = totals.players;
+        System.out.printf("%n%d players, the %d with the most hands:%n", players.size(), Math.min(top, players.size()));
+        System.out.printf("%10s %10s %6s %6s %6s %7s %12s%n", "user", "hands", "vpip", "pfr", "af", "won", "net");
+        for(int user : mostHands(players, P_HANDS)) {
+            int slot = players.slot(user);
+            double hands = players.get(slot, P_HANDS);
+            long calls = players.get(slot, P_CALLS);
+            System.out.printf("%10d %10d %5.1f%% %5.1f%% %6s %6.1f%% %12d%n", user, (long)hands,
+                    100 * players.get(slot, P_VPIP) / hands, 100 * players.get(slot, P_PFR) / hands,
+                    calls == 0 ? "-" : String.format("%.2f", (double)players.get(slot, P_RAISES) / calls),
+                    100 * players.get(slot, P_WON) / hands, players.get(slot, P_NET));
+        }
+
+        Accumulator tables = totals.tables;
+        System.out.printf("%n%d tables, the %d with the most hands:%n", tables.size(), Math.min(top, tables.size()));
+        System.out.printf("%10s %10s %10s %12s%n", "table", "hands", "hands/h", "average pot");
+        for(int table : mostHands(tables, T_HANDS)) {
+            int slot = tables.slot(table);
+            long hands = tables.get(slot, T_HANDS);
+            long span = tables.get(slot, T_LAST) - tables.get(slot, T_FIRST);
+            System.out.printf("%10d %10d %10s %12d%n", table, hands,
+                    span == 0 ? "-" : String.format("%.1f", hands * 3600000.0 / span),
+                    tables.get(slot, T_POT) / hands);
+        }
+    }
+
+    private int[] mostHands(Accumulator totals, int col) {
+        List<int[]> ranked = new ArrayList<>(totals.size());
+        for(int key : totals.keys()) {
+            ranked.add(new int[] {key, totals.slot(key)});
+        }
+        ranked.sort(Comparator.comparingLong((int[] e) -> totals.get(e[1], col)).reversed());
+        return ranked.stream().limit(top).mapToInt((e) -> e[0]).toArray();
+    }
+
+    public static void main(String args[]) {
+        HandHistoryAnalytics analytics = new HandHistoryAnalytics(args);
+        long start = System.nanoTime();
+        try {
+            Totals totals = analytics.run();
+            analytics.report(totals, (System.nanoTime() - start) / 1e9);
+        } catch(IOException ex) {
+            System.err.println("Could not read the hand history");
+            System.err.println(ex);
+            System.exit(-1);
+        }
+    }
+}
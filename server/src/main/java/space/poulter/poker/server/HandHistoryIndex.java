@@ -0,0 +1,315 @@
+/*
+ * Copyright (C) 2018 Em Poulter <em@poulter.space>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package space.poulter.poker.server;
+
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.ListMultimap;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Finds hands in the history by player, by table and by time, without reading
+ * the segments themselves.
+ * <p>
+ * Next to each segment the writer keeps an index file, with an entry for each
+ * record as it is written: where the record starts in the segment (int), the
+ * table (int), when the hand started (long), and the number of users who
+ * played (byte) followed by their IDs (ints). Guests aren't included. The
+ * entries are read into memory when the index is opened, and refreshing the
+ * index reads only the entries added since. A segment without an index file
+ * (e.g. one written before there were any) has its index built from the
+ * segment itself.
+ *
+ * @author Em Poulter <em@poulter.space>
+ */
+public class HandHistoryIndex {
+
+    static final String SUFFIX = ".idx";
+    /* An entry with no users */
+    private static final int ENTRY_SIZE = Integer.BYTES + Integer.BYTES + Long.BYTES + 1;
+
+    /**
+     * Where to find a hand, and what is known about it without reading it.
+     */
+    public static class Entry {
+        private final long seq;
+        private final long segment;
+        private final int offset;
+        private final int tableID;
+        private final long time;
+
+        Entry(long seq, long segment, int offset, int tableID, long time) {
+            this.seq = seq;
+            this.segment = segment;
+            this.offset = offset;
+            this.tableID = tableID;
+            this.time = time;
+        }
+
+        public long getSeq() {
+            return seq;
+        }
+        /**
+         * @return The number of the first record in the segment of the hand.
+         */
+        public long getSegment() {
+            return segment;
+        }
+        public int getOffset() {
+            return offset;
+        }
+        public int getTableID() {
+            return tableID;
+        }
+        public long getTime() {
+            return time;
+        }
+    }
+
+    /**
+     * The entries of a single segment, kept as arrays so that millions of
+     * hands don't need millions of objects.
+     */
+    private static class Segment {
+        final long base;
+        /* How much of the index file has been read */
+        long read;
+        int count;
+        int[] offsets = new int[1024];
+        int[] tables = new int[1024];
+        long[] times = new long[1024];
+        long minTime = Long.MAX_VALUE;
+        long maxTime = Long.MIN_VALUE;
+
+        Segment(long base) {
+            this.base = base;
+        }
+
+        int add(int offset, int tableID, long time) {
+            if(count == offsets.length) {
+                offsets = Arrays.copyOf(offsets, count * 2);
+                tables = Arrays.copyOf(tables, count * 2);
+                times = Arrays.copyOf(times, count * 2);
+            }
+            offsets[count] = offset;
+            tables[count] = tableID;
+            times[count] = time;
+            minTime = Math.min(minTime, time);
+            maxTime = Math.max(maxTime, time);
+            return count++;
+        }
+    }
+
+    private final Path dir;
+    private final TreeMap<Long, Segment> segments;
+    /* The hands of each user and of each table, by number */
+    private final ListMultimap<Integer, Long> byUser;
+    private final ListMultimap<Integer, Long> byTable;
+
+    /**
+     * @param dir The directory the history was written to.
+     */
+    public HandHistoryIndex(Path dir) {
+        this.dir = dir;
+        segments = new TreeMap<>();
+        byUser = ArrayListMultimap.create();
+        byTable = ArrayListMultimap.create();
+    }
+
+    /**
+     * Reads any entries added since the last refresh, including those of new
+     * segments.
+     * @throws IOException If the history couldn't be read.
+     */
+    public void refresh() throws IOException {
+        for(Path path : HandHistoryWriter.segments(dir)) {
+            long base = HandHistoryWriter.segmentBase(path);
+            Segment segment = segments.get(base);
+            if(segment == null) {
+                segment = new Segment(base);
+                segments.put(base, segment);
+            }
+            Path index = indexPath(path);
+            if(!Files.exists(index)) {
+                rebuild(dir, base);
+            }
+            readEntries(segment, index);
+        }
+    }
+
+    private void readEntries(Segment segment, Path index) throws IOException {
+        ByteBuffer entries;
+        try(FileChannel channel = FileChannel.open(index, StandardOpenOption.READ)) {
+            if(channel.size() <= segment.read) return;
+            entries = ByteBuffer.allocate((int)(channel.size() - segment.read));
+            channel.position(segment.read);
+            while(entries.hasRemaining() && channel.read(entries) > 0) { }
+        }
+        entries.flip();
+        /* The last entry may still be being written, so stop before it */
+        while(entries.remaining() >= ENTRY_SIZE) {
+            int start = entries.position();
+            int users = entries.get(start + ENTRY_SIZE - 1);
+            if(entries.remaining() < ENTRY_SIZE + users * Integer.BYTES) break;
+            int offset = entries.getInt();
+            int tableID = entries.getInt();
+            long time = entries.getLong();
+            entries.get();
+            long seq = segment.base + segment.add(offset, tableID, time);
+            byTable.put(tableID, seq);
+            for(int i = 0; i<users; i++) {
+                byUser.put(entries.getInt(), seq);
+            }
+            segment.read += entries.position() - start;
+        }
+    }
+
+    /**
+     * Finds hands. Each of the conditions can be left out.
+     * @param userID The user who played, or -1 for any.
+     * @param tableID The table, or -1 for any.
+     * @param from The earliest start of the hand, in ms since the epoch.
+     * @param to The latest start of the hand, in ms since the epoch.
+     * @return The hands, in the order they were written.
+     */
+    public List<Entry> query(int userID, int tableID, long from, long to) {
+        List<Entry> found = new ArrayList<>();
+        if(userID >= 0 || tableID >= 0) {
+            Collection<Long> candidates = userID >= 0 ? byUser.get(userID) : byTable.get(tableID);
+            for(long seq : candidates) {
+                Map.Entry<Long, Segment> segment = segments.floorEntry(seq);
+                if(segment == null) continue;
+                int i = (int)(seq - segment.getKey());
+                if(matches(segment.getValue(), i, tableID, from, to)) {
+                    found.add(entry(segment.getValue(), i));
+                }
+            }
+            return found;
+        }
+        for(Segment segment : segments.values()) {
+            /* Skip whole segments outside of the times */
+            if(segment.count == 0 || segment.maxTime < from || segment.minTime > to) continue;
+            for(int i = 0; i<segment.count; i++) {
+                if(matches(segment, i, tableID, from, to)) {
+                    found.add(entry(segment, i));
+                }
+            }
+        }
+        return found;
+    }
+
+    private static boolean matches(Segment segment, int i, int tableID, long from, long to) {
+        return (tableID < 0 || segment.tables[i] == tableID)
+                && segment.times[i] >= from && segment.times[i] <= to;
+    }
+
+    private static Entry entry(Segment segment, int i) {
+        return new Entry(segment.base + i, segment.base, segment.offsets[i],
+                segment.tables[i], segment.times[i]);
+    }
+
+    /**
+     * @return The number of hands in the index.
+     */
+    public long size() {
+        long size = 0;
+        for(Segment segment : segments.values()) {
+            size += segment.count;
+        }
+        return size;
+    }
+
+    /**
+     * Adds the entry for a record to the end of a buffer.
+     * @param offset Where the record starts in its segment.
+     * @param record The record.
+     * @param out The buffer, which must have room for the entry.
+     */
+    static void writeEntry(int offset, ByteBuffer record, ByteBuffer out) {
+        int start = out.position();
+        out.putInt(offset).putInt(record.getInt(HandRecord.TABLE_OFFSET))
+                .putLong(record.getLong(HandRecord.TIME_OFFSET)).put((byte)0);
+        /* The seats always come straight after the header */
+        int users = 0;
+        int pos = HandRecord.HEADER_SIZE;
+        while(pos < record.limit() && record.get(pos) == HandRecord.SEAT) {
+            int userID = record.getInt(pos + HandRecord.USER_OFFSET);
+            if(userID >= 0) {
+                out.putInt(userID);
+                users++;
+            }
+            pos += HandRecord.SEAT_SIZE;
+        }
+        out.put(start + ENTRY_SIZE - 1, (byte)users);
+    }
+
+    /**
+     * @return The most room an entry can take.
+     */
+    static int maxEntrySize(ByteBuffer record) {
+        return ENTRY_SIZE + Integer.BYTES * (record.limit() / HandRecord.SEAT_SIZE);
+    }
+
+    static Path indexPath(Path segment) {
+        String name = segment.getFileName().toString();
+        return segment.resolveSibling(name.substring(0, name.length() - HandHistoryWriter.SUFFIX.length()) + SUFFIX);
+    }
+
+    /**
+     * Writes the index file of a segment from the segment itself, replacing
+     * any there was.
+     * @param dir The directory the history was written to.
+     * @param base The number of the first record in the segment.
+     * @throws IOException If the segment couldn't be read, or the index
+     * couldn't be written.
+     */
+    static void rebuild(Path dir, long base) throws IOException {
+        HandHistoryReader reader = new HandHistoryReader(dir);
+        ByteBuffer segment = reader.segment(base);
+        segment.position(HandHistoryWriter.HEADER_SIZE);
+        ByteBuffer out = ByteBuffer.allocate(1 << 16);
+        Path index = indexPath(dir.resolve(HandHistoryWriter.segmentName(base)));
+        try(FileChannel channel = FileChannel.open(index, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            while(true) {
+                int offset = segment.position();
+                HandHistoryReader.Hand hand = reader.next(segment, 0);
+                if(hand == null) break;
+                ByteBuffer record = hand.record();
+                if(out.remaining() < maxEntrySize(record)) {
+                    out.flip();
+                    while(out.hasRemaining()) channel.write(out);
+                    out.clear();
+                }
+                writeEntry(offset, record, out);
+            }
+            out.flip();
+            while(out.hasRemaining()) channel.write(out);
+        }
+    }
+}
@@ -0,0 +1,304 @@
+/*
+ * Copyright (C) 2018 Em Poulter <em@poulter.space>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package space.poulter.poker.server;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.zip.CRC32;
+import space.poulter.poker.Card;
+import space.poulter.poker.GameConfig;
+import space.poulter.poker.Poker.PokerAction;
+
+/**
+ * Reads the hands written by a HandHistoryWriter. The segments are mapped
+ * into memory as they are needed, and nothing is copied out of them: each hand
+ * is a view of its record, and its events are only decoded when it is
+ * replayed. Hands can be read one after another, or picked out with a
+ * HandHistoryIndex.
+ * <p>
+ * A reader is not safe to share between threads.
+ *
+ * @author Em Poulter <em@poulter.space>
+ */
+public class HandHistoryReader implements Iterable<HandHistoryReader.Hand> {
+
+    /**
+     * Is told about each event of a hand as it is replayed, in the order they
+     * happened.
+     */
+    public interface Visitor {
+        default void seat(int seat, int userID, int chips) { }
+        default void hole(int seat, Card first, Card second) { }
+        /**
+         * @param kind HandRecord.ANTE, SMALL_BLIND or BIG_BLIND.
+         */
+        default void post(int seat, byte kind, int amount) { }
+        /**
+         * @param amount The chips put in by the action.
+         */
+        default void action(int seat, PokerAction action, int amount) { }
+        default void board(Card[] cards) { }
+        default void win(int seat, int amount) { }
+        default void end(int pot) { }
+    }
+
+    /**
+     * A single hand, read straight from its segment.
+     */
+    public static class Hand {
+        private final long seq;
+        private final ByteBuffer record;
+
+        Hand(long seq, ByteBuffer record) {
+            this.seq = seq;
+            this.record = record;
+        }
+
+        /**
+         * @return The number of the record in the log.
+         */
+        public long getSeq() {
+            return seq;
+        }
+        public int getTableID() {
+            return record.getInt(HandRecord.TABLE_OFFSET);
+        }
+        public long getHandNumber() {
+            return record.getLong(HandRecord.HAND_OFFSET);
+        }
+        /**
+         * @return When the hand started, in milliseconds since the epoch.
+         */
+        public long getTime() {
+            return record.getLong(HandRecord.TIME_OFFSET);
+        }
+        public int getSmallBlind() {
+            return record.getInt(HandRecord.SMALL_BLIND_OFFSET);
+        }
+        public int getBigBlind() {
+            return record.getInt(HandRecord.BIG_BLIND_OFFSET);
+        }
+        public int getAnte() {
+            return record.getInt(HandRecord.ANTE_OFFSET);
+        }
+        public GameConfig.Limit getLimit() {
+            return GameConfig.Limit.values()[record.get(HandRecord.LIMIT_OFFSET)];
+        }
+        public int getDealer() {
+            return record.get(HandRecord.DEALER_OFFSET);
+        }
+        public int getSmallBlindSeat() {
+            return record.get(HandRecord.SMALL_BLIND_SEAT_OFFSET);
+        }
+        public int getBigBlindSeat() {
+            return record.get(HandRecord.BIG_BLIND_SEAT_OFFSET);
+        }
+
+        /**
+         * @return The whole record of the hand.
+         */
+        ByteBuffer record() {
+            return record.duplicate();
+        }
+
+        /**
+         * Decodes the events of the hand, telling the visitor about each.
+         * @param visitor The visitor.
+         */
+        public void replay(Visitor visitor) {
+            ByteBuffer events = record.duplicate();
+            events.position(HandRecord.HEADER_SIZE);
+            while(events.hasRemaining()) {
+                switch(events.get()) {
+                    case HandRecord.SEAT:
+                        visitor.seat(events.get(), events.getInt(), events.getInt());
+                        break;
+                    case HandRecord.HOLE:
+                        visitor.hole(events.get(), HandRecord.decode(events.get()),
+                                HandRecord.decode(events.get()));
+                        break;
+                    case HandRecord.POST:
+                        visitor.post(events.get(), events.get(), events.getInt());
+                        break;
+                    case HandRecord.ACTION:
+                        visitor.action(events.get(), PokerAction.values()[events.get()], events.getInt());
+                        break;
+                    case HandRecord.BOARD:
+                        Card[] cards = new Card[events.get()];
+                        for(int i = 0; i<cards.length; i++) {
+                            cards[i] = HandRecord.decode(events.get());
+                        }
+                        visitor.board(cards);
+                        break;
+                    case HandRecord.WIN:
+                        visitor.win(events.get(), events.getInt());
+                        break;
+                    case HandRecord.END:
+                        visitor.end(events.getInt());
+                        return;
+                    default:
+                        System.err.println("Unknown event in hand "+seq);
+                        return;
+                }
+            }
+        }
+    }
+
+    private final Path dir;
+    private final Map<Long, ByteBuffer> segments;
+    private final CRC32 crc;
+
+    /**
+     * @param dir The directory the history was written to.
+     */
+    public HandHistoryReader(Path dir) {
+        this.dir = dir;
+        segments = new HashMap<>();
+        crc = new CRC32();
+    }
+
+    /**
+     * Maps a segment into memory, if it isn't already.
+     * @param base The number of the first record in the segment.
+     * @return The whole of the segment.
+     * @throws IOException If the segment couldn't be read.
+     */
+    ByteBuffer segment(long base) throws IOException {
+        ByteBuffer segment = segments.get(base);
+        if(segment != null) return segment.duplicate();
+        Path path = dir.resolve(HandHistoryWriter.segmentName(base));
+        /* The mapping stays valid once the channel is closed */
+        try(FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            segment = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        if(segment.getInt(0) != HandHistoryWriter.MAGIC
+                || segment.getInt(Integer.BYTES) != HandHistoryWriter.VERSION) {
+            throw new IOException(path+" is not a hand history segment");
+        }
+        segments.put(base, segment);
+        return segment.duplicate();
+    }
+
+    /**
+     * Reads the hand at a place in a segment.
+     * @param base The number of the first record in the segment.
+     * @param offset Where the record starts in the segment.
+     * @param seq The number of the record.
+     * @return The hand, or null if there isn't a whole record there.
+     * @throws IOException If the segment couldn't be read.
+     */
+    public Hand read(long base, int offset, long seq) throws IOException {
+        ByteBuffer segment = segment(base);
+        segment.position(offset);
+        return next(segment, seq);
+    }
+
+    /**
+     * Reads a hand found in an index.
+     * @param entry The entry for the hand.
+     * @return The hand, or null if it isn't there after all.
+     * @throws IOException If the segment couldn't be read.
+     */
+    public Hand read(HandHistoryIndex.Entry entry) throws IOException {
+        return read(entry.getSegment(), entry.getOffset(), entry.getSeq());
+    }
+
+    /**
+     * Reads the record at the position of a segment, and moves past it.
+     * @return The hand, or null at the end of the segment.
+     */
+    Hand next(ByteBuffer segment, long seq) {
+        if(segment.remaining() < HandHistoryWriter.FRAME_SIZE) return null;
+        int start = segment.position();
+        int length = segment.getInt();
+        int check = segment.getInt();
+        if(length <= 0 || length > segment.remaining()) {
+            segment.position(start);
+            return null;
+        }
+        ByteBuffer record = segment.slice();
+        record.limit(length);
+        crc.reset();
+        crc.update(record.duplicate());
+        if((int)crc.getValue() != check) {
+            segment.position(start);
+            return null;
+        }
+        segment.position(segment.position() + length);
+        return new Hand(seq, record);
+    }
+
+    /**
+     * Reads every hand in the log, in order, mapping each segment only when
+     * it is reached.
+     */
+    @Override
+    public Iterator<Hand> iterator() {
+        List<Path> paths;
+        try {
+            paths = HandHistoryWriter.segments(dir);
+        } catch(IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return new Iterator<Hand>() {
+            private final Iterator<Path> remaining = paths.iterator();
+            private ByteBuffer segment;
+            private long seq;
+            private Hand next;
+
+            @Override
+            public boolean hasNext() {
+                while(next == null) {
+                    if(segment != null) {
+                        next = HandHistoryReader.this.next(segment, seq);
+                        if(next != null) {
+                            seq++;
+                            break;
+                        }
+                    }
+                    if(!remaining.hasNext()) return false;
+                    try {
+                        seq = HandHistoryWriter.segmentBase(remaining.next());
+                        segment = segment(seq);
+                    } catch(IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                    segment.position(HandHistoryWriter.HEADER_SIZE);
+                }
+                return true;
+            }
+
+            @Override
+            public Hand next() {
+                if(!hasNext()) throw new NoSuchElementException();
+                Hand hand = next;
+                next = null;
+                return hand;
+            }
+        };
+    }
+}
@@ -0,0 +1,344 @@
+/*
+ * Copyright (C) 2018 Em Poulter <em@poulter.space>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package space.poulter.poker.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * Appends the records of finished hands (see HandRecord) to a log on disk.
+ * The tables hand their records over and carry on, and the writer copies them
+ * into the log on a loop of its own, so a slow disk never holds up a game.
+ * <p>
+ * The log is a directory of segments, each a file of a fixed size which is
+ * mapped into memory, so writing a record is just a copy. Once a segment is
+ * full, the next one is started. Each segment is named after the number of
+ * the first record in it, and starts with a header of
+ * MAGIC (int), VERSION (int) and the number of the first record (long).
+ * Each record is then its length (int), the CRC32 of the record (int) and the
+ * record itself. The rest of the segment is zeroes, so a length of 0 marks
+ * the end, as does a record which doesn't match its CRC, which is one that
+ * was torn by a crash. Next to each segment is its index (see
+ * HandHistoryIndex), which is written as the records are.
+ * <p>
+ * How often the segments are synced to disk is up to the SyncPolicy. They are
+ * always synced when a segment is finished and when the writer is closed.
+ *
+ * @author Em Poulter <em@poulter.space>
+ */
+public class HandHistoryWriter {
+
+    /**
+     * When to sync the log to disk.
+     */
+    public enum SyncPolicy {
+        /* After each group of records which arrive together */
+        BATCH,
+        /* Every SYNC_PERIOD milliseconds */
+        PERIODIC,
+        /* Only when a segment is finished, leaving the rest to the OS */
+        OS
+    }
+
+    static final int MAGIC = 0x4a504848;
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = Integer.BYTES + Integer.BYTES + Long.BYTES;
+    static final int FRAME_SIZE = Integer.BYTES + Integer.BYTES;
+    static final String SUFFIX = ".hh";
+
+    static final long DEFAULT_SEGMENT_SIZE = 64 << 20;
+    static final long SYNC_PERIOD = 1000;
+
+    private final Path dir;
+    private final long segmentSize;
+    private final SyncPolicy sync;
+    private final HashedWheelTimer timers;
+    private final EventLoop loop;
+
+    /* Only touched by the loop */
+    private FileChannel channel;
+    private MappedByteBuffer segment;
+    private FileChannel index;
+    private final ByteBuffer entries;
+    private final CRC32 crc;
+    /* The number of the next record to be written */
+    private long seq;
+    private boolean dirty;
+    private boolean syncQueued;
+    private boolean closed;
+
+    /**
+     * @param dir The directory to keep the segments in.
+     * @param segmentSize The size of each segment, in bytes.
+     * @param sync When to sync to disk.
+     * @param timers The timers to sync periodically with.
+     */
+    public HandHistoryWriter(Path dir, long segmentSize, SyncPolicy sync, HashedWheelTimer timers) {
+        if(segmentSize <= HEADER_SIZE + FRAME_SIZE || segmentSize > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Invalid segment size "+segmentSize);
+        }
+        this.dir = dir;
+        this.segmentSize = segmentSize;
+        this.sync = sync;
+        this.timers = timers;
+        loop = new EventLoop("Hand history");
+        crc = new CRC32();
+        entries = ByteBuffer.allocate(1 << 16);
+        seq = 0;
+        dirty = false;
+        syncQueued = false;
+        closed = false;
+    }
+
+    /**
+     * Opens the log, carrying on from the end of the last segment if there is
+     * one. Must be called before anything is appended.
+     * @throws IOException If the log couldn't be opened.
+     */
+    public void start() throws IOException {
+        Files.createDirectories(dir);
+        List<Path> segments = segments(dir);
+        if(segments.isEmpty()) {
+            open(0);
+        } else {
+            recover(segments.get(segments.size() - 1));
+        }
+        if(sync == SyncPolicy.PERIODIC) {
+            timers.newTimeout(() -> loop.execute(this::tick), SYNC_PERIOD, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Adds a record to the end of the log. Returns straight away.
+     * @param record The record, which mustn't be changed afterwards.
+     */
+    public void append(byte[] record) {
+        if(record == null) return;
+        loop.execute(() -> write(record));
+    }
+
+    private void write(byte[] record) {
+        if(closed) return;
+        if(FRAME_SIZE + record.length > segmentSize - HEADER_SIZE) {
+            System.err.println("Hand record of "+record.length+" bytes is too big for a segment, so was lost");
+            return;
+        }
+        try {
+            if(segment.remaining() < FRAME_SIZE + record.length) {
+                roll();
+            }
+        } catch(IOException e) {
+            System.err.println("Exception when starting a new hand history segment, a hand was lost");
+            System.err.println(e);
+            return;
+        }
+        crc.reset();
+        crc.update(record);
+        /* The length goes in last, so a reader never sees half a record */
+        int start = segment.position();
+        segment.position(start + Integer.BYTES);
+        segment.putInt((int)crc.getValue()).put(record);
+        segment.putInt(start, record.length);
+        seq++;
+        
+        ByteBuffer written = ByteBuffer.wrap(record);
+        if(entries.remaining() < HandHistoryIndex.maxEntrySize(written)) {
+            writeIndex();
+        }
+        HandHistoryIndex.writeEntry(start, written, entries);
+        dirty = true;
+
+        if(sync == SyncPolicy.BATCH && !syncQueued) {
+            syncQueued = true;
+            loop.execute(this::sync);
+        }
+    }
+
+    private void sync() {
+        syncQueued = false;
+        if(!dirty) return;
+        writeIndex();
+        segment.force();
+        dirty = false;
+    }
+    
+    /**
+     * Writes out the index entries of the records so far. The index can 
+     * always be built again from the segment, so it is never synced.
+     */
+    private void writeIndex() {
+        entries.flip();
+        try {
+            while(entries.hasRemaining()) index.write(entries);
+        } catch(IOException e) {
+            System.err.println("Exception when writing the hand history index");
+            System.err.println(e);
+        }
+        entries.clear();
+    }
+
+    private void tick() {
+        if(closed) return;
+        sync();
+        timers.newTimeout(() -> loop.execute(this::tick), SYNC_PERIOD, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Finishes the current segment, and starts the next one.
+     */
+    private void roll() throws IOException {
+        sync();
+        channel.close();
+        index.close();
+        open(seq);
+    }
+
+    private void open(long base) throws IOException {
+        /* The index comes first, so a segment without one was never written
+         * to by this.
+         */
+        index = FileChannel.open(HandHistoryIndex.indexPath(dir.resolve(segmentName(base))),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        channel = FileChannel.open(dir.resolve(segmentName(base)), StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        segment = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+        segment.putInt(MAGIC).putInt(VERSION).putLong(base);
+        segment.force();
+    }
+
+    /**
+     * Opens the last segment, and finds the end of the last whole record.
+     */
+    private void recover(Path path) throws IOException {
+        channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        long size = Math.max(channel.size(), segmentSize);
+        segment = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        if(segment.getInt() != MAGIC || segment.getInt() != VERSION) {
+            throw new IOException(path+" is not a hand history segment");
+        }
+        long base = segment.getLong();
+        long count = 0;
+        boolean torn = false;
+        while(segment.remaining() >= FRAME_SIZE) {
+            int start = segment.position();
+            int length = segment.getInt();
+            int check = segment.getInt();
+            if(length <= 0 || length > segment.remaining()) {
+                segment.position(start);
+                torn = length != 0;
+                break;
+            }
+            byte[] record = new byte[length];
+            segment.get(record);
+            crc.reset();
+            crc.update(record);
+            if((int)crc.getValue() != check) {
+                segment.position(start);
+                torn = true;
+                break;
+            }
+            count++;
+        }
+        seq = base + count;
+        if(torn) {
+            /* Torn by a crash, so everything from there on is written over.
+             * Records after it would otherwise be read again once a record
+             * of the same length was written in its place.
+             */
+            for(int i = segment.position(); i<segment.limit(); i++) {
+                segment.put(i, (byte)0);
+            }
+            segment.force();
+        }
+        
+        /* The end of the index may not have been written before the crash */
+        HandHistoryIndex.rebuild(dir, base);
+        index = FileChannel.open(HandHistoryIndex.indexPath(path), StandardOpenOption.WRITE);
+        index.position(index.size());
+        if(count > 0) {
+            System.out.println("Carrying on the hand history from record "+seq);
+        }
+    }
+
+    /**
+     * Syncs anything not yet on disk, and stops. Waits for that to finish.
+     */
+    public void close() {
+        CountDownLatch done = new CountDownLatch(1);
+        loop.execute(() -> {
+            closed = true;
+            try {
+                if(segment != null) sync();
+                if(channel != null) channel.close();
+                if(index != null) index.close();
+            } catch(IOException e) {
+                System.err.println("Exception when closing the hand history");
+                System.err.println(e);
+            }
+            done.countDown();
+        });
+        try {
+            done.await();
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        loop.shutdown();
+    }
+
+    static String segmentName(long base) {
+        return String.format("%020d%s", base, SUFFIX);
+    }
+
+    /**
+     * @param segment The path of a segment.
+     * @return The number of the first record in the segment.
+     */
+    static long segmentBase(Path segment) {
+        String name = segment.getFileName().toString();
+        return Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+    }
+
+    /**
+     * @param dir A directory of segments.
+     * @return The segments in the directory, in order.
+     * @throws IOException If the directory couldn't be read.
+     */
+    static List<Path> segments(Path dir) throws IOException {
+        if(!Files.isDirectory(dir)) return new ArrayList<>();
+        try(Stream<Path> files = Files.list(dir)) {
+            List<Path> segments = files.filter((p) -> p.getFileName().toString().endsWith(SUFFIX))
+                    .collect(Collectors.toList());
+            /* The names are zero padded, so sort in numerical order */
+            Collections.sort(segments);
+            return segments;
+        }
+    }
+}
@@ -0,0 +1,199 @@
+/*
+ * Copyright (C) 2018 Em Poulter <em@poulter.space>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package space.poulter.poker.server;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import space.poulter.poker.Card;
+import space.poulter.poker.GameConfig;
+import space.poulter.poker.Poker.PokerAction;
+
+/**
+ * Builds the binary record of a single hand, as it is played. Each table has
+ * one of these, which it reuses for every hand.
+ * <p>
+ * A record starts with a fixed header:
+ * version (byte), table ID (int), hand number (long), start time (long),
+ * small blind, big blind and ante (ints), limit (byte), and the seats of the
+ * dealer, small blind and big blind (bytes).
+ * It is followed by events, each a tag byte and then
+ * <ul>
+ * <li>SEAT: seat (byte), user ID (int), chips at the start (int)</li>
+ * <li>HOLE: seat (byte), two cards</li>
+ * <li>POST: seat (byte), ANTE, SMALL_BLIND or BIG_BLIND (byte), amount (int)</li>
+ * <li>ACTION: seat (byte), action (byte), chips put in (int)</li>
+ * <li>BOARD: number of cards (byte), the cards</li>
+ * <li>WIN: seat (byte), amount (int)</li>
+ * <li>END: the final pot (int), which is always the last event</li>
+ * </ul>
+ * Each card is a single byte, the value times four plus the suit, with 0 for
+ * no card.
+ *
+ * @author Em Poulter <em@poulter.space>
+ */
+class HandRecord {
+
+    static final byte VERSION = 1;
+
+    /* Where each field of the header is, from the start of the record */
+    static final int TABLE_OFFSET = 1;
+    static final int HAND_OFFSET = 5;
+    static final int TIME_OFFSET = 13;
+    static final int SMALL_BLIND_OFFSET = 21;
+    static final int BIG_BLIND_OFFSET = 25;
+    static final int ANTE_OFFSET = 29;
+    static final int LIMIT_OFFSET = 33;
+    static final int DEALER_OFFSET = 34;
+    static final int SMALL_BLIND_SEAT_OFFSET = 35;
+    static final int BIG_BLIND_SEAT_OFFSET = 36;
+    static final int HEADER_SIZE = 37;
+
+    /* The size of each event, including its tag. A BOARD event also has a
+     * byte for each card.
+     */
+    static final int SEAT_SIZE = 10;
+    static final int HOLE_SIZE = 4;
+    static final int POST_SIZE = 7;
+    static final int ACTION_SIZE = 7;
+    static final int BOARD_SIZE = 2;
+    static final int WIN_SIZE = 6;
+    static final int END_SIZE = 5;
+
+    /* Where the fields of the events are, from their tag. Every event but 
+     * BOARD and END starts with the seat, and BOARD with the number of cards.
+     */
+    static final int SEAT_OFFSET = 1;
+    static final int COUNT_OFFSET = 1;
+    static final int USER_OFFSET = 2;
+    static final int KIND_OFFSET = 2;
+    static final int POST_AMOUNT_OFFSET = 3;
+    static final int ACTION_AMOUNT_OFFSET = 3;
+    static final int WIN_AMOUNT_OFFSET = 2;
+    static final int POT_OFFSET = 1;
+
+    static final byte SEAT = 1;
+    static final byte HOLE = 2;
+    static final byte POST = 3;
+    static final byte ACTION = 4;
+    static final byte BOARD = 5;
+    static final byte WIN = 6;
+    static final byte END = 7;
+
+    static final byte ANTE = 0;
+    static final byte SMALL_BLIND = 1;
+    static final byte BIG_BLIND = 2;
+
+    private static final char[] SUITS = {'S', 'H', 'C', 'D'};
+
+    private ByteBuffer buffer;
+    /* Events are ignored until a hand has begun */
+    private boolean active;
+
+    HandRecord() {
+        buffer = ByteBuffer.allocate(256);
+        active = false;
+    }
+
+    /**
+     * Starts the record of a new hand, throwing away anything left over from
+     * one which never finished.
+     */
+    void begin(int tableID, long handNumber, long time, GameConfig config,
+            int dealer, int smallBlind, int bigBlind) {
+        buffer.clear();
+        active = true;
+        ensure(HEADER_SIZE);
+        buffer.put(VERSION).putInt(tableID).putLong(handNumber).putLong(time)
+                .putInt(config.getSmallBlind()).putInt(config.getBigBlind())
+                .putInt(config.getAnte()).put((byte)config.getLimit().ordinal())
+                .put((byte)dealer).put((byte)smallBlind).put((byte)bigBlind);
+    }
+
+    void seat(int seat, int userID, int chips) {
+        if(!active) return;
+        ensure(SEAT_SIZE);
+        buffer.put(SEAT).put((byte)seat).putInt(userID).putInt(chips);
+    }
+
+    void hole(int seat, Card first, Card second) {
+        if(!active) return;
+        ensure(HOLE_SIZE);
+        buffer.put(HOLE).put((byte)seat).put(encode(first)).put(encode(second));
+    }
+
+    void post(int seat, byte kind, int amount) {
+        if(!active || amount == 0) return;
+        ensure(POST_SIZE);
+        buffer.put(POST).put((byte)seat).put(kind).putInt(amount);
+    }
+
+    void action(int seat, PokerAction action, int amount) {
+        if(!active) return;
+        ensure(ACTION_SIZE);
+        buffer.put(ACTION).put((byte)seat).put((byte)action.ordinal()).putInt(amount);
+    }
+
+    void board(Card... cards) {
+        if(!active) return;
+        ensure(BOARD_SIZE + cards.length);
+        buffer.put(BOARD).put((byte)cards.length);
+        for(Card card : cards) {
+            buffer.put(encode(card));
+        }
+    }
+
+    void win(int seat, int amount) {
+        if(!active) return;
+        ensure(WIN_SIZE);
+        buffer.put(WIN).put((byte)seat).putInt(amount);
+    }
+
+    /**
+     * Finishes the record of the hand.
+     * @param pot The final size of the pot.
+     * @return The whole record, or null if no hand had begun.
+     */
+    byte[] end(int pot) {
+        if(!active) return null;
+        ensure(END_SIZE);
+        buffer.put(END).putInt(pot);
+        active = false;
+        return Arrays.copyOf(buffer.array(), buffer.position());
+    }
+
+    private void ensure(int bytes) {
+        if(buffer.remaining() >= bytes) return;
+        ByteBuffer bigger = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + bytes));
+        buffer.flip();
+        bigger.put(buffer);
+        buffer = bigger;
+    }
+
+    static byte encode(Card card) {
+        if(card == null || card.getValue() == 0) return 0;
+        for(int i = 0; i<SUITS.length; i++) {
+            if(SUITS[i] == card.getSuit()) return (byte)(card.getValue() * 4 + i);
+        }
+        return 0;
+    }
+
+    static Card decode(byte b) {
+        if(b == 0) return Card.EMPTY_CARD;
+        return new Card(b / 4, SUITS[b % 4]);
+    }
+}
@@ -0,0 +1,242 @@
+/*
+ * Copyright (C) 2018 Em Poulter <em@poulter.space>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package space.poulter.poker.server;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A timer for the deadlines of all of the tables on the server. Timeouts are
+ * kept in a wheel of buckets, one for each tick, and a single thread moves
+ * round the wheel running whatever has expired. Adding or cancelling a timeout
+ * doesn't depend on how many others there are, so the cost of the timer stays
+ * the same however many tables are running.
+ * <p>
+ * Timeouts are only accurate to within a tick, and the tasks are run on the
+ * timer thread, so should do no more than hand off an event to a table.
+ *
+ * @author Em Poulter <em@poulter.space>
+ */
+public class HashedWheelTimer {
+
+    private static final int NEW = 0;
+    private static final int CANCELLED = 1;
+    private static final int EXPIRED = 2;
+
+    /**
+     * A task waiting in the wheel. Each bucket is a doubly linked list of
+     * these, so they can be taken out in constant time when cancelled.
+     */
+    public class Timeout {
+        private final Runnable task;
+        private final long deadline;
+        private final AtomicInteger state;
+        /* The number of times round the wheel before the timeout expires */
+        private long rounds;
+        private Bucket bucket;
+        private Timeout next, prev;
+
+        private Timeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+            state = new AtomicInteger(NEW);
+        }
+
+        /**
+         * @return The time the timeout is due to expire, as given by
+         * System.currentTimeMillis().
+         */
+        public long getDeadline() {
+            return deadline;
+        }
+
+        /**
+         * @return The time until the timeout expires, in milliseconds.
+         */
+        public long getRemaining() {
+            return Math.max(0, deadline - System.currentTimeMillis());
+        }
+
+        /**
+         * Stops the task from being run, if it hasn't been already.
+         * @return true if the timeout was cancelled, false if it had already
+         * expired or been cancelled.
+         */
+        public boolean cancel() {
+            if(!state.compareAndSet(NEW, CANCELLED)) return false;
+            /* Only the timer thread touches the buckets, so leave it to take
+             * the timeout out of the wheel.
+             */
+            cancelled.add(this);
+            return true;
+        }
+
+        public boolean isCancelled() {
+            return state.get() == CANCELLED;
+        }
+    }
+
+    private static class Bucket {
+        private Timeout head, tail;
+
+        void add(Timeout timeout) {
+            timeout.bucket = this;
+            if(head == null) {
+                head = tail = timeout;
+            } else {
+                tail.next = timeout;
+                timeout.prev = tail;
+                tail = timeout;
+            }
+        }
+
+        void remove(Timeout timeout) {
+            if(timeout.prev != null) timeout.prev.next = timeout.next;
+            else head = timeout.next;
+            if(timeout.next != null) timeout.next.prev = timeout.prev;
+            else tail = timeout.prev;
+            timeout.next = timeout.prev = null;
+            timeout.bucket = null;
+        }
+    }
+
+    private final long tickMillis;
+    private final Bucket[] wheel;
+    private final int mask;
+    /* Timeouts are handed to the timer thread through these, so that adding
+     * and cancelling never have to wait for it.
+     */
+    private final Queue<Timeout> pending;
+    private final Queue<Timeout> cancelled;
+    private final Thread worker;
+    private final long startTime;
+    private long tick;
+    private volatile boolean running;
+
+    /**
+     * Creates and starts a timer.
+     * @param tickMillis The length of a tick, which is the accuracy of the
+     * timer, in milliseconds.
+     * @param ticksPerWheel The number of buckets in the wheel, which is rounded
+     * up to a power of 2.
+     */
+    public HashedWheelTimer(long tickMillis, int ticksPerWheel) {
+        if(tickMillis <= 0 || ticksPerWheel <= 0) {
+            throw new IllegalArgumentException("Timer tick and wheel size must be positive");
+        }
+        int size = 1;
+        while(size < ticksPerWheel) size <<= 1;
+
+        this.tickMillis = tickMillis;
+        wheel = new Bucket[size];
+        for(int i = 0; i<size; i++) wheel[i] = new Bucket();
+        mask = size-1;
+        pending = new ConcurrentLinkedQueue<>();
+        cancelled = new ConcurrentLinkedQueue<>();
+        tick = 0;
+        running = true;
+        startTime = System.currentTimeMillis();
+
+        worker = new Thread(this::run, "Timer wheel");
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    /**
+     * Schedules a task to be run once after a delay.
+     * @param task The task to run. It is run on the timer thread.
+     * @param delay The delay before running the task.
+     * @param unit The unit of the delay.
+     * @return A handle which can be used to cancel the task.
+     */
+    public Timeout newTimeout(Runnable task, long delay, TimeUnit unit) {
+        Timeout timeout = new Timeout(task,
+                System.currentTimeMillis() + unit.toMillis(Math.max(0, delay)));
+        pending.add(timeout);
+        return timeout;
+    }
+
+    /**
+     * Stops the timer. Any timeouts which haven't expired are never run.
+     */
+    public void stop() {
+        running = false;
+        worker.interrupt();
+    }
+
+    private void run() {
+        while(running) {
+            long wake = startTime + (tick+1)*tickMillis;
+            long sleep = wake - System.currentTimeMillis();
+            if(sleep > 0) {
+                try {
+                    Thread.sleep(sleep);
+                } catch(InterruptedException e) {
+                    /* Only happens if we have been stopped */
+                    continue;
+                }
+            }
+
+            removeCancelled();
+            addPending();
+            expire(wheel[(int)(tick & mask)]);
+            tick++;
+        }
+    }
+
+    private void addPending() {
+        Timeout timeout;
+        while((timeout = pending.poll()) != null) {
+            if(timeout.state.get() != NEW) continue;
+            /* The tick the timeout is due on, but never one we have passed */
+            long due = Math.max(tick, (timeout.deadline - startTime) / tickMillis);
+            timeout.rounds = (due - tick) / wheel.length;
+            wheel[(int)(due & mask)].add(timeout);
+        }
+    }
+
+    private void removeCancelled() {
+        Timeout timeout;
+        while((timeout = cancelled.poll()) != null) {
+            if(timeout.bucket != null) timeout.bucket.remove(timeout);
+        }
+    }
+
+    private void expire(Bucket bucket) {
+        Timeout timeout = bucket.head;
+        while(timeout != null) {
+            Timeout next = timeout.next;
+            if(timeout.rounds <= 0) {
+                bucket.remove(timeout);
+                if(timeout.state.compareAndSet(NEW, EXPIRED)) {
+                    try {
+                        timeout.task.run();
+                    } catch(RuntimeException e) {
+                        System.err.println("Exception occured when running a timeout");
+                        e.printStackTrace();
+                    }
+                }
+            } else {
+                timeout.rounds--;
+            }
+            timeout = next;
+        }
+    }
+}
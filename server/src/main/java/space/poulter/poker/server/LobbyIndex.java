@@ -0,0 +1,262 @@
+/*
+ * Copyright (C) 2018 Em Poulter <em@poulter.space>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package space.poulter.poker.server;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import space.poulter.poker.ClientSocket;
+import space.poulter.poker.Command;
+import space.poulter.poker.TableSummary;
+
+/**
+ * The server side index of all of the tables, as shown in the lobby. Clients
+ * can query it a page at a time, and subscribe to be told whenever the summary
+ * of a table changes.
+ * <p>
+ * The summaries are kept in an immutable array sorted by table ID, which is 
+ * replaced as a whole whenever a table changes. Queries only ever read the 
+ * current array, so they never wait for, or hold up, the game threads which 
+ * update it.
+ * <p>
+ * The game threads don't tell the subscribers themselves. They only mark the
+ * table as changed, and a thread of the index's own sends the current summary
+ * of each changed table to each subscriber, all in one go. A table which 
+ * changes several times before that is only sent once.
+ *
+ * @author Em Poulter <em@poulter.space>
+ */
+public class LobbyIndex {
+
+    public static final int DEFAULT_PAGE_SIZE = 50;
+    public static final int MAX_PAGE_SIZE = 200;
+
+    /**
+     * The parameters of a lobby query. The command has the form
+     * "Get Tables:page:$page:size:$size:hands:$hands:free:$free:blind:$big",
+     * where all of the key value pairs are optional.
+     */
+    public static class Query {
+        int page = 0;
+        int size = DEFAULT_PAGE_SIZE;
+        int maxHands = -1;
+        int minFree = 0;
+        int bigBlind = -1;
+
+        static Query parse(Command command) throws NumberFormatException {
+            Query q = new Query();
+            for(int i = 1; i+1<command.size(); i+=2) {
+                int value = command.parseInt(i+1);
+                if(command.is(i, "page")) q.page = Math.max(0, value);
+                else if(command.is(i, "size")) q.size = Math.max(1, Math.min(MAX_PAGE_SIZE, value));
+                else if(command.is(i, "hands")) q.maxHands = value;
+                else if(command.is(i, "free")) q.minFree = value;
+                else if(command.is(i, "blind")) q.bigBlind = value;
+                else System.err.println("Unrecognised lobby filter "+command.get(i));
+            }
+            return q;
+        }
+
+        boolean matches(TableSummary summary) {
+            return (maxHands == -1 || summary.getMaxHands() == maxHands)
+                    && summary.getFreeSeats() >= minFree
+                    && (bigBlind == -1 || summary.getBigBlind() == bigBlind);
+        }
+    }
+
+    private final AtomicReference<TableSummary[]> summaries;
+    private final Set<ClientSocket> subscribers;
+    /* The tables changed since the subscribers were last told, and whether
+     * the notifier has been asked to tell them.
+     */
+    private final Set<Integer> changed;
+    private final AtomicBoolean notifying;
+    private final EventLoop notifier;
+
+    public LobbyIndex() {
+        summaries = new AtomicReference<>(new TableSummary[0]);
+        subscribers = new CopyOnWriteArraySet<>();
+        changed = ConcurrentHashMap.newKeySet();
+        notifying = new AtomicBoolean(false);
+        notifier = new EventLoop("Lobby notifier");
+    }
+
+    /**
+     * Binary searches the summaries for a table.
+     * @return The index of the table, or (-(insertion point) - 1) if it isn't 
+     * there, as in Arrays.binarySearch.
+     */
+    private static int indexOf(TableSummary[] current, int tableID) {
+        int low = 0, high = current.length-1;
+        while(low <= high) {
+            int mid = (low + high) >>> 1;
+            int midID = current[mid].getTableID();
+            if(midID < tableID) low = mid+1;
+            else if(midID > tableID) high = mid-1;
+            else return mid;
+        }
+        return -(low+1);
+    }
+
+    /**
+     * Sets the summary of a table, and has the notifier tell all of the 
+     * subscribers about it.
+     * @param summary The new summary of the table.
+     */
+    public void update(TableSummary summary) {
+        TableSummary[] current, next;
+        do {
+            current = summaries.get();
+            int i = indexOf(current, summary.getTableID());
+            if(i >= 0) {
+                next = current.clone();
+                next[i] = summary;
+            } else {
+                i = -(i+1);
+                next = new TableSummary[current.length+1];
+                System.arraycopy(current, 0, next, 0, i);
+                next[i] = summary;
+                System.arraycopy(current, i, next, i+1, current.length-i);
+            }
+        } while(!summaries.compareAndSet(current, next));
+        
+        changed(summary.getTableID());
+    }
+
+    /**
+     * Removes a table, and has the notifier tell all of the subscribers with
+     * the command "Lobby:remove:$id".
+     * @param tableID The ID of the table which has gone.
+     */
+    public void remove(int tableID) {
+        TableSummary[] current, next;
+        do {
+            current = summaries.get();
+            int i = indexOf(current, tableID);
+            if(i < 0) return;
+            next = new TableSummary[current.length-1];
+            System.arraycopy(current, 0, next, 0, i);
+            System.arraycopy(current, i+1, next, i, current.length-i-1);
+        } while(!summaries.compareAndSet(current, next));
+        
+        changed(tableID);
+    }
+    
+    /**
+     * Marks a table as changed, and makes sure the notifier will tell the
+     * subscribers about it.
+     */
+    private void changed(int tableID) {
+        changed.add(tableID);
+        if(notifying.compareAndSet(false, true)) {
+            notifier.execute(this::notifySubscribers);
+        }
+    }
+    
+    /**
+     * Sends every subscriber "Lobby:table" followed by the summary for each
+     * changed table, or "Lobby:remove:$id" for each which has gone. Only run
+     * by the notifier.
+     */
+    private void notifySubscribers() {
+        /* Anything changed from now on needs another go */
+        notifying.set(false);
+        TableSummary[] current = summaries.get();
+        List<Object> messages = new ArrayList<>();
+        for(Iterator<Integer> it = changed.iterator(); it.hasNext(); ) {
+            int tableID = it.next();
+            it.remove();
+            int i = indexOf(current, tableID);
+            if(i >= 0) {
+                messages.add("Lobby:table");
+                messages.add(current[i]);
+            } else {
+                messages.add("Lobby:remove:"+tableID);
+            }
+        }
+        if(messages.isEmpty()) return;
+        
+        Object[] all = messages.toArray();
+        for(ClientSocket socket : subscribers) {
+            try {
+                socket.write(all);
+            } catch(IOException e) {
+                System.err.println("Exception occured when sending lobby update");
+                System.err.println(e);
+                unsubscribe(socket);
+            }
+        }
+    }
+    
+    /**
+     * @return The summaries of all of the tables, sorted by table ID.
+     */
+    public List<TableSummary> snapshot() {
+        return Arrays.asList(summaries.get());
+    }
+
+    public void subscribe(ClientSocket socket) {
+        subscribers.add(socket);
+    }
+    public void unsubscribe(ClientSocket socket) {
+        subscribers.remove(socket);
+    }
+
+    /**
+     * Sends a single page of the tables matching the query. The reply is the
+     * command "Table Page:$page:$pages", followed by a list of the summaries.
+     * @param command The query command from the client.
+     * @param socket The socket to send the page to.
+     */
+    public void sendPage(Command command, ClientSocket socket) {
+        Query q;
+        try {
+            q = Query.parse(command);
+        } catch(NumberFormatException e) {
+            System.err.println("Invalid lobby query: "+command);
+            q = new Query();
+        }
+
+        ArrayList<TableSummary> page = new ArrayList<>(q.size);
+        int matched = 0;
+        /* In a long, as a large page would overflow */
+        long first = (long)q.page * q.size;
+        for(TableSummary summary : summaries.get()) {
+            if(!q.matches(summary)) continue;
+            if(matched >= first && matched < first + q.size) {
+                page.add(summary);
+            }
+            matched++;
+        }
+        int pages = Math.max(1, (matched + q.size - 1) / q.size);
+
+        try {
+            socket.write("Table Page:"+q.page+":"+pages, page);
+        } catch(IOException e) {
+            System.err.println("Exception occured when sending table list");
+            System.err.println(e);
+        }
+    }
+}
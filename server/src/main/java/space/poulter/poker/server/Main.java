@@ -1,7 +1,15 @@
 package space.poulter.poker.server;
 
+import java.util.Arrays;
+
 public class Main {
     public static void main(String[] args) {
+        /* The same jar runs either a server, or the gateway to a cluster */
+        if(Arrays.asList(args).contains("-gateway")) {
+            Gateway gateway = new Gateway(args);
+            gateway.start();
+            return;
+        }
         PokerServer server = new PokerServer(args);
         server.start();
     }
@@ -0,0 +1,94 @@
+/*
+ * Copyright (C) 2018 Em Poulter <em@poulter.space>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package space.poulter.poker.server;
+
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+/**
+ * An unbounded queue which any number of threads may add to, but which only
+ * one thread may take from. Adding is a single atomic swap, and taking needs
+ * no atomic operations at all, so neither side ever blocks the other.
+ * <p>
+ * The queue is a linked list with a dummy node at the head. Producers swap
+ * themselves in as the tail, and then link the old tail to them, so for a
+ * moment after the swap the new node can't yet be reached from the head.
+ *
+ * @author Em Poulter <em@poulter.space>
+ * @param <E> The type of the elements in the queue.
+ */
+public class MpscQueue<E> {
+
+    private static final class Node<E> {
+        E value;
+        volatile Node<E> next;
+
+        Node(E value) {
+            this.value = value;
+        }
+    }
+
+    @SuppressWarnings("rawtypes")
+    private static final AtomicReferenceFieldUpdater<Node, Node> NEXT =
+            AtomicReferenceFieldUpdater.newUpdater(Node.class, Node.class, "next");
+
+    private final AtomicReference<Node<E>> tail;
+    /* Only ever touched by the consumer */
+    private Node<E> head;
+
+    public MpscQueue() {
+        head = new Node<>(null);
+        tail = new AtomicReference<>(head);
+    }
+
+    /**
+     * Adds an element to the end of the queue. Safe to call from any thread.
+     * @param e The element to add, which must not be null.
+     */
+    public void offer(E e) {
+        if(e == null) throw new NullPointerException("Can't add null to the queue");
+        Node<E> node = new Node<>(e);
+        Node<E> prev = tail.getAndSet(node);
+        NEXT.lazySet(prev, node);
+    }
+
+    /**
+     * Takes the element at the front of the queue. Must only be called by the
+     * consumer thread.
+     * @return The element, or null if there is nothing which can be taken
+     * yet. An element which is still being added may return null, even though
+     * isEmpty() returns false.
+     */
+    public E poll() {
+        Node<E> next = head.next;
+        if(next == null) return null;
+        E value = next.value;
+        /* The old head is dropped, and the new one becomes the dummy */
+        next.value = null;
+        head = next;
+        return value;
+    }
+
+    /**
+     * @return true if nothing has been added which hasn't been taken. Must
+     * only be called by the consumer thread.
+     */
+    public boolean isEmpty() {
+        return tail.get() == head;
+    }
+}
@@ -17,25 +17,24 @@
 
 package space.poulter.poker.server;
 
-import at.favre.lib.crypto.bcrypt.BCrypt;
-import com.google.common.collect.BiMap;
-import com.google.common.collect.HashBiMap;
 import java.io.IOException;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.sql.Connection;
-import java.sql.DriverManager;
-import java.sql.PreparedStatement;
-import java.sql.ResultSet;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
 import java.sql.SQLException;
 import java.util.Arrays;
-import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.IntPredicate;
 import space.poulter.poker.ClientSocket;
-import space.poulter.poker.PokerTableData;
+import space.poulter.poker.Command;
+import space.poulter.poker.CommandDispatcher;
+import space.poulter.poker.HandRankingCache;
 
 /**
  *
@@ -43,219 +42,441 @@ import space.poulter.poker.PokerTableData;
  */
 public class PokerServer extends Thread {
     
-    private final String DB_USERNAME = "poker";
-    private final String DB_PASSWORD = "***OOPS***";
-    private final String DB_NAME = "poker";
-    private final boolean USING_DB = false;
+    /* Shared with the gateway, which checks the same users */
+    static final String DB_USERNAME = "poker";
+    static final String DB_PASSWORD = "***OOPS***";
+    static final String DB_NAME = "poker";
+    static final String DEFAULT_DB_URL = "jdbc:mysql://localhost:3306/"+DB_NAME+"?useSSL=no";
+    static final int DEFAULT_DB_POOL_SIZE = 10;
+    private static final String DEFAULT_JOURNAL = "balances.journal";
+    private static final String DEFAULT_SNAPSHOT = "tables.snapshot";
+    
+    /* The timer wheel covers about 20 seconds per turn, in 20ms ticks */
+    private static final long TIMER_TICK = 20;
+    private static final int TIMER_WHEEL_SIZE = 1024;
+    
+    private static final int DEFAULT_MAX_TABLES = 1000;
+    private static final int LEADERBOARD_SIZE = 10;
     
     Integer port;
     Integer numTables;
     
-    Map<Integer, PokerTable> tables;
+    Integer maxTables;
+    
+    TableManager tables;
+    Integer tournamentSize;
+    /* The database of users is only used if it is asked for */
+    boolean usingDB;
+    String dbURL;
+    Integer dbPoolSize;
+    UserStore users;
+    AuthService authService;
+    SessionStore sessions;
+    BalanceStore balances;
+    /* The journal of balance changes which are yet to reach the database */
+    String journalFile;
+    /* The directory to write the history of every hand to, if any */
+    String historyDir;
+    HandHistoryWriter.SyncPolicy historySync;
+    HandHistoryWriter history;
+    /* How many rankings of hands to remember, if any */
+    Integer rankCacheSize;
+    HandRankingCache rankings;
+    /* The file to keep snapshots of the tables in, if any, and whether to
+     * start from the last one.
+     */
+    String snapshotFile;
+    boolean restoring;
+    TableSnapshotter snapshotter;
+    /* A file of the kinds of table to keep open, or null for the defaults */
+    String stakesFile;
+    /* When running as one node of a cluster, all of the nodes, and which of
+     * them this is. Otherwise the cluster is null.
+     */
+    ConsistentHashRing cluster;
+    Integer nodeIndex;
+    /* Shared with the gateway, which must give it to link to this node */
+    String secret;
+    Map<Integer, Tournament> tournaments;
+    LobbyIndex lobby;
+    /* The tables are shared out between the loops, which run their events */
+    EventLoop[] loops;
+    HashedWheelTimer timers;
     //List<ClientSocket> sockets;
-    BiMap<Integer, ClientSocket> sockets;
+    ConnectionRegistry sockets;
     ServerSocket serverSocket;
     
     public class ServerSideSocket extends ClientSocket {
         
+        /* If this is the link from a gateway, the clients of the gateway
+         * which are using this node, by the number the gateway gave them.
+         * Otherwise null.
+         */
+        private Map<Integer, RelayedSocket> relayed;
+        
         public ServerSideSocket(Socket s) throws IOException {
             super(s);
         }
         
+        /* For a client carried over the link from a gateway */
+        ServerSideSocket() {
+            super();
+        }
+        
         @Override
         public void processCommand(String str) {
+            Command command = new Command(str);
+            if(relayed != null) {
+                relay(command);
+                return;
+            }
+            ServerCommand handler = SERVER_COMMANDS.get(command, 0);
+            if(handler == null) {
+                System.err.println("Unrecognised command: "+str);
+                return;
+            }
+            try {
+                handler.run(this, command);
+            } catch(NumberFormatException ex) {
+                System.err.println("Invalid command: "+str);
+                System.err.println(ex);
+            }
+        }
+        
+        private void auth(Command command) {
             
-            if(str.startsWith("auth:")) {
-                
-                if(!USING_DB) {
-                    try {
-                        write("auth:done");
-                        if(!sockets.containsValue(this)) {
-                            sockets.put(sockets.size(), this);
-                        }
-                    } catch(IOException ex) {
-                        System.err.println("Could not send command");
-                        System.err.println(ex);
-                    }
-                    return;
-                }
-                
-                //<editor-fold defaultstate="collapsed" desc="authorise user, if using db">
-                
+            /* The client can ask for large messages to be compressed. We 
+             * acknowledge before turning it on, so it knows to expect them.
+             */
+            if(command.is(1, "compress")) {
+                if(!command.is(2, "deflate")) return;
                 try {
-                    Class.forName("com.mysql.cj.jdbc.Driver");
-                } catch(ClassNotFoundException ex) {
-                    System.err.println("Could not find jdbc connector");
+                    write(COMPRESSION_REQUEST);
+                    setCompressing(true);
+                } catch(IOException ex) {
+                    System.err.println("Could not acknowledge compression");
                     System.err.println(ex);
-                    //return;
                 }
+                return;
+            }
                 
-                String username, password;
+            if(command.is(1, "resume")) {
+                resume(command.rest(2));
+                return;
+            }
+            
+            if(command.is(1, "gateway")) {
+                linkGateway(command.rest(2));
+                return;
+            }
                 
+            if(!usingDB) {
                 try {
-                    if(sockets.containsValue(this)) {
-                        write("auth:fail:4");
-                        return;
-                    }
-                    String upperString = str.substring(str.indexOf(":")+1); //user:$name:pass:$pwd
-                    if(!upperString.startsWith("user:")) {
-                        write("auth:fail:1");
-                        return;
-                    }
-                    upperString = upperString.substring(upperString.indexOf(":")+1);//$name:pass:$pwd
-                    if(!upperString.contains(":")) {
-                        write("auth:fail:1");
-                        return;
-                    }
-                    username = upperString.substring(0, upperString.indexOf(":"));//$name
-                    upperString = upperString.substring(upperString.indexOf(":")+1);//pass:$pwd
-                    if(!upperString.startsWith("pass:")) {
-                        write("auth:fail:1");
-                        return;
-                    }
-                    password = upperString.substring(upperString.indexOf(":")+1);
-                    
-                    System.out.println("username: "+username+", password: "+password);
-                    
+                    write("auth:done");
+                    write("auth:token:"+sessions.issue(sockets.registerGuest(this)));
                 } catch(IOException ex) {
-                    System.err.println("Exception when failing authorisation");
+                    System.err.println("Could not send command");
                     System.err.println(ex);
+                }
+                return;
+            }
+
+            //<editor-fold defaultstate="collapsed" desc="authorise user, if using db">
+
+            String username, password;
+
+            try {
+                if(sockets.contains(this)) {
+                    write("auth:fail:4");
                     return;
                 }
+                /* auth:user:$name:pass:$pwd, where the password may itself
+                 * contain colons
+                 */
+                if(!command.is(1, "user") || !command.is(3, "pass")) {
+                    write("auth:fail:1");
+                    return;
+                }
+                username = command.get(2);
+                password = command.rest(4);
+
+            } catch(IOException ex) {
+                System.err.println("Exception when failing authorisation");
+                System.err.println(ex);
+                return;
+            }
+
+            /* The checking is slow, so it is done elsewhere, and it replies
+             * when it is done.
+             */
+            authService.submit(this, username, password);
+            //</editor-fold>
+        }
+        
+        /**
+         * Lets a user back in with the token they were given when they last
+         * logged in, rather than their password. Anything they had on their
+         * old connection, i.e. their seats, the tables they were viewing and
+         * their tournaments, is moved to this one. The reply is "auth:done",
+         * a new token, and "auth:resumed:$id1:$id2:..." with the tables they 
+         * are back at, or "auth:fail:7" if the token is no good.
+         */
+        private void resume(String token) {
+            try {
+                Integer id = sessions.verify(token);
+                if(id == null) {
+                    System.err.println("Authorisation failed: invalid session");
+                    write("auth:fail:7");
+                    return;
+                }
+                /* Drop the guest ID this connection was given on connecting */
+                Integer guest = sockets.remove(this);
+                if(guest != null) {
+                    sessions.revoke(guest);
+                }
                 
-                try(Connection conn = DriverManager.getConnection("jdbc:mysql://localhost:3306/"+DB_NAME+"?useSSL=no", DB_USERNAME, DB_PASSWORD)) {
-                    
-                    String selectStr = "select pkid, crypt, enabled, connected from user where name = ?";
-                    
-                    try (PreparedStatement pStmt = conn.prepareStatement(selectStr)) {
-                        pStmt.setString(1, username);
-                        
-                        try(ResultSet rs = pStmt.executeQuery()) {
-                            Integer pkid = -1;
-                            char[] passwd = null;
-                            boolean enabled = false, connected = true;
-                            int noResults = 0;
-                            while(rs.next()) {
-                                noResults++;
-                                pkid = rs.getInt("pkid");
-                                passwd = rs.getString("crypt").toCharArray();
-                                enabled = rs.getBoolean("enabled");
-                                connected = rs.getBoolean("connected");
-                            }
-                            if(noResults!=1) {
-                                System.err.println("Authorisation failed: user doesn't exist");
-                                write("auth:fail:2");
-                                return;
-                            }
-                            if(!enabled) {
-                                System.err.println("Authorisation failed: acoount not enabled");
-                                write("auth:fail:3");
-                                return;
-                            }
-                            if(connected || sockets.containsKey(pkid)) {
-                                System.err.println("Authorisation failed: already connected");
-                                write("auth:fail:4");
-                                return;
-                            }
-                            
-                            BCrypt.Result result = BCrypt.verifyer().verify(password.toCharArray(), passwd);
-                            
-                            if(result.verified) {
-                                System.out.println("user authorised");
-                                write("auth:done");
-                                
-                                try(PreparedStatement updateStmt = conn.prepareStatement("update user set connected = ? where name = ?")) {
-                                    updateStmt.setInt(1, 1);
-                                    updateStmt.setString(2, username);
-                                    int i = updateStmt.executeUpdate();
-                                    if(i!=1) {
-                                        System.err.println("The update didn't work");
-                                    }
-                                }
-                                
-                                sockets.put(pkid, this);
-                                
-                                return;
-                                
-                            } else {
-                                System.err.println("Authorisation failed: wrong password");
-                                write("auth:fail:5");
-                                return;
-                            }
-                        }
-                        
+                StringBuilder resumed = new StringBuilder("auth:resumed");
+                ClientSocket old = sockets.get(id);
+                if(old != null && old != this) {
+                    sockets.remove(old);
+                    lobby.unsubscribe(old);
+                    for(int tableID : tables.replaceSocket(old, this)) {
+                        resumed.append(':').append(tableID);
                     }
-                    
-                } catch(SQLException | IOException ex) {
-                    System.err.println("Exception when authorising");
-                    System.err.println(ex);
+                    for(Tournament tournament : tournaments.values()) {
+                        tournament.replaceSocket(old, this);
+                    }
+                    old.close();
                 }
-//</editor-fold>
-            
-                
+                if(!sockets.register(id, this)) {
+                    System.err.println("Authorisation failed: already connected");
+                    write("auth:fail:4");
+                    return;
+                }
+                /* Seats kept for them since the server restarted */
+                for(int tableID : tables.reclaim(id, this)) {
+                    resumed.append(':').append(tableID);
+                }
+                write("auth:done");
+                write("auth:token:"+sessions.issue(id));
+                write(resumed.toString());
+            } catch(IOException ex) {
+                System.err.println("Exception when resuming session");
+                System.err.println(ex);
             }
-            
-            if(str.equals("Get Tables")) {
-                //System.out.println(ServerSideSocket.this);
+        }
+        
+        /**
+         * Makes this connection the link from a gateway, if it gives the 
+         * secret of the cluster. From then on, the gateway sends 
+         * "Join:$client:$userID" when a client first uses this node, 
+         * "From:$client:$command" for each of its commands and 
+         * "Leave:$client" when it leaves. Everything sent to a client comes
+         * back as "To:$client:$n" followed by the n objects.
+         */
+        private void linkGateway(String given) {
+            if(secret == null || !MessageDigest.isEqual(
+                    secret.getBytes(StandardCharsets.UTF_8), given.getBytes(StandardCharsets.UTF_8))) {
+                System.err.println("Refused a gateway with the wrong secret");
                 try {
-                    write("Table List:");
-                    write(tables.size());
-                    for(Map.Entry<Integer, PokerTable> table : tables.entrySet()) {
-                        PokerTableData dat = ((PokerTableData)table.getValue().getData());
-                        write(dat);
-                    }
-                } catch(IOException e) {
-                    System.err.println("Exception occured when sending table list");
-                    System.err.println(e);
+                    write("auth:fail:1");
+                } catch(IOException ex) {
+                    System.err.println("Exception when refusing gateway");
+                    System.err.println(ex);
                 }
                 return;
             }
-            
-            if(str.startsWith("View:")) {
-                Integer index = Integer.parseInt(str.substring(5));
-                if(tables.get(index).hasSocket(this)) return;
-                tables.get(index).addSocket(this);
-                return;
+            /* The link itself isn't a player */
+            Integer guest = sockets.remove(this);
+            if(guest != null) {
+                sessions.revoke(guest);
             }
-            
-            if(str.startsWith("ID:")) {
-                Integer index = Integer.parseInt(str.substring(3, str.indexOf(':', 3)));
-                tables.get(index).processCommand(str.substring(str.indexOf(':', 3)+1), this);
-                return;
+            lobby.unsubscribe(this);
+            relayed = new ConcurrentHashMap<>();
+            System.out.println("Linked to a gateway");
+        }
+        
+        /**
+         * If this was the link from a gateway, its guests can never come 
+         * back, so they are stood up and leave. Users keep their seats until
+         * they join again over a new link, when they are given them back (see
+         * join).
+         */
+        @Override
+        protected void readerFinished() {
+            if(relayed == null) return;
+            System.err.println("Lost the link to a gateway");
+            for(RelayedSocket socket : relayed.values()) {
+                Integer id = sockets.getID(socket);
+                if(id == null || id < 0) {
+                    tables.leave(socket);
+                    socket.processCommand("Exit");
+                }
             }
-            if(str.equals("Exit")) {
-                System.out.println("Socket closing");
-                
-                if(USING_DB) {
-                    try(Connection conn = DriverManager.getConnection("jdbc:mysql://localhost:3306/"+DB_NAME+"?useSSL=no", DB_USERNAME, DB_PASSWORD)) {
-                    
-                        String selectStr = "update user set connected = ? where pkid = ?";
-                    
-                        try (PreparedStatement pStmt = conn.prepareStatement(selectStr)) {
-                            pStmt.setInt(1, 0);
-                            pStmt.setInt(2, sockets.inverse().get(this));
-                        
-                            pStmt.executeUpdate();
-                        }
-                    } catch(SQLException ex) {
-                        System.err.println(ex);
+            close();
+        }
+        
+        private void relay(Command command) {
+            try {
+                int client = command.parseInt(1);
+                if(command.is(0, "Join")) {
+                    join(client, command.parseInt(2));
+                } else if(command.is(0, "From")) {
+                    RelayedSocket socket = relayed.get(client);
+                    /* The gateway lets clients in itself */
+                    if(socket != null && !command.rest(2).startsWith("auth")) {
+                        socket.processCommand(command.rest(2));
                     }
+                } else if(command.is(0, "Leave")) {
+                    RelayedSocket socket = relayed.get(client);
+                    if(socket != null) socket.processCommand("Exit");
+                } else {
+                    System.err.println("Unrecognised command from gateway: "+command);
                 }
+            } catch(NumberFormatException ex) {
+                System.err.println("Invalid command from gateway: "+command);
+                System.err.println(ex);
+            }
+        }
+        
+        /**
+         * Adds a client of the gateway, as the user the gateway let in. If 
+         * the user is still here from a link which has gone, e.g. because 
+         * the gateway restarted, they get their seats back. Guests of the 
+         * gateway are guests here too, with an ID of this node's.
+         */
+        private void join(int client, int userID) {
+            RelayedSocket socket = new RelayedSocket(this, client);
+            relayed.put(client, socket);
+            if(userID < 0) {
+                sockets.registerGuest(socket);
+                return;
+            }
+            ClientSocket old = sockets.get(userID);
+            if(old instanceof RelayedSocket) {
+                sockets.remove(old);
+                tables.replaceSocket(old, socket);
+                for(Tournament tournament : tournaments.values()) {
+                    tournament.replaceSocket(old, socket);
+                }
+                old.close();
+            }
+            if(!sockets.register(userID, socket)) {
+                System.err.println("User "+userID+" is already connected, so joining from the gateway as a guest");
+                sockets.registerGuest(socket);
+            }
+        }
+        
+        private void getTables(Command command) {
+            lobby.sendPage(command, this);
+        }
+        
+        private void lobby(Command command) {
+            if(command.is(1, "subscribe")) {
+                lobby.subscribe(this);
+            } else if(command.is(1, "unsubscribe")) {
+                lobby.unsubscribe(this);
+            }
+        }
+        
+        private void view(Command command) {
+            PokerTable table = tables.get(command.parseInt(1));
+            if(table == null) return;
+            table.view(this);
+        }
+        
+        private void table(Command command) {
+            PokerTable table = tables.get(command.parseInt(1));
+            if(table == null) return;
+            table.processCommand(command, 2, this);
+        }
+        
+        /**
+         * Handles "Tournament:join:$id" and "Tournament:leaderboard:$id".
+         */
+        private void tournament(Command command) {
+            Tournament tournament = tournaments.get(command.parseInt(2));
+            if(tournament == null) return;
+            if(command.is(1, "join")) {
+                tournament.join(this);
+            } else if(command.is(1, "leaderboard")) {
+                tournament.sendLeaderboard(this, LEADERBOARD_SIZE);
+            }
+        }
+        
+        private void exit(Command command) {
+            System.out.println("Socket closing");
+
+            Integer id = sockets.remove(this);
+            /* Leaving on purpose ends the session, so it can't be resumed */
+            if(id != null) {
+                sessions.revoke(id);
+            }
+            if(usingDB && id != null && id >= 0) {
                 try {
-                    write("Exit");
-                } catch(IOException ex) {
-                    System.err.println("Exception when telling client to exit");
+                    users.setConnected(id, false);
+                } catch(SQLException ex) {
                     System.err.println(ex);
                 }
-                
-                sockets.inverse().remove(this);
-                
-                close();
-                //return;
             }
+            try {
+                write("Exit");
+            } catch(IOException ex) {
+                System.err.println("Exception when telling client to exit");
+                System.err.println(ex);
+            }
+
+            lobby.unsubscribe(this);
+            tables.removeSocket(this);
+
+            close();
         }
     }
     
+    /**
+     * A client of a gateway, which is carried over the link from the gateway
+     * rather than having a connection of its own.
+     */
+    private class RelayedSocket extends ServerSideSocket {
+        private final ServerSideSocket link;
+        private final int client;
+        
+        RelayedSocket(ServerSideSocket link, int client) {
+            this.link = link;
+            this.client = client;
+        }
+        
+        @Override
+        public void write(Object... messages) throws IOException {
+            Object[] framed = new Object[messages.length+1];
+            framed[0] = "To:"+client+":"+messages.length;
+            System.arraycopy(messages, 0, framed, 1, messages.length);
+            link.write(framed);
+        }
+        
+        @Override
+        public void close() {
+            link.relayed.remove(client, this);
+        }
+    }
+    
+    /**
+     * A handler for a command sent to the server by a client.
+     */
+    interface ServerCommand {
+        void run(ServerSideSocket socket, Command command) throws NumberFormatException;
+    }
+    
+    private static final CommandDispatcher<ServerCommand> SERVER_COMMANDS = 
+            new CommandDispatcher<ServerCommand>()
+                .register("auth", ServerSideSocket::auth)
+                .register("Get Tables", ServerSideSocket::getTables)
+                .register("Lobby", ServerSideSocket::lobby)
+                .register("View", ServerSideSocket::view)
+                .register("ID", ServerSideSocket::table)
+                .register("Tournament", ServerSideSocket::tournament)
+                .register("Exit", ServerSideSocket::exit);
+    
     private static void sendHelp() {
         System.out.println("help");
 
@@ -264,18 +485,138 @@ public class PokerServer extends Thread {
     
     private void init() {
         
-        tables = new HashMap<>();
+        lobby = new LobbyIndex();
+        loops = new EventLoop[Runtime.getRuntime().availableProcessors()];
+        for(int i = 0; i<loops.length; i++) {
+            loops[i] = new EventLoop("Table loop "+i);
+        }
+        timers = new HashedWheelTimer(TIMER_TICK, TIMER_WHEEL_SIZE);
+        sockets = new ConnectionRegistry();
+        sessions = new SessionStore(timers);
+        sessions.start();
+        if(usingDB) {
+            if(dbURL == null) {
+                dbURL = DEFAULT_DB_URL;
+            }
+            if(dbPoolSize == -1) {
+                dbPoolSize = DEFAULT_DB_POOL_SIZE;
+            }
+            if(dbURL.startsWith("jdbc:mysql:")) {
+                try {
+                    Class.forName("com.mysql.cj.jdbc.Driver");
+                } catch(ClassNotFoundException ex) {
+                    System.err.println("Could not find jdbc connector");
+                    System.err.println(ex);
+                }
+            }
+            ConnectionPool pool = new ConnectionPool(dbURL, DB_USERNAME, DB_PASSWORD, dbPoolSize);
+            users = new UserStore(pool);
+            authService = new AuthService(users, sockets, sessions, Runtime.getRuntime().availableProcessors());
+            
+            if(journalFile == null) {
+                journalFile = DEFAULT_JOURNAL;
+            }
+            balances = new BalanceStore(pool, Paths.get(journalFile), timers);
+            try {
+                balances.start();
+            } catch(IOException | SQLException ex) {
+                System.err.println("Could not start keeping balances");
+                System.err.println(ex);
+                System.exit(-1);
+            }
+            /* Don't lose the balances which haven't been written yet */
+            Runtime.getRuntime().addShutdownHook(new Thread(balances::close));
+        }
+        if(maxTables == -1) {
+            maxTables = DEFAULT_MAX_TABLES;
+        }
+        List<TableManager.TableType> types = TableManager.DEFAULT_TYPES;
+        if(stakesFile != null) {
+            try {
+                types = TableManager.readTypes(stakesFile);
+            } catch(IOException | IllegalArgumentException ex) {
+                System.err.println("Could not read the table stakes from "+stakesFile);
+                System.err.println(ex);
+                System.exit(-1);
+            }
+            if(types.isEmpty()) {
+                System.err.println("There were no tables in "+stakesFile);
+                System.exit(-1);
+            }
+        }
+        IntPredicate owns = (id) -> true;
+        if(cluster != null) {
+            if(nodeIndex == -1 || nodeIndex >= cluster.size()) {
+                System.err.println("This node must be one of the "+cluster.size()+" nodes in the cluster");
+                System.exit(-1);
+            }
+            String self = cluster.getNodes().get(nodeIndex);
+            owns = (id) -> self.equals(cluster.get(id));
+            if(port == -1) {
+                port = ConsistentHashRing.port(self);
+            }
+        }
+        tables = new TableManager(lobby, loops, timers, maxTables, types, owns);
+        tables.setAccounts(sockets);
+        if(balances != null) {
+            tables.setBalances(balances);
+        }
+        if(historyDir != null) {
+            history = new HandHistoryWriter(Paths.get(historyDir), 
+                    HandHistoryWriter.DEFAULT_SEGMENT_SIZE, historySync, timers);
+            try {
+                history.start();
+            } catch(IOException ex) {
+                System.err.println("Could not open the hand history");
+                System.err.println(ex);
+                System.exit(-1);
+            }
+            Runtime.getRuntime().addShutdownHook(new Thread(history::close));
+            tables.setHistory(history);
+        }
+        if(rankCacheSize != -1) {
+            rankings = new HandRankingCache(rankCacheSize);
+            tables.setRankings(rankings);
+            Runtime.getRuntime().addShutdownHook(new Thread(() ->
+                    System.out.println("Hand ranking cache: "+rankings)));
+        }
         if(numTables == -1) {
             Random rand = new Random();
             numTables = rand.nextInt(100)+2;
         }
-        for(int i = 0; i<numTables/2; i++) {
-            PokerTable newTable = new PokerTable();
-            newTable.init(i+1, 6);
-            tables.put(i+1, newTable);
-            newTable = new PokerTable();
-            newTable.init((i+numTables/2)+1, 8);
-            tables.put((i+numTables/2)+1, newTable);
+        int restored = 0;
+        if(restoring && snapshotFile == null) {
+            snapshotFile = DEFAULT_SNAPSHOT;
+        }
+        if(snapshotFile != null) {
+            snapshotter = new TableSnapshotter(Paths.get(snapshotFile), tables, sessions, sockets, timers);
+            if(restoring) {
+                try {
+                    restored = snapshotter.restore();
+                } catch(IOException ex) {
+                    System.err.println("Could not restore the tables, so starting afresh");
+                    System.err.println(ex);
+                }
+            }
+            snapshotter.start();
+            Runtime.getRuntime().addShutdownHook(new Thread(snapshotter::close));
+        }
+        /* The tables to start with, unless they were restored. More are made
+         * as they fill up.
+         */
+        if(restored == 0) {
+            for(TableManager.TableType type : types) {
+                for(int i = 0; i<numTables/types.size(); i++) {
+                    tables.create(type.getSeats(), type.getConfig());
+                }
+            }
+        }
+        tables.start();
+        tournaments = new ConcurrentHashMap<>();
+        /* Tournaments are shared out between nodes in the same way as tables */
+        if(tournamentSize != -1 && owns.test(1)) {
+            tournaments.put(1, new Tournament(1, tournamentSize, 6, tables, 
+                    timers, new EventLoop("Tournament 1")));
         }
         if(port==-1) {
             port = 1111;
@@ -283,7 +624,6 @@ public class PokerServer extends Thread {
         try {
             serverSocket = new ServerSocket(port); //TODO: change from normal socket to ssl socket
             //sockets = new ArrayList<>();
-            sockets = HashBiMap.create();
         } catch (IOException ex) {
             //serverSocket = null;
             System.err.println("Exception occured when creating server socket");
@@ -296,6 +636,14 @@ public class PokerServer extends Thread {
         
         port = -1;
         numTables = -1;
+        maxTables = -1;
+        tournamentSize = -1;
+        nodeIndex = -1;
+        usingDB = false;
+        restoring = false;
+        dbPoolSize = -1;
+        rankCacheSize = -1;
+        historySync = HandHistoryWriter.SyncPolicy.PERIODIC;
         
         List<String> listArgs = Arrays.asList(args);
         Iterator<String> it = listArgs.iterator();
@@ -321,6 +669,130 @@ public class PokerServer extends Thread {
                         }
                         break;
                 
+                case "-m":
+                case "-maxtables":
+                        val = it.next();
+                        try {
+                            maxTables = Integer.parseInt(val);
+                            if(maxTables < 1)
+                                throw new NumberFormatException();
+                        } catch(NumberFormatException e) {
+                            System.err.println("The maximum number of tables '"+val+"' was not a valid amount.");
+                            sendHelp();
+                            System.exit(-1);
+                        }
+                        break;
+                
+                case "-db":
+                        usingDB = true;
+                        break;
+                
+                case "-dburl":
+                        usingDB = true;
+                        dbURL = it.next();
+                        break;
+                
+                case "-journal":
+                        journalFile = it.next();
+                        break;
+                
+                case "-history":
+                        historyDir = it.next();
+                        break;
+                
+                case "-historysync":
+                        val = it.next();
+                        try {
+                            historySync = HandHistoryWriter.SyncPolicy.valueOf(val.toUpperCase());
+                        } catch(IllegalArgumentException e) {
+                            System.err.println("The sync policy '"+val+"' was not one of batch, periodic or os.");
+                            sendHelp();
+                            System.exit(-1);
+                        }
+                        break;
+                
+                case "-snapshot":
+                        snapshotFile = it.next();
+                        break;
+                
+                case "-restore":
+                        restoring = true;
+                        break;
+                
+                case "-dbpool":
+                        val = it.next();
+                        try {
+                            dbPoolSize = Integer.parseInt(val);
+                            if(dbPoolSize < 1)
+                                throw new NumberFormatException();
+                        } catch(NumberFormatException e) {
+                            System.err.println("The database pool size '"+val+"' was not a valid amount.");
+                            sendHelp();
+                            System.exit(-1);
+                        }
+                        break;
+                
+                case "-rankcache":
+                        val = it.next();
+                        try {
+                            rankCacheSize = Integer.parseInt(val);
+                            if(rankCacheSize < 1 || rankCacheSize > HandRankingCache.MAX_ENTRIES)
+                                throw new NumberFormatException();
+                        } catch(NumberFormatException e) {
+                            System.err.println("The ranking cache size '"+val+"' was not a valid amount.");
+                            sendHelp();
+                            System.exit(-1);
+                        }
+                        break;
+                
+                case "-s":
+                case "-stakes":
+                        stakesFile = it.next();
+                        break;
+                
+                case "-c":
+                case "-cluster":
+                        val = it.next();
+                        try {
+                            cluster = ConsistentHashRing.parse(val);
+                        } catch(IllegalArgumentException e) {
+                            System.err.println(e.getMessage());
+                            sendHelp();
+                            System.exit(-1);
+                        }
+                        break;
+                
+                case "-secret":
+                        secret = it.next();
+                        break;
+                
+                case "-node":
+                        val = it.next();
+                        try {
+                            nodeIndex = Integer.parseInt(val);
+                            if(nodeIndex < 0)
+                                throw new NumberFormatException();
+                        } catch(NumberFormatException e) {
+                            System.err.println("The node '"+val+"' was not a valid index.");
+                            sendHelp();
+                            System.exit(-1);
+                        }
+                        break;
+                
+                case "-t":
+                case "-tournament":
+                        val = it.next();
+                        try {
+                            tournamentSize = Integer.parseInt(val);
+                            if(tournamentSize < 2)
+                                throw new NumberFormatException();
+                        } catch(NumberFormatException e) {
+                            System.err.println("The tournament size '"+val+"' was not a valid amount.");
+                            sendHelp();
+                            System.exit(-1);
+                        }
+                        break;
+                
                 case "-p": 
                 case "-port":
                         val = it.next();
@@ -350,11 +822,11 @@ public class PokerServer extends Thread {
             try {
                 ServerSideSocket newSock = new ServerSideSocket(serverSocket.accept());
                 newSock.startReader();
-                if(USING_DB) 
+                if(usingDB) 
                     newSock.write("auth:req");
                 else {
                     newSock.write("auth:done");
-                    sockets.put(sockets.size(), newSock);
+                    newSock.write("auth:token:"+sessions.issue(sockets.registerGuest(newSock)));
                 }
                 
             } catch(IOException ex) {
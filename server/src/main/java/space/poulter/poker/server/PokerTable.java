@@ -19,175 +19,403 @@ package space.poulter.poker.server;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.IntConsumer;
 import space.poulter.poker.Card;
 import space.poulter.poker.Cards;
 import space.poulter.poker.ClientSocket;
+import space.poulter.poker.Command;
+import space.poulter.poker.CommandDispatcher;
 import space.poulter.poker.Deck;
 import space.poulter.poker.Deck.DrawCardException;
+import space.poulter.poker.GameConfig;
+import space.poulter.poker.HandRankingCache;
 import space.poulter.poker.PlayerData;
 import space.poulter.poker.Poker;
 import space.poulter.poker.Poker.PokerAction;
 import space.poulter.poker.Poker.ScoredBoard;
 import space.poulter.poker.PokerTableData;
+import space.poulter.poker.PokerTableDelta;
+import space.poulter.poker.TableSummary;
 
 /**
+ * A single poker table. The table has no thread of its own: the hand is run as
+ * a state machine, which is moved on by events (a player acting, a timer 
+ * firing, or a seat changing). All of the events for a table are handled in 
+ * order on the EventLoop it is pinned to, so the table is only ever touched by
+ * one thread.
  *
  * @author Em Poulter <em@poulter.space>
  */
 public class PokerTable {
+    
+    /* The pauses between the stages of a hand, and the time a player has to
+     * act, in milliseconds.
+     */
+    static final long START_DELAY = 2000;
+    static final long DEAL_DELAY = 1000;
+    static final long ROUND_DELAY = 2000;
+    static final long END_DELAY = 2000;
+    static final long ACTION_TIMEOUT = 21000;
+    /* How long a restored seat is kept for its player to come back */
+    static final long RESUME_GRACE = 30000;
+    
+    /**
+     * Told about the end of each hand at the table, e.g. by a tournament.
+     */
+    interface HandListener {
+        /**
+         * Called on the loop of the table at the end of every hand.
+         * @param table The table the hand was played at.
+         * @param chips The chip counts of the players still sat at the table.
+         */
+        void handEnded(PokerTable table, Map<PlayerData, Integer> chips);
+    }
+    
+    /**
+     * The stages of a hand. Between hands the table is WAITING, until there 
+     * are enough players to start.
+     */
+    private enum Phase {
+        WAITING, STARTING, DEALING, PREFLOP, FLOP, TURN, RIVER
+    }
+    
     private PokerTableData dat;
-    private List<ClientSocket> connectedSockets;
-    private Thread gameThread;
+    private SpectatorSet connectedSockets;
+    private LobbyIndex lobby;
+    /* Used for the average pot shown in the lobby */
+    private long handsPlayed;
+    private long potTotal;
     
-    public void init(int tableID, int noHands) {
+    private HashedWheelTimer timers;
+    private EventLoop events;
+    private HashedWheelTimer.Timeout timer;
+    /* Incremented whenever the timer is set or cancelled, so that a timer 
+     * which fires after being cancelled can tell that it is out of date.
+     */
+    private long timerCount;
+    /* Frees the restored seats if their players don't come back. Kept apart
+     * from the timer, which the hands use for other things in the mean time.
+     */
+    private HashedWheelTimer.Timeout releaseTimer;
+    
+    private Phase phase;
+    /* Set once the table has been torn down, after which it ignores commands */
+    private boolean closed;
+    private Deck deck;
+    /* The state of the betting round in progress */
+    private int actor;
+    private int endIndex;
+    private int bet;
+    
+    /* The size of the last raise this round, and the limits on how much the
+     * player to act may raise by, worked out when it becomes their turn.
+     */
+    private int lastRaise;
+    private int minRaise;
+    private int maxRaise;
+    /* Set for tournament tables, where players are seated by the tournament
+     * rather than choosing their own seats.
+     */
+    private HandListener listener;
+    /* The connections, to find who sits down, and where the winnings of 
+     * users are kept, if anywhere, and the chips each player had at the start
+     * of the hand.
+     */
+    private ConnectionRegistry accounts;
+    private BalanceStore balances;
+    private final Map<PlayerData, Integer> startingChips = new HashMap<>();
+    /* Where the history of each hand is written, if anywhere, and the record
+     * of the hand being played.
+     */
+    private HandHistoryWriter history;
+    private final HandRecord record = new HandRecord();
+    /* Where the rankings of hands at the showdown are remembered, if anywhere */
+    private HandRankingCache rankings;
+    /* Seats restored from a snapshot whose players haven't come back yet */
+    private final Set<Integer> held = new HashSet<>();
+    
+    /**
+     * The state of a table which is kept across a restart: who is sat where 
+     * with how many chips, but nothing about the hand being played.
+     */
+    static class SavedState {
+        final int tableID;
+        final int noHands;
+        final GameConfig config;
+        final int dealer;
+        final long handsPlayed;
+        final long potTotal;
+        /* The seat, ID and chips of each player */
+        final int[] seats;
+        final int[] userIDs;
+        final int[] chips;
+
+        SavedState(int tableID, int noHands, GameConfig config, int dealer, long handsPlayed, 
+                long potTotal, int[] seats, int[] userIDs, int[] chips) {
+            this.tableID = tableID;
+            this.noHands = noHands;
+            this.config = config;
+            this.dealer = dealer;
+            this.handsPlayed = handsPlayed;
+            this.potTotal = potTotal;
+            this.seats = seats;
+            this.userIDs = userIDs;
+            this.chips = chips;
+        }
+    }
+    
+    public void init(int tableID, int noHands, GameConfig config, LobbyIndex lobby, EventLoop loop, HashedWheelTimer timers) {
         dat = new PokerTableData();
         dat.init(tableID, noHands);
-        connectedSockets = new ArrayList<>();
-        gameThread = new Thread() {
-            @Override
-            public void run() {
-                runGame();
+        dat.setConfig(config);
+        connectedSockets = new SpectatorSet();
+        this.lobby = lobby;
+        handsPlayed = 0;
+        potTotal = 0;
+        this.timers = timers;
+        events = loop;
+        timer = null;
+        timerCount = 0;
+        phase = Phase.WAITING;
+        closed = false;
+        listener = null;
+        updateLobby();
+    }
+    
+    /**
+     * A handler for a command sent to the table. 
+     */
+    interface TableCommand {
+        /**
+         * @param table The table the command was sent to.
+         * @param command The whole command received.
+         * @param i The index of the token naming this command.
+         * @param socket The socket the command came from.
+         */
+        void run(PokerTable table, Command command, int i, ClientSocket socket) 
+                throws NumberFormatException;
+    }
+    
+    private static final CommandDispatcher<TableCommand> TABLE_COMMANDS = 
+            new CommandDispatcher<TableCommand>()
+                .register("quit", PokerTable::quit)
+                .register("update", PokerTable::update)
+                .register("game", (table, command, i, socket) -> 
+                        table.processGameCommand(command, i+1, socket))
+                .register("sit", PokerTable::sit)
+                .register("standup", PokerTable::standUp);
+    
+    private static final CommandDispatcher<PokerAction> GAME_COMMANDS = 
+            new CommandDispatcher<PokerAction>()
+                .register("fold", PokerAction.FOLD)
+                .register("check", PokerAction.CHECK)
+                .register("call", PokerAction.CALL)
+                .register("raise", PokerAction.RAISE);
+    
+    /**
+     * Processes a command sent to this table.
+     * @param command The command received by the server.
+     * @param i The index of the first token of the command meant for this 
+     * table, i.e. after the "ID:$id" prefix.
+     * @param socket The socket the command came from.
+     */
+    void processCommand(Command command, int i, ClientSocket socket) {
+        TableCommand handler = TABLE_COMMANDS.get(command, i);
+        if(handler == null) return;
+        events.execute(() -> {
+            if(closed) return;
+            if(!connectedSockets.contains(socket)) {
+                System.err.println("Recieved command from unrecognised socket");
+                return;
             }
-        };
-        gameThread.start();
-        
+            try {
+                handler.run(this, command, i, socket);
+            } catch(NumberFormatException e) {
+                System.err.println("Invalid table command: "+command);
+                System.err.println(e);
+            }
+        });
     }
     
-    void processCommand(String command, ClientSocket socket) {
-        if(!getSockets().contains(socket)) {
-            System.err.print("Recieved command from unrecognised socket");
-            return;
-        }
-        if(command.equals("quit")) {
-            //System.out.println("quitting");
-            removeSocket(socket);
-            return;
+    private void quit(Command command, int i, ClientSocket socket) {
+        //System.out.println("quitting");
+        removeSocket(socket);
+    }
+    
+    private void update(Command command, int i, ClientSocket socket) {
+        /* A client which already has the data at some revision only needs the 
+         * changes since then. If we can't produce them, send everything.
+         */
+        PokerTableDelta delta = null;
+        if(command.size() > i+1) {
+            delta = getData().deltaSince(command.parseLong(i+1));
         }
-        if(command.equals("update")) {
-            try {
-                socket.write("ID:"+getTableID()+":update");
+        try {
+            if(delta == null) {
                 //System.out.println("Sending updated info: "+getData());
-                socket.write(getData());
-            } catch(IOException e) {
-                System.err.println("Exception occured when sending update to client");
-                System.err.println(e);
+                socket.write("ID:"+getTableID()+":update", getData());
+            } else {
+                socket.write("ID:"+getTableID()+":delta", delta);
             }
-            return;
+        } catch(IOException e) {
+            System.err.println("Exception occured when sending update to client");
+            System.err.println(e);
         }
+    }
+    
+    private void sit(Command command, int i, ClientSocket socket) {
+        /* Nobody chooses their own seat at a tournament table */
+        if(listener != null) return;
         
-        if(command.contains(":")) {
-            
-            String subcommand = command.substring(0, command.indexOf(':'));
-            //System.out.println("command received: "+subcommand);
-            
-            if(subcommand.equals("game")) {
-                processGameCommand(command.substring(subcommand.length()+1), socket);
-            }
+        Integer index = command.parseInt(i+1);
             
-            if(subcommand.equals("sit")) {
-                Integer index = Integer.parseInt(command.substring(command.indexOf(':')+1));
+        if(dat.seatIsOccupied(index)) return;
+        //Checks if the requestinig player is already sat at the table
+        for(int j = 0; j< dat.getMaxHands(); j++) {
+            if(dat.seatIsOccupied(j) && socket.equals(dat.playerOnSeat(j).getSocket())) return;
+        }
             
-                if(dat.seatIsOccupied(index)) return;
-                //Checks if the requestinig player is already sat at the table
-                for(int i = 0; i< dat.getMaxHands(); i++) {
-                    if(dat.seatIsOccupied(i) && dat.playerOnSeat(i).getSocket().equals(socket)) return;
-                }
+        /* sit:$seat:$buyIn, where the buy in is the most allowed if not given */
+        GameConfig config = dat.getConfig();
+        int buyIn = config.getMaxBuyIn();
+        if(command.size() > i+2) {
+            buyIn = command.parseInt(i+2);
+            if(buyIn < config.getMinBuyIn() || buyIn > config.getMaxBuyIn()) return;
+        }
             
-                dat.setSeatOccupied(index, new PlayerData(5000, new Cards(2), socket));
+        PlayerData player = new PlayerData(buyIn, new Cards(2), socket);
+        if(accounts != null) {
+            Integer userID = accounts.getID(socket);
+            if(userID != null) player.setUserID(userID);
+        }
+        seatPlayer(index, player);
+    }
+    
+    /**
+     * Sits a player at an empty seat, and tells everyone watching.
+     */
+    private void seatPlayer(int index, PlayerData player) {
+        ClientSocket socket = player.getSocket();
+        dat.setSeatOccupied(index, player);
+        connectedSockets.add(socket);
             
-                connectedSockets.stream().filter((s) -> (!s.equals(socket))).map((s) -> {
-                    sendCommand("seattaken:"+index, s);
-                    return s;
-                }).forEachOrdered((s) -> {
-                    try {
-                        s.write(dat.playerOnSeat(index));
-                    } catch(IOException e) {
-                        System.err.println("Exception when sending new player data");
-                        System.err.println(e);
-                    }
-                });
-                
-                sendCommand("sit:"+index, socket);
-                try {
-                    socket.write(dat.playerOnSeat(index));
-                } catch(IOException e) {
-                    System.err.println("Exception when sending new player data");
-                    System.err.println(e);
-                }
-                
+        /* The player data has to follow its command, with nothing between */
+        for(ClientSocket s : connectedSockets.snapshot()) {
+            if(s.equals(socket)) continue;
+            try {
+                s.write("ID:"+getTableID()+":seattaken:"+index, dat.playerOnSeat(index));
+            } catch(IOException e) {
+                System.err.println("Exception when sending new player data");
+                System.err.println(e);
             }
-            if(subcommand.equals("standup")) {
-                Integer index = Integer.parseInt(command.substring(command.indexOf(':')+1));
-                if(dat.seatIsOccupied(index) && dat.playerOnSeat(index).getSocket().equals(socket)) {
-                    dat.setSeatFree(index);
-                    sendCommandToAll("seatvacated:" + index);
+        }
+                
+        updateLobby();
+        try {
+            socket.write("ID:"+getTableID()+":sit:"+index, dat.playerOnSeat(index));
+        } catch(IOException e) {
+            System.err.println("Exception when sending new player data");
+            System.err.println(e);
+        }
+        checkStart();
+    }
+    
+    private void standUp(Command command, int i, ClientSocket socket) {
+        if(listener != null) return;
+        
+        Integer index = command.parseInt(i+1);
+        if(dat.seatIsOccupied(index) && socket.equals(dat.playerOnSeat(index).getSocket())) {
+            vacate(index);
+        }
+    }
+    
+    private void vacate(int index) {
+        dat.setSeatFree(index);
+        held.remove(index);
+        updateLobby();
+        sendCommandToAll("seatvacated:" + index);
+        /* If they were the one to act, or the only one left to play 
+         * against, the betting round can't wait for them.
+         */
+        if(isBetting() && (index == actor || dat.getPlayersInHand() <= 1)) {
+            completeAction();
+        }
+    }
+    
+    /**
+     * Stands a socket up from any seat it has, and stops it watching, for a
+     * player who can never come back. Tournament seats are left to the 
+     * tournament.
+     * @param socket The socket of the player.
+     */
+    void leave(ClientSocket socket) {
+        events.execute(() -> {
+            if(closed) return;
+            if(listener == null) {
+                for(int i = 0; i<dat.getMaxHands(); i++) {
+                    if(dat.seatIsOccupied(i) && socket.equals(dat.playerOnSeat(i).getSocket())) {
+                        vacate(i);
+                    }
                 }
             }
-        }
+            connectedSockets.remove(socket);
+        });
     }
     
-    void processGameCommand(String command, ClientSocket socket) {
+    /**
+     * Processes a game action from a player. These are of the form 
+     * "fold:$seat", "check:$seat", "call:$seat", or "raise:$seat:$amount".
+     * @param command The command received by the server.
+     * @param i The index of the token naming the action.
+     * @param socket The socket the command came from.
+     */
+    void processGameCommand(Command command, int i, ClientSocket socket) {
         //System.out.println("Recieved game command: "+command);
         
-        if(!command.contains(":")) return;
-
-        String substring = command.substring(0, command.indexOf(":")+1);        //should be fold:, check:, call:, or raise:
-        //System.out.println(substring);
-        
-        String upperString = command.substring(substring.length());
-        
-        //System.out.println(substring);
+        PokerAction action = GAME_COMMANDS.get(command, i);
+        if(action == null || command.size() < i+2) return;
+        if(action.equals(PokerAction.RAISE) && command.size() < i+3) return;
         
-        if(substring.equals("fold:")) {
-            Integer index = Integer.parseInt(upperString);
-            //System.out.println("fold "+index);
-            if(dat.seatIsOccupied(index) && dat.playerOnSeat(index).getSocket().equals(socket) && dat.playerOnSeat(index).isInHand()) {
-                dat.playerOnSeat(index).setAction(PokerAction.FOLD);
+        Integer index = command.parseInt(i+1);
+        if(dat.seatIsOccupied(index) && socket.equals(dat.playerOnSeat(index).getSocket()) && dat.playerOnSeat(index).isInHand()) {
+            int raise = 0;
+            if(action.equals(PokerAction.RAISE)) {
+                raise = command.parseInt(i+2);
             }
-            return;
-        }
-        if(substring.equals("check:")) {
-            Integer index = Integer.parseInt(upperString);
-            //System.out.println("check "+ index);
-            if(dat.seatIsOccupied(index) && dat.playerOnSeat(index).getSocket().equals(socket) && dat.playerOnSeat(index).isInHand()) {
-                dat.playerOnSeat(index).setAction(PokerAction.CHECK);
+            /* If it is their turn, the limits are known, so ignore anything
+             * which breaks them, as the player still has time to act again. 
+             * Actions made ahead of time are checked once it is their turn.
+             */
+            if(isBetting() && index == actor && !isAllowed(action, raise, index)) return;
+            if(action.equals(PokerAction.RAISE)) {
+                dat.playerOnSeat(index).raise = raise;
             }
-            return;
-        }
-        
-        if(substring.equals("call:")) {
-            Integer index = Integer.parseInt(upperString);
-            //System.out.println("call "+index);
-            //System.out.println("call, "+index);
-            //System.out.println(dat.seatIsOccupied(index)+", "+dat.playerOnSeat(index).getSocket().equals(socket)+", "+dat.playerOnSeat(index).isInHand());
-            if(dat.seatIsOccupied(index) && dat.playerOnSeat(index).getSocket().equals(socket) && dat.playerOnSeat(index).isInHand()) {
-                //System.out.println("Setting action");
-                dat.playerOnSeat(index).setAction(PokerAction.CALL);
+            dat.playerOnSeat(index).setAction(action);
+            if(isBetting() && index == actor) {
+                completeAction();
             }
-            return;
         }
-        
-        if(!upperString.contains(":")) return;
-        
-        if(substring.equals("raise:")) {
-            substring = upperString.substring(0, upperString.indexOf(":"));       
-            upperString = upperString.substring(substring.length()+1);
-            Integer index = Integer.parseInt(substring);
-            Integer amount = Integer.parseInt(upperString);
-            if(dat.seatIsOccupied(index) && dat.playerOnSeat(index).getSocket().equals(socket) && dat.playerOnSeat(index).isInHand()) {
-                dat.playerOnSeat(index).setAction(PokerAction.RAISE);
-                dat.playerOnSeat(index).raise = amount;
-            }
-            //return;
-        } 
     }
     
     void sendCommandToAll(String command) {
-        connectedSockets.forEach((socket) -> {
-            sendCommand(command, socket);
-        });
+        /* Only build the full command once, however many are watching */
+        String full = "ID:"+getTableID()+":"+command;
+        for(ClientSocket socket : connectedSockets.snapshot()) {
+            try {
+                socket.write(full);
+            } catch(IOException e) {
+                System.err.println("Exception occured when trying to send command");
+                System.err.println(e);
+            }
+        }
     }
     void sendCommandToPlayers(String command) {
         dat.getPlayers().forEach((player) -> {
@@ -203,290 +431,750 @@ public class PokerTable {
         }
     }
     
-    private int bettingRound(Integer i, Integer bet) throws IllegalMonitorStateException, InterruptedException {
-        Integer endIndex = i;
+    //<editor-fold defaultstate="collapsed" desc="Timer">
+    /**
+     * Sets the timer to handle an event after a delay. There is only ever one
+     * timer for the table, as the hand is only ever waiting for one thing.
+     * @param delay The delay in milliseconds.
+     * @param event The event to handle when the timer fires.
+     */
+    private void after(long delay, Runnable event) {
+        cancelTimer();
+        final long count = timerCount;
+        timer = timers.newTimeout(() -> events.execute(() -> {
+            if(count == timerCount) {
+                timer = null;
+                event.run();
+            }
+        }), delay, TimeUnit.MILLISECONDS);
+    }
+    
+    private void cancelTimer() {
+        timerCount++;
+        if(timer != null) {
+            timer.cancel();
+            timer = null;
+        }
+    }
+    //</editor-fold>
+    
+    //<editor-fold defaultstate="collapsed" desc="Starting a hand">
+    /**
+     * Starts a new hand, if we are waiting for one and there are enough 
+     * players.
+     */
+    private void checkStart() {
+        /* Wait for the players of a restored table to come back first */
+        if(phase == Phase.WAITING && held.isEmpty() && dat.getNoPlayers() >= 2) {
+            phase = Phase.STARTING;
+            after(START_DELAY, this::chooseBlinds);
+        }
+    }
+    
+    /**
+     * Goes back to waiting for enough players to start a hand.
+     */
+    private void waitForPlayers() {
+        cancelTimer();
+        phase = Phase.WAITING;
+        dat.setGameRunning(false);
+        updateLobby();
+        checkStart();
+    }
+    
+    private int previousOccupied(int index) {
         do {
-            do {
-                i--;
-                if(i<0) i+= dat.getMaxHands();
-            } while(!dat.seatIsOccupied(i) || !dat.playerOnSeat(i).isInHand());
-                    
-            sendCommandToAll("game:seat:"+i+":toact:"+(bet-dat.playerOnSeat(i).currentBet));
+            index--;
+            if(index < 0) index += dat.getMaxHands();
+        } while(!dat.seatIsOccupied(index));
+        return index;
+    }
+    
+    private void chooseBlinds() {
+        /* People may have left since we decided to start */
+        if(dat.getNoPlayers() < 2) {
+            waitForPlayers();
+            return;
+        }
+        
+        //System.out.println("Starting game...");
+        choosePositions(dat.getDealer());
+        
+        after(START_DELAY, this::startHand);
+    }
+    
+    /**
+     * Moves the dealer to the first occupied seat before a seat, and the
+     * blinds to the seats before that.
+     */
+    private void choosePositions(int from) {
+        Integer dealer = previousOccupied(from);
+        Integer smallBlind = previousOccupied(dealer);
+        Integer bigBlind = previousOccupied(smallBlind);
+                
+        dat.setDealer(dealer);
+        dat.setSmallBlind(smallBlind);
+        dat.setBigBlind(bigBlind);
+    }
+    
+    private void startHand() {
+        if(dat.getNoPlayers() < 2) {
+            waitForPlayers();
+            return;
+        }
+        /* Players may still be stood up or moved after the blinds are 
+         * chosen, so choose them again if any of them have gone, keeping the
+         * dealer where it is if they are still there.
+         */
+        if(!dat.seatIsOccupied(dat.getDealer()) || !dat.seatIsOccupied(dat.getSmallBlind())
+                || !dat.seatIsOccupied(dat.getBigBlind())) {
+            choosePositions((dat.getDealer() + 1) % dat.getMaxHands());
+        }
+        sendCommandToAll("game:start:dealer:"+dat.getDealer()+":small:"+dat.getSmallBlind()+":big:"+dat.getBigBlind());
+        phase = Phase.DEALING;
+        startingChips.clear();
+        dat.getPlayers().forEach((player) -> startingChips.put(player, player.chipCount));
+        if(history != null) {
+            record.begin(dat.getTableID(), handsPlayed+1, System.currentTimeMillis(), dat.getConfig(),
+                    dat.getDealer(), dat.getSmallBlind(), dat.getBigBlind());
+            dat.getPlayerAndIndex().forEach((index, player) -> 
+                    record.seat(index, player.getUserID(), player.chipCount));
+        }
+        dat.setGameRunning(true);
+        dat.setPlayersInHand(dat.getNoPlayers());
+        updateLobby();
+        
+        after(DEAL_DELAY, this::deal);
+    }
+    
+    /**
+     * Deals the hole cards, sending them to the players, takes the blinds and
+     * starts the first betting round.
+     */
+    private void deal() {
+        try {
+            //<editor-fold defaultstate="collapsed" desc="Deal all of the cards, and send them to the players">
+            deck = new Deck();
+            
+            for(Map.Entry<Integer, PlayerData> player : dat.getPlayerAndIndex().entrySet()) {
+                player.getValue().setHand(deck.drawCard(), Card.EMPTY_CARD);
 
-            synchronized(dat.playerOnSeat(i)) {
-                dat.playerOnSeat(i).wait(21000);
+                for(ClientSocket sock : connectedSockets.snapshot()) {
+                    if(!sock.equals(player.getValue().getSocket())) {
+                        sendCommand("game:seat:"+player.getKey()+":card:0:null", sock);
+                    } else {
+                        sendCommand("game:seat:"+player.getKey()+":card:0:"+player.getValue().getHand().getCard(0), player.getValue().getSocket());
+                    }
+                }
             }
-            
-            if(dat.getPlayersInHand() == 1) 
-                return 1;
-            
-            if(!dat.seatIsOccupied(i) || !dat.playerOnSeat(i).isInHand()) {
-                continue;
+            for(Map.Entry<Integer, PlayerData> player : dat.getPlayerAndIndex().entrySet()) {
+                player.getValue().getHand().setCard(deck.drawCard(), 1);
+
+                for(ClientSocket sock : connectedSockets.snapshot()) {
+                    if(!sock.equals(player.getValue().getSocket())) {
+                        sendCommand("game:seat:"+player.getKey()+":card:1:null", sock);
+                    } else {
+                        sendCommand("game:seat:"+player.getKey()+":card:1:"+player.getValue().getHand().getCard(1),sock);
+                    }
+                }
+
+                player.getValue().setInHand(true);
+                player.getValue().setAction(PokerAction.NONE);
+                record.hole(player.getKey(), player.getValue().getHand().getCard(0), player.getValue().getHand().getCard(1));
+                dat.touchSeat(player.getKey());
             }
-            
-            if(dat.playerOnSeat(i).getAction().equals(PokerAction.NONE)) {
-                dat.playerOnSeat(i).setAction(PokerAction.FOLD);
-                //TODO check if possible to do so
+            //</editor-fold>
+        } catch(DrawCardException e) {
+            System.err.println("Exception occured when playing the game");
+            System.err.println(e);
+            waitForPlayers();
+            return;
+        }
+
+        GameConfig config = dat.getConfig();
+        int pot = 0;
+        for(Map.Entry<Integer, PlayerData> player : dat.getPlayerAndIndex().entrySet()) {
+            if(player.getValue().isInHand()) {
+                //System.out.println(player.getValue().chipCount.toString());
+                player.getValue().currentBet = 0;
+                /* Antes go straight into the pot, rather than being a bet */
+                player.getValue().chipCount-=config.getAnte();
+                pot += config.getAnte();
+                record.post(player.getKey(), HandRecord.ANTE, config.getAnte());
+                if(player.getKey().equals(dat.getBigBlind())) {
+                    player.getValue().currentBet = config.getBigBlind();
+                    player.getValue().chipCount-=config.getBigBlind();
+                    pot += config.getBigBlind();
+                    record.post(player.getKey(), HandRecord.BIG_BLIND, config.getBigBlind());
+                }
+                if(player.getKey().equals(dat.getSmallBlind())) {
+                    player.getValue().currentBet= config.getSmallBlind();
+                    player.getValue().chipCount-=config.getSmallBlind();
+                    pot += config.getSmallBlind();
+                    record.post(player.getKey(), HandRecord.SMALL_BLIND, config.getSmallBlind());
+                }
+                dat.touchSeat(player.getKey());
             }
+        }
+        dat.setPot(pot);
+        
+        phase = Phase.PREFLOP;
+        startBettingRound(dat.getBigBlind(), config.getBigBlind());
+    }
+    //</editor-fold>
+    
+    //<editor-fold defaultstate="collapsed" desc="Betting">
+    private boolean isBetting() {
+        return phase == Phase.PREFLOP || phase == Phase.FLOP 
+                || phase == Phase.TURN || phase == Phase.RIVER;
+    }
+    
+    /**
+     * Starts a round of betting. The player after the starting index is the 
+     * first to act, and the round ends once the action gets back round to 
+     * the starting index (or to the last player to raise).
+     * @param from The index to start from.
+     * @param bet The bet which the players must match.
+     */
+    private void startBettingRound(int from, int bet) {
+        actor = from;
+        endIndex = from;
+        this.bet = bet;
+        lastRaise = dat.getConfig().getBigBlind();
+        nextToAct();
+    }
+    
+    /**
+     * Works out how much the player to act may raise by, from the betting 
+     * structure of the table.
+     */
+    private void computeLimits() {
+        PlayerData player = dat.playerOnSeat(actor);
+        int toCall = bet - player.currentBet;
+        boolean lateStreet = phase == Phase.TURN || phase == Phase.RIVER;
+        GameConfig config = dat.getConfig();
+        
+        minRaise = config.getMinRaise(lastRaise, lateStreet);
+        maxRaise = config.getMaxRaise(toCall, dat.getPot(), player.chipCount, lateStreet);
+        /* A player who can't afford a full raise may still go all in */
+        if(maxRaise < minRaise) minRaise = maxRaise;
+    }
+    
+    /**
+     * @return Whether the player on a seat may make an action, given the 
+     * limits for the player to act.
+     */
+    private boolean isAllowed(PokerAction action, int raise, int index) {
+        int toCall = bet - dat.playerOnSeat(index).currentBet;
+        switch(action) {
+            case CHECK: return toCall == 0;
+            case RAISE: return maxRaise > 0 && raise >= minRaise && raise <= maxRaise;
+            default: return true;
+        }
+    }
+    
+    /**
+     * Moves on to the next player in the hand, and waits for them to act.
+     */
+    private void nextToAct() {
+        if(dat.getPlayersInHand() <= 1) {
+            onePlayerLeft();
+            return;
+        }
+        do {
+            actor--;
+            if(actor<0) actor+= dat.getMaxHands();
+        } while(!dat.seatIsOccupied(actor) || !dat.playerOnSeat(actor).isInHand());
+        
+        computeLimits();
+        String limits = ":"+minRaise+":"+maxRaise;
+                    
+        /* If they already acted before it was their turn, we needn't wait */
+        if(!dat.playerOnSeat(actor).getAction().equals(PokerAction.NONE)) {
+            sendCommandToAll("game:seat:"+actor+":toact:"+(bet-dat.playerOnSeat(actor).currentBet)+":0"+limits);
+            completeAction();
+        } else {
+            /* Tell the clients how long is left according to the server, so
+             * their clocks run out when the action actually times out.
+             */
+            after(ACTION_TIMEOUT, this::completeAction);
+            sendCommandToAll("game:seat:"+actor+":toact:"+(bet-dat.playerOnSeat(actor).currentBet)+":"+timer.getRemaining()+limits);
+        }
+    }
+    
+    /**
+     * Applies the action of the player to act, either because they have acted,
+     * have left, or have run out of time.
+     */
+    private void completeAction() {
+        cancelTimer();
+        int i = actor;
+        
+        if(dat.getPlayersInHand() <= 1) {
+            onePlayerLeft();
+            return;
+        }
+            
+        if(!dat.seatIsOccupied(i) || !dat.playerOnSeat(i).isInHand()) {
+            continueRound();
+            return;
+        }
             
-            if(dat.playerOnSeat(i).getAction().equals(PokerAction.CALL)) {
-                dat.addToPot(bet - dat.playerOnSeat(i).currentBet);
-                dat.playerOnSeat(i).chipCount = dat.playerOnSeat(i).chipCount + dat.playerOnSeat(i).currentBet - bet;
-                dat.playerOnSeat(i).currentBet = bet;
-                sendCommandToAll("game:seat:"+i+":action:"+dat.playerOnSeat(i).getAction() + ":"+bet);
-            } else if(dat.playerOnSeat(i).getAction().equals(PokerAction.RAISE)) {
-                dat.addToPot(bet + dat.playerOnSeat(i).raise - dat.playerOnSeat(i).currentBet);
-                dat.playerOnSeat(i).chipCount = dat.playerOnSeat(i).chipCount + dat.playerOnSeat(i).currentBet - bet - dat.playerOnSeat(i).raise;
-                dat.playerOnSeat(i).currentBet = bet + dat.playerOnSeat(i).raise;
-                bet = dat.playerOnSeat(i).currentBet;
-                sendCommandToAll("game:seat:"+i+":action:"+dat.playerOnSeat(i).getAction() + ":"+bet);
+        if(dat.playerOnSeat(i).getAction().equals(PokerAction.NONE)) {
+            dat.playerOnSeat(i).setAction(PokerAction.FOLD);
+            //TODO check if possible to do so
+        }
+        
+        /* Bring actions made ahead of time within the limits */
+        if(dat.playerOnSeat(i).getAction().equals(PokerAction.CHECK) && bet > dat.playerOnSeat(i).currentBet) {
+            dat.playerOnSeat(i).setAction(PokerAction.FOLD);
+        } else if(dat.playerOnSeat(i).getAction().equals(PokerAction.RAISE)) {
+            if(maxRaise <= 0) {
+                dat.playerOnSeat(i).setAction(PokerAction.CALL);
             } else {
-                //i.e Fold or Check
-                sendCommandToAll("game:seat:"+i+":action:"+dat.playerOnSeat(i).getAction());
+                dat.playerOnSeat(i).raise = Math.max(minRaise, Math.min(maxRaise, dat.playerOnSeat(i).raise));
+                lastRaise = Math.max(lastRaise, dat.playerOnSeat(i).raise);
             }
-                    
+        }
             
+        if(dat.playerOnSeat(i).getAction().equals(PokerAction.CALL)) {
+            record.action(i, PokerAction.CALL, bet - dat.playerOnSeat(i).currentBet);
+            dat.addToPot(bet - dat.playerOnSeat(i).currentBet);
+            dat.playerOnSeat(i).chipCount = dat.playerOnSeat(i).chipCount + dat.playerOnSeat(i).currentBet - bet;
+            dat.playerOnSeat(i).currentBet = bet;
+            dat.touchSeat(i);
+            sendCommandToAll("game:seat:"+i+":action:"+dat.playerOnSeat(i).getAction() + ":"+bet);
+        } else if(dat.playerOnSeat(i).getAction().equals(PokerAction.RAISE)) {
+            record.action(i, PokerAction.RAISE, bet + dat.playerOnSeat(i).raise - dat.playerOnSeat(i).currentBet);
+            dat.addToPot(bet + dat.playerOnSeat(i).raise - dat.playerOnSeat(i).currentBet);
+            dat.playerOnSeat(i).chipCount = dat.playerOnSeat(i).chipCount + dat.playerOnSeat(i).currentBet - bet - dat.playerOnSeat(i).raise;
+            dat.playerOnSeat(i).currentBet = bet + dat.playerOnSeat(i).raise;
+            bet = dat.playerOnSeat(i).currentBet;
+            dat.touchSeat(i);
+            sendCommandToAll("game:seat:"+i+":action:"+dat.playerOnSeat(i).getAction() + ":"+bet);
+        } else {
+            //i.e Fold or Check
+            record.action(i, dat.playerOnSeat(i).getAction(), 0);
+            sendCommandToAll("game:seat:"+i+":action:"+dat.playerOnSeat(i).getAction());
+        }
             
-            if(dat.playerOnSeat(i).getAction().equals(PokerAction.FOLD)) {
-                if(dat.removePlayerFromHand(i) == 1) {
-                    return 1;
-                }
+        if(dat.playerOnSeat(i).getAction().equals(PokerAction.FOLD)) {
+            dat.playerOnSeat(i).setAction(PokerAction.NONE);
+            if(dat.removePlayerFromHand(i) == 1) {
+                onePlayerLeft();
+                return;
             }
+        }
             
-            if(dat.playerOnSeat(i).getAction().equals(PokerAction.RAISE)) {
-                endIndex = i;
-                do {
-                    endIndex++;
-                    if(endIndex>=dat.getMaxHands()) endIndex-= dat.getMaxHands();
-                } while(!dat.seatIsOccupied(endIndex) || !dat.playerOnSeat(endIndex).isInHand());
-            }
-                    
-            //System.out.println(dat.playerOnSeat(i).getAction());
-            dat.playerOnSeat(i).setAction(PokerAction.NONE);
+        if(dat.playerOnSeat(i).getAction().equals(PokerAction.RAISE)) {
+            endIndex = i;
+            do {
+                endIndex++;
+                if(endIndex>=dat.getMaxHands()) endIndex-= dat.getMaxHands();
+            } while(!dat.seatIsOccupied(endIndex) || !dat.playerOnSeat(endIndex).isInHand());
+        }
                     
-        } while(!i.equals(endIndex));
+        //System.out.println(dat.playerOnSeat(i).getAction());
+        dat.playerOnSeat(i).setAction(PokerAction.NONE);
         
-        return dat.getPlayersInHand();
+        continueRound();
     }
     
-    private void onePlayerLeft() throws InterruptedException {
-        //System.out.println("Game is over because everyone folded");
-        /* Find the index of the one remaining player */ 
-        for(Map.Entry<Integer, PlayerData> player :  dat.getPlayerAndIndex().entrySet()) {
-            if(player.getValue().isInHand()) {
-                sendCommandToAll("game:winner:"+player.getKey()+":"+dat.getPot());
-                player.getValue().chipCount += dat.getPot();
-                break;
-            }
-        } 
-                        
-        Thread.sleep(2000);
-        sendCommandToAll("game:end");
+    private void continueRound() {
+        if(actor == endIndex) {
+            roundComplete();
+        } else {
+            nextToAct();
+        }
     }
     
-    private void newRound() throws InterruptedException {
+    /**
+     * Ends the betting round, and after a pause deals the next street, or goes
+     * to showdown after the river.
+     */
+    private void roundComplete() {
         sendCommandToAll("game:rounddone:"+dat.getPot());
                 
         for(Map.Entry<Integer, PlayerData> player : dat.getPlayerAndIndex().entrySet()) {
             if(player.getValue().isInHand()) {
                 player.getValue().currentBet = 0;
+                dat.touchSeat(player.getKey());
                 //System.out.println("Player "+player.getKey()+" has "+player.getValue().chipCount+" chips");
             }
         }
 
         dat.updateStageOfPlay();
-        Thread.sleep(2000);
+        after(ROUND_DELAY, this::nextStreet);
     }
     
-    private void runGame() {
-        while (true) {
-            dat.setGameRunning(false);
-
-            while(dat.getNoPlayers()<2) {
-                try {
-                    synchronized(dat) {
-                        dat.wait();
-                    }
-                } catch(InterruptedException e) {
-                    System.err.println("game thread was interrupted");
-                    System.err.println(e);
-                }
+    private void nextStreet() {
+        try {
+            switch(phase) {
+                case PREFLOP:
+                    dat.resetBoard();
+                    deck.drawCard();
+                    dat.setBoardCard(deck.drawCard(), 0);
+                    dat.setBoardCard(deck.drawCard(), 1);
+                    dat.setBoardCard(deck.drawCard(), 2);
+                    sendCommandToAll("game:flop:"+dat.getBoardCard(0)+":"+dat.getBoardCard(1)+":"+dat.getBoardCard(2));  
+                    record.board(dat.getBoardCard(0), dat.getBoardCard(1), dat.getBoardCard(2));
+                    phase = Phase.FLOP;
+                    break;
+                case FLOP:
+                    deck.drawCard();
+                    dat.setBoardCard(deck.drawCard(), 3);
+                    sendCommandToAll("game:turn:"+dat.getBoardCard(3));
+                    record.board(dat.getBoardCard(3));
+                    phase = Phase.TURN;
+                    break;
+                case TURN:
+                    deck.drawCard();
+                    dat.setBoardCard(deck.drawCard(), 4);
+                    sendCommandToAll("game:river:"+dat.getBoardCard(4));
+                    record.board(dat.getBoardCard(4));
+                    phase = Phase.RIVER;
+                    break;
+                default:
+                    showdown();
+                    return;
             }
-       
-            try {
-                
-                //Nothing wrong with the sleeps in this main loop
-                
-                //System.out.println("Starting game...");
-                Thread.sleep(2000); 
-
-                Integer dealer = dat.getDealer();
-                //<editor-fold defaultstate="collapsed" desc="Finds the dealer, sb and bb positions">
-                do {
-                    dealer--;
-                    if(dealer < 0) dealer += dat.getMaxHands();
-                    //System.out.println(dat.dealer);
-                } while (!dat.seatIsOccupied(dealer));
-                Integer smallBlind = dealer;
-                do {
-                    smallBlind--;
-                    if(smallBlind < 0) smallBlind += dat.getMaxHands();
-                    
-                } while(!dat.seatIsOccupied(smallBlind));
-                Integer bigBlind = smallBlind;
-                do {
-                    bigBlind--;
-                    if(bigBlind < 0) bigBlind += dat.getMaxHands();
-                } while(!dat.seatIsOccupied(bigBlind));
-                
-                //</editor-fold>
-                
-                dat.setDealer(dealer);
-                dat.setSmallBlind(smallBlind);
-                dat.setBigBlind(bigBlind);
-                
-                Thread.sleep(2000);
-            
-                sendCommandToAll("game:start:dealer:"+dat.getDealer()+":small:"+dat.getSmallBlind()+":big:"+dat.getBigBlind());
-                dat.setGameRunning(true);
-                dat.setPlayersInHand(dat.getNoPlayers());
-
-                //<editor-fold defaultstate="collapsed" desc="Deal all of the cards, and send them to the players">
-                //Map<Integer, Cards> hands = new HashMap<>();
-                Deck d = new Deck();
-                
-                Thread.sleep(1000);
-                
-                for(Map.Entry<Integer, PlayerData> player : dat.getPlayerAndIndex().entrySet()) {
-                    //hands.put(player.getKey(), new Cards(2));
-                    //player.getValue().resetHand();
-                    
-                    player.getValue().setHand(d.drawCard(), Card.EMPTY_CARD);
-                    
-                    for(ClientSocket sock : connectedSockets) {
-                        if(!sock.equals(player.getValue().getSocket())) {
-                            sendCommand("game:seat:"+player.getKey()+":card:0:null", sock);
-                        } else {
-                            //sendCommand("game:seat:"+player.getKey()+":card:0:"+hands.get(player.getKey()).getCard(0), player.getValue().getSocket());
-                            sendCommand("game:seat:"+player.getKey()+":card:0:"+player.getValue().getHand().getCard(0), player.getValue().getSocket());
-                        }
-                    }
-                }
-                for(Map.Entry<Integer, PlayerData> player : dat.getPlayerAndIndex().entrySet()) {
-                    //hand.getValue().setCard(d.drawCard(), 1);
-                    player.getValue().getHand().setCard(d.drawCard(), 1);
-                    
-                    for(ClientSocket sock : connectedSockets) {
-                        //if(!sock.equals(dat.playerOnSeat(hand.getKey()).getSocket())) {
-                        if(!sock.equals(player.getValue().getSocket())) {
-                            //sendCommand("game:seat:"+hand.getKey()+":card:1:null", sock);
-                            sendCommand("game:seat:"+player.getKey()+":card:1:null", sock);
-                        } else {
-                            //sendCommand("game:seat:"+hand.getKey()+":card:1:"+hand.getValue().getCard(1), sock);
-                            sendCommand("game:seat:"+player.getKey()+":card:1:"+player.getValue().getHand().getCard(1),sock);
-                        }
-                    }
-                    
-                    //dat.playerOnSeat(hand.getKey()).setInHand(true);
-                    player.getValue().setInHand(true);
-                    player.getValue().setAction(PokerAction.NONE);
-                    //dat.playerOnSeat(hand.getKey()).setAction(PokerAction.NONE);
-                }
-                //</editor-fold>
-                
-                for(Map.Entry<Integer, PlayerData> player : dat.getPlayerAndIndex().entrySet()) {
-                    if(player.getValue().isInHand()) {
-                        //System.out.println(player.getValue().chipCount.toString());
-                        player.getValue().currentBet = 0;
-                        if(player.getKey().equals(dat.getBigBlind())) {
-                            player.getValue().currentBet = 200;
-                            player.getValue().chipCount-=200;
-                        }
-                        if(player.getKey().equals(dat.getSmallBlind())) {
-                            player.getValue().currentBet= 100;
-                            player.getValue().chipCount-=100;
-                        }
-                    }
-                }
-                dat.setPot(300);
-                
-                if(bettingRound(dat.getBigBlind(), 200) == 1) {
-                    onePlayerLeft();
-                    continue;
-                }
-                
-                newRound();
-                
-                dat.resetBoard();
-                d.drawCard();
-                dat.setBoardCard(d.drawCard(), 0);
-                dat.setBoardCard(d.drawCard(), 1);
-                dat.setBoardCard(d.drawCard(), 2);
-            
-                sendCommandToAll("game:flop:"+dat.getBoardCard(0)+":"+dat.getBoardCard(1)+":"+dat.getBoardCard(2));  
-                
-                if(bettingRound(dat.getDealer(), 0) == 1) {
-                    onePlayerLeft();
-                    continue;
-                }
-                
-                newRound();
+        } catch(DrawCardException e) {
+            System.err.println("Exception occured when playing the game");
+            System.err.println(e);
+            waitForPlayers();
+            return;
+        }
+        startBettingRound(dat.getDealer(), 0);
+    }
+    //</editor-fold>
+    
+    //<editor-fold defaultstate="collapsed" desc="Ending a hand">
+    private void onePlayerLeft() {
+        cancelTimer();
+        //System.out.println("Game is over because everyone folded");
+        /* Find the index of the one remaining player */ 
+        for(Map.Entry<Integer, PlayerData> player :  dat.getPlayerAndIndex().entrySet()) {
+            if(player.getValue().isInHand()) {
+                sendCommandToAll("game:winner:"+player.getKey()+":"+dat.getPot());
+                record.win(player.getKey(), dat.getPot());
+                player.getValue().chipCount += dat.getPot();
+                dat.touchSeat(player.getKey());
+                break;
+            }
+        } 
+        
+        /* Nobody can act until the next hand */
+        phase = Phase.STARTING;
+        after(END_DELAY, () -> {
+            sendCommandToAll("game:end");
+            handEnded(dat.getPot());
+            waitForPlayers();
+        });
+    }
+    
+    private void showdown() {
+        //System.out.println("Board is "+dat.getBoard());
 
-                d.drawCard();
-                dat.setBoardCard(d.drawCard(), 3);
-            
-                sendCommandToAll("game:turn:"+dat.getBoardCard(3));
+        ScoredBoard bestScoredBoard = null;
+        Integer bestIndex = 0;
                 
-                if(bettingRound(dat.getDealer(), 0) == 1) {
-                    onePlayerLeft();
-                    continue;
+        for(Map.Entry<Integer, PlayerData> player : dat.getPlayerAndIndex().entrySet()) {
+            if(player.getValue().isInHand()) {
+                //System.out.println(player.getKey());
+                ScoredBoard newScoredBoard = Poker.getBestBoard(player.getValue().getHand(), dat.getBoard(), rankings);
+                //System.out.println(newScoredBoard);
+                if(bestScoredBoard == null || newScoredBoard.getScore().compareTo(bestScoredBoard.getScore()) > 0) {
+                    bestScoredBoard = newScoredBoard;
+                    bestIndex = player.getKey();
                 }
+            }
+        }
+        
+        //System.out.println("Player "+bestIndex+" wins, with "+bestScoredBoard.toString());
+        
+        sendCommandToAll("game:winner:"+bestIndex+":"+dat.getPot()+":"+bestScoredBoard.toString());
                 
-                newRound();
+        dat.playerOnSeat(bestIndex).chipCount += dat.getPot();
+        record.win(bestIndex, dat.getPot());
+        dat.touchSeat(bestIndex);
             
-                d.drawCard();
-                dat.setBoardCard(d.drawCard(), 4);
-            
-                sendCommandToAll("game:river:"+dat.getBoardCard(4));
-                
-                if(bettingRound(dat.getDealer(), 0) == 1) {
-                    onePlayerLeft();
-                    continue;
-                }      
-                
-                newRound();
-                
-                //System.out.println("Board is "+dat.getBoard());
-
-                ScoredBoard bestScoredBoard = null;
-                Integer bestIndex = 0;
-                
-                for(Map.Entry<Integer, PlayerData> player : dat.getPlayerAndIndex().entrySet()) {
-                    if(player.getValue().isInHand()) {
-                        //System.out.println(player.getKey());
-                        ScoredBoard newScoredBoard = Poker.getBestBoard(player.getValue().getHand(), dat.getBoard());
-                        //System.out.println(newScoredBoard);
-                        if(bestScoredBoard == null || newScoredBoard.getScore().compareTo(bestScoredBoard.getScore()) > 0) {
-                            bestScoredBoard = newScoredBoard;
-                            bestIndex = player.getKey();
-                        }
-                    }
+        dat.updateStageOfPlay();
+        sendCommandToAll("game:end");
+        handEnded(dat.getPot());
+        waitForPlayers();
+    }
+    //</editor-fold>
+    
+    /**
+     * Tells the lobby about the current state of the table.
+     */
+    private void updateLobby() {
+        int averagePot = handsPlayed == 0 ? 0 : (int)(potTotal / handsPlayed);
+        lobby.update(new TableSummary(dat.getTableID(), dat.getMaxHands(), 
+                dat.getNoPlayers(), dat.isGameRunning(), averagePot, dat.getConfig()));
+    }
+    
+    /**
+     * Tears down the table, so long as nobody is sat at it or watching it. 
+     * Commands which were on their way to the table are ignored once it has 
+     * been closed.
+     * @param onClose Run, on the loop of the table, if it was closed.
+     */
+    void closeIfIdle(Runnable onClose) {
+        events.execute(() -> {
+            if(closed || phase != Phase.WAITING || dat.getNoPlayers() > 0 
+                    || connectedSockets.size() > 0) return;
+            closed = true;
+            cancelTimer();
+            onClose.run();
+        });
+    }
+    
+    /**
+     * Tears down the table once nobody is sat at it, whether or not anyone 
+     * is watching, e.g. when a tournament is done with it.
+     * @param onClose Run, on the loop of the table, if it was closed.
+     */
+    void close(Runnable onClose) {
+        events.execute(() -> {
+            if(closed || dat.getNoPlayers() > 0) return;
+            closed = true;
+            cancelTimer();
+            onClose.run();
+        });
+    }
+    
+    /**
+     * Records the pot of a finished hand, and tells the lobby.
+     * @param pot The size of the pot at the end of the hand.
+     */
+    private void handEnded(int pot) {
+        handsPlayed++;
+        potTotal += pot;
+        updateLobby();
+        if(history != null) {
+            history.append(record.end(pot));
+        }
+        
+        /* Tournament chips aren't real, so only cash tables count */
+        if(balances != null && listener == null) {
+            startingChips.forEach((player, start) -> {
+                if(player.getUserID() >= 0) {
+                    balances.record(player.getUserID(), player.chipCount - start);
                 }
-            
-                //System.out.println("Player "+bestIndex+" wins, with "+bestScoredBoard.toString());
-                
-                sendCommandToAll("game:winner:"+bestIndex+":"+dat.getPot()+":"+bestScoredBoard.toString());
-                
-                dat.playerOnSeat(bestIndex).chipCount += dat.getPot();
-            
-                dat.updateStageOfPlay();
-                sendCommandToAll("game:end");
-            
-            } catch(DrawCardException | InterruptedException | IllegalMonitorStateException e) {
-                System.err.println("Exception occured when playing the game");
-                System.err.println(e);
+            });
+        }
+        startingChips.clear();
+        
+        if(listener != null) {
+            Map<PlayerData, Integer> chips = new HashMap<>();
+            dat.getPlayers().forEach((player) -> chips.put(player, player.chipCount));
+            listener.handEnded(this, chips);
+        }
+    }
+    
+    /**
+     * Makes this a tournament table. Players can no longer sit or stand up 
+     * themselves, and the listener is told about the end of every hand.
+     * @param listener The listener, or null to make it a normal table again.
+     */
+    void setHandListener(HandListener listener) {
+        events.execute(() -> this.listener = listener);
+    }
+    
+    /**
+     * @param accounts The connections, to find who the players who sit down
+     * are.
+     */
+    void setAccounts(ConnectionRegistry accounts) {
+        events.execute(() -> this.accounts = accounts);
+    }
+    
+    /**
+     * Keeps the winnings of users who play at this table.
+     * @param balances Where to keep them.
+     */
+    void setBalances(BalanceStore balances) {
+        events.execute(() -> this.balances = balances);
+    }
+    
+    /**
+     * Takes the state of the table which is kept across a restart. The chips
+     * of the players are as they were at the start of the hand being played,
+     * if any, as the hand is lost. Tournament tables aren't kept, as the rest
+     * of the tournament isn't.
+     * @param onSaved Given the state, or null for a tournament table or one
+     * which has been closed. Run on the loop of the table.
+     */
+    void save(Consumer<SavedState> onSaved) {
+        events.execute(() -> {
+            if(closed || listener != null) {
+                onSaved.accept(null);
+                return;
+            }
+            Map<Integer, PlayerData> players = dat.getPlayerAndIndex();
+            int[] seats = new int[players.size()];
+            int[] userIDs = new int[players.size()];
+            int[] chips = new int[players.size()];
+            int n = 0;
+            for(Map.Entry<Integer, PlayerData> player : players.entrySet()) {
+                /* Guests can't come back for their seats, so aren't kept */
+                if(player.getValue().getUserID() < 0) continue;
+                seats[n] = player.getKey();
+                userIDs[n] = player.getValue().getUserID();
+                chips[n] = startingChips.getOrDefault(player.getValue(), player.getValue().chipCount);
+                n++;
             }
+            onSaved.accept(new SavedState(dat.getTableID(), dat.getMaxHands(), dat.getConfig(), 
+                    dat.getDealer(), handsPlayed, potTotal, Arrays.copyOf(seats, n),
+                    Arrays.copyOf(userIDs, n), Arrays.copyOf(chips, n)));
+        });
+    }
+    
+    /**
+     * Puts back the players of a table saved before a restart. Their seats 
+     * are kept for them until they come back, or RESUME_GRACE has passed, and
+     * no hand is started until then.
+     * @param state The saved state of the table.
+     */
+    void restore(SavedState state) {
+        events.execute(() -> {
+            handsPlayed = state.handsPlayed;
+            potTotal = state.potTotal;
+            dat.setDealer(state.dealer);
+            for(int i = 0; i<state.seats.length; i++) {
+                /* Guests and anyone who isn't known can't come back for 
+                 * their seat, as in TableManager.restore
+                 */
+                if(state.userIDs[i] < 0 || dat.seatIsOccupied(state.seats[i])) continue;
+                PlayerData player = new PlayerData(state.chips[i], new Cards(2), null);
+                player.setUserID(state.userIDs[i]);
+                dat.setSeatOccupied(state.seats[i], player);
+                held.add(state.seats[i]);
+            }
+            updateLobby();
+            if(!held.isEmpty() && releaseTimer == null) {
+                releaseTimer = timers.newTimeout(() -> events.execute(() -> {
+                    releaseTimer = null;
+                    releaseHeld();
+                }), RESUME_GRACE, TimeUnit.MILLISECONDS);
+            }
+        });
+    }
+    
+    /**
+     * Gives a player who has come back after a restart their seats again.
+     * @param userID The ID of the player.
+     * @param socket The socket they have now.
+     */
+    void reclaim(int userID, ClientSocket socket) {
+        events.execute(() -> {
+            for(int seat : new ArrayList<>(held)) {
+                if(dat.playerOnSeat(seat).getUserID() != userID) continue;
+                dat.playerOnSeat(seat).setSocket(socket);
+                held.remove(seat);
+                connectedSockets.add(socket);
+            }
+            if(held.isEmpty() && releaseTimer != null) {
+                releaseTimer.cancel();
+                releaseTimer = null;
+                if(phase == Phase.WAITING) checkStart();
+            }
+        });
+    }
+    
+    /**
+     * Frees the restored seats of players who didn't come back in time.
+     */
+    private void releaseHeld() {
+        if(held.isEmpty()) return;
+        List<Integer> seats = new ArrayList<>(held);
+        held.clear();
+        for(int seat : seats) {
+            dat.setSeatFree(seat);
+            sendCommandToAll("seatvacated:" + seat);
         }
+        updateLobby();
+        checkStart();
+    }
+    
+    /**
+     * Writes the history of every hand played at this table, from the next 
+     * hand on.
+     * @param history Where to write it.
+     */
+    void setHistory(HandHistoryWriter history) {
+        events.execute(() -> this.history = history);
+    }
+    
+    /**
+     * Remembers the rankings of hands at the showdown, from the next one on.
+     * @param rankings Where to remember them, which may be shared between
+     * tables.
+     */
+    void setRankings(HandRankingCache rankings) {
+        events.execute(() -> this.rankings = rankings);
+    }
+    
+    /**
+     * Sets the blinds, from the next hand on.
+     * @param small The small blind.
+     * @param big The big blind.
+     */
+    void setBlinds(int small, int big) {
+        events.execute(() -> {
+            dat.setConfig(dat.getConfig().withBlinds(small, big));
+        });
+    }
+    
+    /**
+     * Sits a player at the first free seat. If a hand is being played, they 
+     * join in from the next hand.
+     * @param player The player to seat.
+     * @param onSeated Given the seat the player was put in, or -1 if the table
+     * was full. Run on the loop of the table.
+     */
+    void seat(PlayerData player, IntConsumer onSeated) {
+        events.execute(() -> {
+            for(int i = 0; i<dat.getMaxHands(); i++) {
+                if(!dat.seatIsOccupied(i)) {
+                    seatPlayer(i, player);
+                    onSeated.accept(i);
+                    return;
+                }
+            }
+            onSeated.accept(-1);
+        });
+    }
+    
+    /**
+     * Takes a player away from the table, so long as they aren't in the 
+     * middle of a hand.
+     * @param player The player to remove.
+     * @param onRemoved Given true if the player was removed, or wasn't at the
+     * table, or false if they are in a hand. Run on the loop of the table.
+     */
+    void unseat(PlayerData player, Consumer<Boolean> onRemoved) {
+        events.execute(() -> {
+            int seat = -1;
+            for(int i = 0; i<dat.getMaxHands(); i++) {
+                if(dat.seatIsOccupied(i) && dat.playerOnSeat(i) == player) seat = i;
+            }
+            /* Already gone, e.g. unseated twice by a tournament which ended */
+            if(seat < 0) {
+                onRemoved.accept(true);
+                return;
+            }
+            if(phase != Phase.WAITING && phase != Phase.STARTING) {
+                onRemoved.accept(false);
+                return;
+            }
+            dat.setSeatFree(seat);
+            updateLobby();
+            sendCommandToAll("seatvacated:" + seat);
+            connectedSockets.remove(player.getSocket());
+            onRemoved.accept(true);
+        });
     }
     
     int getNoHands() {
@@ -499,13 +1187,37 @@ public class PokerTable {
         return dat;
     }
     
+    /**
+     * Starts sending the updates of the table to a socket, if it isn't 
+     * already viewing the table.
+     * @param s The socket viewing the table.
+     */
+    void view(ClientSocket s) {
+        connectedSockets.add(s);
+    }
+    
+    /**
+     * Moves everything a socket has at the table over to another socket, i.e.
+     * its seat and its view of the table, when a player connects again.
+     * @param oldSocket The socket the player had.
+     * @param newSocket The socket they have now.
+     */
+    void replaceSocket(ClientSocket oldSocket, ClientSocket newSocket) {
+        events.execute(() -> {
+            for(PlayerData player : dat.getPlayerAndIndex().values()) {
+                if(player.getSocket() == oldSocket) player.setSocket(newSocket);
+            }
+            if(connectedSockets.remove(oldSocket)) connectedSockets.add(newSocket);
+        });
+    }
+    
     public void addSocket(ClientSocket s) {
         connectedSockets.add(s);
     }
     public void removeSocket(ClientSocket s) {
         connectedSockets.remove(s);
     }
-    public List<ClientSocket> getSockets() {
+    public SpectatorSet getSockets() {
         return connectedSockets;
     }
     public boolean hasSocket(ClientSocket s) {
@@ -0,0 +1,295 @@
+/*
+ * Copyright (C) 2018 Em Poulter <em@poulter.space>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package space.poulter.poker.server;
+
+import at.favre.lib.crypto.bcrypt.BCrypt;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Adds users to the database in bulk, from a file with one user per line of
+ * the form "$name,$password", where the password is everything after the
+ * first comma. Empty lines, and lines starting with #, are ignored.
+ * <p>
+ * Hashing the passwords is by far the slowest part, so the users are read a
+ * batch at a time, and each batch is hashed across all of the cores while the
+ * one before it is written. Each batch is written as a single JDBC batch in
+ * its own transaction. If that fails (e.g. because a name is already taken),
+ * the batch is rolled back and its users are written again one at a time, so
+ * only the bad ones are left out, and each of them is reported by its line.
+ * Passwords longer than bcrypt allows are reported when they are read.
+ * <p>
+ * Usage: ProvisionUsers $file [-dburl $url] [-user $user] [-password $pwd]
+ * [-batch $size] [-threads $n] [-disabled]
+ *
+ * @author Em Poulter <em@poulter.space>
+ */
+public class ProvisionUsers {
+
+    static final String DEFAULT_DB_URL = "jdbc:mysql://localhost:3306/poker?useSSL=no";
+    static final String DEFAULT_DB_USER = "poker";
+    static final int DEFAULT_BATCH_SIZE = 500;
+    /* The same cost as the users who sign up normally */
+    static final int BCRYPT_COST = 10;
+    /* The longest password bcrypt takes, in bytes of UTF-8, leaving room 
+     * for the null on the end
+     */
+    static final int MAX_PASSWORD_BYTES = 71;
+
+    private static final String INSERT_USER =
+            "insert into user (name, crypt, enabled) values (?, ?, ?)";
+
+    /* A user read from the file, whose password is being hashed */
+    private static class User {
+        final long line;
+        final String name;
+        final Future<String> crypt;
+
+        User(long line, String name, Future<String> crypt) {
+            this.line = line;
+            this.name = name;
+            this.crypt = crypt;
+        }
+    }
+
+    private final String file;
+    private String dbURL;
+    private String dbUser;
+    private String dbPassword;
+    private int batchSize;
+    private int threads;
+    private boolean enabled;
+
+    private long written;
+    private long failed;
+    private long start;
+    private long lines;
+
+    private static void sendHelp() {
+        System.out.println("Usage: ProvisionUsers $file [-dburl $url] [-user $user] "
+                + "[-password $pwd] [-batch $size] [-threads $n] [-disabled]");
+
+        System.exit(-1);
+    }
+
+    public ProvisionUsers(String args[]) {
+        if(args.length < 1 || args[0].startsWith("-")) sendHelp();
+        file = args[0];
+        dbURL = DEFAULT_DB_URL;
+        dbUser = DEFAULT_DB_USER;
+        dbPassword = "";
+        batchSize = DEFAULT_BATCH_SIZE;
+        threads = Runtime.getRuntime().availableProcessors();
+        enabled = true;
+
+        Iterator<String> it = Arrays.asList(args).subList(1, args.length).iterator();
+        while(it.hasNext()) {
+            String s = it.next();
+            switch(s) {
+                case "-dburl":
+                        dbURL = value(it, s);
+                        break;
+                case "-user":
+                        dbUser = value(it, s);
+                        break;
+                case "-password":
+                        dbPassword = value(it, s);
+                        break;
+                case "-batch":
+                        batchSize = parsePositive(value(it, s), "batch size");
+                        break;
+                case "-threads":
+                        threads = parsePositive(value(it, s), "number of threads");
+                        break;
+                case "-disabled":
+                        enabled = false;
+                        break;
+                default: System.err.println("The command line option '"+s+"' was not recognised");
+                         sendHelp();
+            }
+        }
+    }
+
+    /**
+     * @return The value given after an option, e.g. the URL after -dburl.
+     */
+    private static String value(Iterator<String> it, String option) {
+        if(!it.hasNext()) {
+            System.err.println("The command line option '"+option+"' needs a value");
+            sendHelp();
+        }
+        return it.next();
+    }
+
+    private static int parsePositive(String val, String name) {
+        try {
+            int i = Integer.parseInt(val);
+            if(i < 1) throw new NumberFormatException();
+            return i;
+        } catch(NumberFormatException e) {
+            System.err.println("The "+name+" '"+val+"' was not a valid amount.");
+            sendHelp();
+            return -1;
+        }
+    }
+
+    /**
+     * Reads, hashes and writes all of the users in the file.
+     */
+    public void run() throws IOException, SQLException, InterruptedException {
+        if(dbURL.startsWith("jdbc:mysql:")) {
+            try {
+                Class.forName("com.mysql.cj.jdbc.Driver");
+            } catch(ClassNotFoundException ex) {
+                System.err.println("Could not find jdbc connector");
+                System.err.println(ex);
+            }
+        }
+
+        ExecutorService hashers = Executors.newFixedThreadPool(threads);
+        start = System.nanoTime();
+        try(BufferedReader reader = Files.newBufferedReader(Paths.get(file), StandardCharsets.UTF_8);
+                Connection conn = DriverManager.getConnection(dbURL, dbUser, dbPassword);
+                PreparedStatement insert = conn.prepareStatement(INSERT_USER)) {
+            conn.setAutoCommit(false);
+
+            /* Hash each batch while the one before it is written */
+            List<User> writing = null;
+            List<User> hashing;
+            while(!(hashing = readBatch(reader, hashers)).isEmpty()) {
+                if(writing != null) write(conn, insert, writing);
+                writing = hashing;
+            }
+            if(writing != null) write(conn, insert, writing);
+        } finally {
+            hashers.shutdownNow();
+        }
+        System.out.print("Finished: ");
+        report();
+    }
+
+    /**
+     * Reads up to a batch of users, and starts hashing their passwords.
+     * @return The users being hashed, which is empty at the end of the file.
+     */
+    private List<User> readBatch(BufferedReader reader, ExecutorService hashers) throws IOException {
+        List<User> batch = new ArrayList<>(batchSize);
+        String line;
+        while(batch.size() < batchSize && (line = reader.readLine()) != null) {
+            lines++;
+            if(line.isEmpty() || line.startsWith("#")) continue;
+            int comma = line.indexOf(',');
+            if(comma <= 0) {
+                System.err.println("Skipping line "+lines+", which has no name and password");
+                failed++;
+                continue;
+            }
+            String name = line.substring(0, comma).trim();
+            String password = line.substring(comma+1);
+            if(password.getBytes(StandardCharsets.UTF_8).length > MAX_PASSWORD_BYTES) {
+                System.err.println("Skipping line "+lines+", as the password of "+name
+                        +" is longer than "+MAX_PASSWORD_BYTES+" bytes");
+                failed++;
+                continue;
+            }
+            char[] chars = password.toCharArray();
+            batch.add(new User(lines, name, hashers.submit(() ->
+                    new String(BCrypt.withDefaults().hashToChar(BCRYPT_COST, chars)))));
+        }
+        return batch;
+    }
+
+    private void write(Connection conn, PreparedStatement insert, List<User> batch)
+            throws SQLException, InterruptedException {
+        try {
+            for(User user : batch) {
+                add(insert, user);
+            }
+            insert.executeBatch();
+            conn.commit();
+            written += batch.size();
+        } catch(SQLException | ExecutionException ex) {
+            System.err.println("Exception when writing a batch of users, so writing them one at a time");
+            System.err.println(ex);
+            insert.clearBatch();
+            conn.rollback();
+            for(User user : batch) {
+                writeOne(conn, insert, user);
+            }
+        }
+        report();
+    }
+
+    /**
+     * Writes a single user, from a batch which failed.
+     */
+    private void writeOne(Connection conn, PreparedStatement insert, User user)
+            throws SQLException, InterruptedException {
+        try {
+            add(insert, user);
+            insert.executeBatch();
+            conn.commit();
+            written++;
+        } catch(SQLException | ExecutionException ex) {
+            System.err.println("Could not write "+user.name+" from line "+user.line);
+            System.err.println(ex);
+            insert.clearBatch();
+            conn.rollback();
+            failed++;
+        }
+    }
+
+    private void add(PreparedStatement insert, User user)
+            throws SQLException, ExecutionException, InterruptedException {
+        insert.setString(1, user.name);
+        insert.setString(2, user.crypt.get());
+        insert.setBoolean(3, enabled);
+        insert.addBatch();
+    }
+
+    private void report() {
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("%d users written, %d failed, in %.1fs (%.0f users/s)%n",
+                written, failed, seconds, seconds > 0 ? written / seconds : 0);
+    }
+
+    public static void main(String args[]) {
+        try {
+            new ProvisionUsers(args).run();
+        } catch(IOException | SQLException | InterruptedException ex) {
+            System.err.println("Could not provision users");
+            System.err.println(ex);
+            System.exit(-1);
+        }
+    }
+}
@@ -0,0 +1,232 @@
+/*
+ * Copyright (C) 2018 Em Poulter <em@poulter.space>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package space.poulter.poker.server;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.StringJoiner;
+import space.poulter.poker.Card;
+import space.poulter.poker.Poker.PokerAction;
+
+/**
+ * Finds hands in the hand history, and plays them back as the commands which
+ * a client watching the table would have been sent, with the same pauses as
+ * the table makes, sped up.
+ * <p>
+ * Usage: ReplayTool $dir [-player $id] [-table $id] [-last $minutes]
+ * [-from $ms] [-to $ms] [-speed $x] [-list]
+ * <p>
+ * With -list, only a line about each hand is printed. A speed of 0 plays the
+ * hands back without any pauses.
+ *
+ * @author Em Poulter <em@poulter.space>
+ */
+public class ReplayTool {
+
+    static final double DEFAULT_SPEED = 10;
+    /* How long to pause between actions, as they weren't timed */
+    static final long ACTION_DELAY = 1000;
+    private static final String[] STREETS = {"flop", "turn", "river"};
+
+    private final String dir;
+    private int userID;
+    private int tableID;
+    private long from;
+    private long to;
+    private double speed;
+    private boolean list;
+
+    private static void sendHelp() {
+        System.out.println("Usage: ReplayTool $dir [-player $id] [-table $id] [-last $minutes] "
+                + "[-from $ms] [-to $ms] [-speed $x] [-list]");
+
+        System.exit(-1);
+    }
+
+    public ReplayTool(String args[]) {
+        if(args.length < 1 || args[0].startsWith("-")) sendHelp();
+        dir = args[0];
+        userID = -1;
+        tableID = -1;
+        from = Long.MIN_VALUE;
+        to = Long.MAX_VALUE;
+        speed = DEFAULT_SPEED;
+        list = false;
+
+        Iterator<String> it = Arrays.asList(args).subList(1, args.length).iterator();
+        while(it.hasNext()) {
+            String s = it.next();
+            String val;
+            try {
+                switch(s) {
+                    case "-player":
+                            val = it.next();
+                            userID = Integer.parseInt(val);
+                            break;
+                    case "-table":
+                            val = it.next();
+                            tableID = Integer.parseInt(val);
+                            break;
+                    case "-last":
+                            val = it.next();
+                            from = System.currentTimeMillis() - Long.parseLong(val) * 60000;
+                            break;
+                    case "-from":
+                            val = it.next();
+                            from = Long.parseLong(val);
+                            break;
+                    case "-to":
+                            val = it.next();
+                            to = Long.parseLong(val);
+                            break;
+                    case "-speed":
+                            val = it.next();
+                            speed = Double.parseDouble(val);
+                            if(speed < 0) throw new NumberFormatException();
+                            break;
+                    case "-list":
+                            list = true;
+                            break;
+                    default: System.err.println("The command line option '"+s+"' was not recognised");
+                             sendHelp();
+                }
+            } catch(NumberFormatException e) {
+                System.err.println("The value given for '"+s+"' was not valid.");
+                sendHelp();
+            }
+        }
+    }
+
+    public void run() throws IOException, InterruptedException {
+        HandHistoryIndex index = new HandHistoryIndex(Paths.get(dir));
+        index.refresh();
+        List<HandHistoryIndex.Entry> found = index.query(userID, tableID, from, to);
+        System.out.println("Found "+found.size()+" of "+index.size()+" hands");
+
+        HandHistoryReader reader = new HandHistoryReader(Paths.get(dir));
+        for(HandHistoryIndex.Entry entry : found) {
+            HandHistoryReader.Hand hand = reader.read(entry);
+            if(hand == null) {
+                System.err.println("Hand "+entry.getSeq()+" is in the index but not the history");
+                continue;
+            }
+            if(list) {
+                System.out.println(hand.getSeq()+": table "+hand.getTableID()+" hand "+hand.getHandNumber()
+                        +" at "+new Date(hand.getTime())+", "+hand.getSmallBlind()+"/"+hand.getBigBlind()
+                        +" "+hand.getLimit());
+            } else {
+                replay(hand);
+            }
+        }
+    }
+
+    /**
+     * Prints the commands of a hand, pausing between them.
+     */
+    private void replay(HandHistoryReader.Hand hand) throws InterruptedException {
+        String prefix = "ID:"+hand.getTableID()+":";
+        System.out.println("# Hand "+hand.getSeq()+" at "+new Date(hand.getTime()));
+        send(prefix+"game:start:dealer:"+hand.getDealer()+":small:"+hand.getSmallBlindSeat()
+                +":big:"+hand.getBigBlindSeat(), PokerTable.DEAL_DELAY);
+
+        /* Actions are recorded as the chips put in, but sent as the bet */
+        Map<Integer, Integer> bets = new HashMap<>();
+        int[] pot = {0};
+        int[] street = {0};
+        InterruptedException[] interrupted = {null};
+        hand.replay(new HandHistoryReader.Visitor() {
+            @Override
+            public void hole(int seat, Card first, Card second) {
+                print(prefix+"game:seat:"+seat+":card:0:"+first);
+                print(prefix+"game:seat:"+seat+":card:1:"+second);
+            }
+            @Override
+            public void post(int seat, byte kind, int amount) {
+                pot[0] += amount;
+                if(kind != HandRecord.ANTE) bets.merge(seat, amount, Integer::sum);
+            }
+            @Override
+            public void action(int seat, PokerAction action, int amount) {
+                pot[0] += amount;
+                int bet = bets.merge(seat, amount, Integer::sum);
+                if(action == PokerAction.CALL || action == PokerAction.RAISE) {
+                    pause(prefix+"game:seat:"+seat+":action:"+action+":"+bet, ACTION_DELAY);
+                } else {
+                    pause(prefix+"game:seat:"+seat+":action:"+action, ACTION_DELAY);
+                }
+            }
+            @Override
+            public void board(Card[] cards) {
+                bets.clear();
+                pause(prefix+"game:rounddone:"+pot[0], PokerTable.ROUND_DELAY);
+                StringJoiner board = new StringJoiner(":");
+                for(Card card : cards) {
+                    board.add(card.toString());
+                }
+                print(prefix+"game:"+STREETS[Math.min(street[0]++, STREETS.length - 1)]+":"+board);
+            }
+            @Override
+            public void win(int seat, int amount) {
+                print(prefix+"game:winner:"+seat+":"+amount);
+            }
+            @Override
+            public void end(int total) {
+                pause(prefix+"game:end", PokerTable.END_DELAY);
+            }
+
+            private void print(String command) {
+                System.out.println(command);
+            }
+            private void pause(String command, long delay) {
+                if(interrupted[0] != null) return;
+                try {
+                    send(command, delay);
+                } catch(InterruptedException e) {
+                    interrupted[0] = e;
+                }
+            }
+        });
+        if(interrupted[0] != null) throw interrupted[0];
+    }
+
+    /**
+     * Waits for the time the table would have, sped up, and prints a command.
+     */
+    private void send(String command, long delay) throws InterruptedException {
+        if(speed > 0) {
+            Thread.sleep((long)(delay / speed));
+        }
+        System.out.println(command);
+    }
+
+    public static void main(String args[]) {
+        try {
+            new ReplayTool(args).run();
+        } catch(IOException | InterruptedException ex) {
+            System.err.println("Could not replay the hands");
+            System.err.println(ex);
+            System.exit(-1);
+        }
+    }
+}
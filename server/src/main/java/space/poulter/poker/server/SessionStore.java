@@ -0,0 +1,242 @@
+/*
+ * Copyright (C) 2018 Em Poulter <em@poulter.space>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package space.poulter.poker.server;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * The sessions of users who have logged in, so that they can connect again
+ * without giving their password. Once a user is let in they are given a token,
+ * and if their connection drops they can send the token back on a new one,
+ * rather than logging in all over again.
+ * <p>
+ * A token holds the ID of the user, when it expires, and some random bytes,
+ * signed with a key which only this server knows. Each user has at most one
+ * token at once, kept here by their ID, so checking a token is a single look
+ * up, and a user can be logged out by forgetting their token. As the key is
+ * made when the server starts, tokens don't outlive the server, unless the
+ * sessions are saved and loaded again (see TableSnapshotter).
+ *
+ * @author Em Poulter <em@poulter.space>
+ */
+public class SessionStore {
+
+    /* How long a token lasts, and how often expired ones are cleared out,
+     * in milliseconds.
+     */
+    static final long DEFAULT_TTL = 3600000;
+    static final long SWEEP_PERIOD = 60000;
+
+    private static final String ALGORITHM = "HmacSHA256";
+    private static final int NONCE_BYTES = 16;
+
+    private static class Session {
+        final String token;
+        final long expiry;
+
+        Session(String token, long expiry) {
+            this.token = token;
+            this.expiry = expiry;
+        }
+    }
+
+    /* A Mac for one thread, and the key it was made with */
+    private static class Signer {
+        final SecretKeySpec key;
+        final Mac mac;
+
+        Signer(SecretKeySpec key) {
+            this.key = key;
+            try {
+                mac = Mac.getInstance(ALGORITHM);
+                mac.init(key);
+            } catch(GeneralSecurityException e) {
+                throw new IllegalStateException(ALGORITHM+" is not available", e);
+            }
+        }
+    }
+
+    /* Each thread makes its Mac again when it sees that the key has changed */
+    private volatile SecretKeySpec key;
+    private final ThreadLocal<Signer> macs;
+    private final SecureRandom random;
+    private final Map<Integer, Session> sessions;
+    private final HashedWheelTimer timers;
+    private final long ttl;
+
+    public SessionStore(HashedWheelTimer timers) {
+        this(timers, DEFAULT_TTL);
+    }
+
+    /**
+     * @param timers The timers to clear out expired tokens with.
+     * @param ttl How long each token lasts, in milliseconds.
+     */
+    public SessionStore(HashedWheelTimer timers, long ttl) {
+        random = new SecureRandom();
+        byte[] secret = new byte[32];
+        random.nextBytes(secret);
+        key = new SecretKeySpec(secret, ALGORITHM);
+        macs = new ThreadLocal<>();
+        sessions = new ConcurrentHashMap<>();
+        this.timers = timers;
+        this.ttl = ttl;
+    }
+
+    /**
+     * Starts clearing out expired tokens periodically.
+     */
+    public void start() {
+        timers.newTimeout(this::sweep, SWEEP_PERIOD, TimeUnit.MILLISECONDS);
+    }
+
+    private void sweep() {
+        long now = System.currentTimeMillis();
+        sessions.values().removeIf((session) -> session.expiry <= now);
+        start();
+    }
+
+    /**
+     * Gives a user a new token, replacing any they had before.
+     * @param userID The ID of the user.
+     * @return The token, which is safe to send as part of a command.
+     */
+    public String issue(int userID) {
+        long expiry = System.currentTimeMillis() + ttl;
+        byte[] nonce = new byte[NONCE_BYTES];
+        random.nextBytes(nonce);
+        Base64.Encoder encoder = Base64.getUrlEncoder().withoutPadding();
+        String payload = userID+"."+expiry+"."+encoder.encodeToString(nonce);
+        String token = payload+"."+encoder.encodeToString(sign(payload));
+        sessions.put(userID, new Session(token, expiry));
+        return token;
+    }
+
+    /**
+     * Checks a token.
+     * @param token The token sent by a client.
+     * @return The ID of the user the token was given to, or null if it isn't
+     * a token we gave out, or it has expired or been replaced.
+     */
+    public Integer verify(String token) {
+        String[] parts = token.split("\\.");
+        if(parts.length != 4) return null;
+        int userID;
+        long expiry;
+        try {
+            userID = Integer.parseInt(parts[0]);
+            expiry = Long.parseLong(parts[1]);
+        } catch(NumberFormatException e) {
+            return null;
+        }
+        if(expiry <= System.currentTimeMillis()) return null;
+
+        byte[] signature;
+        try {
+            signature = Base64.getUrlDecoder().decode(parts[3]);
+        } catch(IllegalArgumentException e) {
+            return null;
+        }
+        String payload = parts[0]+"."+parts[1]+"."+parts[2];
+        if(!MessageDigest.isEqual(signature, sign(payload))) return null;
+
+        Session session = sessions.get(userID);
+        if(session == null || !MessageDigest.isEqual(
+                session.token.getBytes(StandardCharsets.UTF_8),
+                token.getBytes(StandardCharsets.UTF_8))) {
+            return null;
+        }
+        return userID;
+    }
+
+    /**
+     * Forgets the token of a user, e.g. when they log out.
+     * @param userID The ID of the user.
+     */
+    public void revoke(int userID) {
+        sessions.remove(userID);
+    }
+
+    /**
+     * Writes the key and all of the sessions, so they can be loaded again 
+     * after a restart. Anyone who can read them can make tokens for any user,
+     * so they must be kept where only the server can read them.
+     * @param out Where to write them.
+     * @throws IOException If they couldn't be written.
+     */
+    public void save(DataOutput out) throws IOException {
+        byte[] secret = key.getEncoded();
+        out.writeShort(secret.length);
+        out.write(secret);
+        List<Map.Entry<Integer, Session>> saved = new ArrayList<>(sessions.entrySet());
+        out.writeInt(saved.size());
+        for(Map.Entry<Integer, Session> session : saved) {
+            out.writeInt(session.getKey());
+            out.writeUTF(session.getValue().token);
+            out.writeLong(session.getValue().expiry);
+        }
+    }
+
+    /**
+     * Replaces the key and the sessions with saved ones, so the tokens given
+     * out before a restart are still good. Must be called before any tokens
+     * are given out or checked.
+     * @param in Where to read them from.
+     * @throws IOException If they couldn't be read.
+     */
+    public void load(DataInput in) throws IOException {
+        byte[] secret = new byte[in.readUnsignedShort()];
+        in.readFully(secret);
+        key = new SecretKeySpec(secret, ALGORITHM);
+        sessions.clear();
+        long now = System.currentTimeMillis();
+        for(int n = in.readInt(); n > 0; n--) {
+            int userID = in.readInt();
+            Session session = new Session(in.readUTF(), in.readLong());
+            if(session.expiry > now) sessions.put(userID, session);
+        }
+    }
+
+    public int size() {
+        return sessions.size();
+    }
+
+    private byte[] sign(String payload) {
+        SecretKeySpec current = key;
+        Signer signer = macs.get();
+        if(signer == null || signer.key != current) {
+            signer = new Signer(current);
+            macs.set(signer);
+        }
+        return signer.mac.doFinal(payload.getBytes(StandardCharsets.UTF_8));
+    }
+}
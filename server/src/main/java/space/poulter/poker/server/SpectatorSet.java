@@ -0,0 +1,89 @@
+/*
+ * Copyright (C) 2018 Em Poulter <em@poulter.space>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package space.poulter.poker.server;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import space.poulter.poker.ClientSocket;
+
+/**
+ * The sockets viewing a table. Sockets join and leave rarely, but every
+ * command at the table is sent to all of them, so the set is built for
+ * reading. Membership is a concurrent hash set, and alongside it is an array
+ * of the members which is rebuilt whenever they change. Sending to everyone
+ * just goes through the current array, which never changes under it.
+ *
+ * @author Em Poulter <em@poulter.space>
+ */
+public class SpectatorSet {
+
+    private static final ClientSocket[] EMPTY = new ClientSocket[0];
+
+    private final Set<ClientSocket> members;
+    private volatile ClientSocket[] snapshot;
+
+    public SpectatorSet() {
+        members = ConcurrentHashMap.newKeySet();
+        snapshot = EMPTY;
+    }
+
+    /**
+     * Adds a socket to the set. Safe to call from any thread.
+     * @param socket The socket to add.
+     * @return true if the socket wasn't already in the set.
+     */
+    public boolean add(ClientSocket socket) {
+        if(!members.add(socket)) return false;
+        rebuild();
+        return true;
+    }
+
+    /**
+     * Removes a socket from the set. Safe to call from any thread.
+     * @param socket The socket to remove.
+     * @return true if the socket was in the set.
+     */
+    public boolean remove(ClientSocket socket) {
+        if(!members.remove(socket)) return false;
+        rebuild();
+        return true;
+    }
+
+    public boolean contains(ClientSocket socket) {
+        return members.contains(socket);
+    }
+
+    public int size() {
+        return snapshot.length;
+    }
+
+    /**
+     * @return The sockets in the set, as of the last change. The array must
+     * not be modified.
+     */
+    public ClientSocket[] snapshot() {
+        return snapshot;
+    }
+
+    /* Changes are rare enough that rebuilding the whole array under a lock is
+     * cheaper than anything cleverer.
+     */
+    private synchronized void rebuild() {
+        snapshot = members.toArray(EMPTY);
+    }
+}
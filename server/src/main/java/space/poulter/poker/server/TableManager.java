@@ -0,0 +1,404 @@
+/*
+ * Copyright (C) 2018 Em Poulter <em@poulter.space>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package space.poulter.poker.server;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntPredicate;
+import space.poulter.poker.ClientSocket;
+import space.poulter.poker.Command;
+import space.poulter.poker.GameConfig;
+import space.poulter.poker.HandRankingCache;
+import space.poulter.poker.TableSummary;
+
+/**
+ * Creates and tears down tables while the server is running. Every so often
+ * the manager looks through the lobby, and makes sure there are a few empty
+ * tables of each size for new players to sit at, up to a ceiling on the total
+ * number of tables. Any other tables which have been empty for a while are
+ * closed, so the number of tables follows the number of players.
+ * <p>
+ * The kinds of table kept available may be read from a file, with one kind 
+ * per line, of the form "$seats:$small:$big:$ante:$minBuyIn:$maxBuyIn:$limit", 
+ * where the limit is one of NL, PL or FL. Lines starting with # are ignored.
+ *
+ * @author Em Poulter <em@poulter.space>
+ */
+public class TableManager {
+
+    /**
+     * A kind of table which is kept available.
+     */
+    public static class TableType {
+        private final int seats;
+        private final GameConfig config;
+        
+        public TableType(int seats, GameConfig config) {
+            this.seats = seats;
+            this.config = config;
+        }
+        
+        public int getSeats() {
+            return seats;
+        }
+        public GameConfig getConfig() {
+            return config;
+        }
+        
+        /**
+         * @return Whether a table in the lobby is of this kind.
+         */
+        boolean matches(TableSummary summary) {
+            return summary.getMaxHands() == seats 
+                    && config.equals(summary.getConfig());
+        }
+    }
+    
+    /* The kinds of table which are kept available if none are given */
+    static final List<TableType> DEFAULT_TYPES = Collections.unmodifiableList(List.of(
+            new TableType(6, GameConfig.DEFAULT), 
+            new TableType(8, GameConfig.DEFAULT)));
+    /* The number of empty tables of each size to keep open */
+    static final int SPARE_TABLES = 2;
+    /* How often to check the tables, and how long a table must be empty for
+     * before it is closed, in milliseconds.
+     */
+    static final long SWEEP_PERIOD = 5000;
+    static final long IDLE_TIMEOUT = 60000;
+
+    private final Map<Integer, PokerTable> tables;
+    private final LobbyIndex lobby;
+    private final EventLoop[] loops;
+    private final HashedWheelTimer timers;
+    private final int maxTables;
+    private final List<TableType> types;
+    /* Whether a table ID belongs to this server. In a cluster, each node only
+     * makes tables with the IDs it owns.
+     */
+    private final IntPredicate owns;
+    private final AtomicInteger nextID;
+    /* The number of tables, including any which are still being made */
+    private final AtomicInteger count;
+    /* The connections, and where new tables keep the winnings of users and
+     * the history of their hands, if anywhere.
+     */
+    private volatile ConnectionRegistry accounts;
+    private volatile BalanceStore balances;
+    private volatile HandHistoryWriter history;
+    private volatile HandRankingCache rankings;
+    /* The tables of restored seats, by the ID of the player they are kept for */
+    private final Map<Integer, List<Integer>> held;
+    /* Set once the restored seats have been given a time to be reclaimed by */
+    private final AtomicBoolean heldExpiring;
+    /* When each empty table was first seen to be empty. Only used by sweep */
+    private final Map<Integer, Long> emptySince;
+
+    public TableManager(LobbyIndex lobby, EventLoop[] loops, HashedWheelTimer timers, int maxTables) {
+        this(lobby, loops, timers, maxTables, DEFAULT_TYPES);
+    }
+    
+    public TableManager(LobbyIndex lobby, EventLoop[] loops, HashedWheelTimer timers, int maxTables, List<TableType> types) {
+        this(lobby, loops, timers, maxTables, types, (id) -> true);
+    }
+    
+    public TableManager(LobbyIndex lobby, EventLoop[] loops, HashedWheelTimer timers, int maxTables, List<TableType> types, IntPredicate owns) {
+        this.types = types;
+        this.owns = owns;
+        tables = new ConcurrentHashMap<>();
+        this.lobby = lobby;
+        this.loops = loops;
+        this.timers = timers;
+        this.maxTables = maxTables;
+        nextID = new AtomicInteger(0);
+        count = new AtomicInteger(0);
+        emptySince = new HashMap<>();
+        held = new ConcurrentHashMap<>();
+        heldExpiring = new AtomicBoolean(false);
+    }
+
+    /**
+     * Reads the kinds of table to keep available from a file.
+     * @param file The path of the file.
+     * @return The kinds of table in the file.
+     * @throws IOException If the file couldn't be read.
+     * @throws IllegalArgumentException If a line of the file isn't valid.
+     */
+    public static List<TableType> readTypes(String file) throws IOException, IllegalArgumentException {
+        List<TableType> types = new ArrayList<>();
+        try (BufferedReader reader = Files.newBufferedReader(Paths.get(file))) {
+            String line;
+            while((line = reader.readLine()) != null) {
+                line = line.trim();
+                if(line.isEmpty() || line.startsWith("#")) continue;
+                Command command = new Command(line);
+                int seats = command.parseInt(0);
+                if(seats < 2) {
+                    throw new IllegalArgumentException("Too few seats in "+line);
+                }
+                types.add(new TableType(seats, GameConfig.parse(command, 1)));
+            }
+        }
+        return types;
+    }
+    
+    public List<TableType> getTypes() {
+        return types;
+    }
+
+    /**
+     * Starts checking the tables periodically.
+     */
+    public void start() {
+        timers.newTimeout(() -> loops[0].execute(this::sweep),
+                SWEEP_PERIOD, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @param tableID The ID of a table.
+     * @return The loop which the table is pinned to.
+     */
+    private EventLoop loopFor(int tableID) {
+        return loops[Math.floorMod(tableID, loops.length)];
+    }
+
+    /**
+     * Creates a new table, if there is room for one.
+     * @param noHands The number of seats at the table.
+     * @param config The stakes and betting structure of the table.
+     * @return The new table, or null if there are already as many tables as
+     * are allowed.
+     */
+    public PokerTable create(int noHands, GameConfig config) {
+        /* Take a place for the table first, so that tables made at the same
+         * time can't go over the limit between them.
+         */
+        int n;
+        do {
+            n = count.get();
+            if(n >= maxTables) return null;
+        } while(!count.compareAndSet(n, n+1));
+        int id;
+        do {
+            id = nextID.incrementAndGet();
+        } while(!owns.test(id));
+        PokerTable table = newTable(id, noHands, config);
+        tables.put(id, table);
+        return table;
+    }
+    
+    private PokerTable newTable(int id, int noHands, GameConfig config) {
+        PokerTable table = new PokerTable();
+        table.init(id, noHands, config, lobby, loopFor(id), timers);
+        if(accounts != null) {
+            table.setAccounts(accounts);
+        }
+        if(balances != null) {
+            table.setBalances(balances);
+        }
+        if(history != null) {
+            table.setHistory(history);
+        }
+        if(rankings != null) {
+            table.setRankings(rankings);
+        }
+        return table;
+    }
+    
+    /**
+     * Makes a table again as it was saved before a restart, keeping the seats
+     * for the players until they come back (see PokerTable.restore).
+     * @param state The saved state of the table.
+     * @return The table, or null if there is already a table with its ID.
+     */
+    public PokerTable restore(PokerTable.SavedState state) {
+        if(tables.containsKey(state.tableID)) return null;
+        nextID.accumulateAndGet(state.tableID, Math::max);
+        PokerTable table = newTable(state.tableID, state.noHands, state.config);
+        table.restore(state);
+        count.incrementAndGet();
+        for(int userID : state.userIDs) {
+            /* Players who aren't known can't come back for their seats */
+            if(userID < 0) continue;
+            held.computeIfAbsent(userID, (id) -> new ArrayList<>()).add(state.tableID);
+        }
+        tables.put(state.tableID, table);
+        /* The tables are all restored together at startup, and after the 
+         * grace the seats are gone whether or not they were taken.
+         */
+        if(heldExpiring.compareAndSet(false, true)) {
+            timers.newTimeout(held::clear, PokerTable.RESUME_GRACE, TimeUnit.MILLISECONDS);
+        }
+        return table;
+    }
+    
+    /**
+     * Gives a player who has come back after a restart the seats which were
+     * kept for them.
+     * @param userID The ID of the player.
+     * @param socket The socket they have now.
+     * @return The IDs of the tables they had seats at.
+     */
+    public List<Integer> reclaim(int userID, ClientSocket socket) {
+        List<Integer> tableIDs = held.remove(userID);
+        if(tableIDs == null) return Collections.emptyList();
+        for(int tableID : tableIDs) {
+            PokerTable table = tables.get(tableID);
+            if(table != null) table.reclaim(userID, socket);
+        }
+        return tableIDs;
+    }
+
+    /**
+     * @param accounts The connections, which the tables made from now on use
+     * to find the players who sit down.
+     */
+    public void setAccounts(ConnectionRegistry accounts) {
+        this.accounts = accounts;
+    }
+
+    /**
+     * Keeps the winnings of users at all of the tables made from now on.
+     * @param balances Where to keep them.
+     */
+    public void setBalances(BalanceStore balances) {
+        this.balances = balances;
+    }
+
+    /**
+     * Writes the history of the hands at all of the tables made from now on.
+     * @param history Where to write it.
+     */
+    public void setHistory(HandHistoryWriter history) {
+        this.history = history;
+    }
+
+    /**
+     * Remembers the rankings of hands at the showdown at all of the tables
+     * made from now on.
+     * @param rankings Where to remember them.
+     */
+    public void setRankings(HandRankingCache rankings) {
+        this.rankings = rankings;
+    }
+
+    public PokerTable get(int tableID) {
+        return tables.get(tableID);
+    }
+    
+    /**
+     * @return All of the tables at the moment.
+     */
+    public List<PokerTable> getTables() {
+        return new ArrayList<>(tables.values());
+    }
+
+    public int size() {
+        return tables.size();
+    }
+
+    /**
+     * Stops a socket from viewing any of the tables, e.g. when it has closed.
+     * @param socket The socket to remove.
+     */
+    public void removeSocket(ClientSocket socket) {
+        tables.values().forEach((table) -> table.removeSocket(socket));
+    }
+
+    /**
+     * Stands a player up at all of the tables, when they can never come back.
+     * @param socket The socket of the player.
+     */
+    public void leave(ClientSocket socket) {
+        tables.values().forEach((table) -> table.leave(socket));
+    }
+
+    /**
+     * Moves a player from one socket to another at all of the tables, when
+     * they connect again.
+     * @param oldSocket The socket the player had.
+     * @param newSocket The socket they have now.
+     * @return The IDs of the tables the player was sat at or viewing.
+     */
+    public List<Integer> replaceSocket(ClientSocket oldSocket, ClientSocket newSocket) {
+        List<Integer> moved = new ArrayList<>();
+        for(PokerTable table : tables.values()) {
+            if(!table.hasSocket(oldSocket)) continue;
+            table.replaceSocket(oldSocket, newSocket);
+            moved.add(table.getTableID());
+        }
+        return moved;
+    }
+
+    private void sweep() {
+        long now = System.currentTimeMillis();
+        for(TableType type : types) {
+            int empty = 0;
+            for(TableSummary summary : lobby.snapshot()) {
+                if(!type.matches(summary)) continue;
+                if(summary.getSeated() > 0) {
+                    emptySince.remove(summary.getTableID());
+                    continue;
+                }
+                empty++;
+                Long since = emptySince.putIfAbsent(summary.getTableID(), now);
+
+                /* Close the table if we have enough spare tables already, and
+                 * it has been empty for long enough.
+                 */
+                if(empty > SPARE_TABLES && since != null && now - since > IDLE_TIMEOUT) {
+                    PokerTable table = tables.get(summary.getTableID());
+                    if(table != null) {
+                        table.closeIfIdle(() -> close(summary.getTableID()));
+                    }
+                }
+            }
+            for(; empty < SPARE_TABLES; empty++) {
+                if(create(type.getSeats(), type.getConfig()) == null) break;
+            }
+        }
+        start();
+    }
+
+    /**
+     * Closes a table which won't be used again, once everyone has left it. 
+     * Tables which aren't one of the types kept available, such as those of
+     * a tournament, are never closed by the sweep, so must be closed here.
+     * @param table The table to close.
+     */
+    public void close(PokerTable table) {
+        int tableID = table.getTableID();
+        table.close(() -> close(tableID));
+    }
+
+    private void close(int tableID) {
+        if(tables.remove(tableID) != null) count.decrementAndGet();
+        lobby.remove(tableID);
+        loops[0].execute(() -> emptySince.remove(tableID));
+    }
+}
@@ -0,0 +1,326 @@
+/*
+ * Copyright (C) 2018 Em Poulter <em@poulter.space>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package space.poulter.poker.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileAttribute;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import space.poulter.poker.GameConfig;
+
+/**
+ * Saves the state of all of the tables every so often, so that the server can
+ * be restarted without everyone losing their seats. Each table saves its own
+ * state on its own loop (see PokerTable.save), and the snapshot is put
+ * together and written out on a loop of the snapshotter, so the tables only
+ * spend as long on it as it takes to copy a few numbers. The file is only
+ * written when something has changed, and is replaced all at once, so there
+ * is always a whole snapshot on disk. A last snapshot is taken when the
+ * server shuts down.
+ * <p>
+ * Along with the tables, the sessions (see SessionStore) and the guest IDs
+ * given out are kept, so that players can come back for their seats with the
+ * tokens they were given before the restart. Anyone who has the sessions can
+ * log in as any of those users, so they are kept apart from the tables in 
+ * "$file.sessions", which only the owner may read. Without it, the tables
+ * are still restored, but everyone has to log in again.
+ * <p>
+ * Both files start with MAGIC (int), VERSION (int) and the time (long). The
+ * sessions file then holds the sessions, and the snapshot holds the
+ * lowest guest ID (int), and the number of tables (int), followed by each
+ * table: its ID, seats, small blind, big blind, ante, min and max buy in
+ * (ints), limit (byte), dealer (int), hands played and the total of their
+ * pots (longs), and the number of players (byte), each of which is a seat
+ * (byte), ID (int) and chips (int).
+ *
+ * @author Em Poulter <em@poulter.space>
+ */
+public class TableSnapshotter {
+
+    static final int MAGIC = 0x4a50534e;
+    static final int VERSION = 2;
+    /* How often to take a snapshot, in ms */
+    static final long SNAPSHOT_PERIOD = 5000;
+    /* How long to wait for the last snapshot when shutting down, in ms */
+    static final long CLOSE_TIMEOUT = 5000;
+
+    private final Path file;
+    private final Path sessionFile;
+    private final TableManager tables;
+    private final SessionStore sessions;
+    private final ConnectionRegistry sockets;
+    private final HashedWheelTimer timers;
+    private final EventLoop loop;
+
+    /* Only touched by the loop */
+    private byte[] last;
+    private byte[] lastSessions;
+    private boolean closed;
+
+    /**
+     * @param file The file to keep the snapshot in.
+     * @param tables The tables to save.
+     * @param sessions The sessions to save.
+     * @param sockets The connections, to save the guest IDs given out.
+     * @param timers The timers to take snapshots with.
+     */
+    public TableSnapshotter(Path file, TableManager tables, SessionStore sessions,
+            ConnectionRegistry sockets, HashedWheelTimer timers) {
+        this.file = file;
+        sessionFile = file.resolveSibling(file.getFileName()+".sessions");
+        this.tables = tables;
+        this.sessions = sessions;
+        this.sockets = sockets;
+        this.timers = timers;
+        loop = new EventLoop("Snapshots");
+        last = null;
+        closed = false;
+    }
+
+    /**
+     * Starts taking snapshots periodically.
+     */
+    public void start() {
+        timers.newTimeout(() -> loop.execute(this::tick), SNAPSHOT_PERIOD, TimeUnit.MILLISECONDS);
+    }
+
+    private void tick() {
+        if(closed) return;
+        snapshot(() -> timers.newTimeout(() -> loop.execute(this::tick),
+                SNAPSHOT_PERIOD, TimeUnit.MILLISECONDS));
+    }
+
+    /**
+     * Asks every table for its state, and writes the snapshot once they have
+     * all answered.
+     * @param done Run on the loop once the snapshot has been written.
+     */
+    private void snapshot(Runnable done) {
+        List<PokerTable> all = tables.getTables();
+        List<PokerTable.SavedState> saved = new ArrayList<>(all.size());
+        int[] waiting = {all.size()};
+        if(all.isEmpty()) {
+            write(saved);
+            done.run();
+            return;
+        }
+        for(PokerTable table : all) {
+            table.save((state) -> loop.execute(() -> {
+                if(state != null) saved.add(state);
+                if(--waiting[0] == 0) {
+                    write(saved);
+                    done.run();
+                }
+            }));
+        }
+    }
+
+    private void write(List<PokerTable.SavedState> saved) {
+        ByteArrayOutputStream sessionBytes = new ByteArrayOutputStream();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try(DataOutputStream sessionOut = new DataOutputStream(sessionBytes);
+                DataOutputStream out = new DataOutputStream(bytes)) {
+            sessions.save(sessionOut);
+            out.writeInt(sockets.lowestGuestID());
+            out.writeInt(saved.size());
+            for(PokerTable.SavedState state : saved) {
+                writeTable(out, state);
+            }
+        } catch(IOException e) {
+            /* Can't happen when writing to memory */
+            System.err.println(e);
+            return;
+        }
+        byte[] secret = sessionBytes.toByteArray();
+        if(!Arrays.equals(secret, lastSessions) && replace(sessionFile, secret, true)) {
+            lastSessions = secret;
+        }
+        byte[] snapshot = bytes.toByteArray();
+        if(!Arrays.equals(snapshot, last) && replace(file, snapshot, false)) {
+            last = snapshot;
+        }
+    }
+
+    /**
+     * Writes a whole file beside the old one, then swaps them over.
+     * @param target The file to replace.
+     * @param body What to write after the header.
+     * @param ownerOnly Whether only the owner may read and write the file,
+     * where the file system allows it.
+     * @return Whether the file was replaced.
+     */
+    private static boolean replace(Path target, byte[] body, boolean ownerOnly) {
+        Path tmp = target.resolveSibling(target.getFileName()+".tmp");
+        try {
+            /* The permissions are only given to a new file */
+            Files.deleteIfExists(tmp);
+        } catch(IOException e) {
+            System.err.println("Exception when removing "+tmp);
+            System.err.println(e);
+            return false;
+        }
+        Set<OpenOption> options = Set.of(StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        FileAttribute<?>[] attributes = new FileAttribute<?>[0];
+        if(ownerOnly && target.getFileSystem().supportedFileAttributeViews().contains("posix")) {
+            attributes = new FileAttribute<?>[] {
+                PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------"))
+            };
+        }
+        try(FileChannel channel = FileChannel.open(tmp, options, attributes)) {
+            ByteBuffer header = ByteBuffer.allocate(Integer.BYTES * 2 + Long.BYTES);
+            header.putInt(MAGIC).putInt(VERSION).putLong(System.currentTimeMillis()).flip();
+            ByteBuffer buffer = ByteBuffer.wrap(body);
+            while(header.hasRemaining() || buffer.hasRemaining()) {
+                channel.write(new ByteBuffer[] {header, buffer});
+            }
+            channel.force(false);
+        } catch(IOException e) {
+            System.err.println("Exception when writing "+tmp);
+            System.err.println(e);
+            return false;
+        }
+        try {
+            Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch(IOException e) {
+            System.err.println("Exception when replacing "+target);
+            System.err.println(e);
+            return false;
+        }
+        return true;
+    }
+
+    private static void writeTable(DataOutputStream out, PokerTable.SavedState state) throws IOException {
+        GameConfig config = state.config;
+        out.writeInt(state.tableID);
+        out.writeInt(state.noHands);
+        out.writeInt(config.getSmallBlind());
+        out.writeInt(config.getBigBlind());
+        out.writeInt(config.getAnte());
+        out.writeInt(config.getMinBuyIn());
+        out.writeInt(config.getMaxBuyIn());
+        out.writeByte(config.getLimit().ordinal());
+        out.writeInt(state.dealer);
+        out.writeLong(state.handsPlayed);
+        out.writeLong(state.potTotal);
+        out.writeByte(state.seats.length);
+        for(int i = 0; i<state.seats.length; i++) {
+            out.writeByte(state.seats[i]);
+            out.writeInt(state.userIDs[i]);
+            out.writeInt(state.chips[i]);
+        }
+    }
+
+    private static PokerTable.SavedState readTable(DataInputStream in) throws IOException {
+        int tableID = in.readInt();
+        int noHands = in.readInt();
+        GameConfig config;
+        try {
+            config = new GameConfig(in.readInt(), in.readInt(), in.readInt(), in.readInt(),
+                    in.readInt(), GameConfig.Limit.values()[in.readByte()]);
+        } catch(IllegalArgumentException | ArrayIndexOutOfBoundsException e) {
+            throw new IOException("Invalid stakes for table "+tableID, e);
+        }
+        int dealer = in.readInt();
+        long handsPlayed = in.readLong();
+        long potTotal = in.readLong();
+        int players = in.readUnsignedByte();
+        int[] seats = new int[players];
+        int[] userIDs = new int[players];
+        int[] chips = new int[players];
+        for(int i = 0; i<players; i++) {
+            seats[i] = in.readUnsignedByte();
+            userIDs[i] = in.readInt();
+            chips[i] = in.readInt();
+        }
+        return new PokerTable.SavedState(tableID, noHands, config, dealer, handsPlayed,
+                potTotal, seats, userIDs, chips);
+    }
+
+    /**
+     * @return The time the file was written.
+     */
+    private static long readHeader(DataInputStream in, Path from) throws IOException {
+        if(in.readInt() != MAGIC || in.readInt() != VERSION) {
+            throw new IOException(from+" is not a table snapshot");
+        }
+        return in.readLong();
+    }
+
+    /**
+     * Makes the tables, sessions and guest IDs again from the snapshot, if
+     * there is one. Must be called before any clients connect.
+     * @return The number of tables restored.
+     * @throws IOException If the snapshot couldn't be read.
+     */
+    public int restore() throws IOException {
+        if(!Files.exists(file)) return 0;
+        if(Files.exists(sessionFile)) {
+            try(DataInputStream in = new DataInputStream(Files.newInputStream(sessionFile))) {
+                readHeader(in, sessionFile);
+                sessions.load(in);
+            }
+        } else {
+            System.err.println("No sessions beside the table snapshot, so everyone has to log in again");
+        }
+        int restored = 0;
+        try(DataInputStream in = new DataInputStream(Files.newInputStream(file))) {
+            long time = readHeader(in, file);
+            sockets.reserveGuestIDs(in.readInt());
+            for(int n = in.readInt(); n > 0; n--) {
+                if(tables.restore(readTable(in)) != null) restored++;
+            }
+            System.out.println("Restored "+restored+" tables from "+(System.currentTimeMillis() - time)+"ms ago");
+        }
+        return restored;
+    }
+
+    /**
+     * Takes a last snapshot, and stops. Waits for the snapshot to be written,
+     * for up to CLOSE_TIMEOUT.
+     */
+    public void close() {
+        CountDownLatch done = new CountDownLatch(1);
+        loop.execute(() -> {
+            closed = true;
+            snapshot(done::countDown);
+        });
+        try {
+            if(!done.await(CLOSE_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                System.err.println("Gave up waiting for the last table snapshot");
+            }
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        loop.shutdown();
+    }
+}
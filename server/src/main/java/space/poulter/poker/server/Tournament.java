@@ -0,0 +1,491 @@
+/*
+ * Copyright (C) 2018 Em Poulter <em@poulter.space>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package space.poulter.poker.server;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import space.poulter.poker.Cards;
+import space.poulter.poker.ClientSocket;
+import space.poulter.poker.GameConfig;
+import space.poulter.poker.PlayerData;
+
+/**
+ * A tournament played over many tables. Once enough players have joined, they
+ * are shared out between as few tables as possible, and play until one player
+ * has all of the chips. The blinds go up on a timer, players are moved between
+ * tables to keep them balanced, and tables are broken up as players are
+ * knocked out.
+ * <p>
+ * All of the state of the tournament is kept on one event loop. The tables
+ * tell it about the end of each hand, and it keeps the leaderboard and the
+ * tables sorted, so that each hand costs O(log n) in the number of players
+ * however big the tournament is.
+ * <p>
+ * Players are told about the tournament with the commands
+ * "Tournament:$id:joined:$count", "Tournament:$id:table:$tableID" when they
+ * are seated at (or moved to) a table, "Tournament:$id:level:$small:$big",
+ * "Tournament:$id:out:$place", and "Tournament:$id:winner:$entrant".
+ *
+ * @author Em Poulter <em@poulter.space>
+ */
+public class Tournament {
+
+    /**
+     * A level of the blind schedule.
+     */
+    public static class BlindLevel {
+        final int small;
+        final int big;
+        /* How long the level lasts, in milliseconds */
+        final long duration;
+
+        public BlindLevel(int small, int big, long duration) {
+            this.small = small;
+            this.big = big;
+            this.duration = duration;
+        }
+    }
+
+    public static final BlindLevel[] DEFAULT_SCHEDULE = {
+        new BlindLevel(10, 20, 300000),
+        new BlindLevel(15, 30, 300000),
+        new BlindLevel(25, 50, 300000),
+        new BlindLevel(50, 100, 300000),
+        new BlindLevel(75, 150, 300000),
+        new BlindLevel(100, 200, 300000),
+        new BlindLevel(150, 300, 300000),
+        new BlindLevel(200, 400, 300000),
+        new BlindLevel(300, 600, 300000),
+        new BlindLevel(500, 1000, 300000),
+        new BlindLevel(1000, 2000, Long.MAX_VALUE)
+    };
+
+    public static final int DEFAULT_STARTING_CHIPS = 1500;
+    
+    /* How long to wait before trying again to move a player off a table 
+     * which is being broken, in milliseconds.
+     */
+    static final long RETRY_DELAY = 1000;
+
+    private class Entrant {
+        final int id;
+        ClientSocket socket;
+        PlayerData player;
+        int chips;
+        TournamentTable table;
+
+        Entrant(int id, ClientSocket socket) {
+            this.id = id;
+            this.socket = socket;
+        }
+    }
+
+    private class TournamentTable {
+        final PokerTable table;
+        /* The entrants at the table, or on their way to it */
+        final Set<Entrant> seated;
+        /* Includes players on their way to or from the table, so that
+         * decisions never overfill it.
+         */
+        int players;
+        boolean broken;
+        /* Players knocked out who the table hasn't let go of yet */
+        final Set<PlayerData> busted;
+
+        TournamentTable(PokerTable table) {
+            this.table = table;
+            seated = new HashSet<>();
+            busted = new HashSet<>();
+            players = 0;
+            broken = false;
+        }
+    }
+
+    /* Most chips first, then the earliest entrant */
+    private static final Comparator<Entrant> BY_CHIPS =
+            Comparator.<Entrant>comparingInt((e) -> -e.chips)
+                    .thenComparingInt((e) -> e.id);
+    /* Fewest players first */
+    private static final Comparator<TournamentTable> BY_PLAYERS =
+            Comparator.<TournamentTable>comparingInt((t) -> t.players)
+                    .thenComparingInt((t) -> t.table.getTableID());
+
+    private final int tournamentID;
+    private final int size;
+    private final int seatsPerTable;
+    private final int startingChips;
+    private final BlindLevel[] schedule;
+    private final TableManager tables;
+    private final HashedWheelTimer timers;
+    private final EventLoop loop;
+
+    private final List<Entrant> entrants;
+    private final Set<ClientSocket> joined;
+    private final Map<PlayerData, Entrant> byPlayer;
+    private final Map<PokerTable, TournamentTable> byTable;
+    private final TreeSet<Entrant> leaderboard;
+    private final TreeSet<TournamentTable> tablesBySize;
+    private boolean started;
+    private boolean finished;
+    private int level;
+    private int remaining;
+
+    public Tournament(int tournamentID, int size, int seatsPerTable,
+            TableManager tables, HashedWheelTimer timers, EventLoop loop) {
+        this(tournamentID, size, seatsPerTable, DEFAULT_STARTING_CHIPS,
+                DEFAULT_SCHEDULE, tables, timers, loop);
+    }
+
+    public Tournament(int tournamentID, int size, int seatsPerTable,
+            int startingChips, BlindLevel[] schedule, TableManager tables,
+            HashedWheelTimer timers, EventLoop loop) {
+        this.tournamentID = tournamentID;
+        this.size = size;
+        this.seatsPerTable = seatsPerTable;
+        this.startingChips = startingChips;
+        this.schedule = schedule;
+        this.tables = tables;
+        this.timers = timers;
+        this.loop = loop;
+        entrants = new ArrayList<>(size);
+        joined = new HashSet<>();
+        byPlayer = new HashMap<>();
+        byTable = new HashMap<>();
+        leaderboard = new TreeSet<>(BY_CHIPS);
+        tablesBySize = new TreeSet<>(BY_PLAYERS);
+        started = false;
+        finished = false;
+        level = 0;
+        remaining = 0;
+    }
+
+    public int getTournamentID() {
+        return tournamentID;
+    }
+
+    /**
+     * Enters a player into the tournament. The tournament starts as soon as
+     * it is full.
+     * @param socket The socket of the player.
+     */
+    public void join(ClientSocket socket) {
+        loop.execute(() -> {
+            if(started) {
+                send(socket, "full");
+                return;
+            }
+            if(!joined.add(socket)) return;
+            entrants.add(new Entrant(entrants.size(), socket));
+            send(socket, "joined:"+entrants.size());
+            if(entrants.size() == size) start();
+        });
+    }
+
+    /**
+     * Moves a player from one socket to another, when they connect again.
+     * @param oldSocket The socket the player had.
+     * @param newSocket The socket they have now.
+     */
+    public void replaceSocket(ClientSocket oldSocket, ClientSocket newSocket) {
+        loop.execute(() -> {
+            if(!joined.remove(oldSocket)) return;
+            joined.add(newSocket);
+            for(Entrant e : entrants) {
+                if(e.socket != oldSocket) continue;
+                e.socket = newSocket;
+                if(e.player != null) e.player.setSocket(newSocket);
+            }
+        });
+    }
+
+    /**
+     * Sends the top of the leaderboard to a socket, as a command of the form
+     * "Tournament:$id:leaderboard:$entrant:$chips:$entrant:$chips...".
+     * @param socket The socket to send it to.
+     * @param count The number of places to send.
+     */
+    public void sendLeaderboard(ClientSocket socket, int count) {
+        loop.execute(() -> {
+            StringBuilder str = new StringBuilder("leaderboard");
+            Iterator<Entrant> it = leaderboard.iterator();
+            for(int i = 0; i<count && it.hasNext(); i++) {
+                Entrant e = it.next();
+                str.append(':').append(e.id).append(':').append(e.chips);
+            }
+            send(socket, str.toString());
+        });
+    }
+
+    private void start() {
+        started = true;
+        remaining = entrants.size();
+
+        int noTables = (remaining + seatsPerTable - 1) / seatsPerTable;
+        List<TournamentTable> created = new ArrayList<>(noTables);
+        for(int i = 0; i<noTables; i++) {
+            PokerTable table = tables.create(seatsPerTable, 
+                    GameConfig.DEFAULT.withBlinds(schedule[0].small, schedule[0].big));
+            if(table == null) {
+                System.err.println("Not enough tables to start tournament "+tournamentID);
+                entrants.forEach((e) -> send(e.socket, "cancelled"));
+                finished = true;
+                created.forEach((t) -> tables.close(t.table));
+                return;
+            }
+            table.setHandListener(this::handEnded);
+            TournamentTable t = new TournamentTable(table);
+            byTable.put(table, t);
+            created.add(t);
+        }
+
+        /* Deal the players out round the tables, so they are balanced */
+        for(int i = 0; i<entrants.size(); i++) {
+            Entrant e = entrants.get(i);
+            e.chips = startingChips;
+            e.player = new PlayerData(startingChips, new Cards(2), e.socket);
+            byPlayer.put(e.player, e);
+            leaderboard.add(e);
+            TournamentTable t = created.get(i % noTables);
+            t.players++;
+            t.seated.add(e);
+            seatAt(e, t);
+        }
+        tablesBySize.addAll(created);
+
+        startLevel(0);
+    }
+
+    private void startLevel(int newLevel) {
+        if(finished) return;
+        level = newLevel;
+        BlindLevel blinds = schedule[level];
+        byTable.keySet().forEach((table) -> table.setBlinds(blinds.small, blinds.big));
+        leaderboard.forEach((e) -> send(e.socket, "level:"+blinds.small+":"+blinds.big));
+        if(level+1 < schedule.length) {
+            timers.newTimeout(() -> loop.execute(() -> startLevel(level+1)),
+                    blinds.duration, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Called by the tables at the end of each hand. Runs on the table's loop,
+     * so just hands the chip counts over to the loop of the tournament.
+     */
+    private void handEnded(PokerTable table, Map<PlayerData, Integer> chips) {
+        loop.execute(() -> {
+            if(finished) return;
+            TournamentTable t = byTable.get(table);
+            if(t == null) return;
+            unseatBusted(t);
+
+            for(Map.Entry<PlayerData, Integer> player : chips.entrySet()) {
+                Entrant e = byPlayer.get(player.getKey());
+                if(e == null || e.table != t) continue;
+                /* Take them out of the leaderboard while the key changes */
+                leaderboard.remove(e);
+                e.chips = player.getValue();
+                if(e.chips > 0) {
+                    leaderboard.add(e);
+                } else {
+                    knockOut(e);
+                }
+            }
+
+            if(remaining <= 1) {
+                finish();
+                return;
+            }
+            balance(t);
+        });
+    }
+
+    private void knockOut(Entrant e) {
+        send(e.socket, "out:"+remaining);
+        remaining--;
+        byPlayer.remove(e.player);
+        TournamentTable t = e.table;
+        e.table = null;
+        t.seated.remove(e);
+        resize(t, -1);
+        t.busted.add(e.player);
+        unseatBusted(t);
+    }
+
+    /**
+     * Takes the players who have been knocked out off a table. The table only
+     * lets them go between hands, so any it refuses are tried again at the
+     * end of its next hand, or shortly if it won't be told about that.
+     */
+    private void unseatBusted(TournamentTable t) {
+        for(PlayerData player : new ArrayList<>(t.busted)) {
+            t.table.unseat(player, (removed) -> loop.execute(() -> {
+                if(!t.busted.contains(player)) return;
+                if(removed) {
+                    t.busted.remove(player);
+                    releaseIfEmpty(t);
+                } else if(t.broken || finished) {
+                    timers.newTimeout(() -> loop.execute(() -> unseatBusted(t)),
+                            RETRY_DELAY, TimeUnit.MILLISECONDS);
+                }
+            }));
+        }
+    }
+
+    /* Once the last player has left a broken table, or any table once the 
+     * tournament is over, it is closed. Its stakes aren't those of any kind of
+     * table kept available, so it can't be handed back to be played on.
+     */
+    private void releaseIfEmpty(TournamentTable t) {
+        if((t.broken || finished) && t.seated.isEmpty() && t.busted.isEmpty()) {
+            tables.close(t.table);
+        }
+    }
+
+    /**
+     * Moves players after a hand at a table, which is when they can be moved
+     * without interrupting anything. If the players would fit on one fewer
+     * table, this table is broken up. Otherwise if it has two more players
+     * than the smallest table, one of them is moved there.
+     */
+    private void balance(TournamentTable t) {
+        if(byTable.size() > 1 && remaining <= (byTable.size()-1)*seatsPerTable) {
+            breakTable(t);
+            return;
+        }
+        TournamentTable smallest = tablesBySize.first();
+        if(smallest != t && t.players - smallest.players > 1) {
+            for(Entrant e : t.seated) {
+                if(e.table == t) {
+                    move(e, t, smallest);
+                    return;
+                }
+            }
+        }
+    }
+
+    private void breakTable(TournamentTable t) {
+        t.broken = true;
+        tablesBySize.remove(t);
+        byTable.remove(t.table);
+        for(Entrant e : new ArrayList<>(t.seated)) {
+            move(e, t, tablesBySize.first());
+        }
+    }
+
+    private void move(Entrant e, TournamentTable from, TournamentTable to) {
+        resize(from, -1);
+        resize(to, 1);
+        e.table = to;
+        to.seated.add(e);
+        from.table.unseat(e.player, (removed) -> loop.execute(() -> {
+            if(removed) {
+                from.seated.remove(e);
+                releaseIfEmpty(from);
+                if(finished) {
+                    /* They never got to the next table, so it needn't wait
+                     * for them to leave
+                     */
+                    to.busted.remove(e.player);
+                    releaseIfEmpty(to);
+                } else if(e.table == to) {
+                    seatAt(e, to);
+                }
+            } else if(finished) {
+                /* They are still at the table they were moving from */
+                to.busted.remove(e.player);
+                from.busted.add(e.player);
+                unseatBusted(from);
+                releaseIfEmpty(to);
+            } else {
+                /* They were already in the next hand, so put them back, and
+                 * if their table is being broken up try again shortly.
+                 */
+                to.seated.remove(e);
+                resize(to, -1);
+                resize(from, 1);
+                if(e.table == to) e.table = from;
+                if(from.broken && !finished) {
+                    timers.newTimeout(() -> loop.execute(() -> {
+                        if(e.table == from && !finished) {
+                            move(e, from, tablesBySize.first());
+                        }
+                    }), RETRY_DELAY, TimeUnit.MILLISECONDS);
+                }
+            }
+        }));
+    }
+
+    private void seatAt(Entrant e, TournamentTable t) {
+        e.table = t;
+        t.table.seat(e.player, (seat) -> loop.execute(() -> {
+            if(seat >= 0) {
+                send(e.socket, "table:"+t.table.getTableID());
+            } else {
+                System.err.println("Tournament table "+t.table.getTableID()+" was full");
+            }
+        }));
+    }
+
+    /* The tables are sorted by size, so they must be taken out while the size
+     * changes.
+     */
+    private void resize(TournamentTable t, int change) {
+        boolean present = tablesBySize.remove(t);
+        t.players += change;
+        if(present) tablesBySize.add(t);
+    }
+
+    private void finish() {
+        finished = true;
+        if(!leaderboard.isEmpty()) {
+            Entrant winner = leaderboard.first();
+            entrants.forEach((e) -> send(e.socket, "winner:"+winner.id));
+        }
+        /* Everyone leaves, the winner too, as the chips aren't real. The
+         * tables won't say when their hands end any more.
+         */
+        for(TournamentTable t : byTable.values()) {
+            for(Entrant e : t.seated) {
+                e.table = null;
+                byPlayer.remove(e.player);
+                t.busted.add(e.player);
+            }
+            t.seated.clear();
+            unseatBusted(t);
+            releaseIfEmpty(t);
+        }
+    }
+
+    private void send(ClientSocket socket, String command) {
+        try {
+            socket.write("Tournament:"+tournamentID+":"+command);
+        } catch(IOException e) {
+            System.err.println("Exception occured when sending tournament command");
+            System.err.println(e);
+        }
+    }
+}
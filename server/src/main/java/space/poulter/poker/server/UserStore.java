@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2018 Em Poulter <em@poulter.space>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package space.poulter.poker.server;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import space.poulter.poker.server.ConnectionPool.PooledConnection;
+
+/**
+ * Reads and writes the users in the database. The user table is expected to
+ * have at least the columns pkid, name, crypt (the bcrypt hash of the
+ * password), enabled and connected.
+ *
+ * @author Em Poulter <em@poulter.space>
+ */
+public class UserStore {
+
+    private static final String SELECT_USER =
+            "select pkid, crypt, enabled, connected from user where name = ?";
+    private static final String UPDATE_CONNECTED =
+            "update user set connected = ? where pkid = ?";
+
+    /**
+     * A user as stored in the database.
+     */
+    public static class User {
+        private final int pkid;
+        private final char[] crypt;
+        private final boolean enabled;
+        private final boolean connected;
+
+        User(int pkid, char[] crypt, boolean enabled, boolean connected) {
+            this.pkid = pkid;
+            this.crypt = crypt;
+            this.enabled = enabled;
+            this.connected = connected;
+        }
+
+        public int getID() {
+            return pkid;
+        }
+        public char[] getCrypt() {
+            return crypt;
+        }
+        public boolean isEnabled() {
+            return enabled;
+        }
+        public boolean isConnected() {
+            return connected;
+        }
+    }
+
+    private final ConnectionPool pool;
+
+    public UserStore(ConnectionPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Looks up a user by name.
+     * @param name The name of the user.
+     * @return The user, or null if there isn't exactly one user with the name.
+     * @throws SQLException If the database couldn't be read.
+     */
+    public User find(String name) throws SQLException {
+        try(PooledConnection conn = pool.borrow()) {
+            try {
+                PreparedStatement pStmt = conn.prepare(SELECT_USER);
+                pStmt.setString(1, name);
+                try(ResultSet rs = pStmt.executeQuery()) {
+                    if(!rs.next()) return null;
+                    User user = new User(rs.getInt("pkid"),
+                            rs.getString("crypt").toCharArray(),
+                            rs.getBoolean("enabled"), rs.getBoolean("connected"));
+                    if(rs.next()) return null;
+                    return user;
+                }
+            } catch(SQLException e) {
+                conn.markBroken();
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Sets whether a user is connected.
+     * @param pkid The ID of the user.
+     * @param connected Whether they are now connected.
+     * @return true if the user was updated.
+     * @throws SQLException If the database couldn't be written.
+     */
+    public boolean setConnected(int pkid, boolean connected) throws SQLException {
+        try(PooledConnection conn = pool.borrow()) {
+            try {
+                PreparedStatement pStmt = conn.prepare(UPDATE_CONNECTED);
+                pStmt.setInt(1, connected ? 1 : 0);
+                pStmt.setInt(2, pkid);
+                return pStmt.executeUpdate() == 1;
+            } catch(SQLException e) {
+                conn.markBroken();
+                throw e;
+            }
+        }
+    }
+}
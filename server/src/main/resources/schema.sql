@@ -0,0 +1,18 @@
+-- The tables the server uses, for MySQL. See UserStore, BalanceStore and
+-- ProvisionUsers.
+
+create table if not exists user (
+    pkid int not null auto_increment primary key,
+    name varchar(64) not null unique,
+    -- The bcrypt hash of the password
+    crypt char(60) not null,
+    enabled boolean not null default true,
+    connected boolean not null default false,
+    chips bigint not null default 0
+);
+
+-- The sequence number of the last change to the balances written
+create table if not exists balance_checkpoint (
+    id int not null primary key,
+    seq bigint not null
+);
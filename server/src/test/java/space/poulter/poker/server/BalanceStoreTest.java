@@ -0,0 +1,218 @@
+/*
+ * Copyright (C) 2018 Em Poulter <em@poulter.space>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package space.poulter.poker.server;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import org.junit.After;
+import static org.junit.Assert.assertEquals;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import space.poulter.poker.server.ConnectionPool.PooledConnection;
+
+/**
+ * Tests the balance journal against an in memory database, including what
+ * happens after a crash at each point of a write.
+ *
+ * @author Em Poulter <em@poulter.space>
+ */
+public class BalanceStoreTest {
+
+    /* The size of a journal entry: sequence number, user ID and change */
+    private static final int ENTRY_SIZE = Long.BYTES + Integer.BYTES + Long.BYTES;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private ConnectionPool pool;
+    private HashedWheelTimer timers;
+    private Path journal;
+    private int alice;
+    private int bob;
+
+    @Before
+    public void createUsers() throws SQLException {
+        pool = new ConnectionPool(ConnectionPoolTest.newDatabase(), "sa", "", 2);
+        timers = new HashedWheelTimer(20, 64);
+        journal = folder.getRoot().toPath().resolve("balances.journal");
+        try(PooledConnection conn = pool.borrow()) {
+            PreparedStatement insert = conn.prepare("insert into user (name, crypt) values (?, ?)");
+            insert.setString(2, "x".repeat(60));
+            insert.setString(1, "alice");
+            insert.executeUpdate();
+            insert.setString(1, "bob");
+            insert.executeUpdate();
+        }
+        alice = id("alice");
+        bob = id("bob");
+    }
+
+    @After
+    public void closePool() {
+        timers.stop();
+        pool.close();
+    }
+
+    private int id(String name) throws SQLException {
+        try(PooledConnection conn = pool.borrow()) {
+            PreparedStatement select = conn.prepare("select pkid from user where name = ?");
+            select.setString(1, name);
+            try(ResultSet rs = select.executeQuery()) {
+                rs.next();
+                return rs.getInt(1);
+            }
+        }
+    }
+
+    private long chips(int userID) throws SQLException {
+        try(PooledConnection conn = pool.borrow()) {
+            PreparedStatement select = conn.prepare("select chips from user where pkid = ?");
+            select.setInt(1, userID);
+            try(ResultSet rs = select.executeQuery()) {
+                rs.next();
+                return rs.getLong(1);
+            }
+        }
+    }
+
+    private long checkpoint() throws SQLException {
+        try(PooledConnection conn = pool.borrow();
+                ResultSet rs = conn.prepare("select seq from balance_checkpoint where id = 1").executeQuery()) {
+            return rs.next() ? rs.getLong(1) : 0;
+        }
+    }
+
+    /**
+     * Sets the balances and checkpoint as the last run left them.
+     */
+    private void setDatabase(long aliceChips, long bobChips, long seq) throws SQLException {
+        try(PooledConnection conn = pool.borrow()) {
+            PreparedStatement update = conn.prepare("update user set chips = ? where pkid = ?");
+            update.setLong(1, aliceChips);
+            update.setInt(2, alice);
+            update.executeUpdate();
+            update.setLong(1, bobChips);
+            update.setInt(2, bob);
+            update.executeUpdate();
+            PreparedStatement insert = conn.prepare("insert into balance_checkpoint (id, seq) values (1, ?)");
+            insert.setLong(1, seq);
+            insert.executeUpdate();
+        }
+    }
+
+    /**
+     * Writes a journal as the last run left it. Each entry is a user ID and
+     * a change, numbered from 1.
+     */
+    private void writeJournal(long... entries) throws Exception {
+        ByteBuffer buffer = ByteBuffer.allocate(entries.length / 2 * ENTRY_SIZE);
+        for(int i = 0; i<entries.length; i += 2) {
+            buffer.putLong(i/2 + 1).putInt((int)entries[i]).putLong(entries[i+1]);
+        }
+        Files.write(journal, buffer.array());
+    }
+
+    private BalanceStore start() throws Exception {
+        BalanceStore balances = new BalanceStore(pool, journal, timers);
+        balances.start();
+        return balances;
+    }
+
+    @Test
+    public void writesChangesOnClose() throws Exception {
+        BalanceStore balances = start();
+        balances.record(alice, 100);
+        balances.record(bob, -40);
+        balances.record(alice, 25);
+        balances.record(bob, 0);
+        balances.close();
+
+        assertEquals(125, chips(alice));
+        assertEquals(-40, chips(bob));
+        assertEquals(3, checkpoint());
+        /* Everything is in the database, so the journal is emptied */
+        assertEquals(0, Files.size(journal));
+    }
+
+    @Test
+    public void replaysChangesWhichMissedTheCheckpoint() throws Exception {
+        /* The first change was written to the database, then the server
+         * crashed after journaling the other two.
+         */
+        writeJournal(alice, 100, bob, -40, alice, 25);
+        setDatabase(100, 0, 1);
+
+        start().close();
+        assertEquals(125, chips(alice));
+        assertEquals(-40, chips(bob));
+        assertEquals(3, checkpoint());
+    }
+
+    @Test
+    public void doesNotReplayChangesAlreadyWritten() throws Exception {
+        /* The server crashed after the database was written, but before the
+         * journal was emptied.
+         */
+        writeJournal(alice, 100, bob, -40);
+        setDatabase(100, -40, 2);
+
+        start().close();
+        assertEquals(100, chips(alice));
+        assertEquals(-40, chips(bob));
+        assertEquals(2, checkpoint());
+    }
+
+    @Test
+    public void dropsATornEntry() throws Exception {
+        writeJournal(alice, 100, bob, -40);
+        /* Half of a third entry, which was never synced */
+        byte[] whole = Files.readAllBytes(journal);
+        byte[] torn = new byte[whole.length + ENTRY_SIZE / 2];
+        System.arraycopy(whole, 0, torn, 0, whole.length);
+        Files.write(journal, torn);
+
+        BalanceStore balances = start();
+        /* Numbered after the last whole entry */
+        balances.record(bob, 10);
+        balances.close();
+        assertEquals(100, chips(alice));
+        assertEquals(-30, chips(bob));
+        assertEquals(3, checkpoint());
+    }
+
+    @Test
+    public void carriesOnNumberingAfterARestart() throws Exception {
+        BalanceStore balances = start();
+        balances.record(alice, 100);
+        balances.record(bob, 50);
+        balances.close();
+
+        balances = start();
+        balances.record(alice, -30);
+        balances.close();
+        assertEquals(70, chips(alice));
+        assertEquals(50, chips(bob));
+        assertEquals(3, checkpoint());
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2018 Em Poulter <em@poulter.space>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package space.poulter.poker.server;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+import org.junit.Test;
+import space.poulter.poker.server.ConnectionPool.PooledConnection;
+
+/**
+ * Tests the connection pool against an in memory database.
+ *
+ * @author Em Poulter <em@poulter.space>
+ */
+public class ConnectionPoolTest {
+
+    private static final AtomicInteger DATABASES = new AtomicInteger();
+
+    /**
+     * @return The URL of a new empty database, with the tables of the server,
+     * which lasts until the JVM exits.
+     */
+    static String newDatabase() {
+        return "jdbc:h2:mem:poker"+DATABASES.incrementAndGet()
+                +";MODE=MySQL;NON_KEYWORDS=USER;DB_CLOSE_DELAY=-1"
+                +";INIT=RUNSCRIPT FROM 'classpath:schema.sql'";
+    }
+
+    private ConnectionPool pool;
+
+    @After
+    public void closePool() {
+        if(pool != null) pool.close();
+    }
+
+    private static int sessionID(PooledConnection conn) throws SQLException {
+        try(ResultSet rs = conn.prepare("select session_id()").executeQuery()) {
+            rs.next();
+            return rs.getInt(1);
+        }
+    }
+
+    @Test
+    public void givesBackTheSameConnection() throws SQLException {
+        pool = new ConnectionPool(newDatabase(), "sa", "", 2);
+        int first;
+        try(PooledConnection conn = pool.borrow()) {
+            first = sessionID(conn);
+        }
+        assertEquals(1, pool.idleCount());
+        try(PooledConnection conn = pool.borrow()) {
+            assertEquals(first, sessionID(conn));
+            assertEquals(0, pool.idleCount());
+        }
+        assertEquals(1, pool.idleCount());
+    }
+
+    @Test
+    public void keepsPreparedStatements() throws SQLException {
+        pool = new ConnectionPool(newDatabase(), "sa", "", 1);
+        PreparedStatement statement;
+        try(PooledConnection conn = pool.borrow()) {
+            statement = conn.prepare("select count(*) from user");
+            assertSame(statement, conn.prepare("select count(*) from user"));
+        }
+        try(PooledConnection conn = pool.borrow()) {
+            assertSame(statement, conn.prepare("select count(*) from user"));
+        }
+    }
+
+    @Test
+    public void throwsAwayBrokenConnections() throws SQLException {
+        pool = new ConnectionPool(newDatabase(), "sa", "", 1);
+        int first;
+        try(PooledConnection conn = pool.borrow()) {
+            first = sessionID(conn);
+            conn.markBroken();
+        }
+        assertEquals(0, pool.idleCount());
+        try(PooledConnection conn = pool.borrow()) {
+            assertNotEquals(first, sessionID(conn));
+        }
+    }
+
+    @Test
+    public void checksIdleConnections() throws SQLException {
+        /* Check every connection, however long it has been idle */
+        pool = new ConnectionPool(newDatabase(), "sa", "", 2, 1000, 0);
+        PooledConnection dead = pool.borrow();
+        PooledConnection alive = pool.borrow();
+        int deadID = sessionID(dead);
+        int aliveID = sessionID(alive);
+        alive.prepare("call abort_session("+deadID+")").execute();
+        dead.close();
+        alive.close();
+        assertEquals(2, pool.idleCount());
+
+        /* The dead one is first in line, but is found out and closed */
+        try(PooledConnection conn = pool.borrow()) {
+            assertEquals(aliveID, sessionID(conn));
+        }
+        assertEquals(1, pool.idleCount());
+    }
+
+    @Test
+    public void neverLendsMoreThanItsSize() throws SQLException {
+        pool = new ConnectionPool(newDatabase(), "sa", "", 2, 200, ConnectionPool.VALIDATE_AFTER);
+        PooledConnection first = pool.borrow();
+        PooledConnection second = pool.borrow();
+        try {
+            pool.borrow();
+            fail("Lent a third connection");
+        } catch(SQLException e) {
+            /* Timed out, as expected */
+        }
+
+        /* Giving one back twice mustn't let an extra one out */
+        first.close();
+        first.close();
+        PooledConnection third = pool.borrow();
+        try {
+            pool.borrow();
+            fail("Lent a third connection");
+        } catch(SQLException e) {
+            /* Timed out, as expected */
+        }
+        second.close();
+        third.close();
+        assertEquals(2, pool.idleCount());
+    }
+
+    @Test(expected = SQLException.class)
+    public void refusesOnceClosed() throws SQLException {
+        pool = new ConnectionPool(newDatabase(), "sa", "", 1);
+        pool.close();
+        pool.borrow();
+    }
+}
@@ -0,0 +1,248 @@
+/*
+ * Copyright (C) 2018 Em Poulter <em@poulter.space>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package space.poulter.poker.server;
+
+import at.favre.lib.crypto.bcrypt.BCrypt;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.sql.PreparedStatement;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.Test;
+import space.poulter.poker.ClientSocket;
+import space.poulter.poker.PlayerData;
+import space.poulter.poker.TableSummary;
+import space.poulter.poker.server.ConnectionPool.PooledConnection;
+
+/**
+ * Tests a gateway in front of two nodes, all on localhost.
+ *
+ * @author Em Poulter <em@poulter.space>
+ */
+public class GatewayTest {
+
+    private static final String SECRET = "secret";
+    /* How long to wait for anything to arrive, in milliseconds */
+    private static final int TIMEOUT = 10000;
+
+    /**
+     * A client which reads for itself, so the test can wait for replies.
+     */
+    private static class TestClient extends ClientSocket {
+
+        TestClient(int port) throws IOException {
+            super(connect(port));
+        }
+
+        private static Socket connect(int port) throws IOException {
+            Socket s = new Socket("localhost", port);
+            s.setSoTimeout(TIMEOUT);
+            return s;
+        }
+
+        @Override
+        public void processCommand(String str) {
+        }
+
+        /**
+         * @return The first command starting with the prefix, after skipping
+         * everything before it.
+         */
+        String await(String prefix) throws IOException, ClassNotFoundException {
+            while(true) {
+                Object o = read();
+                if(o instanceof String && ((String)o).startsWith(prefix)) return (String)o;
+            }
+        }
+    }
+
+    private static int freePort() throws IOException {
+        try(ServerSocket s = new ServerSocket(0)) {
+            return s.getLocalPort();
+        }
+    }
+
+    private ConsistentHashRing cluster;
+    private PokerServer[] nodes;
+    private Gateway gateway;
+
+    /**
+     * Starts two nodes and a gateway in front of them.
+     * @param gatewayArgs Any more options for the gateway.
+     * @return The port of the gateway.
+     */
+    private int startCluster(String... gatewayArgs) throws IOException {
+        int[] ports = {freePort(), freePort()};
+        String ring = "localhost:"+ports[0]+",localhost:"+ports[1];
+        cluster = ConsistentHashRing.parse(ring);
+        nodes = new PokerServer[ports.length];
+        for(int i = 0; i<ports.length; i++) {
+            nodes[i] = new PokerServer(new String[] {"-p", ""+ports[i],
+                    "-cluster", ring, "-node", ""+i, "-secret", SECRET, "-n", "20"});
+            nodes[i].setDaemon(true);
+            nodes[i].start();
+        }
+        int port = freePort();
+        String[] args = new String[gatewayArgs.length+6];
+        System.arraycopy(new String[] {"-p", ""+port, "-cluster", ring, "-secret", SECRET}, 0, args, 0, 6);
+        System.arraycopy(gatewayArgs, 0, args, 6, gatewayArgs.length);
+        gateway = new Gateway(args);
+        gateway.setDaemon(true);
+        gateway.start();
+        return port;
+    }
+
+    /**
+     * Waits until the lobby of the gateway has tables from both nodes.
+     * @return A table of each node, by node.
+     */
+    private Map<String, Integer> tableOfEachNode(TestClient client) throws Exception {
+        long end = System.currentTimeMillis() + TIMEOUT;
+        while(System.currentTimeMillis() < end) {
+            client.write("Get Tables:page:0:size:"+LobbyIndex.MAX_PAGE_SIZE);
+            client.await("Table Page:");
+            Map<String, Integer> found = new HashMap<>();
+            for(Object summary : (List<?>)client.read()) {
+                int id = ((TableSummary)summary).getTableID();
+                found.put(cluster.get(id), id);
+            }
+            if(found.size() == 2) return found;
+            Thread.sleep(100);
+        }
+        fail("The lobby never had tables from both nodes");
+        return null;
+    }
+
+    /**
+     * Sits down at a table through the gateway, and waits until the node says
+     * so.
+     */
+    private static void sit(TestClient client, int id, int seat) throws Exception {
+        client.write("View:"+id);
+        client.write("ID:"+id+":sit:"+seat);
+        client.await("ID:"+id+":sit:"+seat);
+        assertTrue(client.read() instanceof PlayerData);
+    }
+
+    @Test
+    public void sharesOneLinkPerNode() throws Exception {
+        int port = startCluster();
+        TestClient first = new TestClient(port);
+        TestClient second = new TestClient(port);
+        assertEquals("auth:done", first.await("auth:"));
+        assertEquals("auth:done", second.await("auth:"));
+
+        Map<String, Integer> tables = tableOfEachNode(first);
+        for(int id : tables.values()) {
+            sit(first, id, 0);
+            sit(second, id, 1);
+        }
+        /* Both clients use both nodes over the same two links */
+        assertEquals(2, gateway.relays.size());
+
+        first.write("Exit");
+        assertEquals("Exit", first.await("Exit"));
+        second.close();
+        first.close();
+    }
+
+    @Test
+    public void passesTheUserOnToTheNodes() throws Exception {
+        String url = ConnectionPoolTest.newDatabase();
+        ConnectionPool pool = new ConnectionPool(url, PokerServer.DB_USERNAME, PokerServer.DB_PASSWORD, 1);
+        try(PooledConnection conn = pool.borrow()) {
+            PreparedStatement insert = conn.prepare("insert into user (name, crypt) values (?, ?)");
+            insert.setString(1, "alice");
+            insert.setString(2, BCrypt.withDefaults().hashToString(4, "secret".toCharArray()));
+            insert.executeUpdate();
+        }
+        int alice = new UserStore(pool).find("alice").getID();
+
+        int port = startCluster("-dburl", url, "-dbpool", "1");
+        TestClient client = new TestClient(port);
+        assertEquals("auth:req", client.await("auth:"));
+        /* Nothing is let through before logging in, so the first reply is
+         * to the resume
+         */
+        client.write("Get Tables:page:0:size:10");
+        client.write("auth:resume:token");
+        assertEquals("auth:fail:7", client.read());
+        client.write("auth:user:alice:pass:wrong");
+        assertEquals("auth:fail:5", client.await("auth:"));
+        client.write("auth:user:alice:pass:secret");
+        assertEquals("auth:done", client.await("auth:"));
+
+        Map<String, Integer> tables = tableOfEachNode(client);
+        for(int id : tables.values()) {
+            sit(client, id, 0);
+        }
+        /* Each node knows who they are, not just the gateway */
+        for(PokerServer node : nodes) {
+            assertTrue(node.sockets.containsID(alice));
+        }
+        client.close();
+        pool.close();
+    }
+
+    @Test
+    public void refusesTheWrongSecret() throws Exception {
+        int port = freePort();
+        PokerServer node = new PokerServer(new String[] {"-p", ""+port,
+                "-cluster", "localhost:"+port, "-node", "0", "-secret", SECRET, "-n", "2"});
+        node.setDaemon(true);
+        node.start();
+
+        TestClient link = new TestClient(port);
+        assertEquals("auth:done", link.await("auth:"));
+        link.write("auth:gateway:wrong");
+        assertEquals("auth:fail:1", link.await("auth:fail"));
+        link.close();
+    }
+
+    @Test
+    public void standsGuestsUpWhenTheLinkIsLost() throws Exception {
+        int port = freePort();
+        PokerServer node = new PokerServer(new String[] {"-p", ""+port,
+                "-cluster", "localhost:"+port, "-node", "0", "-secret", SECRET, "-n", "2"});
+        node.setDaemon(true);
+        node.start();
+        PokerTable table = node.tables.getTables().get(0);
+        int id = table.getTableID();
+
+        /* Act as a gateway with one guest, who sits down */
+        TestClient link = new TestClient(port);
+        assertEquals("auth:done", link.await("auth:"));
+        link.write("auth:gateway:"+SECRET);
+        link.write("Join:1:-2", "From:1:View:"+id, "From:1:ID:"+id+":sit:0");
+        assertEquals("To:1:2", link.await("To:"));
+        assertEquals("ID:"+id+":sit:0", link.read());
+        link.close();
+
+        long end = System.currentTimeMillis() + TIMEOUT;
+        while(table.getData().seatIsOccupied(0)) {
+            if(System.currentTimeMillis() > end) fail("The guest was never stood up");
+            Thread.sleep(20);
+        }
+        assertEquals(0, table.getSockets().size());
+    }
+}
@@ -0,0 +1,176 @@
+/*
+ * Copyright (C) 2018 Em Poulter <em@poulter.space>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package space.poulter.poker.server;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.After;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static space.poulter.poker.server.HandHistoryWriterTest.hand;
+
+/**
+ * Tests finding hands with the index, as it is written and after it is built
+ * again from the segments.
+ *
+ * @author Em Poulter <em@poulter.space>
+ */
+public class HandHistoryIndexTest {
+
+    /* Room for three of the records below in each segment */
+    private static final long SMALL_SEGMENT = 256;
+    /* How long to wait for the writer, in milliseconds */
+    private static final int TIMEOUT = 10000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private HashedWheelTimer timers;
+    private Path dir;
+    private HandHistoryWriter writer;
+
+    @Before
+    public void startWriter() throws IOException {
+        timers = new HashedWheelTimer(20, 64);
+        dir = folder.getRoot().toPath().resolve("history");
+        writer = new HandHistoryWriter(dir, SMALL_SEGMENT, HandHistoryWriter.SyncPolicy.BATCH, timers);
+        writer.start();
+    }
+
+    @After
+    public void stopWriter() {
+        if(writer != null) writer.close();
+        timers.stop();
+    }
+
+    /**
+     * Refreshes the index until it has all of the hands written so far.
+     */
+    private static void awaitSize(HandHistoryIndex index, long size) throws Exception {
+        long end = System.currentTimeMillis() + TIMEOUT;
+        while(true) {
+            index.refresh();
+            if(index.size() == size) return;
+            if(System.currentTimeMillis() > end) fail("The index only had "+index.size()+" hands");
+            Thread.sleep(20);
+        }
+    }
+
+    /**
+     * @return The hand numbers of the entries, read from the segments.
+     */
+    private List<Long> read(List<HandHistoryIndex.Entry> entries) throws IOException {
+        HandHistoryReader reader = new HandHistoryReader(dir);
+        List<Long> hands = new ArrayList<>();
+        for(HandHistoryIndex.Entry entry : entries) {
+            HandHistoryReader.Hand hand = reader.read(entry);
+            assertEquals(entry.getSeq(), hand.getSeq());
+            assertEquals(entry.getTableID(), hand.getTableID());
+            hands.add(hand.getHandNumber());
+        }
+        return hands;
+    }
+
+    private static List<Long> numbers(long... numbers) {
+        List<Long> list = new ArrayList<>();
+        for(long n : numbers) {
+            list.add(n);
+        }
+        return list;
+    }
+
+    @Test
+    public void findsHandsByUserTableAndTime() throws Exception {
+        writer.append(hand(1, 0, 100, 7, 8));
+        writer.append(hand(2, 1, 200, 8, -3));
+        writer.append(hand(1, 2, 300, 7, 9));
+        writer.append(hand(2, 3, 400, 9, 7));
+        writer.append(hand(1, 4, 500, -3, -4));
+        HandHistoryIndex index = new HandHistoryIndex(dir);
+        awaitSize(index, 5);
+
+        assertEquals(numbers(0, 2, 3), read(index.query(7, -1, Long.MIN_VALUE, Long.MAX_VALUE)));
+        assertEquals(numbers(1, 3), read(index.query(-1, 2, Long.MIN_VALUE, Long.MAX_VALUE)));
+        assertEquals(numbers(2, 3), read(index.query(-1, -1, 250, 450)));
+        assertEquals(numbers(3), read(index.query(7, 2, 0, 1000)));
+        /* A hand of only guests has no users, but is still found by table */
+        assertEquals(numbers(0, 1), read(index.query(8, -1, Long.MIN_VALUE, Long.MAX_VALUE)));
+        assertEquals(numbers(0, 2, 4), read(index.query(-1, 1, Long.MIN_VALUE, Long.MAX_VALUE)));
+    }
+
+    @Test
+    public void readsOnlyTheNewHandsOnRefresh() throws Exception {
+        HandHistoryIndex index = new HandHistoryIndex(dir);
+        index.refresh();
+        assertEquals(0, index.size());
+
+        writer.append(hand(0));
+        writer.append(hand(1));
+        awaitSize(index, 2);
+        /* Into the next segments, while the writer is still going */
+        for(int i = 2; i<8; i++) {
+            writer.append(hand(i));
+        }
+        awaitSize(index, 8);
+        assertTrue(HandHistoryWriter.segments(dir).size() > 1);
+
+        /* Nothing was read twice */
+        assertEquals(numbers(0, 1, 2, 3, 4, 5, 6, 7), read(index.query(8, -1, Long.MIN_VALUE, Long.MAX_VALUE)));
+        assertEquals(8, index.query(-1, 1, Long.MIN_VALUE, Long.MAX_VALUE).size());
+    }
+
+    @Test
+    public void rebuildsAnIndexFromItsSegment() throws Exception {
+        for(int i = 0; i<3; i++) {
+            writer.append(hand(i));
+        }
+        writer.close();
+        writer = null;
+        Path indexPath = HandHistoryIndex.indexPath(dir.resolve(HandHistoryWriter.segmentName(0)));
+        long whole = Files.size(indexPath);
+
+        /* Half of the last entry, which a reader skips until it is finished */
+        try(FileChannel channel = FileChannel.open(indexPath, StandardOpenOption.WRITE)) {
+            channel.truncate(whole - 6);
+        }
+        HandHistoryIndex index = new HandHistoryIndex(dir);
+        index.refresh();
+        assertEquals(2, index.size());
+
+        HandHistoryIndex.rebuild(dir, 0);
+        assertEquals(whole, Files.size(indexPath));
+        index.refresh();
+        assertEquals(3, index.size());
+
+        /* A segment without an index has one built when it is read */
+        Files.delete(indexPath);
+        index = new HandHistoryIndex(dir);
+        index.refresh();
+        assertEquals(numbers(0, 1, 2), read(index.query(7, -1, Long.MIN_VALUE, Long.MAX_VALUE)));
+    }
+}
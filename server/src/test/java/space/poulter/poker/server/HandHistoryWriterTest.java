@@ -0,0 +1,204 @@
+/*
+ * Copyright (C) 2018 Em Poulter <em@poulter.space>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package space.poulter.poker.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.After;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import space.poulter.poker.GameConfig;
+
+/**
+ * Tests writing the hand history, and reading it back after a crash.
+ *
+ * @author Em Poulter <em@poulter.space>
+ */
+public class HandHistoryWriterTest {
+
+    /* Room for three of the records below in each segment */
+    private static final long SMALL_SEGMENT = 256;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private HashedWheelTimer timers;
+    private Path dir;
+
+    @Before
+    public void createTimers() {
+        timers = new HashedWheelTimer(20, 64);
+        dir = folder.getRoot().toPath().resolve("history");
+    }
+
+    @After
+    public void stopTimers() {
+        timers.stop();
+    }
+
+    /**
+     * @return The record of a hand at table 1 between two users.
+     */
+    static byte[] hand(long handNumber) {
+        return hand(1, handNumber, 1000 * handNumber, 7, 8);
+    }
+
+    static byte[] hand(int tableID, long handNumber, long time, int... users) {
+        HandRecord record = new HandRecord();
+        record.begin(tableID, handNumber, time, GameConfig.DEFAULT, 0, 0, users.length - 1);
+        for(int i = 0; i<users.length; i++) {
+            record.seat(i, users[i], 1000);
+        }
+        record.win(0, 30);
+        return record.end(30);
+    }
+
+    private HandHistoryWriter start(long segmentSize) throws IOException {
+        HandHistoryWriter writer = new HandHistoryWriter(dir, segmentSize,
+                HandHistoryWriter.SyncPolicy.BATCH, timers);
+        writer.start();
+        return writer;
+    }
+
+    private void write(long segmentSize, long from, long to) throws IOException {
+        HandHistoryWriter writer = start(segmentSize);
+        for(long i = from; i<to; i++) {
+            writer.append(hand(i));
+        }
+        writer.close();
+    }
+
+    /**
+     * @return The hand numbers of every hand in the log, checking that the
+     * records are numbered in order from 0.
+     */
+    private List<Long> readAll() {
+        List<Long> hands = new ArrayList<>();
+        for(HandHistoryReader.Hand hand : new HandHistoryReader(dir)) {
+            assertEquals(hands.size(), hand.getSeq());
+            hands.add(hand.getHandNumber());
+        }
+        return hands;
+    }
+
+    private static List<Long> numbers(long... numbers) {
+        List<Long> list = new ArrayList<>();
+        for(long n : numbers) {
+            list.add(n);
+        }
+        return list;
+    }
+
+    /**
+     * @return Where the nth record of the first segment starts.
+     */
+    private static int offsetOf(int n) {
+        int offset = HandHistoryWriter.HEADER_SIZE;
+        for(int i = 0; i<n; i++) {
+            offset += HandHistoryWriter.FRAME_SIZE + hand(i).length;
+        }
+        return offset;
+    }
+
+    private Path firstSegment() {
+        return dir.resolve(HandHistoryWriter.segmentName(0));
+    }
+
+    @Test
+    public void readsBackWhatWasWritten() throws IOException {
+        write(HandHistoryWriter.DEFAULT_SEGMENT_SIZE, 0, 5);
+
+        List<Integer> users = new ArrayList<>();
+        int hands = 0;
+        for(HandHistoryReader.Hand hand : new HandHistoryReader(dir)) {
+            assertEquals(hands, hand.getHandNumber());
+            assertEquals(1, hand.getTableID());
+            assertEquals(1000 * hands, hand.getTime());
+            assertEquals(GameConfig.DEFAULT.getBigBlind(), hand.getBigBlind());
+            hand.replay(new HandHistoryReader.Visitor() {
+                @Override
+                public void seat(int seat, int userID, int chips) {
+                    users.add(userID);
+                }
+            });
+            hands++;
+        }
+        assertEquals(5, hands);
+        assertEquals(10, users.size());
+        assertEquals(Integer.valueOf(8), users.get(9));
+    }
+
+    @Test
+    public void carriesOnAcrossSegmentsAndRestarts() throws IOException {
+        write(SMALL_SEGMENT, 0, 7);
+        assertEquals(3, HandHistoryWriter.segments(dir).size());
+        write(SMALL_SEGMENT, 7, 10);
+
+        assertEquals(numbers(0, 1, 2, 3, 4, 5, 6, 7, 8, 9), readAll());
+        /* Each segment is named after its first record */
+        for(Path segment : HandHistoryWriter.segments(dir)) {
+            long base = HandHistoryWriter.segmentBase(segment);
+            HandHistoryReader.Hand first = new HandHistoryReader(dir)
+                    .read(base, HandHistoryWriter.HEADER_SIZE, base);
+            assertEquals(base, first.getHandNumber());
+        }
+    }
+
+    @Test
+    public void recoversFromARecordCutShort() throws IOException {
+        write(HandHistoryWriter.DEFAULT_SEGMENT_SIZE, 0, 3);
+        /* The crash came half way through writing the last record */
+        try(FileChannel channel = FileChannel.open(firstSegment(), StandardOpenOption.WRITE)) {
+            channel.truncate(offsetOf(2) + HandHistoryWriter.FRAME_SIZE + hand(2).length / 2);
+        }
+        assertEquals(numbers(0, 1), readAll());
+
+        /* The torn record is written over, and numbered again */
+        write(HandHistoryWriter.DEFAULT_SEGMENT_SIZE, 10, 12);
+        assertEquals(numbers(0, 1, 10, 11), readAll());
+    }
+
+    @Test
+    public void stopsAtARecordWhichFailsItsCheck() throws IOException {
+        write(HandHistoryWriter.DEFAULT_SEGMENT_SIZE, 0, 3);
+        try(FileChannel channel = FileChannel.open(firstSegment(), StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            /* Changes the hand number of the second record */
+            ByteBuffer b = ByteBuffer.allocate(1);
+            long at = offsetOf(1) + HandHistoryWriter.FRAME_SIZE + HandRecord.HAND_OFFSET + 7;
+            channel.read(b, at);
+            b.put(0, (byte)(b.get(0) ^ 0x40)).rewind();
+            channel.write(b, at);
+        }
+        assertEquals(numbers(0), readAll());
+        assertNull(new HandHistoryReader(dir).read(0, offsetOf(1), 1));
+
+        /* Nothing after it can be trusted, so it is all written over */
+        write(HandHistoryWriter.DEFAULT_SEGMENT_SIZE, 10, 11);
+        assertEquals(numbers(0, 10), readAll());
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2018 Em Poulter <em@poulter.space>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package space.poulter.poker.server;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests the timer with a small wheel, so timeouts go round it many times.
+ *
+ * @author Em Poulter <em@poulter.space>
+ */
+public class HashedWheelTimerTest {
+
+    private static final long TICK = 10;
+    /* Once round the wheel is 80ms */
+    private static final int WHEEL = 8;
+
+    private HashedWheelTimer timers;
+
+    @Before
+    public void startTimer() {
+        timers = new HashedWheelTimer(TICK, WHEEL);
+    }
+
+    @After
+    public void stopTimer() {
+        timers.stop();
+    }
+
+    @Test
+    public void firesAfterManyRounds() throws InterruptedException {
+        CountDownLatch fired = new CountDownLatch(1);
+        long[] firedAt = new long[1];
+        HashedWheelTimer.Timeout timeout = timers.newTimeout(() -> {
+            firedAt[0] = System.currentTimeMillis();
+            fired.countDown();
+        }, 500, TimeUnit.MILLISECONDS);
+
+        assertTrue(fired.await(2, TimeUnit.SECONDS));
+        /* Never early, and within a tick or so, allowing for a slow machine */
+        assertTrue(firedAt[0] >= timeout.getDeadline());
+        assertTrue(firedAt[0] - timeout.getDeadline() < 200);
+        assertFalse(timeout.cancel());
+    }
+
+    @Test
+    public void firesInOrderOfDeadline() throws InterruptedException {
+        List<Integer> order = new CopyOnWriteArrayList<>();
+        CountDownLatch fired = new CountDownLatch(4);
+        /* All in the same bucket, but on different rounds */
+        for(int round : new int[] {3, 1, 2, 0}) {
+            timers.newTimeout(() -> {
+                order.add(round);
+                fired.countDown();
+            }, 40 + round * TICK * WHEEL, TimeUnit.MILLISECONDS);
+        }
+
+        assertTrue(fired.await(2, TimeUnit.SECONDS));
+        assertEquals(List.of(0, 1, 2, 3), order);
+    }
+
+    @Test
+    public void neverFiresOnceCancelled() throws InterruptedException {
+        CountDownLatch fired = new CountDownLatch(1);
+        CountDownLatch after = new CountDownLatch(1);
+        HashedWheelTimer.Timeout timeout = timers.newTimeout(fired::countDown, 250, TimeUnit.MILLISECONDS);
+        timers.newTimeout(after::countDown, 400, TimeUnit.MILLISECONDS);
+        /* Cancelled once it is in the wheel, a few rounds before it is due */
+        Thread.sleep(50);
+        assertTrue(timeout.cancel());
+        assertTrue(timeout.isCancelled());
+        assertFalse(timeout.cancel());
+
+        assertTrue(after.await(2, TimeUnit.SECONDS));
+        assertEquals(1, fired.getCount());
+    }
+
+    @Test
+    public void runsTimeoutsWhichArePastDue() throws InterruptedException {
+        CountDownLatch fired = new CountDownLatch(2);
+        timers.newTimeout(fired::countDown, 0, TimeUnit.MILLISECONDS);
+        timers.newTimeout(fired::countDown, -5, TimeUnit.MILLISECONDS);
+        assertTrue(fired.await(1, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void keepsGoingAfterATaskThrows() throws InterruptedException {
+        CountDownLatch fired = new CountDownLatch(1);
+        timers.newTimeout(() -> {
+            throw new IllegalStateException("Thrown on purpose");
+        }, 20, TimeUnit.MILLISECONDS);
+        timers.newTimeout(fired::countDown, 100, TimeUnit.MILLISECONDS);
+        assertTrue(fired.await(1, TimeUnit.SECONDS));
+    }
+}
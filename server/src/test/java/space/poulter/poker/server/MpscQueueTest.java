@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2018 Em Poulter <em@poulter.space>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package space.poulter.poker.server;
+
+import java.util.concurrent.CountDownLatch;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * Tests the queue the event loops take their tasks from.
+ *
+ * @author Em Poulter <em@poulter.space>
+ */
+public class MpscQueueTest {
+
+    private static final int PRODUCERS = 4;
+    private static final int PER_PRODUCER = 100000;
+
+    @Test
+    public void takesInTheOrderAdded() {
+        MpscQueue<Integer> queue = new MpscQueue<>();
+        assertTrue(queue.isEmpty());
+        assertNull(queue.poll());
+        for(int i = 0; i<10; i++) {
+            queue.offer(i);
+        }
+        assertFalse(queue.isEmpty());
+        for(int i = 0; i<10; i++) {
+            assertEquals(Integer.valueOf(i), queue.poll());
+        }
+        assertNull(queue.poll());
+        assertTrue(queue.isEmpty());
+    }
+
+    @Test(expected = NullPointerException.class)
+    public void refusesNull() {
+        new MpscQueue<Integer>().offer(null);
+    }
+
+    @Test
+    public void losesNothingFromManyProducers() throws InterruptedException {
+        MpscQueue<long[]> queue = new MpscQueue<>();
+        CountDownLatch go = new CountDownLatch(1);
+        Thread[] producers = new Thread[PRODUCERS];
+        for(int p = 0; p<PRODUCERS; p++) {
+            int producer = p;
+            producers[p] = new Thread(() -> {
+                try {
+                    go.await();
+                } catch(InterruptedException e) {
+                    return;
+                }
+                for(int i = 0; i<PER_PRODUCER; i++) {
+                    queue.offer(new long[] {producer, i});
+                }
+            });
+            producers[p].start();
+        }
+        go.countDown();
+
+        /* Each producer's elements must come out in the order it added them */
+        long[] next = new long[PRODUCERS];
+        int taken = 0;
+        long end = System.currentTimeMillis() + 30000;
+        while(taken < PRODUCERS * PER_PRODUCER && System.currentTimeMillis() < end) {
+            long[] e = queue.poll();
+            if(e == null) {
+                Thread.onSpinWait();
+                continue;
+            }
+            assertEquals(next[(int)e[0]], e[1]);
+            next[(int)e[0]]++;
+            taken++;
+        }
+        for(Thread producer : producers) {
+            producer.join();
+        }
+        assertEquals(PRODUCERS * PER_PRODUCER, taken);
+        assertNull(queue.poll());
+        assertTrue(queue.isEmpty());
+    }
+}
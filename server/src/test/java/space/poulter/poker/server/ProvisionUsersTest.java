@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2018 Em Poulter <em@poulter.space>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package space.poulter.poker.server;
+
+import at.favre.lib.crypto.bcrypt.BCrypt;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.List;
+import org.junit.After;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import space.poulter.poker.server.ConnectionPool.PooledConnection;
+
+/**
+ * Tests adding users in bulk to an in memory database.
+ *
+ * @author Em Poulter <em@poulter.space>
+ */
+public class ProvisionUsersTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private String url;
+    private ConnectionPool pool;
+    private UserStore users;
+
+    @Before
+    public void createDatabase() {
+        url = ConnectionPoolTest.newDatabase();
+        pool = new ConnectionPool(url, "sa", "", 1);
+        users = new UserStore(pool);
+    }
+
+    @After
+    public void closePool() {
+        pool.close();
+    }
+
+    private String writeFile(String... lines) throws Exception {
+        File file = folder.newFile();
+        Files.write(file.toPath(), List.of(lines), StandardCharsets.UTF_8);
+        return file.getPath();
+    }
+
+    private int count() throws SQLException {
+        try(PooledConnection conn = pool.borrow();
+                ResultSet rs = conn.prepare("select count(*) from user").executeQuery()) {
+            rs.next();
+            return rs.getInt(1);
+        }
+    }
+
+    private static boolean verify(UserStore.User user, String password) {
+        return BCrypt.verifyer().verify(password.toCharArray(), user.getCrypt()).verified;
+    }
+
+    @Test
+    public void addsUsers() throws Exception {
+        String file = writeFile("# A comment", "alice,secret", "", "bob,with,commas", "no password");
+        new ProvisionUsers(new String[] {file, "-dburl", url, "-user", "sa", "-threads", "2"}).run();
+
+        assertEquals(2, count());
+        UserStore.User alice = users.find("alice");
+        assertNotNull(alice);
+        assertTrue(alice.isEnabled());
+        assertTrue(verify(alice, "secret"));
+        /* Everything after the first comma is the password */
+        assertTrue(verify(users.find("bob"), "with,commas"));
+    }
+
+    @Test
+    public void leavesOutOnlyTheBadUsers() throws Exception {
+        String file = writeFile("alice,a", "bob,b", "carol,c", "alice,again", "dave,d");
+        new ProvisionUsers(new String[] {file, "-dburl", url, "-user", "sa", "-batch", "2"}).run();
+
+        /* The second batch has a name which is taken, so it is written one
+         * user at a time, and only that user is left out
+         */
+        assertEquals(4, count());
+        assertNotNull(users.find("carol"));
+        assertTrue(verify(users.find("alice"), "a"));
+        assertNotNull(users.find("dave"));
+    }
+
+    @Test
+    public void leavesOutPasswordsTooLongToHash() throws Exception {
+        String file = writeFile("alice,"+"x".repeat(ProvisionUsers.MAX_PASSWORD_BYTES),
+                /* Fewer characters than the limit, but more bytes */
+                "bob,"+"\u00e9".repeat(40), "carol,c");
+        new ProvisionUsers(new String[] {file, "-dburl", url, "-user", "sa"}).run();
+
+        assertEquals(2, count());
+        assertNull(users.find("bob"));
+        assertNotNull(users.find("carol"));
+    }
+
+    @Test
+    public void addsDisabledUsers() throws Exception {
+        String file = writeFile("alice,secret");
+        new ProvisionUsers(new String[] {file, "-dburl", url, "-user", "sa", "-disabled"}).run();
+
+        assertFalse(users.find("alice").isEnabled());
+    }
+}
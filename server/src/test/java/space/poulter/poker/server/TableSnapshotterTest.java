@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2018 Em Poulter <em@poulter.space>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package space.poulter.poker.server;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import org.junit.After;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import space.poulter.poker.GameConfig;
+
+/**
+ * Tests saving and restoring the tables and sessions.
+ *
+ * @author Em Poulter <em@poulter.space>
+ */
+public class TableSnapshotterTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private HashedWheelTimer timers;
+    private EventLoop loop;
+    private Path file;
+
+    @Before
+    public void createTimers() {
+        timers = new HashedWheelTimer(20, 64);
+        loop = new EventLoop("Test tables");
+        file = folder.getRoot().toPath().resolve("tables.snapshot");
+    }
+
+    @After
+    public void stopTimers() {
+        timers.stop();
+        loop.shutdown();
+    }
+
+    private TableManager newTables() {
+        return new TableManager(new LobbyIndex(), new EventLoop[] {loop}, timers, 10);
+    }
+
+    @Test
+    public void keepsTheSessionsApart() throws Exception {
+        SessionStore sessions = new SessionStore(timers);
+        String token = sessions.issue(42);
+        TableManager tables = newTables();
+        tables.create(6, GameConfig.DEFAULT);
+        new TableSnapshotter(file, tables, sessions, new ConnectionRegistry(), timers).close();
+
+        Path sessionFile = file.resolveSibling("tables.snapshot.sessions");
+        assertTrue(Files.exists(sessionFile));
+        /* Nothing in the snapshot lets anyone log in */
+        String snapshot = new String(Files.readAllBytes(file), StandardCharsets.ISO_8859_1);
+        assertFalse(snapshot.contains(token));
+        if(file.getFileSystem().supportedFileAttributeViews().contains("posix")) {
+            assertEquals("rw-------", PosixFilePermissions.toString(Files.getPosixFilePermissions(sessionFile)));
+        }
+
+        SessionStore restoredSessions = new SessionStore(timers);
+        TableManager restoredTables = newTables();
+        int restored = new TableSnapshotter(file, restoredTables, restoredSessions,
+                new ConnectionRegistry(), timers).restore();
+        assertEquals(1, restored);
+        assertEquals(Integer.valueOf(42), restoredSessions.verify(token));
+    }
+
+    @Test
+    public void restoresTheTablesWithoutTheSessions() throws Exception {
+        SessionStore sessions = new SessionStore(timers);
+        String token = sessions.issue(42);
+        TableManager tables = newTables();
+        tables.create(6, GameConfig.DEFAULT);
+        new TableSnapshotter(file, tables, sessions, new ConnectionRegistry(), timers).close();
+        Path sessionFile = file.resolveSibling("tables.snapshot.sessions");
+        Files.delete(sessionFile);
+
+        SessionStore restoredSessions = new SessionStore(timers);
+        int restored = new TableSnapshotter(file, newTables(), restoredSessions,
+                new ConnectionRegistry(), timers).restore();
+        assertEquals(1, restored);
+        assertNull(restoredSessions.verify(token));
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2018 Em Poulter <em@poulter.space>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package space.poulter.poker.server;
+
+import at.favre.lib.crypto.bcrypt.BCrypt;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import org.junit.After;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Before;
+import org.junit.Test;
+import space.poulter.poker.server.ConnectionPool.PooledConnection;
+
+/**
+ * Tests reading and writing users against an in memory database.
+ *
+ * @author Em Poulter <em@poulter.space>
+ */
+public class UserStoreTest {
+
+    private static final String CRYPT = BCrypt.withDefaults().hashToString(4, "secret".toCharArray());
+
+    private ConnectionPool pool;
+    private UserStore users;
+
+    @Before
+    public void createUsers() throws SQLException {
+        pool = new ConnectionPool(ConnectionPoolTest.newDatabase(), "sa", "", 2);
+        users = new UserStore(pool);
+        try(PooledConnection conn = pool.borrow()) {
+            PreparedStatement insert = conn.prepare("insert into user (name, crypt, enabled) values (?, ?, ?)");
+            insert.setString(1, "alice");
+            insert.setString(2, CRYPT);
+            insert.setBoolean(3, true);
+            insert.executeUpdate();
+            insert.setString(1, "bob");
+            insert.setBoolean(3, false);
+            insert.executeUpdate();
+        }
+    }
+
+    @After
+    public void closePool() {
+        pool.close();
+    }
+
+    @Test
+    public void findsUsers() throws SQLException {
+        UserStore.User alice = users.find("alice");
+        assertNotNull(alice);
+        assertArrayEquals(CRYPT.toCharArray(), alice.getCrypt());
+        assertTrue(alice.isEnabled());
+        assertFalse(alice.isConnected());
+
+        UserStore.User bob = users.find("bob");
+        assertNotNull(bob);
+        assertFalse(bob.isEnabled());
+        assertTrue(alice.getID() != bob.getID());
+    }
+
+    @Test
+    public void doesNotFindMissingUsers() throws SQLException {
+        assertNull(users.find("carol"));
+    }
+
+    @Test
+    public void setsConnected() throws SQLException {
+        int id = users.find("alice").getID();
+        assertTrue(users.setConnected(id, true));
+        assertTrue(users.find("alice").isConnected());
+        assertFalse(users.find("bob").isConnected());
+        assertTrue(users.setConnected(id, false));
+        assertFalse(users.find("alice").isConnected());
+    }
+
+    @Test
+    public void doesNotConnectMissingUsers() throws SQLException {
+        assertFalse(users.setConnected(-1, true));
+    }
+
+    @Test
+    public void sharesTheConnections() throws SQLException {
+        for(int i = 0; i<10; i++) {
+            users.find("alice");
+        }
+        assertEquals(1, pool.idleCount());
+    }
+}
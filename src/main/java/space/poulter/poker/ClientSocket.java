@@ -17,29 +17,140 @@
 
 package space.poulter.poker;
 
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.Closeable;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.io.OutputStream;
 import java.net.Socket;
+import java.util.Arrays;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 
 /**
+ * One end of a connection, over which objects are sent and received.
+ * <p>
+ * Writing never waits for the network. The objects are serialised straight
+ * away, on the thread writing them, into a queue of bytes which a thread of
+ * the socket's own sends on. So a client which is slow to read only holds up
+ * its own writer, and not the tables or anything else writing to it. If it
+ * falls so far behind that more than MAX_QUEUED bytes are waiting, the
+ * connection is dropped.
  *
  * @author Em Poulter
  */
 public abstract class ClientSocket implements Closeable {
+    
+    /* The most bytes which may be waiting to be sent */
+    public static final int MAX_QUEUED = 4 << 20;
+    /* How long to wait for the last messages to be sent when closing, in ms */
+    public static final long CLOSE_TIMEOUT = 5000;
+    /* Closes the connections which don't finish sending in time */
+    private static final Timer CLOSER = new Timer("Connection closer", true);
+    /* Put in the queue to tell the writer to close the connection */
+    private static final byte[] CLOSE = new byte[0];
+    
     private final Socket s;
+    /* Messages are serialised into the buffer, and the bytes taken from it */
+    private final Buffer buffer;
     private final ObjectOutputStream out;
+    private final OutputStream raw;
     private final ObjectInputStream in;
+    private final LinkedBlockingQueue<byte[]> outbox;
+    private final AtomicLong queued;
+    private final Thread writer;
     public final ThreadedReader reader;
     private volatile boolean connectionComplete;
+    /* Set once no more may be written */
+    private boolean closing;
+    private final AtomicBoolean closed;
+    
+    /* Compression of outgoing messages, once it has been agreed with the 
+     * other end. Incoming compressed messages are always understood.
+     */
+    public static final String COMPRESSION_REQUEST = "auth:compress:deflate";
+    private volatile boolean compressing;
+    private final Deflater deflater;
+    private final Inflater inflater;
+    
+    /**
+     * A ByteArrayOutputStream which can hand over what it holds.
+     */
+    private static class Buffer extends ByteArrayOutputStream {
+        byte[] take() {
+            byte[] bytes = toByteArray();
+            reset();
+            return bytes;
+        }
+    }
     
     public ClientSocket(Socket s) throws IOException {
         this.s = s;
-        out = new ObjectOutputStream(s.getOutputStream());
+        raw = new BufferedOutputStream(s.getOutputStream());
+        buffer = new Buffer();
+        out = new ObjectOutputStream(buffer);
+        /* The other end can't read anything until it has the header */
+        out.flush();
+        raw.write(buffer.take());
+        raw.flush();
         in = new ObjectInputStream(s.getInputStream());
+        outbox = new LinkedBlockingQueue<>();
+        queued = new AtomicLong();
         reader = new ThreadedReader();
         connectionComplete = false;
+        closing = false;
+        closed = new AtomicBoolean(false);
+        compressing = false;
+        deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+        inflater = new Inflater();
+        writer = new Thread(this::drain, "Writer for "+s.getRemoteSocketAddress());
+        writer.setDaemon(true);
+        writer.start();
+    }
+    
+    /**
+     * For a connection which is carried over another one, e.g. a client of a
+     * gateway as seen by a node, and so has no socket of its own. Such a 
+     * connection must override write and close, and is never read from.
+     */
+    protected ClientSocket() {
+        s = null;
+        raw = null;
+        buffer = null;
+        out = null;
+        in = null;
+        outbox = null;
+        queued = null;
+        writer = null;
+        reader = new ThreadedReader();
+        connectionComplete = true;
+        closing = false;
+        /* There is nothing to shut down */
+        closed = new AtomicBoolean(true);
+        compressing = false;
+        deflater = null;
+        inflater = null;
+    }
+    
+    /**
+     * Turns compression of outgoing messages on or off. This should only be 
+     * turned on once the other end has said that it supports it.
+     * @param compressing Whether to compress large outgoing messages.
+     */
+    public void setCompressing(boolean compressing) {
+        this.compressing = compressing;
+    }
+    public boolean isCompressing() {
+        return compressing;
     }
     
     public void setConnectionComplete(boolean isComplete) {
@@ -53,17 +164,48 @@ public abstract class ClientSocket implements Closeable {
         write("Exit");
         //close();
     }
+    
+    /**
+     * Closes the connection once everything already written has been sent,
+     * or after CLOSE_TIMEOUT if that takes too long. Returns straight away.
+     */
     @Override
     public void close() {
         System.out.println("Closing");
+        synchronized(this) {
+            if(closing) return;
+            closing = true;
+        }
+        outbox.offer(CLOSE);
+        CLOSER.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                shutdown();
+            }
+        }, CLOSE_TIMEOUT);
+    }
+    
+    /**
+     * Closes the connection straight away, dropping anything not yet sent.
+     */
+    private void shutdown() {
+        if(!closed.compareAndSet(false, true)) return;
         try {
             in.close();
-            out.close();
             s.close();
         } catch(IOException e) {
             System.err.println("Exception when closing connection");
             System.err.println(e);
         }
+        synchronized(this) {
+            closing = true;
+            deflater.end();
+        }
+        synchronized(inflater) {
+            inflater.end();
+        }
+        outbox.clear();
+        outbox.offer(CLOSE);
     }
     
     public ThreadedReader getReader() {
@@ -78,17 +220,151 @@ public abstract class ClientSocket implements Closeable {
         return s;
     }
 
-    public void write(Object o) throws IOException {
-        out.writeObject(o);
-        out.reset();
-        
+    /**
+     * Sends some messages, one after the other, with nothing else written to
+     * the connection between them (e.g. a command and the object it is 
+     * about). Returns once they are queued to be sent.
+     * @param messages The messages to send.
+     * @throws IOException If the connection is closed, or has too much 
+     * waiting to be sent already.
+     */
+    public void write(Object... messages) throws IOException {
+        synchronized(this) {
+            if(closing) throw new IOException("Connection is closed");
+            try {
+                for(Object o : messages) {
+                    /* Short commands are never worth compressing, so don't 
+                     * bother serialising them to find out.
+                     */
+                    if(compressing && !(o instanceof String && ((String)o).length() < CompressedMessage.THRESHOLD)) {
+                        out.writeObject(compress(o));
+                    } else {
+                        out.writeObject(o);
+                    }
+                    out.reset();
+                }
+            } finally {
+                /* Anything half written still has to go, to keep the stream
+                 * in step with the other end.
+                 */
+                out.flush();
+                enqueue(buffer.take());
+            }
+        }
+    }
+    
+    private void enqueue(byte[] bytes) throws IOException {
+        if(bytes.length == 0) return;
+        if(queued.addAndGet(bytes.length) > MAX_QUEUED) {
+            System.err.println("Connection to "+s.getRemoteSocketAddress()+" isn't keeping up, so closing it");
+            shutdown();
+            throw new IOException("Connection is too far behind");
+        }
+        outbox.offer(bytes);
+    }
+    
+    /**
+     * Sends everything written, until told to close. Only run by the writer.
+     */
+    private void drain() {
+        try {
+            while(true) {
+                byte[] bytes = outbox.take();
+                if(bytes == CLOSE) break;
+                queued.addAndGet(-bytes.length);
+                raw.write(bytes);
+                /* Send as much as possible at once, but don't keep anything
+                 * waiting once the queue is empty.
+                 */
+                if(outbox.isEmpty()) raw.flush();
+            }
+            raw.flush();
+        } catch(IOException e) {
+            if(!closed.get()) {
+                System.err.println("Exception occured when writing to stream");
+                System.err.println(e);
+            }
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        shutdown();
     }
 
     public Object read() throws IOException, ClassNotFoundException {
         Object o = in.readObject();
+        if(o instanceof CompressedMessage) {
+            o = decompress((CompressedMessage)o);
+        }
         return o;
     }
     
+    /**
+     * Serialises an object and deflates it, if it is large enough to be worth
+     * doing.
+     * @return A CompressedMessage, or the original object if it was too small.
+     */
+    private Object compress(Object o) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try(ObjectOutputStream objectOut = new ObjectOutputStream(bytes)) {
+            objectOut.writeObject(o);
+        }
+        /* Too big for the other end to accept compressed, so send it as it is */
+        if(bytes.size() < CompressedMessage.THRESHOLD || bytes.size() > CompressedMessage.MAX_RAW_LENGTH) return o;
+        
+        byte[] raw = bytes.toByteArray();
+        byte[] buffer = new byte[raw.length + 64];
+        deflater.reset();
+        deflater.setDictionary(CompressedMessage.DICTIONARY);
+        deflater.setInput(raw);
+        deflater.finish();
+        int length = 0;
+        while(!deflater.finished()) {
+            if(length == buffer.length) buffer = Arrays.copyOf(buffer, buffer.length*2);
+            length += deflater.deflate(buffer, length, buffer.length-length);
+        }
+        /* If it didn't shrink, it isn't worth making the other end inflate it */
+        if(length >= raw.length) return o;
+        return new CompressedMessage(Arrays.copyOf(buffer, length), raw.length);
+    }
+    
+    private Object decompress(CompressedMessage message) throws IOException, ClassNotFoundException {
+        /* The length comes from the other end, so don't trust it */
+        int rawLength = message.getRawLength();
+        if(rawLength <= 0 || rawLength > CompressedMessage.MAX_RAW_LENGTH || message.getData() == null) {
+            throw new IOException("Compressed message had an invalid length of "+rawLength);
+        }
+        byte[] raw = new byte[rawLength];
+        synchronized(inflater) {
+            try {
+                inflater.reset();
+                inflater.setInput(message.getData());
+                int length = 0;
+                byte[] spare = new byte[1];
+                while(!inflater.finished()) {
+                    /* Once the message is full, anything more is an error */
+                    boolean full = length == raw.length;
+                    int n = full ? inflater.inflate(spare) : inflater.inflate(raw, length, raw.length-length);
+                    if(n == 0 && inflater.needsDictionary()) {
+                        inflater.setDictionary(CompressedMessage.DICTIONARY);
+                    } else if(n == 0 && inflater.needsInput()) {
+                        throw new IOException("Compressed message was truncated");
+                    } else if(full && n > 0) {
+                        throw new IOException("Compressed message was longer than it said");
+                    }
+                    length += n;
+                }
+                if(length != raw.length) {
+                    throw new IOException("Compressed message was shorter than it said");
+                }
+            } catch(DataFormatException e) {
+                throw new IOException("Compressed message was corrupt", e);
+            }
+        }
+        try(ObjectInputStream objectIn = new ObjectInputStream(new ByteArrayInputStream(raw))) {
+            return objectIn.readObject();
+        }
+    }
+    
     public abstract void processCommand(String str);
     
     public class ThreadedReader extends Thread{
@@ -106,6 +382,14 @@ public abstract class ClientSocket implements Closeable {
                 System.err.println("Exception occured when reading from stream");
                 System.err.println(e);
             }
+            readerFinished();
         }
     }
+    
+    /**
+     * Called by the ThreadedReader once nothing more can be read, whether the
+     * connection was closed or lost.
+     */
+    protected void readerFinished() {
+    }
 }
@@ -0,0 +1,175 @@
+/*
+ * Copyright (C) 2018 Em Poulter <em@poulter.space>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package space.poulter.poker;
+
+/**
+ * A command received as a String, split into its colon separated tokens. The
+ * command is scanned once, and only the positions of the tokens are stored,
+ * so comparing or parsing a token doesn't create any new Strings.
+ *
+ * @author Em Poulter
+ */
+public class Command {
+
+    private final String str;
+    private int[] starts;
+    private int[] ends;
+    private int size;
+
+    public Command(String str) {
+        this.str = str;
+        starts = new int[8];
+        ends = new int[8];
+        size = 0;
+
+        int start = 0;
+        for(int i = 0; i<str.length(); i++) {
+            if(str.charAt(i) == ':') {
+                addToken(start, i);
+                start = i+1;
+            }
+        }
+        addToken(start, str.length());
+    }
+
+    private void addToken(int start, int end) {
+        if(size == starts.length) {
+            int[] newStarts = new int[size*2];
+            int[] newEnds = new int[size*2];
+            System.arraycopy(starts, 0, newStarts, 0, size);
+            System.arraycopy(ends, 0, newEnds, 0, size);
+            starts = newStarts;
+            ends = newEnds;
+        }
+        starts[size] = start;
+        ends[size] = end;
+        size++;
+    }
+
+    /**
+     * @return The number of tokens in the command.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @param i The index of the token.
+     * @return The length of the token, or -1 if there is no such token.
+     */
+    public int length(int i) {
+        if(i < 0 || i >= size) return -1;
+        return ends[i] - starts[i];
+    }
+
+    /**
+     * Checks whether a token is equal to a given word.
+     * @param i The index of the token.
+     * @param word The word to compare against.
+     * @return true if the token exists and is exactly the word.
+     */
+    public boolean is(int i, String word) {
+        return length(i) == word.length()
+                && str.regionMatches(starts[i], word, 0, word.length());
+    }
+
+    /**
+     * Parses a token as a (decimal) integer, without creating a String.
+     * @param i The index of the token.
+     * @return The value of the token.
+     * @throws NumberFormatException If the token doesn't exist, or isn't a
+     * valid int.
+     */
+    public int parseInt(int i) throws NumberFormatException {
+        long value = parseLong(i);
+        if(value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) {
+            throw new NumberFormatException("Token out of range: "+get(i));
+        }
+        return (int)value;
+    }
+
+    /**
+     * Parses a token as a (decimal) long, without creating a String.
+     * @param i The index of the token.
+     * @return The value of the token.
+     * @throws NumberFormatException If the token doesn't exist, or isn't a
+     * valid long.
+     */
+    public long parseLong(int i) throws NumberFormatException {
+        if(i < 0 || i >= size || starts[i] == ends[i]) {
+            throw new NumberFormatException("No token at "+i+" in "+str);
+        }
+        int pos = starts[i];
+        boolean negative = false;
+        if(str.charAt(pos) == '-') {
+            negative = true;
+            pos++;
+            if(pos == ends[i]) throw new NumberFormatException("Not a number: "+get(i));
+        }
+        long value = 0;
+        for(; pos<ends[i]; pos++) {
+            int digit = str.charAt(pos) - '0';
+            if(digit < 0 || digit > 9 || value > (Long.MAX_VALUE - digit) / 10) {
+                throw new NumberFormatException("Not a number: "+get(i));
+            }
+            value = value*10 + digit;
+        }
+        return negative ? -value : value;
+    }
+
+    /**
+     * Computes the hash of a token, equal to the hashCode() of the token as a
+     * String.
+     * @param i The index of the token.
+     * @return The hash of the token, or 0 if there is no such token.
+     */
+    public int hash(int i) {
+        if(i < 0 || i >= size) return 0;
+        int h = 0;
+        for(int pos = starts[i]; pos<ends[i]; pos++) {
+            h = 31*h + str.charAt(pos);
+        }
+        return h;
+    }
+
+    /**
+     * @param i The index of the token.
+     * @return The token as a String.
+     */
+    public String get(int i) {
+        if(i < 0 || i >= size) throw new IndexOutOfBoundsException("No token at "+i+" in "+str);
+        return str.substring(starts[i], ends[i]);
+    }
+
+    /**
+     * Gets everything from the start of a token to the end of the command,
+     * including any colons.
+     * @param i The index of the first token.
+     * @return The rest of the command, or the empty String if there is no such
+     * token.
+     */
+    public String rest(int i) {
+        if(i >= size) return "";
+        return str.substring(starts[Math.max(i, 0)]);
+    }
+
+    @Override
+    public String toString() {
+        return str;
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2018 Em Poulter <em@poulter.space>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package space.poulter.poker;
+
+/**
+ * A table from command words to handlers. The words are hashed into an open
+ * addressed table when the dispatcher is built, so finding the handler for a
+ * token of a Command is a single hash of the token and (almost always) a
+ * single comparison, rather than a chain of equals() calls.
+ *
+ * @author Em Poulter
+ * @param <H> The type of the handlers.
+ */
+public class CommandDispatcher<H> {
+
+    private String[] words;
+    private Object[] handlers;
+    private int mask;
+    private int size;
+
+    public CommandDispatcher() {
+        words = new String[16];
+        handlers = new Object[16];
+        mask = 15;
+        size = 0;
+    }
+
+    /**
+     * Adds a handler for a command word. Dispatchers are meant to be built
+     * once, and then only read.
+     * @param word The command word.
+     * @param handler The handler to return for the word.
+     * @return This dispatcher, so that calls can be chained.
+     */
+    public CommandDispatcher<H> register(String word, H handler) {
+        /* Keep the table at most half full, so probes stay short */
+        if((size+1)*2 > words.length) {
+            String[] oldWords = words;
+            Object[] oldHandlers = handlers;
+            words = new String[oldWords.length*2];
+            handlers = new Object[oldWords.length*2];
+            mask = words.length-1;
+            size = 0;
+            for(int i = 0; i<oldWords.length; i++) {
+                if(oldWords[i] != null) insert(oldWords[i], oldHandlers[i]);
+            }
+        }
+        insert(word, handler);
+        return this;
+    }
+
+    private void insert(String word, Object handler) {
+        int slot = spread(word.hashCode()) & mask;
+        while(words[slot] != null && !words[slot].equals(word)) {
+            slot = (slot+1) & mask;
+        }
+        if(words[slot] == null) size++;
+        words[slot] = word;
+        handlers[slot] = handler;
+    }
+
+    private static int spread(int h) {
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * Finds the handler for a token of a command.
+     * @param command The command.
+     * @param i The index of the token to look up.
+     * @return The handler registered for the token, or null if there is none.
+     */
+    @SuppressWarnings("unchecked")
+    public H get(Command command, int i) {
+        if(i >= command.size()) return null;
+        int slot = spread(command.hash(i)) & mask;
+        while(words[slot] != null) {
+            if(command.is(i, words[slot])) return (H)handlers[slot];
+            slot = (slot+1) & mask;
+        }
+        return null;
+    }
+}
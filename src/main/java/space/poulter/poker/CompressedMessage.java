@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2018 Em Poulter <em@poulter.space>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package space.poulter.poker;
+
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A message which has been serialised and then deflated, to be sent in place
+ * of the original object on a connection which has compression turned on.
+ *
+ * @author Em Poulter
+ */
+public class CompressedMessage implements Serializable {
+
+    /**
+     * The preset dictionary used by both ends of the connection. It holds the
+     * class names, field names and command words which turn up in almost every
+     * message, with the most common towards the end.
+     */
+    public static final byte[] DICTIONARY = (
+            "java.lang.Integerjava.lang.Numberjava.lang.Booleanjava.lang.Long"
+            + "java.util.ArrayListjava.util.HashMapjava.util.EnumMap"
+            + "com.google.common.collect.HashBiMap"
+            + "space.poulter.poker.Poker$PokerAction"
+            + "space.poulter.poker.PokerTableData$Field"
+            + "space.poulter.poker.PokerTableDelta"
+            + "space.poulter.poker.TableSummary"
+            + "space.poulter.poker.Cards"
+            + "space.poulter.poker.Card"
+            + "space.poulter.poker.PlayerData"
+            + "space.poulter.poker.PokerTableData"
+            + "chipCountcurrentBetraiseinHandplayerAction"
+            + "gameIsRunningstageOfPlayplayersInHandpotbetdealersmallBlindbigBlind"
+            + "tableIDmaxHandsseatedrunningaveragePotrevisionfieldRevisionsseatRevisions"
+            + "Lobby:tableTable Page:game:winner:game:end"
+            + "ID::game:seat::action::toact::card:"
+            ).getBytes(StandardCharsets.US_ASCII);
+
+    /**
+     * Messages whose serialised form is shorter than this are sent as they are,
+     * as deflating them would cost more than it saves.
+     */
+    public static final int THRESHOLD = 256;
+
+    /**
+     * The largest a message may be once inflated. Nothing the server sends
+     * comes near this, so anything claiming to be bigger is refused rather
+     * than given the memory it asks for.
+     */
+    public static final int MAX_RAW_LENGTH = 1 << 20;
+
+    private final byte[] data;
+    private final int rawLength;
+
+    public CompressedMessage(byte[] data, int rawLength) {
+        this.data = data;
+        this.rawLength = rawLength;
+    }
+
+    public byte[] getData() {
+        return data;
+    }
+    public int getRawLength() {
+        return rawLength;
+    }
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright (C) 2018 Em Poulter <em@poulter.space>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package space.poulter.poker;
+
+import java.io.Serializable;
+import java.util.Objects;
+
+/**
+ * The stakes and betting structure of a table: the blinds, the ante, how much
+ * a player may sit down with, and how much they may raise by.
+ *
+ * @author Em Poulter
+ */
+public class GameConfig implements Serializable {
+
+    public enum Limit {
+        NO_LIMIT("NL"), POT_LIMIT("PL"), FIXED_LIMIT("FL");
+
+        private final String shortName;
+
+        Limit(String shortName) {
+            this.shortName = shortName;
+        }
+
+        public String getShortName() {
+            return shortName;
+        }
+    }
+
+    public static final GameConfig DEFAULT =
+            new GameConfig(100, 200, 0, 5000, 5000, Limit.NO_LIMIT);
+
+    private final int smallBlind;
+    private final int bigBlind;
+    private final int ante;
+    private final int minBuyIn;
+    private final int maxBuyIn;
+    private final Limit limit;
+
+    public GameConfig(int smallBlind, int bigBlind, int ante, int minBuyIn,
+            int maxBuyIn, Limit limit) {
+        if(smallBlind < 0 || bigBlind <= 0 || ante < 0 || minBuyIn <= 0
+                || maxBuyIn < minBuyIn || limit == null) {
+            throw new IllegalArgumentException("Invalid game configuration");
+        }
+        this.smallBlind = smallBlind;
+        this.bigBlind = bigBlind;
+        this.ante = ante;
+        this.minBuyIn = minBuyIn;
+        this.maxBuyIn = maxBuyIn;
+        this.limit = limit;
+    }
+
+    /**
+     * Parses a configuration of the form
+     * "$small:$big:$ante:$minBuyIn:$maxBuyIn:$limit", where the limit is one of
+     * NL, PL or FL.
+     * @param command The command holding the configuration.
+     * @param i The index of the first token of the configuration.
+     * @return The configuration.
+     * @throws IllegalArgumentException If the configuration is not valid.
+     */
+    public static GameConfig parse(Command command, int i) throws IllegalArgumentException {
+        if(command.size() < i+6) {
+            throw new IllegalArgumentException("Too few fields in game configuration "+command);
+        }
+        Limit limit = null;
+        for(Limit l : Limit.values()) {
+            if(command.is(i+5, l.getShortName())) limit = l;
+        }
+        if(limit == null) {
+            throw new IllegalArgumentException("Unknown betting limit "+command.get(i+5));
+        }
+        return new GameConfig(command.parseInt(i), command.parseInt(i+1),
+                command.parseInt(i+2), command.parseInt(i+3),
+                command.parseInt(i+4), limit);
+    }
+
+    /**
+     * @return A copy of this configuration with different blinds.
+     */
+    public GameConfig withBlinds(int small, int big) {
+        return new GameConfig(small, big, ante, minBuyIn, maxBuyIn, limit);
+    }
+
+    public int getSmallBlind() {
+        return smallBlind;
+    }
+    public int getBigBlind() {
+        return bigBlind;
+    }
+    public int getAnte() {
+        return ante;
+    }
+    public int getMinBuyIn() {
+        return minBuyIn;
+    }
+    public int getMaxBuyIn() {
+        return maxBuyIn;
+    }
+    public Limit getLimit() {
+        return limit;
+    }
+
+    /**
+     * The smallest amount a player may raise by.
+     * @param lastRaise The size of the last raise in this betting round, or
+     * the big blind if there hasn't been one.
+     * @param lateStreet Whether this is the turn or river, where fixed limit
+     * bets are doubled.
+     * @return The minimum raise.
+     */
+    public int getMinRaise(int lastRaise, boolean lateStreet) {
+        if(limit == Limit.FIXED_LIMIT) {
+            return lateStreet ? 2*bigBlind : bigBlind;
+        }
+        return Math.max(bigBlind, lastRaise);
+    }
+
+    /**
+     * The largest amount a player may raise by.
+     * @param toCall The amount the player must put in to call.
+     * @param pot The size of the pot, before the player calls.
+     * @param chips The chips the player has left.
+     * @param lateStreet Whether this is the turn or river.
+     * @return The maximum raise, which is never more than the player can
+     * afford after calling.
+     */
+    public int getMaxRaise(int toCall, int pot, int chips, boolean lateStreet) {
+        int stack = Math.max(0, chips - toCall);
+        switch(limit) {
+            case POT_LIMIT: return Math.min(stack, pot + toCall);
+            case FIXED_LIMIT: return Math.min(stack, lateStreet ? 2*bigBlind : bigBlind);
+            default: return stack;
+        }
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if(this == o) return true;
+        if(!(o instanceof GameConfig)) return false;
+        GameConfig other = (GameConfig)o;
+        return smallBlind == other.smallBlind && bigBlind == other.bigBlind
+                && ante == other.ante && minBuyIn == other.minBuyIn
+                && maxBuyIn == other.maxBuyIn && limit == other.limit;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(smallBlind, bigBlind, ante, minBuyIn, maxBuyIn, limit);
+    }
+
+    /**
+     * @return A short description for the lobby, e.g. "NL 100/200".
+     */
+    @Override
+    public String toString() {
+        String str = limit.getShortName()+" "+smallBlind+"/"+bigBlind;
+        if(ante > 0) str += " ante "+ante;
+        return str;
+    }
+}
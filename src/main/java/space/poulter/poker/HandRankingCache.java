@@ -0,0 +1,294 @@
+/*
+ * Copyright (C) 2018 Em Poulter <em@poulter.space>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package space.poulter.poker;
+
+/**
+ * Remembers the rankings worked out by Poker.getHandRanking, up to a fixed
+ * number of them.
+ * <p>
+ * The cards are looked up by a mask with a bit for each card, 16 bits to a
+ * suit. A ranking doesn't depend on which suits the cards are, only on which
+ * of them share a suit, so the four suits of the mask are sorted before it is
+ * used. Hands which differ only by swapping suits then share an entry.
+ * <p>
+ * The entries are kept in open addressing hash tables of longs and ints, 
+ * split into STRIPES by the hash of the mask, each with a lock of its own, so
+ * the threads sharing the cache rarely wait for each other. Once a stripe is
+ * full, room is made by the clock algorithm. A hand goes round the stripe,
+ * giving a second chance to each entry which has been used since the hand
+ * last passed it, and removing the first which hasn't. A new entry hasn't
+ * been used yet, so hands which are only ranked once are the first to go.
+ * <p>
+ * There are only 134,459 hands once their suits are sorted, so the cache
+ * never needs more than MAX_ENTRIES.
+ * <p>
+ * The cache may be shared between threads.
+ *
+ * @author Em Poulter
+ */
+public class HandRankingCache {
+
+    /* The most rankings which may be remembered, a little more than there
+     * are hands with sorted suits
+     */
+    public static final int MAX_ENTRIES = 1 << 18;
+    /* The number of parts the cache is split into, a power of 2 */
+    static final int STRIPES = 16;
+
+    private static final long EMPTY = 0;
+    /* The scores are all below 14^5 */
+    private static final int SCORE_BITS = 20;
+
+    /**
+     * One part of the cache, which is only used while holding its lock.
+     */
+    private static class Stripe {
+        private final int maxEntries;
+        private final long[] keys;
+        private final int[] values;
+        private final boolean[] used;
+        private final int mask;
+        private int size;
+        private int clock;
+        private long hits;
+        private long misses;
+
+        Stripe(int maxEntries) {
+            this.maxEntries = maxEntries;
+            /* At most half full, so the probes stay short */
+            int capacity = Integer.highestOneBit(maxEntries) << 2;
+            keys = new long[capacity];
+            values = new int[capacity];
+            used = new boolean[capacity];
+            mask = capacity - 1;
+            size = 0;
+            clock = 0;
+            hits = 0;
+            misses = 0;
+        }
+
+        /**
+         * @return The remembered ranking, packed into an int, or -1 if it
+         * isn't remembered.
+         */
+        synchronized int get(long key, long hash) {
+            int i = find(key, hash);
+            if(keys[i] == key) {
+                hits++;
+                used[i] = true;
+                return values[i];
+            }
+            misses++;
+            return -1;
+        }
+
+        synchronized void put(long key, long hash, int value) {
+            /* Another thread may have ranked the same cards meanwhile */
+            if(keys[find(key, hash)] == key) return;
+            if(size == maxEntries) evict();
+            int i = find(key, hash);
+            keys[i] = key;
+            values[i] = value;
+            used[i] = false;
+            size++;
+        }
+
+        /**
+         * @return Where the key is, or the empty slot where it would go.
+         */
+        private int find(long key, long hash) {
+            int i = (int)hash & mask;
+            while(keys[i] != EMPTY && keys[i] != key) {
+                i = (i + 1) & mask;
+            }
+            return i;
+        }
+
+        private int home(long key) {
+            return (int)hash(key) & mask;
+        }
+
+        /**
+         * Moves the clock hand on until it finds an entry which hasn't been
+         * used since it last passed, and removes it.
+         */
+        private void evict() {
+            while(true) {
+                int i = clock;
+                clock = (clock + 1) & mask;
+                if(keys[i] == EMPTY) continue;
+                if(used[i]) {
+                    used[i] = false;
+                    continue;
+                }
+                remove(i);
+                return;
+            }
+        }
+
+        /**
+         * Removes the entry in a slot, moving back any entries after it which
+         * would no longer be found.
+         */
+        private void remove(int i) {
+            keys[i] = EMPTY;
+            size--;
+            int j = i;
+            while(true) {
+                j = (j + 1) & mask;
+                if(keys[j] == EMPTY) return;
+                int home = home(keys[j]);
+                /* Leave it if its home is between the gap and it */
+                boolean stays = i <= j ? (home > i && home <= j) : (home > i || home <= j);
+                if(stays) continue;
+                keys[i] = keys[j];
+                values[i] = values[j];
+                used[i] = used[j];
+                keys[j] = EMPTY;
+                i = j;
+            }
+        }
+    }
+
+    private final Stripe[] stripes;
+
+    /**
+     * @param maxEntries The most rankings to remember, up to MAX_ENTRIES,
+     * which is rounded up to a multiple of STRIPES.
+     */
+    public HandRankingCache(int maxEntries) {
+        if(maxEntries < 1 || maxEntries > MAX_ENTRIES) {
+            throw new IllegalArgumentException("Invalid cache size "+maxEntries);
+        }
+        stripes = new Stripe[STRIPES];
+        for(int i = 0; i<STRIPES; i++) {
+            stripes[i] = new Stripe((maxEntries + STRIPES - 1) / STRIPES);
+        }
+    }
+
+    /**
+     * The same as Poker.getHandRanking, but only works the ranking out if it
+     * isn't remembered.
+     * @param cards The cards to rank.
+     * @return The ranking of the cards, or null if they can't be ranked.
+     */
+    public HandValue getHandRanking(Cards cards) {
+        long key = key(cards);
+        if(key == EMPTY) return Poker.getHandRanking(cards);
+        long hash = hash(key);
+        /* The top bits pick the stripe, and the bottom bits the slot */
+        Stripe stripe = stripes[(int)(hash >>> 60) & (STRIPES - 1)];
+        int packed = stripe.get(key, hash);
+        if(packed >= 0) {
+            return new HandValue(packed >>> SCORE_BITS, packed & ((1 << SCORE_BITS) - 1));
+        }
+        HandValue value = Poker.getHandRanking(cards);
+        if(value == null) return null;
+        stripe.put(key, hash, (value.getRank() << SCORE_BITS) | value.getScore());
+        return value;
+    }
+
+    private static long hash(long key) {
+        long h = key * 0x9e3779b97f4a7c15L;
+        return h ^ (h >>> 32);
+    }
+
+    /**
+     * @return The mask of the cards with the suits sorted, or EMPTY if the
+     * cards can't be ranked or are repeated.
+     */
+    static long key(Cards cards) {
+        if(cards.size() != 5 || !cards.isComplete()) return EMPTY;
+        int[] suits = new int[4];
+        for(Card c : cards) {
+            int bit = 1 << (c.getValue() - 2);
+            int suit = suitIndex(c.getSuit());
+            if(suit < 0 || c.getValue() < 2 || (suits[suit] & bit) != 0) return EMPTY;
+            suits[suit] |= bit;
+        }
+        /* Sort the four suits, largest first */
+        for(int i = 1; i<4; i++) {
+            int s = suits[i];
+            int j = i - 1;
+            while(j >= 0 && suits[j] < s) {
+                suits[j + 1] = suits[j];
+                j--;
+            }
+            suits[j + 1] = s;
+        }
+        return ((long)suits[0] << 48) | ((long)suits[1] << 32) | ((long)suits[2] << 16) | suits[3];
+    }
+
+    private static int suitIndex(char suit) {
+        switch(suit) {
+            case 'S': return 0;
+            case 'H': return 1;
+            case 'C': return 2;
+            case 'D': return 3;
+            default: return -1;
+        }
+    }
+
+    /**
+     * @return The number of rankings remembered.
+     */
+    public int size() {
+        int size = 0;
+        for(Stripe stripe : stripes) {
+            synchronized(stripe) {
+                size += stripe.size;
+            }
+        }
+        return size;
+    }
+
+    /**
+     * @return The number of times a ranking was remembered.
+     */
+    public long getHits() {
+        long hits = 0;
+        for(Stripe stripe : stripes) {
+            synchronized(stripe) {
+                hits += stripe.hits;
+            }
+        }
+        return hits;
+    }
+
+    /**
+     * @return The number of times a ranking had to be worked out.
+     */
+    public long getMisses() {
+        long misses = 0;
+        for(Stripe stripe : stripes) {
+            synchronized(stripe) {
+                misses += stripe.misses;
+            }
+        }
+        return misses;
+    }
+
+    @Override
+    public String toString() {
+        long hits = getHits();
+        long misses = getMisses();
+        long lookups = hits + misses;
+        return size()+" rankings, "+hits+" hits and "+misses+" misses"
+                + (lookups == 0 ? "" : String.format(" (%.1f%% hits)", 100.0 * hits / lookups));
+    }
+}
@@ -31,7 +31,9 @@ public class PlayerData implements Serializable {
     public Integer currentBet;
     public Integer raise;
     private transient Cards hand;
-    private final transient ClientSocket sock;
+    private transient volatile ClientSocket sock;
+    /* The ID of the user in the database, or -1 for a guest */
+    private transient int userID = -1;
     private volatile boolean inHand;
     private volatile PokerAction playerAction;
     
@@ -73,13 +75,6 @@ public class PlayerData implements Serializable {
     }
     public void setAction(PokerAction newAction) {
         playerAction = newAction;
-        try {
-            synchronized(this) {
-                this.notify();
-            }
-        } catch(IllegalMonitorStateException ex) {
-            System.err.println("Exception when notifying of action");
-        }
     }
     public PokerAction getAction() {
         return playerAction;
@@ -91,5 +86,19 @@ public class PlayerData implements Serializable {
     public ClientSocket getSocket() {
         return sock;
     }
+    public int getUserID() {
+        return userID;
+    }
+    public void setUserID(int userID) {
+        this.userID = userID;
+    }
+    
+    /**
+     * Moves the player to a new connection, e.g. when they connect again.
+     * @param sock The new socket of the player.
+     */
+    public void setSocket(ClientSocket sock) {
+        this.sock = sock;
+    }
     
 }
@@ -60,13 +60,24 @@ public class Poker {
     }
 
     static public ScoredBoard getBestBoard(Cards hand, Cards board) {
+        return getBestBoard(hand, board, null);
+    }
+
+    /**
+     * @param hand The two cards of the player.
+     * @param board The five cards on the table.
+     * @param rankings Where to remember the rankings of the boards tried, or
+     * null to always work them out.
+     * @return The best board the player can make, with its ranking.
+     */
+    static public ScoredBoard getBestBoard(Cards hand, Cards board, HandRankingCache rankings) {
         
         if(board.size()<5 || hand.size()<2 || !board.isComplete() || !hand.isComplete()) return null;
         
         Cards bestBoard = new Cards(board);
         Cards newBoard;
         
-        HandValue bestRanking = Poker.getHandRanking(board);
+        HandValue bestRanking = rank(board, rankings);
         HandValue newRanking;
         
         for(int i = 0; i<5; i++) {
@@ -74,7 +85,7 @@ public class Poker {
             newBoard = new Cards(board);
             newBoard.setCard(hand.getCard(0), i);
 
-            newRanking = Poker.getHandRanking(newBoard);
+            newRanking = rank(newBoard, rankings);
             
             System.out.println(newBoard);
             
@@ -90,7 +101,7 @@ public class Poker {
                 }
                 newBoard.setCard(hand.getCard(1), j);
                 System.out.println(newBoard);
-                newRanking = Poker.getHandRanking(newBoard);
+                newRanking = rank(newBoard, rankings);
                 if(newRanking.compareTo(bestRanking) > 0) {
                     bestRanking = newRanking;
                     bestBoard = newBoard;
@@ -101,6 +112,10 @@ public class Poker {
         return new ScoredBoard(bestBoard, bestRanking);
     }
 
+    private static HandValue rank(Cards cards, HandRankingCache rankings) {
+        return rankings == null ? Poker.getHandRanking(cards) : rankings.getHandRanking(cards);
+    }
+
     static public int flushValue(Cards cards) {
         if(cards.size()<5 || !cards.isComplete()) return -1;
         Set<Character> suits = new HashSet<>();
@@ -126,6 +141,7 @@ public class Poker {
     static public int straightValue(Cards cards) {
         if(cards.size()<5 || !cards.isComplete()) return -1;
         List<Integer> cardValues = cards.values();
+        Collections.sort(cardValues);
         Integer previous = -1;
         for(Integer i : cardValues) {
             if(previous == -1) {
@@ -20,6 +20,9 @@ package space.poulter.poker;
 import com.google.common.collect.BiMap;
 import com.google.common.collect.HashBiMap;
 import java.io.Serializable;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
 
@@ -29,6 +32,21 @@ import java.util.Set;
  */
 public class PokerTableData implements Serializable {
     
+    /**
+     * The scalar fields of the table which are tracked individually, so that
+     * only those which have changed need to be sent in a PokerTableDelta.
+     */
+    public enum Field {
+        GAME_RUNNING, STAGE_OF_PLAY, PLAYERS_IN_HAND, POT, BET, DEALER, 
+        SMALL_BLIND, BIG_BLIND, BOARD, CONFIG;
+    }
+    
+    /* Every mutation increments the revision, and records it against the 
+     * field or seat which was changed.
+     */
+    private long revision;
+    private final long[] fieldRevisions = new long[Field.values().length];
+    private final Map<Integer, Long> seatRevisions = new HashMap<>();
     
     private volatile BiMap<Integer, PlayerData> players;
     private boolean gameIsRunning;
@@ -56,6 +74,8 @@ public class PokerTableData implements Serializable {
     private Integer tableID;
     private Integer maxHands;
     
+    private GameConfig config;
+    
     public void init(int id, int hands) {
         tableID = id;
         maxHands = hands;
@@ -69,6 +89,7 @@ public class PokerTableData implements Serializable {
         pot = 0;
         bet = 0;
         playersInHand = 0;
+        config = GameConfig.DEFAULT;
     }
     
     public void setTableID(Integer value) { 
@@ -81,11 +102,19 @@ public class PokerTableData implements Serializable {
     }
     public Integer getMaxHands() { return maxHands; }
     
+    public void setConfig(GameConfig config) {
+        this.config = config;
+        touch(Field.CONFIG);
+    }
+    public GameConfig getConfig() { return config; }
+    
     public void resetBoard() {
         b = new Cards(5);
+        touch(Field.BOARD);
     }
     public void setBoardCard(Card c, Integer i) {
         b.setCard(c, i);
+        touch(Field.BOARD);
     }
     public Card getBoardCard(Integer i) {
         return b.getCard(i);
@@ -101,7 +130,7 @@ public class PokerTableData implements Serializable {
         } else {
             b = cards;
         }
-        
+        touch(Field.BOARD);
     }
     public Cards getBoard() {
         return b;
@@ -120,9 +149,7 @@ public class PokerTableData implements Serializable {
     public void setSeatOccupied(Integer index, PlayerData dat) {
         if(!seatIsOccupied(index)) {
             players.put(index, dat);
-            synchronized(this) {
-                this.notify();
-            }
+            touchSeat(index);
         }
     }
     public void setSeatFree(Integer index) {
@@ -131,8 +158,10 @@ public class PokerTableData implements Serializable {
                 players.get(index).setAction(Poker.PokerAction.NONE);
                 players.get(index).setInHand(false);
                 playersInHand--;
+                touch(Field.PLAYERS_IN_HAND);
             }
             players.remove(index);
+            touchSeat(index);
         }
     }
     public boolean isGameRunning() {
@@ -144,14 +173,16 @@ public class PokerTableData implements Serializable {
             stageOfPlay = 0;
         else 
             stageOfPlay = -1;
-        
+        touch(Field.GAME_RUNNING);
+        touch(Field.STAGE_OF_PLAY);
     }
     public void setStageOfPlay(int stage) {
         stageOfPlay = stage;
+        touch(Field.STAGE_OF_PLAY);
     }
     public void updateStageOfPlay() {
         stageOfPlay = (stageOfPlay+1)%6;
-        
+        touch(Field.STAGE_OF_PLAY);
     }
     public Integer getStageOfPlay() {
         return stageOfPlay;
@@ -162,6 +193,7 @@ public class PokerTableData implements Serializable {
     }
     public void setPlayers(BiMap<Integer, PlayerData> newPlayers) {
         players = newPlayers;
+        newPlayers.keySet().forEach((index) -> touchSeat(index));
     }
     public Set<PlayerData> getPlayers() {
         //return players
@@ -172,6 +204,7 @@ public class PokerTableData implements Serializable {
     }
     public void setPlayersInHand(int noPlayers) {
         playersInHand = noPlayers;
+        touch(Field.PLAYERS_IN_HAND);
     }
     public Integer getPlayersInHand() {
         return playersInHand;
@@ -181,6 +214,8 @@ public class PokerTableData implements Serializable {
         if(seatIsOccupied(i) && playerOnSeat(i).isInHand()) {
             playerOnSeat(i).setInHand(false);
             playersInHand--;
+            touch(Field.PLAYERS_IN_HAND);
+            touchSeat(i);
         }
         
         return getPlayersInHand();
@@ -209,27 +244,108 @@ public class PokerTableData implements Serializable {
     
     public void addToPot(Integer add) {
         pot += add;
+        touch(Field.POT);
     }
     public void setPot(Integer pot) {
         this.pot = pot;
+        touch(Field.POT);
     }
 
     public void setBet(Integer bet) {
         this.bet = bet;
+        touch(Field.BET);
     }
 
     public void setDealer(Integer dealer) {
         this.dealer = dealer;
+        touch(Field.DEALER);
     }
 
     public void setSmallBlind(Integer smallBlind) {
         this.smallBlind = smallBlind;
+        touch(Field.SMALL_BLIND);
     }
 
     public void setBigBlind(Integer bigBlind) {
         this.bigBlind = bigBlind;
+        touch(Field.BIG_BLIND);
+    }
+    
+    //<editor-fold defaultstate="collapsed" desc="Revision tracking">
+    public synchronized long getRevision() {
+        return revision;
+    }
+    /**
+     * Sets the revision of the data. Only used on the client side, when the 
+     * data has been rebuilt from a snapshot or a delta, so that it matches the 
+     * revision the server sent.
+     * @param revision The revision the data now reflects.
+     */
+    public synchronized void setRevision(long revision) {
+        this.revision = revision;
+    }
+    
+    /**
+     * Marks a field as having changed in a new revision.
+     * @param field The field which was changed.
+     */
+    protected synchronized void touch(Field field) {
+        revision++;
+        fieldRevisions[field.ordinal()] = revision;
+    }
+    
+    /**
+     * Marks the player on a seat as having changed in a new revision. This 
+     * must be called whenever any of the fields of the PlayerData are changed
+     * directly, as the table has no other way to know about it.
+     * @param index The index of the seat which was changed.
+     */
+    public synchronized void touchSeat(Integer index) {
+        revision++;
+        seatRevisions.put(index, revision);
     }
     
+    /**
+     * Gets the changes to the table since the given revision. 
+     * @param since The last revision which the receiver has seen.
+     * @return A delta containing the current value of every field and seat 
+     * which has changed since the revision, or null if the revision is unknown,
+     * in which case a full snapshot must be sent instead.
+     */
+    public synchronized PokerTableDelta deltaSince(long since) {
+        if(since < 0 || since > revision) return null;
+        
+        Map<Field, Serializable> fields = new EnumMap<>(Field.class);
+        for(Field field : Field.values()) {
+            if(fieldRevisions[field.ordinal()] > since) {
+                fields.put(field, getField(field));
+            }
+        }
+        Map<Integer, PlayerData> seats = new HashMap<>();
+        for(Map.Entry<Integer, Long> seat : seatRevisions.entrySet()) {
+            if(seat.getValue() > since) {
+                seats.put(seat.getKey(), playerOnSeat(seat.getKey()));
+            }
+        }
+        return new PokerTableDelta(tableID, since, revision, fields, seats);
+    }
+    
+    private Serializable getField(Field field) {
+        switch(field) {
+            case GAME_RUNNING: return gameIsRunning;
+            case STAGE_OF_PLAY: return stageOfPlay;
+            case PLAYERS_IN_HAND: return playersInHand;
+            case POT: return pot;
+            case BET: return bet;
+            case DEALER: return dealer;
+            case SMALL_BLIND: return smallBlind;
+            case BIG_BLIND: return bigBlind;
+            case BOARD: return new Cards(b);
+            case CONFIG: return config;
+            default: return null;
+        }
+    }
+    //</editor-fold>
     
     
     @Override
@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2018 Em Poulter <em@poulter.space>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package space.poulter.poker;
+
+import java.io.Serializable;
+import java.util.Map;
+import space.poulter.poker.PokerTableData.Field;
+
+/**
+ * The changes made to a PokerTableData between two revisions. Only the fields
+ * and seats which changed are included, each with its value at the later
+ * revision, so applying a delta is idempotent.
+ *
+ * @author Em Poulter
+ */
+public class PokerTableDelta implements Serializable {
+
+    private final Integer tableID;
+    private final long fromRevision;
+    private final long toRevision;
+    private final Map<Field, Serializable> fields;
+    /* A null value means that the seat has been vacated */
+    private final Map<Integer, PlayerData> seats;
+
+    public PokerTableDelta(Integer tableID, long fromRevision, long toRevision,
+            Map<Field, Serializable> fields, Map<Integer, PlayerData> seats) {
+        this.tableID = tableID;
+        this.fromRevision = fromRevision;
+        this.toRevision = toRevision;
+        this.fields = fields;
+        this.seats = seats;
+    }
+
+    public Integer getTableID() {
+        return tableID;
+    }
+    public long getFromRevision() {
+        return fromRevision;
+    }
+    public long getToRevision() {
+        return toRevision;
+    }
+    public Map<Field, Serializable> getFields() {
+        return fields;
+    }
+    public Map<Integer, PlayerData> getSeats() {
+        return seats;
+    }
+    public boolean isEmpty() {
+        return fields.isEmpty() && seats.isEmpty();
+    }
+
+    /**
+     * Applies the changes to the table data. The data should be at the
+     * revision this delta was made from (or later); afterwards it is at the
+     * revision this delta was made to.
+     * @param dat The table data to update.
+     */
+    public void applyTo(PokerTableData dat) {
+        /* The fields are applied in declaration order, so that setting the game
+         * running is done before the stage of play is overwritten.
+         */
+        for(Map.Entry<Field, Serializable> field : fields.entrySet()) {
+            Serializable value = field.getValue();
+            switch(field.getKey()) {
+                case GAME_RUNNING: dat.setGameRunning((Boolean)value);
+                                   break;
+                case STAGE_OF_PLAY: dat.setStageOfPlay((Integer)value);
+                                    break;
+                case PLAYERS_IN_HAND: dat.setPlayersInHand((Integer)value);
+                                      break;
+                case POT: dat.setPot((Integer)value);
+                          break;
+                case BET: dat.setBet((Integer)value);
+                          break;
+                case DEALER: dat.setDealer((Integer)value);
+                             break;
+                case SMALL_BLIND: dat.setSmallBlind((Integer)value);
+                                  break;
+                case BIG_BLIND: dat.setBigBlind((Integer)value);
+                                break;
+                case BOARD: dat.setBoardCards((Cards)value);
+                            break;
+                case CONFIG: dat.setConfig((GameConfig)value);
+            }
+        }
+        for(Map.Entry<Integer, PlayerData> seat : seats.entrySet()) {
+            dat.getPlayerAndIndex().remove(seat.getKey());
+            if(seat.getValue() != null) {
+                dat.getPlayerAndIndex().put(seat.getKey(), seat.getValue());
+            }
+        }
+        dat.setRevision(toRevision);
+    }
+
+    @Override
+    public String toString() {
+        return "ID:"+tableID+", Revisions:"+fromRevision+"-"+toRevision;
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright (C) 2018 Em Poulter <em@poulter.space>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package space.poulter.poker;
+
+import java.io.Serializable;
+
+/**
+ * The information about a table which is shown in the lobby. This is much
+ * smaller than the full PokerTableData, so whole pages of them can be sent at
+ * once.
+ *
+ * @author Em Poulter
+ */
+public class TableSummary implements Serializable {
+
+    private final int tableID;
+    private final int maxHands;
+    private final int seated;
+    private final boolean running;
+    private final int averagePot;
+    private final int bigBlind;
+    private final String stakes;
+    private final GameConfig config;
+
+    public TableSummary(int tableID, int maxHands, int seated, boolean running,
+            int averagePot, GameConfig config) {
+        this.tableID = tableID;
+        this.maxHands = maxHands;
+        this.seated = seated;
+        this.running = running;
+        this.averagePot = averagePot;
+        bigBlind = config.getBigBlind();
+        stakes = config.toString();
+        this.config = config;
+    }
+
+    public int getTableID() {
+        return tableID;
+    }
+    public int getMaxHands() {
+        return maxHands;
+    }
+    public int getSeated() {
+        return seated;
+    }
+    public int getFreeSeats() {
+        return maxHands - seated;
+    }
+    public boolean isRunning() {
+        return running;
+    }
+    public int getAveragePot() {
+        return averagePot;
+    }
+    public int getBigBlind() {
+        return bigBlind;
+    }
+    /**
+     * @return A description of the stakes, as given by GameConfig.toString().
+     */
+    public String getStakes() {
+        return stakes;
+    }
+    public GameConfig getConfig() {
+        return config;
+    }
+
+    @Override
+    public String toString() {
+        return "ID:"+tableID+", MaxHands:"+maxHands+", Seated:"+seated
+                +", Running:"+running+", AveragePot:"+averagePot
+                +", Stakes:"+stakes;
+    }
+}